@@ -8,6 +8,7 @@
 #include <soam.h>
 
 #include "PortfolioInvestment.h"
+#include "PortfolioCommonData.h"
 #include "PortfolioInput.h"
 #include "PortfolioOutput.h"
 
@@ -57,11 +58,11 @@ namespace ExampleData {
    double const defaultWealth = 100;
    double const defaultRho = 0.01;
 
-   /** Populate a task input message with he hard-coded example data.
+   /** Populate session common data with he hard-coded example data.
     * If either of wealth or rho is NaN then the default values defined in
     * this namespace will be used.
     */
-   void populate(Input &input, double &wealth, double &rho) {
+   void populate(CommonData &common, double &wealth, double &rho) {
       std::vector<Investment> investments;
       Covariance covar;
       for (int i = 0; i < 20; ++i) {
@@ -76,10 +77,8 @@ namespace ExampleData {
          wealth = defaultWealth;
       if ( isnan(rho) )
          rho = defaultRho;
-      input.setInvestments(investments);
-      input.setCovariance(covar);
-      input.setWealth(wealth);
-      input.setRho(rho);
+      common.setInvestments(investments);
+      common.setCovariance(covar);
    }
 
 } // namespace ExampleData
@@ -94,6 +93,7 @@ main(int argc, char* argv[])
    char const *sessionId = 0;
    SoamLong timeout = globalConst(TimeoutInfinite);
    char const *dataFile = 0;
+   bool bulk = false;
    double wealth = std::numeric_limits<double>::quiet_NaN();
    double step = std::numeric_limits<double>::quiet_NaN();
    double rhomin = std::numeric_limits<double>::quiet_NaN();
@@ -109,6 +109,8 @@ main(int argc, char* argv[])
          sessionId = argv[i] + 9;
       else if ( ::strncmp(argv[i], "-timeout=", 9) == 0 )
          timeout = ::strtol(argv[i] + 9, 0, 10);
+      else if ( ::strcmp(argv[i], "-bulk") == 0 )
+         bulk = true;
       else if ( ::strncmp(argv[i], "-data=", 6) == 0 )
          dataFile = argv[i] + 6;
       else if ( ::strncmp(argv[i], "-wealth=", 8) == 0 )
@@ -161,6 +163,8 @@ main(int argc, char* argv[])
             << "    -wealth=...   Specify the initial wealth to be used in" << endl
             << "                  optimization." << endl
             << "    -step=...     If rho is given as a range, specify the step width." << endl
+            << "    -bulk         Send the input in bulk encoding. This requires" << endl
+            << "                  a service that understands bulk encoding." << endl
             ;
          return 0;
       }
@@ -218,16 +222,10 @@ main(int argc, char* argv[])
       else {
          // No session id specified on the command line. Create a new
          // session and submit an optimmization problem to it.
-         SessionCreationAttributes attributes;
-         attributes.setSessionName("mySession");
-         attributes.setSessionType("ShortRunningTasks");
-         attributes.setSessionFlags(Session::ReceiveSync);
-         sesPtr = conPtr->createSession(attributes);
-
-         // Retrieve and print session ID. 
-         cout << "Session ID:" << sesPtr->getId() << endl;
-
-         // Prepare the input message for the service.
+         // The investments and the covariance matrix are sent once as
+         // common data of the session, each task only specifies wealth
+         // and rho.
+         CommonData common;
          Input input;
          if ( dataFile ) {
             std::vector<Investment> investments;
@@ -243,14 +241,27 @@ main(int argc, char* argv[])
                   }
                }
             }
-            input.setInvestments(investments);
-            input.setCovariance(covar);
-            input.setWealth(wealth);
-            input.setRho(rhomin);
+            common.setInvestments(investments);
+            common.setCovariance(covar);
          }
          else {
-            ExampleData::populate(input, wealth, rhomin);
+            ExampleData::populate(common, wealth, rhomin);
          }
+         common.setBulk(bulk);
+         input.setWealth(wealth);
+         input.setRho(rhomin);
+
+         SessionCreationAttributes attributes;
+         attributes.setSessionName("mySession");
+         attributes.setSessionType("ShortRunningTasks");
+         attributes.setSessionFlags(Session::ReceiveSync);
+         attributes.setCommonData(&common);
+         sesPtr = conPtr->createSession(attributes);
+
+         // Retrieve and print session ID. 
+         cout << "Session ID:" << sesPtr->getId() << endl;
+
+         input.setBulk(bulk);
 
          // Setting benign values in case rho was specified as single value.
          // This will result in one task for rho=rhomin
@@ -305,6 +316,7 @@ main(int argc, char* argv[])
                           << it->getAllocation() << endl;
                   cout << "Total return = " << output.getTotalReturn() << endl;
                   cout << "Total variance = " << output.getTotalVariance() << endl;
+                  cout << "Solve time = " << output.getSolveTime() << " s" << endl;
                }
                else {
                   // Get the exception associated with this task. 
@@ -0,0 +1,69 @@
+#ifndef CPXBATCHREQUEST_H
+#define CPXBATCHREQUEST_H 1
+
+#include <soam.h>
+
+#include <vector>
+
+#include "PortfolioInvestment.h"
+
+namespace cpx {
+namespace portfolio {
+
+/** Batched input for the portfolio service.
+ * An instance of this message holds one data set and any number of
+ * wealth/rho points that are solved in sequence. The message starts with
+ * ioutil::BATCH_TAG. onDeserialize() also accepts the encoding of Input,
+ * which is read as a batch with a single point, so the service can read
+ * every task input into this class. isBatch() tells the two apart.
+ */
+class BatchInput : public soam::Message {
+private:
+   std::vector<Investment> mInvestments;
+   Covariance mCovariance;
+   std::vector<double> mWealths;
+   std::vector<double> mRhos;
+   bool mBulk;
+   bool mBatch;
+
+   BatchInput(BatchInput const &);
+   BatchInput &operator=(BatchInput const &);
+
+   void clear();
+
+public:
+   BatchInput();
+   virtual ~BatchInput();
+   void onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException);
+   void onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamException);
+
+   // Set/get investments from which the service can choose. If there are
+   // none then the service uses the common data of the session.
+   void setInvestments(std::vector<Investment> const &investments) { mInvestments = investments; }
+   std::vector<Investment> const &getInvestments() const { return mInvestments; }
+
+   // Set/get the covariance matrix.
+   void setCovariance(Covariance const &covariance) { mCovariance = covariance; }
+   Covariance const &getCovariance() const { return mCovariance; }
+
+   // Add/get the wealth/rho points of the batch.
+   void addPoint(double wealth, double rho) { mWealths.push_back(wealth); mRhos.push_back(rho); }
+   std::vector<double>::size_type size() const { return mWealths.size(); }
+   double getWealth(std::vector<double>::size_type point) const { return mWealths[point]; }
+   double getRho(std::vector<double>::size_type point) const { return mRhos[point]; }
+
+   // Test/set whether this message is written in bulk encoding (see
+   // ioutil::BULK_TAG). After onDeserialize() this tells whether the
+   // message was received in bulk encoding.
+   bool isBulk() const { return mBulk; }
+   void setBulk(bool bulk) { mBulk = bulk; }
+
+   // Test whether onDeserialize() read a batch (as opposed to an Input).
+   bool isBatch() const { return mBatch; }
+};
+
+
+} // namespace portfolio
+} // namespace cpx
+
+#endif // !CPXBATCHREQUEST_H
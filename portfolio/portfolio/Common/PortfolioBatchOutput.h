@@ -0,0 +1,51 @@
+#ifndef CPXBATCHREPLY_H
+#define CPXBATCHREPLY_H 1
+
+#include <soam.h>
+#include <vector>
+
+#include "PortfolioOutput.h"
+
+namespace cpx {
+namespace portfolio {
+
+/** Portfolio service output for a BatchInput.
+ * An instance of this class holds one Output per point of the batch, in the
+ * order of the points, and the time the service spent on the batch.
+ * The outputs are written with their solve time (see Output::isTimed()).
+ */
+class BatchOutput : public soam::Message {
+   BatchOutput(BatchOutput const &);
+   BatchOutput &operator=(BatchOutput const &);
+
+   std::vector<Output *> mOutputs;
+   long long mElapsed;
+   bool mBulk;
+
+   void clear();
+public:
+   BatchOutput();
+   virtual ~BatchOutput();
+   void onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException);
+   void onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamException);
+
+   // Append a new output for the next point and return it. The output is
+   // owned by this instance.
+   Output &addOutput();
+   std::vector<Output *>::size_type size() const { return mOutputs.size(); }
+   Output const &getOutput(std::vector<Output *>::size_type point) const { return *mOutputs[point]; }
+
+   // Get/set the time in milliseconds that the service spent on the batch.
+   long long getElapsed() const { return mElapsed; }
+   void setElapsed(long long elapsed) { mElapsed = elapsed; }
+
+   // Test/set whether this message is written in bulk encoding (see
+   // ioutil::BULK_TAG). The outputs are written in the same encoding.
+   bool isBulk() const { return mBulk; }
+   void setBulk(bool bulk) { mBulk = bulk; }
+};
+
+} // namespace portfolio
+} // namespace cpx
+
+#endif // !CPXBATCHREPLY_H
@@ -0,0 +1,53 @@
+#ifndef CPXPORTFOLIOCOMMONDATA_H
+#define CPXPORTFOLIOCOMMONDATA_H 1
+
+#include <soam.h>
+
+#include <vector>
+
+#include "PortfolioInvestment.h"
+
+namespace cpx {
+namespace portfolio {
+
+/** Session common data for the portfolio service.
+ * A client that submits many tasks for the same investments and covariance
+ * matrix (for example a sweep over rho) sends this data only once, as common
+ * data of the session. The tasks of such a session are inputs without
+ * investments that only specify wealth and rho.
+ */
+class CommonData : public soam::Message {
+private:
+   std::vector<Investment> mInvestments;
+   Covariance mCovariance;
+   bool mBulk;
+
+   CommonData(CommonData const &);
+   CommonData &operator=(CommonData const &);
+
+public:
+   CommonData();
+   virtual ~CommonData();
+   void clear();
+   void onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException);
+   void onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamException);
+
+   // Set/get the investments that are shared by all tasks of the session.
+   void setInvestments(std::vector<Investment> const &investments) { mInvestments = investments; }
+   std::vector<Investment> const &getInvestments() const { return mInvestments; }
+
+   // Set/get the covariance matrix that is shared by all tasks of the session.
+   void setCovariance(Covariance const &covariance) { mCovariance = covariance; }
+   Covariance const &getCovariance() const { return mCovariance; }
+
+   // Test/set whether this message is written in bulk encoding (see
+   // ioutil::BULK_TAG). After onDeserialize() this tells whether the
+   // message was received in bulk encoding.
+   bool isBulk() const { return mBulk; }
+   void setBulk(bool bulk) { mBulk = bulk; }
+};
+
+} // namespace portfolio
+} // namespace cpx
+
+#endif // !CPXPORTFOLIOCOMMONDATA_H
@@ -1,19 +1,19 @@
 
+#include "PortfolioBatchInput.h"
+#include "PortfolioBatchOutput.h"
+#include "PortfolioCommonData.h"
 #include "PortfolioInput.h"
 #include "PortfolioOutput.h"
 
 namespace cpx {
 namespace portfolio {
 
-// Since Java has no unsigned types and we want to be able to exchange
-// data with Java clients, this is a signed and not an unsigned type.
-typedef long long SIZE_TYPE;
-
 Input::Input()
    : mInvestments()
    , mCovariance()
    , mWealth(std::numeric_limits<double>::quiet_NaN())
    , mRho(std::numeric_limits<double>::quiet_NaN())
+   , mBulk(false)
 {
 }
 
@@ -27,15 +27,13 @@ void Input::clear()
    mInvestments.clear();
    mWealth = std::numeric_limits<double>::quiet_NaN();
    mRho = std::numeric_limits<double>::quiet_NaN();
+   mBulk = false;
 }
 
 void Input::onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException)
 {
-   SIZE_TYPE const size = mInvestments.size();
-   stream->write(size);
-   for (SIZE_TYPE i = 0; i < size; ++i)
-      mInvestments[i].onSerialize(stream);
-   mCovariance.onSerialize(stream);
+   ioutil::writeInvestments(stream, mInvestments, mBulk);
+   mCovariance.onSerialize(stream, mBulk);
    stream->write(mWealth);
    stream->write(mRho);
 }
@@ -44,13 +42,7 @@ void Input::onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamExcepti
 {
    clear();
    try {
-      SIZE_TYPE size;
-      stream->read(size);
-      for (SIZE_TYPE i = 0; i < size; ++i) {
-         Investment investment;
-         investment.onDeserialize(stream);
-         addInvestment(investment);
-      }
+      mBulk = ioutil::readInvestments(stream, mInvestments);
       mCovariance.onDeserialize(stream);
       stream->read(mWealth);
       stream->read(mRho);
@@ -62,6 +54,44 @@ void Input::onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamExcepti
 }
 
 
+CommonData::CommonData()
+   : mInvestments()
+   , mCovariance()
+   , mBulk(false)
+{
+}
+
+CommonData::~CommonData()
+{
+}
+
+void CommonData::clear()
+{
+   mCovariance.clear();
+   mInvestments.clear();
+   mBulk = false;
+}
+
+void CommonData::onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException)
+{
+   ioutil::writeInvestments(stream, mInvestments, mBulk);
+   mCovariance.onSerialize(stream, mBulk);
+}
+
+void CommonData::onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamException)
+{
+   clear();
+   try {
+      mBulk = ioutil::readInvestments(stream, mInvestments);
+      mCovariance.onDeserialize(stream);
+   }
+   catch (...) {
+      clear();
+      throw;
+   }
+}
+
+
 Output::Output()
    : mOptimal(false)
    , mWealth(std::numeric_limits<double>::quiet_NaN())
@@ -69,7 +99,10 @@ Output::Output()
    , mObjValue(std::numeric_limits<double>::quiet_NaN())
    , mTotalReturn(std::numeric_limits<double>::quiet_NaN())
    , mTotalVariance(std::numeric_limits<double>::quiet_NaN())
+   , mSolveTime(std::numeric_limits<double>::quiet_NaN())
    , mInvestments()
+   , mBulk(false)
+   , mTimed(false)
 {
 }
 
@@ -85,10 +118,18 @@ void Output::clear()
    mObjValue = std::numeric_limits<double>::quiet_NaN();
    mTotalReturn = std::numeric_limits<double>::quiet_NaN();
    mTotalVariance = std::numeric_limits<double>::quiet_NaN();
+   mSolveTime = std::numeric_limits<double>::quiet_NaN();
    mInvestments.clear();
+   mBulk = false;
+   mTimed = false;
 }
 
 void Output::onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException)
+{
+   onSerialize(stream, mBulk, mTimed);
+}
+
+void Output::onSerialize(soam::OutputStreamPtr &stream, bool bulk, bool timed) throw (soam::SoamException)
 {
    stream->write(mOptimal);
    stream->write(mWealth);
@@ -96,10 +137,11 @@ void Output::onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamExcepti
    stream->write(mObjValue);
    stream->write(mTotalReturn);
    stream->write(mTotalVariance);
-   SIZE_TYPE const size = mInvestments.size();
-   stream->write(size);
-   for (SIZE_TYPE i = 0; i < size; ++i)
-      mInvestments[i].onSerialize(stream);
+   if ( timed ) {
+      stream->write(ioutil::SOLVE_TIME_TAG);
+      stream->write(mSolveTime);
+   }
+   ioutil::writeInvestments(stream, mInvestments, bulk);
 }
 
 void Output::onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamException)
@@ -112,11 +154,154 @@ void Output::onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamExcept
       stream->read(mObjValue);
       stream->read(mTotalReturn);
       stream->read(mTotalVariance);
-      SIZE_TYPE size;
-      stream->read(size);
-      for (SIZE_TYPE i = 0; i < size; ++i) {
-         mInvestments.push_back(Investment());
-         mInvestments[i].onDeserialize(stream);
+      long long tag;
+      stream->read(tag);
+      if ( tag == ioutil::SOLVE_TIME_TAG ) {
+         stream->read(mSolveTime);
+         mTimed = true;
+         mBulk = ioutil::readInvestments(stream, mInvestments);
+      }
+      else
+         mBulk = ioutil::readInvestments(stream, mInvestments, tag);
+   }
+   catch (...) {
+      clear();
+      throw;
+   }
+}
+
+
+BatchInput::BatchInput()
+   : mInvestments()
+   , mCovariance()
+   , mWealths()
+   , mRhos()
+   , mBulk(false)
+   , mBatch(true)
+{
+}
+
+BatchInput::~BatchInput()
+{
+}
+
+void BatchInput::clear()
+{
+   mCovariance.clear();
+   mInvestments.clear();
+   mWealths.clear();
+   mRhos.clear();
+   mBulk = false;
+   mBatch = true;
+}
+
+void BatchInput::onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException)
+{
+   stream->write(ioutil::BATCH_TAG);
+   ioutil::writeInvestments(stream, mInvestments, mBulk);
+   mCovariance.onSerialize(stream, mBulk);
+   long long const count = mWealths.size();
+   stream->write(count);
+   for (std::vector<double>::size_type i = 0; i < mWealths.size(); ++i) {
+      stream->write(mWealths[i]);
+      stream->write(mRhos[i]);
+   }
+}
+
+void BatchInput::onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamException)
+{
+   clear();
+   try {
+      long long tag;
+      stream->read(tag);
+      double wealth, rho;
+      if ( tag != ioutil::BATCH_TAG ) {
+         // Encoding of Input: the tag is the size of the investments.
+         mBatch = false;
+         mBulk = ioutil::readInvestments(stream, mInvestments, tag);
+         mCovariance.onDeserialize(stream);
+         stream->read(wealth);
+         stream->read(rho);
+         addPoint(wealth, rho);
+         return;
+      }
+      mBulk = ioutil::readInvestments(stream, mInvestments);
+      mCovariance.onDeserialize(stream);
+      long long count;
+      stream->read(count);
+      if ( count < 0 )
+         throw soam::SoamException("Invalid number of points");
+      for (long long i = 0; i < count; ++i) {
+         stream->read(wealth);
+         stream->read(rho);
+         addPoint(wealth, rho);
+      }
+   }
+   catch (...) {
+      clear();
+      throw;
+   }
+}
+
+
+BatchOutput::BatchOutput()
+   : mOutputs()
+   , mElapsed(0)
+   , mBulk(false)
+{
+}
+
+BatchOutput::~BatchOutput()
+{
+   clear();
+}
+
+void BatchOutput::clear()
+{
+   for (std::vector<Output *>::size_type i = 0; i < mOutputs.size(); ++i)
+      delete mOutputs[i];
+   mOutputs.clear();
+   mElapsed = 0;
+   mBulk = false;
+}
+
+Output &BatchOutput::addOutput()
+{
+   Output *output = new Output();
+   try {
+      mOutputs.push_back(output);
+   }
+   catch (...) {
+      delete output;
+      throw;
+   }
+   return *output;
+}
+
+void BatchOutput::onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException)
+{
+   long long const count = mOutputs.size();
+   stream->write(count);
+   stream->write(mElapsed);
+   // Only clients that know batches read batch outputs, so the outputs
+   // always have their solve time.
+   for (std::vector<Output *>::size_type i = 0; i < mOutputs.size(); ++i)
+      mOutputs[i]->onSerialize(stream, mBulk, true);
+}
+
+void BatchOutput::onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamException)
+{
+   clear();
+   try {
+      long long count;
+      stream->read(count);
+      if ( count < 0 )
+         throw soam::SoamException("Invalid number of outputs");
+      stream->read(mElapsed);
+      for (long long i = 0; i < count; ++i) {
+         Output &output = addOutput();
+         output.onDeserialize(stream);
+         mBulk = output.isBulk();
       }
    }
    catch (...) {
@@ -20,6 +20,7 @@ private:
    Covariance mCovariance;
    double mWealth;
    double mRho;
+   bool mBulk;
    
    Input(Input const &);
    Input &operator=(Input const &);
@@ -50,6 +51,12 @@ public:
    // portfolio allocation strategy is allowed to take.
    double getRho() const { return mRho; }
    void setRho(double rho) { mRho = rho; }
+
+   // Test/set whether this message is written in bulk encoding (see
+   // ioutil::BULK_TAG). After onDeserialize() this tells whether the
+   // message was received in bulk encoding.
+   bool isBulk() const { return mBulk; }
+   void setBulk(bool bulk) { mBulk = bulk; }
 };
 
 
@@ -1,6 +1,9 @@
 
 #include "PortfolioInvestment.h"
 
+#include <algorithm>
+#include <cstring>
+
 namespace cpx {
 namespace portfolio {
 
@@ -12,7 +15,7 @@ void Investment::reset()
    mName = "";
 }
 
-void Investment::onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException)
+void Investment::onSerialize(soam::OutputStreamPtr &stream) const throw (soam::SoamException)
 {
    stream->write(mId);
    stream->write(mName);
@@ -34,12 +37,151 @@ void Investment::onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamEx
    }
 }
 
-void Covariance::reset() { mData.clear(); }
+// This is a signed type since java has no unsigned types.
+// Negative sizes tag special encodings, see FACTOR_TAG and ioutil::BULK_TAG.
+typedef long long SIZE_TYPE;
+
+/** Size tag that marks a serialized factor model. */
+static SIZE_TYPE const FACTOR_TAG = -1;
+
+/** Store the low <code>count</code> bytes of bits at offset in bytes (little-endian). */
+static void setBits(std::string &bytes, std::string::size_type offset,
+                    unsigned long long bits, int count)
+{
+   for (int b = 0; b < count; ++b)
+      bytes[offset + b] = static_cast<char>((bits >> (8 * b)) & 0xff);
+}
+
+/** Get <code>count</code> bytes at offset in bytes (little-endian). */
+static unsigned long long getBits(std::string const &bytes, std::string::size_type offset,
+                                  int count)
+{
+   unsigned long long bits = 0;
+   for (int b = count - 1; b >= 0; --b)
+      bits = (bits << 8) | static_cast<unsigned char>(bytes[offset + b]);
+   return bits;
+}
+
+static unsigned long long doubleBits(double value)
+{
+   unsigned long long bits;
+   std::memcpy(&bits, &value, sizeof(bits));
+   return bits;
+}
+
+static double bitsDouble(unsigned long long bits)
+{
+   double value;
+   std::memcpy(&value, &bits, sizeof(value));
+   return value;
+}
+
+namespace ioutil {
+
+void writeInvestments(soam::OutputStreamPtr &stream,
+                      std::vector<Investment> const &investments,
+                      bool bulk)
+{
+   SIZE_TYPE const size = investments.size();
+   if ( !bulk ) {
+      stream->write(size);
+      for (SIZE_TYPE i = 0; i < size; ++i)
+         investments[i].onSerialize(stream);
+      return;
+   }
+   std::string::size_type const n = investments.size();
+   std::string bytes(28 * n, '\0');
+   for (std::string::size_type i = 0; i < n; ++i) {
+      Investment const &investment = investments[i];
+      setBits(bytes, 8 * i, investment.getId(), 8);
+      setBits(bytes, 8 * (n + i), doubleBits(investment.getReturn()), 8);
+      setBits(bytes, 8 * (2 * n + i), doubleBits(investment.getAllocation()), 8);
+      setBits(bytes, 24 * n + 4 * i, investment.getName().size(), 4);
+      bytes += investment.getName();
+   }
+   stream->write(BULK_TAG);
+   stream->write(size);
+   stream->write(bytes);
+}
+
+bool readInvestments(soam::InputStreamPtr &stream,
+                     std::vector<Investment> &investments)
+{
+   SIZE_TYPE size;
+   stream->read(size);
+   return readInvestments(stream, investments, size);
+}
+
+bool readInvestments(soam::InputStreamPtr &stream,
+                     std::vector<Investment> &investments,
+                     long long size)
+{
+   investments.clear();
+   if ( size != BULK_TAG ) {
+      if ( size < 0 )
+         throw soam::SoamException("Invalid number of investments");
+      investments.resize(size);
+      for (SIZE_TYPE i = 0; i < size; ++i)
+         investments[i].onDeserialize(stream);
+      return false;
+   }
+   stream->read(size);
+   std::string bytes;
+   stream->read(bytes);
+   if ( size < 0 || bytes.size() < 28 * static_cast<unsigned long long>(size) )
+      throw soam::SoamException("Invalid bulk investment data");
+   std::string::size_type const n = size;
+   std::string::size_type offset = 28 * n;
+   investments.resize(n);
+   for (std::string::size_type i = 0; i < n; ++i) {
+      std::string::size_type const length = getBits(bytes, 24 * n + 4 * i, 4);
+      if ( length > bytes.size() - offset )
+         throw soam::SoamException("Invalid bulk investment data");
+      investments[i] = Investment(getBits(bytes, 8 * i, 8),
+                                  bytes.substr(offset, length),
+                                  bitsDouble(getBits(bytes, 8 * (n + i), 8)),
+                                  bitsDouble(getBits(bytes, 8 * (2 * n + i), 8)));
+      offset += length;
+   }
+   if ( offset != bytes.size() )
+      throw soam::SoamException("Invalid bulk investment data");
+   return true;
+}
+
+} // ioutil
+
+void Covariance::reset()
+{
+   mData.clear();
+   mFactorModel = false;
+   mFactors = 0;
+   mIds.clear();
+   mSpecific.clear();
+   mExposures.clear();
+   mFactorCovariance.clear();
+   mLoadings.clear();
+}
+
+/** Replace a factor model by the explicit values it represents. */
+void Covariance::materialize()
+{
+   if ( !mFactorModel )
+      return;
+   MAP_TYPE data;
+   for (std::vector<Investment::ID_TYPE>::size_type i = 0; i < mIds.size(); ++i) {
+      for (std::vector<Investment::ID_TYPE>::size_type j = i; j < mIds.size(); ++j)
+         data.insert(MAP_TYPE::value_type(KEY_TYPE(mIds[i], mIds[j]),
+                                          getCovariance(mIds[i], mIds[j])));
+   }
+   reset();
+   mData.swap(data);
+}
 
 void Covariance::setCovariance(Investment::ID_TYPE i1, Investment::ID_TYPE i2, double covariance)
 {
    if ( i1 > i2 )
       std::swap(i1, i2);
+   materialize();
    mData.insert(MAP_TYPE::value_type(KEY_TYPE(i1, i2), covariance));
 }
 
@@ -47,18 +189,81 @@ double Covariance::getCovariance(Investment::ID_TYPE i1, Investment::ID_TYPE i2)
 {
    if ( i1 > i2 )
       std::swap(i1, i2);
+   if ( mFactorModel ) {
+      std::vector<Investment::ID_TYPE>::const_iterator const a =
+         std::lower_bound(mIds.begin(), mIds.end(), i1);
+      std::vector<Investment::ID_TYPE>::const_iterator const b =
+         std::lower_bound(mIds.begin(), mIds.end(), i2);
+      if ( a == mIds.end() || *a != i1 || b == mIds.end() || *b != i2 )
+         return std::numeric_limits<double>::quiet_NaN();
+      std::vector<double>::size_type const ia = a - mIds.begin();
+      std::vector<double>::size_type const ib = b - mIds.begin();
+      double sum = (ia == ib) ? mSpecific[ia] : 0.0;
+      for (std::vector<double>::size_type p = 0; p < mFactors; ++p)
+         sum += mLoadings[ia * mFactors + p] * mExposures[ib * mFactors + p];
+      return sum;
+   }
    KEY_TYPE const key(i1, i2);
    MAP_TYPE::const_iterator it(mData.find(key));
    return (it != mData.end()) ? it->second : std::numeric_limits<double>::quiet_NaN();
 }
 
-// This is an unsigned type since java has no unsigned types.
-typedef long long SIZE_TYPE;
-
 void Covariance::onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException)
 {
+   onSerialize(stream, false);
+}
+
+void Covariance::onSerialize(soam::OutputStreamPtr &stream, bool bulk) throw (soam::SoamException)
+{
+   if ( mFactorModel && bulk ) {
+      SIZE_TYPE const n = mIds.size();
+      SIZE_TYPE const k = mFactors;
+      stream->write(FACTOR_TAG);
+      stream->write(n);
+      stream->write(k);
+      for (std::vector<Investment::ID_TYPE>::size_type i = 0; i < mIds.size(); ++i) {
+         stream->write(mIds[i]);
+         stream->write(mSpecific[i]);
+      }
+      for (std::vector<double>::size_type i = 0; i < mExposures.size(); ++i)
+         stream->write(mExposures[i]);
+      for (std::vector<double>::size_type i = 0; i < mFactorCovariance.size(); ++i)
+         stream->write(mFactorCovariance[i]);
+      return;
+   }
+
+   if ( mFactorModel ) {
+      // Expand the model to the values it represents.
+      SIZE_TYPE const n = mIds.size();
+      SIZE_TYPE const size = n * (n + 1) / 2;
+      stream->write(size);
+      for (std::vector<Investment::ID_TYPE>::size_type i = 0; i < mIds.size(); ++i) {
+         for (std::vector<Investment::ID_TYPE>::size_type j = i; j < mIds.size(); ++j) {
+            stream->write(mIds[i]);
+            stream->write(mIds[j]);
+            stream->write(getCovariance(mIds[i], mIds[j]));
+         }
+      }
+      return;
+   }
+
    SIZE_TYPE const size = mData.size();
 
+   if ( bulk ) {
+      std::string::size_type const n = mData.size();
+      std::string bytes(24 * n, '\0');
+      std::string::size_type k = 0;
+      for (MAP_TYPE::const_iterator it(mData.begin()); it != mData.end(); ++it, ++k) {
+         setBits(bytes, 8 * k, it->first.first, 8);
+         setBits(bytes, 8 * (n + k), it->first.second, 8);
+         setBits(bytes, 8 * (2 * n + k), doubleBits(it->second), 8);
+      }
+      stream->write(ioutil::BULK_TAG);
+      stream->write(size);
+      stream->write(bytes);
+      return;
+   }
+
    stream->write(size);
    for (MAP_TYPE::const_iterator it(mData.begin()); it != mData.end(); ++it) {
       stream->write(it->first.first);
@@ -67,12 +272,72 @@ void Covariance::onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamExc
    }
 }
 
+/** Read the factor model that follows the FACTOR_TAG in a stream. */
+void Covariance::readFactorModel(soam::InputStreamPtr &stream)
+{
+   SIZE_TYPE n, k;
+   stream->read(n);
+   stream->read(k);
+   if ( n < 0 || k < 0 )
+      throw soam::SoamException("Invalid factor model dimensions");
+   mIds.resize(n);
+   mSpecific.resize(n);
+   for (SIZE_TYPE i = 0; i < n; ++i) {
+      stream->read(mIds[i]);
+      stream->read(mSpecific[i]);
+      if ( i > 0 && mIds[i] <= mIds[i - 1] )
+         throw soam::SoamException("Investment ids of factor model are not in ascending order");
+   }
+   mExposures.resize(n * k);
+   for (SIZE_TYPE i = 0; i < n * k; ++i)
+      stream->read(mExposures[i]);
+   mFactorCovariance.resize(k * k);
+   for (SIZE_TYPE i = 0; i < k * k; ++i)
+      stream->read(mFactorCovariance[i]);
+
+   // Precompute B F so that a value costs O(k).
+   mLoadings.assign(n * k, 0.0);
+   for (SIZE_TYPE i = 0; i < n; ++i) {
+      for (SIZE_TYPE q = 0; q < k; ++q) {
+         double sum = 0.0;
+         for (SIZE_TYPE p = 0; p < k; ++p)
+            sum += mExposures[i * k + p] * mFactorCovariance[p * k + q];
+         mLoadings[i * k + q] = sum;
+      }
+   }
+   mFactors = k;
+   mFactorModel = true;
+}
+
+/** Read the triples that follow the bulk tag in a stream. */
+void Covariance::readBulk(soam::InputStreamPtr &stream)
+{
+   SIZE_TYPE size;
+   stream->read(size);
+   std::string bytes;
+   stream->read(bytes);
+   if ( size < 0 || bytes.size() != 24 * static_cast<unsigned long long>(size) )
+      throw soam::SoamException("Invalid bulk covariance data");
+   std::string::size_type const n = size;
+   for (std::string::size_type k = 0; k < n; ++k)
+      setCovariance(getBits(bytes, 8 * k, 8), getBits(bytes, 8 * (n + k), 8),
+                    bitsDouble(getBits(bytes, 8 * (2 * n + k), 8)));
+}
+
 void Covariance::onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamException)
 {
    reset();
    try {
       SIZE_TYPE size;
       stream->read(size);
+      if ( size == FACTOR_TAG ) {
+         readFactorModel(stream);
+         return;
+      }
+      if ( size == ioutil::BULK_TAG ) {
+         readBulk(stream);
+         return;
+      }
       for (SIZE_TYPE i = 0; i < size; ++i) {
          Investment::ID_TYPE i1, i2;
          double covariance;
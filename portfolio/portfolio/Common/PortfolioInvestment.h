@@ -56,7 +56,7 @@ public:
    double getAllocation() const { return mAllocation; }
    void setAllocation(double const &allocation) { mAllocation = allocation; }
    
-   virtual void onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException);
+   virtual void onSerialize(soam::OutputStreamPtr &stream) const throw (soam::SoamException);
    virtual void onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamException);
 };
 
@@ -64,6 +64,9 @@ public:
  * Instances of this class are used as input to the portfolio optimization
  * service. This class represents a covariance matrix my means of a map that
  * is indexed by pairs of investment ids.
+ * Alternatively the matrix can be given by a factor model
+ * B F B^T + D with n x k exposures B, k x k factor covariance F and diagonal
+ * specific variances D. In that case values are computed on the fly.
  */
 class Covariance {
    typedef std::pair<Investment::ID_TYPE, Investment::ID_TYPE> KEY_TYPE;
@@ -71,12 +74,33 @@ class Covariance {
 
    MAP_TYPE mData;
 
+   /** Whether the matrix is given by a factor model. */
+   bool mFactorModel;
+   /** Number of factors in the factor model. */
+   std::vector<double>::size_type mFactors;
+   /** Investment ids of the factor model in ascending order. */
+   std::vector<Investment::ID_TYPE> mIds;
+   /** Specific variances of the factor model. */
+   std::vector<double> mSpecific;
+   /** Factor exposures B (row-major n x k). */
+   std::vector<double> mExposures;
+   /** Factor covariance F (row-major k x k). */
+   std::vector<double> mFactorCovariance;
+   /** The product B F (row-major n x k). */
+   std::vector<double> mLoadings;
+
    void reset();
+   void materialize();
+   void readFactorModel(soam::InputStreamPtr &stream);
+   void readBulk(soam::InputStreamPtr &stream);
 public:
 
-   Covariance() : mData() {}
+   Covariance() : mData(), mFactorModel(false), mFactors(0) {}
 
-   void clear() { mData.clear(); }
+   void clear() { reset(); }
+
+   /** Test whether this matrix is given by a factor model. */
+   bool isFactorModel() const { return mFactorModel; }
 
    // Set/get covariance for a pair of investments.
    // The investments to query are given by their id. The order does not
@@ -88,10 +112,54 @@ public:
 
    virtual void onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException);
    virtual void onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamException);
+   // Write the matrix, in bulk encoding if bulk is true (see ioutil::BULK_TAG).
+   // The bulk encoding writes a factor model in its compact form, otherwise
+   // the model is expanded to the values it represents.
+   void onSerialize(soam::OutputStreamPtr &stream, bool bulk) throw (soam::SoamException);
 };
 
 /** Utilities for functions that read and write data. */
 namespace ioutil {
+   /** Size tag that marks the bulk encoding in a stream.
+    * In bulk encoding a sequence is written as this tag, the number of
+    * elements, and a single byte array (read and written as a string) that
+    * holds the fields of all elements column by column, with numbers in
+    * little-endian byte order:
+    * - investments: ids, returns, allocations, name lengths (4 bytes each),
+    *   names in UTF-8.
+    * - covariance: first ids, second ids, values.
+    * This needs one stream call per sequence instead of one per field.
+    */
+   long long const BULK_TAG = -2;
+
+   /** Tag that starts a batch of wealth/rho points in a stream (see BatchInput).
+    * It cannot start the investments of an Input.
+    */
+   long long const BATCH_TAG = -3;
+
+   /** Tag that precedes the solve time in an Output (see Output::isTimed()).
+    * It cannot start investments, so readers accept outputs with and
+    * without solve time.
+    */
+   long long const SOLVE_TIME_TAG = -4;
+
+   /** Write investments to a stream, in bulk encoding if bulk is true. */
+   void writeInvestments(soam::OutputStreamPtr &stream,
+                         std::vector<Investment> const &investments,
+                         bool bulk);
+   /** Read investments in either encoding from a stream.
+    * @return true if the investments were in bulk encoding.
+    */
+   bool readInvestments(soam::InputStreamPtr &stream,
+                        std::vector<Investment> &investments);
+   /** Read investments in either encoding from a stream after their
+    * size (or BULK_TAG) was already read as size.
+    * @return true if the investments were in bulk encoding.
+    */
+   bool readInvestments(soam::InputStreamPtr &stream,
+                        std::vector<Investment> &investments,
+                        long long size);
+
    struct Triple {
       Investment::ID_TYPE id1;
       Investment::ID_TYPE id2;
@@ -26,7 +26,10 @@ class Output : public soam::Message {
    double mObjValue;
    double mTotalReturn;
    double mTotalVariance;
+   double mSolveTime;
    std::vector<Investment> mInvestments;
+   bool mBulk;
+   bool mTimed;
 
    void clear();
 public:
@@ -34,6 +37,9 @@ public:
    virtual ~Output();
    void onSerialize(soam::OutputStreamPtr &stream) throw (soam::SoamException);
    void onDeserialize(soam::InputStreamPtr &stream) throw (soam::SoamException);
+   // Write the output, in bulk encoding if bulk is true and with the solve
+   // time if timed is true, regardless of isBulk() and isTimed().
+   void onSerialize(soam::OutputStreamPtr &stream, bool bulk, bool timed) throw (soam::SoamException);
 
    // Test/set whether this instance represents an optimal solution.
    bool isOptimal() const { return mOptimal; }
@@ -59,9 +65,25 @@ public:
    double getTotalVariance() const { return mTotalVariance; }
    void setTotalVariance(double totalVariance) { mTotalVariance = totalVariance; }
 
+   // Get/set the time in seconds that CPLEX spent to solve the problem.
+   double getSolveTime() const { return mSolveTime; }
+   void setSolveTime(double solveTime) { mSolveTime = solveTime; }
+
    // Get/set the optimal portfolio allocation.
    std::vector<Investment> const &getInvestments() const { return mInvestments; }
    void setInvestments(std::vector<Investment> const &investments) { mInvestments = investments; }
+
+   // Test/set whether this message is written in bulk encoding (see
+   // ioutil::BULK_TAG). After onDeserialize() this tells whether the
+   // message was received in bulk encoding.
+   bool isBulk() const { return mBulk; }
+   void setBulk(bool bulk) { mBulk = bulk; }
+
+   // Test/set whether the solve time is written (see ioutil::SOLVE_TIME_TAG).
+   // Old readers do not know the tag, so it is only written when asked.
+   // After onDeserialize() this tells whether the message had a solve time.
+   bool isTimed() const { return mTimed; }
+   void setTimed(bool timed) { mTimed = timed; }
 };
 
 } // namespace portfolio
@@ -20,10 +20,14 @@
 #include <soam.h>
 #include <ilcplex/ilocplex.h>
 
+#include <cstdlib>
+#include <cstring>
+#include <limits>
 #include <sstream>
 
-#include "PortfolioInput.h"
-#include "PortfolioOutput.h"
+#include "PortfolioBatchInput.h"
+#include "PortfolioBatchOutput.h"
+#include "PortfolioCommonData.h"
 
 namespace cpx {
 namespace portfolio {
@@ -70,174 +74,401 @@ namespace portfolio {
       }
    };
 
-   /** The actual service implementation.
+   /** Translate the exception that is currently handled into a
+    * soam::SoamException.
+    * Must be called from a catch block, while the IloEnv of the exception
+    * is still alive.
     */
-   class Service : public ServiceContainer {
-   public:
-      virtual void onInvoke(TaskContextPtr& taskContext)
-      {
-         /********************************************************************
-          * Do your service logic here. This call applies to each task
-          * submission. 
-          ********************************************************************/
-         ScopedEnv envScope; // So that we cleanup on exit or exception
-         IloEnv &env = envScope.env;
+   static void rethrowAsSoamException()
+   {
+      try {
+         throw;
+      }
+      catch (SoamException const &) {
+         throw;
+      }
+      catch (IloAlgorithm::CannotExtractException &e) {
+         // This exception gets special treatment because it usually
+         // points to errors in the input data.
+         std::stringstream s;
+         s << e.getMessage() << std::endl;
+         IloExtractableArray &a = e.getExtractables();
+         for (IloInt i = 0; i < a.getSize(); ++i)
+            s << a[i] << std::endl;
+         throw soam::FatalException(s.str().c_str());
+      }
+      catch (IloException const &e) {
+         throw soam::FatalException(e.getMessage());
+      }
+      catch (std::exception const &e) {
+         throw soam::FatalException(e.what());
+      }
+      catch (...) {
+         throw soam::FatalException("Unknown exception caught");
+      }
+   }
 
-         typedef std::vector<Investment> VECTOR_TYPE;
-         VECTOR_TYPE investments;
+   /** A portfolio model that is built once and solved for many wealth/rho
+    * points.
+    * The optimization problem is the following (in OPL notation),
+    * which can also be found in the portfolio.mod file in the CPLEX
+    * distribution.
+    *   {string} Investments = ...;
+    *   float Return[Investments] = ...;
+    *   float Covariance[Investments][Investments] = ...;
+    *   float Wealth = ...;
+    *   float Rho = ...;  // Variance Penalty (increasing rho from 0.001 to 1.0 
+    *                     //                   produces a distribution of funds 
+    *                     //                   with smaller and smaller variability).
+    *
+    *   range float FloatRange = 0.0..Wealth;
+    *
+    *   dvar float  Allocation[Investments] in FloatRange;  // Investment Level
+    *
+    *   dexpr float Objective =
+    *     (sum(i in Investments) Return[i]*Allocation[i])
+    *       - (Rho/2)*(sum(i,j in Investments) Covariance[i][j]*Allocation[i]*Allocation[j]);
+    *
+    *   maximize Objective;
+    *
+    *   subject to {
+    *     // sum of allocations equals amount to be invested
+    *     allocate: (sum (i in Investments) (Allocation[i])) == Wealth;
+    *   }
+    *
+    *   float TotalReturn = sum(i in Investments) Return[i]*Allocation[i];
+    *   float TotalVariance = sum(i,j in Investments) Covariance[i][j]*Allocation[i]*Allocation[j];
+    *
+    * For rho > 0 the objective is divided by rho, which does not change the
+    * optimal allocation:
+    *   maximize (1/Rho)*(sum(i in Investments) Return[i]*Allocation[i])
+    *              - (1/2)*(sum(i,j in Investments) Covariance[i][j]*Allocation[i]*Allocation[j]);
+    * So a new rho only changes the linear objective coefficients and a new
+    * wealth only changes bounds, the quadratic term is built only once. Since
+    * the constraints do not change between points with the same wealth, the
+    * previous solution stays feasible and the primal simplex algorithm
+    * continues from it.
+    */
+   class SweepModel {
+      typedef std::vector<Investment> VECTOR_TYPE;
 
-         try {
-            IloModel model(env);
-            IloNumVarArray allocation(env);
-
-            IloExpr totalReturn(env), totalVariance(env);
-            double wealth, rho;
-
-            // Extract the input arguments from the message and setup
-            // the optimization problem in CPLEX.
-            // The optimization problem is the following (in OPL notation),
-            // which can also be found in the portfolio.mod file in the CPLEX
-            // distribution.
-            //   {string} Investments = ...;
-            //   float Return[Investments] = ...;
-            //   float Covariance[Investments][Investments] = ...;
-            //   float Wealth = ...;
-            //   float Rho = ...;  // Variance Penalty (increasing rho from 0.001 to 1.0 
-            //                     //                   produces a distribution of funds 
-            //                     //                   with smaller and smaller variability).
-            //
-            //   /******************************************************************************
-            //    * MODEL DECLARATIONS
-            //    ******************************************************************************/
-            //
-            //   range float FloatRange = 0.0..Wealth;
-            //
-            //   dvar float  Allocation[Investments] in FloatRange;  // Investment Level
-            //
-            //   /******************************************************************************
-            //    * MODEL
-            //    ******************************************************************************/
-            //
-            //   dexpr float Objective =
-            //     (sum(i in Investments) Return[i]*Allocation[i])
-            //       - (Rho/2)*(sum(i,j in Investments) Covariance[i][j]*Allocation[i]*Allocation[j]);
-            //
-            //   maximize Objective;
-            //
-            //   subject to {
-            //     // sum of allocations equals amount to be invested
-            //     allocate: (sum (i in Investments) (Allocation[i])) == Wealth;
-            //   }
-            //
-            //   float TotalReturn = sum(i in Investments) Return[i]*Allocation[i];
-            //   float TotalVariance = sum(i,j in Investments) Covariance[i][j]*Allocation[i]*Allocation[j];
-            //
-            // Note that instead of having a separate array for investment
-            // name and return, we just have an array of investment objects that
-            // each have a name and return property.
-            // The objective function in the model balances expected return
-            // versus total variance. The balancing factor is rho.
-            { // Extra block to limit scope of potentially large input message
-               Input input;
-               taskContext->populateTaskInput(input);
-               Covariance const &covariance = input.getCovariance();
-               wealth = input.getWealth();
-               rho = input.getRho();
-               investments = input.getInvestments();
-
-               // range float FloatRange = 0.0..Wealth;
-               // dvar float  Allocation[Investments] in FloatRange;
-               for (VECTOR_TYPE::size_type i = 0; i < investments.size(); ++i) {
-                  std::stringstream name;
-                  name << investments[i].getName()
-                       << " (" << investments[i].getId() << ")";
-                  allocation.add(IloNumVar(env, 0.0, wealth, name.str().c_str()));
-               }
+      ScopedEnv mEnvScope; // First member, so that it is cleaned up last.
+      VECTOR_TYPE mInvestments;
+      /** Upper triangle of the covariance matrix, row by row. */
+      std::vector<double> mCovariance;
+      IloModel mModel;
+      IloNumVarArray mAllocation;
+      IloObjective mObjective;
+      IloRange mAllocate;
+      IloCplex mCplex;
+      LogBuffer mLogBuffer;
+      std::ostream mLog;
+      /** Current wealth and factors of the linear and quadratic objective terms. */
+      double mWealth, mLinear, mQuadratic;
+      /** Time in seconds spent to build the model. */
+      double mBuildTime;
 
-               // dexpr float Objective =
-               //  (sum(i in Investments) Return[i]*Allocation[i])
-               //    - (Rho/2)*(sum(i,j in Investments) Covariance[i][j]*Allocation[i]*Allocation[j]);
-               // maximize Objective;
-               IloExpr objective(env);
-               for (VECTOR_TYPE::size_type i = 0; i < investments.size(); ++i)
-                  objective += investments[i].getReturn() * allocation[i];
-               for (VECTOR_TYPE::size_type i = 0; i < investments.size(); ++i) {
-                  for (VECTOR_TYPE::size_type j = 0; j < investments.size(); ++j) {
-                     double const cov = covariance.getCovariance(investments[i].getId(),
-                                                                 investments[j].getId());
-                     objective -= 0.5 * rho * cov * allocation[i] * allocation[j];
-                  }
-               }
-               model.add(IloMaximize(env, objective));
-               objective.end();
+      SweepModel(SweepModel const &);
+      SweepModel &operator=(SweepModel const &);
 
-               // allocate: (sum (i in Investments) (Allocation[i])) == Wealth;
-               IloExpr sum(env);
-               for (VECTOR_TYPE::size_type i = 0; i < investments.size(); ++i)
-                  sum += allocation[i];
-               model.add(IloRange(env, input.getWealth(), sum, input.getWealth(),
-                                  "allocation"));
+      /** Get the covariance of investments i and j with i <= j. */
+      double covariance(VECTOR_TYPE::size_type i, VECTOR_TYPE::size_type j) const {
+         return mCovariance[i * mInvestments.size() - i * (i - 1) / 2 + (j - i)];
+      }
 
-               // float TotalReturn = sum(i in Investments) Return[i]*Allocation[i];
-               // float TotalVariance = sum(i,j in Investments) Covariance[i][j]*Allocation[i]*Allocation[j];
-               for (VECTOR_TYPE::size_type i = 0; i < investments.size(); ++i)
-                  totalReturn += investments[i].getReturn() * allocation[i];
-               for (VECTOR_TYPE::size_type i = 0; i < investments.size(); ++i) {
-                  for (VECTOR_TYPE::size_type j = 0; j < investments.size(); ++j) {
-                     double const cov = covariance.getCovariance(investments[i].getId(),
-                                                                 investments[j].getId());
-                     totalVariance += cov * allocation[i] * allocation[j];
+      /** Set the objective to
+       *   linear * (sum(i) Return[i]*Allocation[i])
+       *     - quadratic * (sum(i,j) Covariance[i][j]*Allocation[i]*Allocation[j])
+       * The quadratic term is only rebuilt if its factor changes.
+       */
+      void setObjective(double linear, double quadratic) {
+         IloEnv &env = mEnvScope.env;
+         if ( quadratic != mQuadratic ) {
+            IloExpr objective(env);
+            for (VECTOR_TYPE::size_type i = 0; i < mInvestments.size(); ++i)
+               objective += linear * mInvestments[i].getReturn() * mAllocation[i];
+            if ( quadratic != 0.0 ) {
+               // Each pair (i,j) with i != j is in the sum twice.
+               for (VECTOR_TYPE::size_type i = 0; i < mInvestments.size(); ++i) {
+                  for (VECTOR_TYPE::size_type j = i; j < mInvestments.size(); ++j) {
+                     double const cov = covariance(i, j);
+                     if ( cov != 0.0 )
+                        objective -= (i == j ? 1.0 : 2.0) * quadratic * cov * mAllocation[i] * mAllocation[j];
                   }
                }
+            }
+            mObjective.setExpr(objective);
+            objective.end();
+         }
+         else if ( linear != mLinear ) {
+            IloNumArray coefs(env, mInvestments.size());
+            for (VECTOR_TYPE::size_type i = 0; i < mInvestments.size(); ++i)
+               coefs[i] = linear * mInvestments[i].getReturn();
+            mObjective.setLinearCoefs(mAllocation, coefs);
+            coefs.end();
+         }
+         mLinear = linear;
+         mQuadratic = quadratic;
+      }
+
+   public:
+      SweepModel(VECTOR_TYPE const &investments, Covariance const &covariance)
+         : mEnvScope()
+         , mInvestments(investments)
+         , mCovariance()
+         , mLogBuffer()
+         , mLog(&mLogBuffer)
+         , mWealth(std::numeric_limits<double>::quiet_NaN())
+         , mLinear(std::numeric_limits<double>::quiet_NaN())
+         , mQuadratic(std::numeric_limits<double>::quiet_NaN())
+         , mBuildTime(0.0)
+      {
+         IloEnv &env = mEnvScope.env;
+         try {
+            mCplex = IloCplex(env);
+            double const start = mCplex.getCplexTime();
+            mCplex.setOut(mLog);
+            mCplex.setParam(IloCplex::RootAlg, IloCplex::Primal);
 
-               taskContext->discardInputMessage();
+            // Look up each pair of investments only once.
+            VECTOR_TYPE::size_type const n = mInvestments.size();
+            mCovariance.reserve(n * (n + 1) / 2);
+            for (VECTOR_TYPE::size_type i = 0; i < n; ++i) {
+               for (VECTOR_TYPE::size_type j = i; j < n; ++j)
+                  mCovariance.push_back(covariance.getCovariance(mInvestments[i].getId(),
+                                                                 mInvestments[j].getId()));
             }
 
-            // Create a CPLEX instance and solve the optimization problem.
-            IloCplex cplex(env);
-            LogBuffer logBuffer;
-            std::ostream log(&logBuffer);
-            cplex.setOut(log);
-            cplex.extract(model);
-            bool const feasible = cplex.solve();
-            log << "\n"; // Flush the buffer (CPLEX _always_ uses "\n")
+            // Variables and constraint are set up for a wealth of 0, see solve().
+            mModel = IloModel(env);
+            mAllocation = IloNumVarArray(env);
+            // range float FloatRange = 0.0..Wealth;
+            // dvar float  Allocation[Investments] in FloatRange;
+            for (VECTOR_TYPE::size_type i = 0; i < n; ++i) {
+               std::stringstream name;
+               name << mInvestments[i].getName()
+                    << " (" << mInvestments[i].getId() << ")";
+               mAllocation.add(IloNumVar(env, 0.0, 0.0, name.str().c_str()));
+            }
+            // maximize Objective;
+            mObjective = IloMaximize(env);
+            mModel.add(mObjective);
+            // allocate: (sum (i in Investments) (Allocation[i])) == Wealth;
+            IloExpr sum(env);
+            for (VECTOR_TYPE::size_type i = 0; i < n; ++i)
+               sum += mAllocation[i];
+            mAllocate = IloRange(env, 0.0, sum, 0.0, "allocation");
+            sum.end();
+            mModel.add(mAllocate);
+            mWealth = 0.0;
+
+            mCplex.extract(mModel);
+            mBuildTime = mCplex.getCplexTime() - start;
+         }
+         catch (...) {
+            rethrowAsSoamException();
+         }
+      }
+
+      /** Get the time in seconds that was spent to build the model. */
+      double getBuildTime() const { return mBuildTime; }
+
+      /** Solve the model for one wealth/rho point and store the result in
+       * output.
+       * @return The time in seconds spent on the point.
+       */
+      double solve(double wealth, double rho, Output &output) {
+         IloEnv &env = mEnvScope.env;
+         try {
+            double const start = mCplex.getCplexTime();
+            VECTOR_TYPE::size_type const n = mInvestments.size();
+
+            // Update the bounds for a new wealth.
+            if ( wealth != mWealth ) {
+               for (VECTOR_TYPE::size_type i = 0; i < n; ++i)
+                  mAllocation[i].setUB(wealth);
+               mAllocate.setBounds(wealth, wealth);
+               mWealth = wealth;
+            }
+            // Update the objective for a new rho. The objective can only be
+            // divided by a positive rho.
+            if ( rho > 0.0 )
+               setObjective(1.0 / rho, 0.5);
+            else
+               setObjective(1.0, 0.5 * rho);
+
+            // Solve the optimization problem.
+            double const solveStart = mCplex.getCplexTime();
+            bool const feasible = mCplex.solve();
+            double const solveTime = mCplex.getCplexTime() - solveStart;
+            mLog << "\n"; // Flush the buffer (CPLEX _always_ uses "\n")
 
             // Setup the service output.
-            Output output;
             output.setWealth(wealth);
             output.setRho(rho);
+            output.setSolveTime(solveTime);
             if ( feasible ) {
                // Found a feasible solution.
-               output.setObjValue(cplex.getObjValue());
-               output.setTotalReturn(cplex.getValue(totalReturn));
-               output.setTotalVariance(cplex.getValue(totalVariance));
                IloNumArray vals(env);
-               cplex.getValues(allocation, vals);
-               for (VECTOR_TYPE::size_type i = 0; i < investments.size(); ++i)
+               mCplex.getValues(mAllocation, vals);
+               // float TotalReturn = sum(i in Investments) Return[i]*Allocation[i];
+               // float TotalVariance = sum(i,j in Investments) Covariance[i][j]*Allocation[i]*Allocation[j];
+               double totalReturn = 0.0, totalVariance = 0.0;
+               VECTOR_TYPE investments(mInvestments);
+               for (VECTOR_TYPE::size_type i = 0; i < n; ++i) {
                   investments[i].setAllocation(vals[i]);
+                  totalReturn += investments[i].getReturn() * vals[i];
+                  for (VECTOR_TYPE::size_type j = i; j < n; ++j)
+                     totalVariance += (i == j ? 1.0 : 2.0) * covariance(i, j) * vals[i] * vals[j];
+               }
+               vals.end();
+               // The solved objective was divided by a positive rho, see
+               // setObjective().
+               double const objValue = mCplex.getObjValue();
+               output.setObjValue(rho > 0.0 ? rho * objValue : objValue);
+               output.setTotalReturn(totalReturn);
+               output.setTotalVariance(totalVariance);
                output.setInvestments(investments);
                output.setOptimal(true);
             }
             else {
                // No feasible solution found.
             }
-            taskContext->setTaskOutput(output);
+            return mCplex.getCplexTime() - start;
+         }
+         catch (...) {
+            rethrowAsSoamException();
+         }
+         return 0.0; // Not reached.
+      }
+   };
+
+   /** Owner of a SweepModel that deletes the model when it leaves the
+    * scope or when it is replaced.
+    */
+   class ScopedModel {
+      SweepModel *mModel;
+      ScopedModel(ScopedModel const &);
+      ScopedModel &operator=(ScopedModel const &);
+   public:
+      ScopedModel() : mModel(0) {}
+      ~ScopedModel() { delete mModel; }
+      SweepModel *get() const { return mModel; }
+      /** Delete the current model and take ownership of model. */
+      void reset(SweepModel *model = 0) {
+         delete mModel;
+         mModel = model;
+      }
+   };
+
+   /** The actual service implementation.
+    */
+   class Service : public ServiceContainer {
+      /** The common data of the current session.
+       * It is decoded once when the session is entered and used by all
+       * tasks of the session that have no investments of their own.
+       */
+      CommonData mCommonData;
+      /** The model for the common data, built by the first task that uses it. */
+      ScopedModel mCommonModel;
+      /** Whether models are reused for all points of a batch or session.
+       * Set environment variable PORTFOLIO_REUSE_MODEL to 0 to build a new
+       * model for each point (for example to measure the gain).
+       */
+      bool const mReuseModel;
+
+      static bool reuseModel() {
+         char const *const value = std::getenv("PORTFOLIO_REUSE_MODEL");
+         return value == 0 || std::strcmp(value, "0") != 0;
+      }
+   public:
+      Service() : mCommonData(), mCommonModel(), mReuseModel(reuseModel()) {}
+
+      virtual void onSessionEnter(SessionContextPtr& sessionContext)
+      {
+         mCommonModel.reset();
+         mCommonData.clear();
+         try {
+            sessionContext->populateCommonData(mCommonData);
          }
          catch (SoamException const &) {
-            throw;
+            // Sessions of clients that send all data with each task have
+            // no common data. Tasks without investments fail in onInvoke().
+            mCommonData.clear();
          }
-         catch (IloAlgorithm::CannotExtractException e) {
-            // This exception gets special treatment because it usually
-            // points to errors in the input data.
-            std::stringstream s;
-            s << e.getMessage() << std::endl;
-            IloExtractableArray &a = e.getExtractables();
-            for (IloInt i = 0; i < a.getSize(); ++i)
-               s << a[i] << std::endl;
-            throw soam::FatalException(s.str().c_str());
+      }
+
+      virtual void onSessionLeave()
+      {
+         mCommonModel.reset();
+         mCommonData.clear();
+      }
+
+      virtual void onInvoke(TaskContextPtr& taskContext)
+      {
+         /********************************************************************
+          * Do your service logic here. This call applies to each task
+          * submission. 
+          ********************************************************************/
+         try {
+            // The task input is either a batch of wealth/rho points or a
+            // single Input, which is read as a batch with one point.
+            BatchInput input;
+            taskContext->populateTaskInput(input);
+            taskContext->discardInputMessage();
+
+            // A task without investments uses the common data of the session.
+            bool const common = input.getInvestments().empty();
+            if ( common && mCommonData.getInvestments().empty() )
+               throw soam::FatalException("No investments in task input or session common data");
+            std::vector<Investment> const &investments = common ? mCommonData.getInvestments() : input.getInvestments();
+            Covariance const &covariance = common ? mCommonData.getCovariance() : input.getCovariance();
+            // Reply in the encoding the client used, so it can read the reply.
+            bool const bulk = common ? mCommonData.isBulk() : input.isBulk();
+
+            // Pick the model: the one of the session for common data,
+            // otherwise one for this task, or a new one for each point.
+            // The elapsed time of a batch includes the models built for it,
+            // but not the model of the session. That is built once for all
+            // tasks of the session and would only inflate the first one.
+            double elapsed = 0.0;
+            ScopedModel taskModel;
+            SweepModel *model = 0;
+            if ( mReuseModel && common ) {
+               if ( mCommonModel.get() == 0 )
+                  mCommonModel.reset(new SweepModel(investments, covariance));
+               model = mCommonModel.get();
+            }
+
+            if ( !input.isBatch() ) {
+               Output output;
+               output.setBulk(bulk);
+               if ( model == 0 ) {
+                  taskModel.reset(new SweepModel(investments, covariance));
+                  model = taskModel.get();
+               }
+               model->solve(input.getWealth(0), input.getRho(0), output);
+               taskContext->setTaskOutput(output);
+               return;
+            }
+
+            // Solve the points in sequence.
+            BatchOutput output;
+            output.setBulk(bulk);
+            for (std::vector<double>::size_type i = 0; i < input.size(); ++i) {
+               if ( model == 0 || (!mReuseModel && i > 0) ) {
+                  taskModel.reset(0); // Release the previous model first.
+                  taskModel.reset(new SweepModel(investments, covariance));
+                  model = taskModel.get();
+                  elapsed += model->getBuildTime();
+               }
+               elapsed += model->solve(input.getWealth(i), input.getRho(i), output.addOutput());
+            }
+            output.setElapsed(static_cast<long long>(elapsed * 1000.0));
+            taskContext->setTaskOutput(output);
          }
-         catch (IloException const &e) {
-            throw soam::FatalException(e.getMessage());
+         catch (SoamException const &) {
+            throw;
          }
          catch (std::exception const &e) {
             throw soam::FatalException(e.what());
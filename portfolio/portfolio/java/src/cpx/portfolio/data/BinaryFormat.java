@@ -0,0 +1,266 @@
+package cpx.portfolio.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+
+/** Binary columnar file format for investments and covariance matrix.
+ * A file has the following layout (all numbers little endian, all sections
+ * start at a multiple of 8):
+ * <pre>
+ *   long   magic        {@link #MAGIC}
+ *   int    version      {@link #VERSION}
+ *   int    n            number of investments
+ *   long   ids          offset of the id section
+ *   long   returns      offset of the return section
+ *   long   names        offset of the name offset section
+ *   long   pool         offset of the name pool
+ *   long   covariance   offset of the covariance section
+ *   long[n]   ids       investment ids
+ *   double[n] returns   expected returns
+ *   long[n+1] names     start of each name in the pool, the last entry is the size of the pool
+ *   byte[]    pool      UTF-8 encoded names, padded to a multiple of 8 bytes
+ *   covariance          either a dense matrix in the layout of {@link MappedStorage}
+ *                       or a sparse matrix in the layout of {@link CsrStorage}
+ * </pre>
+ * The covariance section only holds values for pairs of investments in the file.
+ * It is dense if at least half of the pairs have a value.
+ * On load the covariance section is mapped and used as an immutable view, so
+ * that no values are parsed or copied. Alternatively the file is read into
+ * memory with a single read, so that the data does not reference the file.
+ */
+final class BinaryFormat {
+  /** Magic number at the start of a binary portfolio file ("CPXPRT01"). */
+  public static final long MAGIC = 0x3130545250585043L;
+  public static final int VERSION = 1;
+  /** Size of the file header in bytes. */
+  private static final int HEADER = 56;
+  /** Minimum fill ratio for which the covariance section is stored dense. */
+  private static final double DENSE_FILL = 0.5;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private BinaryFormat() {}
+
+  /** Test whether <code>file</code> starts with {@link #MAGIC}. */
+  public static boolean detect(File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = raf.getChannel();
+      final ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      while (magic.hasRemaining() && channel.read(magic) > 0) {
+        // Keep reading until 8 bytes are there or the file ends.
+      }
+      return !magic.hasRemaining() && magic.getLong(0) == MAGIC;
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /** Write a buffer completely. */
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+
+  /** Save data in binary format.
+   * @param file        The file to write. An existing file is overwritten.
+   * @param investments The investments to save.
+   * @param covariance  The covariance matrix to save.
+   * @throws IOException on output error.
+   */
+  public static void save(File file, Collection<Investment> investments, Covariance covariance) throws IOException {
+    final Investment[] array = investments.toArray(new Investment[investments.size()]);
+    final int n = array.length;
+    final byte[][] names = new byte[n][];
+    for (int i = 0; i < n; ++i)
+      names[i] = array[i].getName().getBytes(UTF8);
+
+    // Decide about the covariance layout from the values between the investments.
+    final long[] sorted = new long[n];
+    for (int i = 0; i < n; ++i)
+      sorted[i] = array[i].getId();
+    Arrays.sort(sorted);
+    for (int i = 1; i < n; ++i) {
+      if (sorted[i] == sorted[i - 1])
+        throw new IOException("Duplicate investment id " + sorted[i]);
+    }
+    final LongIndex index = new LongIndex(n);
+    for (int i = 0; i < n; ++i)
+      index.put(sorted[i], i);
+    final CovarianceStorage storage = covariance.storage();
+    long count = 0;
+    for (final CovarianceStorage.Cursor c = storage.cursor(); c.next(); /* nothing */) {
+      if (index.containsKey(c.first()) && index.containsKey(c.second()))
+        ++count;
+    }
+    final boolean dense = n <= DenseStorage.MAX_DIMENSION && count >= DENSE_FILL * (0.5 * n * (n + 1.0));
+
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(0);
+      final FileChannel channel = raf.getChannel();
+      long pool = 0;
+      for (final byte[] name : names)
+        pool += name.length;
+      final long idsOffset = HEADER;
+      final long returnsOffset = idsOffset + 8L * n;
+      final long namesOffset = returnsOffset + 8L * n;
+      final long poolOffset = namesOffset + 8L * (n + 1);
+      final long covarianceOffset = poolOffset + ((pool + 7) & ~7L);
+
+      final ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putLong(MAGIC).putInt(VERSION).putInt(n);
+      buffer.putLong(idsOffset).putLong(returnsOffset).putLong(namesOffset).putLong(poolOffset).putLong(covarianceOffset);
+      for (final Investment i : array) {
+        if (buffer.remaining() < 8)
+          writeFully(channel, buffer);
+        buffer.putLong(i.getId());
+      }
+      for (final Investment i : array) {
+        if (buffer.remaining() < 8)
+          writeFully(channel, buffer);
+        buffer.putDouble(i.getReturn());
+      }
+      long start = 0;
+      for (int i = 0; i <= n; ++i) {
+        if (buffer.remaining() < 8)
+          writeFully(channel, buffer);
+        buffer.putLong(start);
+        if (i < n)
+          start += names[i].length;
+      }
+      for (final byte[] name : names) {
+        int done = 0;
+        while (done < name.length) {
+          if (!buffer.hasRemaining())
+            writeFully(channel, buffer);
+          final int length = Math.min(buffer.remaining(), name.length - done);
+          buffer.put(name, done, length);
+          done += length;
+        }
+      }
+      while (buffer.position() % 8 != 0)
+        buffer.put((byte)0);
+      writeFully(channel, buffer);
+
+      if (dense)
+        MappedStorage.write(channel, sorted, storage);
+      else
+        CsrStorage.write(channel, sorted, storage);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /** Load data in binary format.
+   * The investments are created from the id, return and name sections.
+   * The covariance matrix is an immutable view of the covariance section.
+   * In case of an error <code>investments</code> and <code>covariance</code> are cleared.
+   * @param file        The file to read.
+   * @param investments Receives the investments in the file.
+   * @param covariance  Receives the covariance matrix in the file.
+   * @param map         Whether to map the file. Otherwise it is read into memory,
+   *                    so that it can be replaced or deleted while the covariance
+   *                    matrix is still in use.
+   * @throws IOException if the file cannot be read or is not valid.
+   */
+  public static void load(File file, Collection<Investment> investments, Covariance covariance, boolean map) throws IOException {
+    investments.clear();
+    covariance.clear();
+    final String name = file.toString();
+    boolean doReset = true;
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final FileSections sections = map ? FileSections.map(raf.getChannel(), false) : FileSections.read(raf.getChannel(), name);
+      final long size = sections.size();
+      if (size < HEADER)
+        throw new IOException(name + " is truncated");
+      final ByteBuffer header = sections.get(0, HEADER);
+      if (header.getLong(0) != MAGIC)
+        throw new IOException(name + " is not a binary portfolio file");
+      if (header.getInt(8) != VERSION)
+        throw new IOException(name + ": unsupported binary portfolio file version " + header.getInt(8));
+      final int n = header.getInt(12);
+      final long idsOffset = header.getLong(16);
+      final long returnsOffset = header.getLong(24);
+      final long namesOffset = header.getLong(32);
+      final long poolOffset = header.getLong(40);
+      final long covarianceOffset = header.getLong(48);
+      if (n < 0 || idsOffset < HEADER || returnsOffset < HEADER || namesOffset < HEADER ||
+          poolOffset < HEADER || covarianceOffset < HEADER ||
+          idsOffset + 8L * n > size || returnsOffset + 8L * n > size ||
+          namesOffset + 8L * (n + 1) > size || poolOffset > size)
+        throw new IOException(name + " is truncated or corrupt");
+
+      final LongBuffer ids = sections.get(idsOffset, 8L * n).asLongBuffer();
+      final DoubleBuffer returns = sections.get(returnsOffset, 8L * n).asDoubleBuffer();
+      final LongBuffer names = sections.get(namesOffset, 8L * (n + 1)).asLongBuffer();
+      final long poolSize = names.get(n);
+      if (poolSize < 0 || poolSize > Integer.MAX_VALUE || poolOffset + poolSize > size)
+        throw new IOException(name + " is truncated or corrupt");
+      final ByteBuffer pool = sections.get(poolOffset, poolSize);
+      byte[] scratch = new byte[256];
+      final LongIndex known = new LongIndex(n);
+      final Investment[] array = new Investment[n];
+      for (int i = 0; i < n; ++i) {
+        final long from = names.get(i);
+        final long to = names.get(i + 1);
+        if (from < 0 || to < from || to > poolSize)
+          throw new IOException(name + ": invalid name offsets");
+        final int length = (int)(to - from);
+        if (scratch.length < length)
+          scratch = new byte[Math.max(length, 2 * scratch.length)];
+        pool.position((int)from);
+        pool.get(scratch, 0, length);
+        final long id = ids.get(i);
+        if (known.containsKey(id))
+          throw new IOException(name + ": investment id " + id + " already defined");
+        known.put(id, i);
+        final Investment investment = new Investment();
+        investment.setId(id);
+        investment.setReturn(returns.get(i));
+        investment.setName(new String(scratch, 0, length, UTF8));
+        array[i] = investment;
+      }
+
+      if (size < covarianceOffset + 8)
+        throw new IOException(name + " is truncated");
+      final ByteBuffer magic = sections.get(covarianceOffset, 8);
+      final CovarianceStorage storage;
+      if (magic.getLong(0) == MappedStorage.MAGIC)
+        storage = MappedStorage.map(sections, covarianceOffset, true, name);
+      else if (magic.getLong(0) == CsrStorage.MAGIC)
+        storage = CsrStorage.map(sections, covarianceOffset, name);
+      else
+        throw new IOException(name + ": invalid covariance section");
+      for (final long id : storage.ids()) {
+        if (!known.containsKey(id))
+          throw new IOException(name + ": covariance for unknown investment " + id);
+      }
+
+      investments.addAll(Arrays.asList(array));
+      // Mapped sections stay valid after the channel is closed.
+      covariance.assign(storage);
+      doReset = false;
+    }
+    finally {
+      raf.close();
+      if (doReset) {
+        investments.clear();
+        covariance.clear();
+      }
+    }
+  }
+}
@@ -1,8 +1,9 @@
 package cpx.portfolio.data;
 
-import java.util.Iterator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import com.platform.symphony.soam.InputStream;
 import com.platform.symphony.soam.OutputStream;
@@ -12,74 +13,246 @@ import com.platform.symphony.soam.SoamException;
  * Instances of this class are used as input to the portfolio optimization service.
  * This class represents a covariance matrix my means of a map that is indexed by
  * pairs of investment ids.
+ * Since the matrix is symmetric, only one of the two (row,column,value) and
+ * (column,row,value) triples is stored. Depending on how many of the entries are
+ * filled the matrix is either kept in a sparse map or in a dense packed array.
+ * The class switches between the two representations automatically.
+ * For very large universes the matrix can also be kept in a memory-mapped file,
+ * see {@link #map(File, boolean)}, or be represented by a factor model, see
+ * {@link #factorModel(long[], double[][], double[][], double[])}.
+ * An immutable view of the current state of a matrix is obtained by {@link #snapshot()}.
+ * Snapshots and copies share the data with the original matrix until either of
+ * them is modified (copy-on-write), so they are cheap to create.
  */
 public final class Covariance {
-  /** A key in the covariance matrix.
-   * The covariance matrix is stored as sparse matrix, that is, as a list of
-   * triples (row, column, value). To make updates easier the triples are sorted
-   * by (row,column). Also, since the matrix is symmetric, only one of the two
-   * (row,column,value) and (column,row,value) triples is stored.
+  /** Minimum number of investments before we consider dense storage. */
+  private static final int DENSE_MIN_DIMENSION = 32;
+  /** Switch to dense storage once this fraction of the upper triangle is filled. */
+  private static final double DENSE_FILL = 0.5;
+  /** Switch back to sparse storage once the fill ratio drops below this.
+   * This is well below {@link #DENSE_FILL} so that we do not flip back and forth
+   * between the two representations.
    */
-  private static final class Key implements Comparable<Key> {
-    private final long first;
-    private final long second;
-    public Key(long first, long second) {
-      if (first > second) {
-        this.first = second;
-        this.second = first;
-      }
-      else {
-        this.first = first;
-        this.second = second;
-      }
-    }
-    @Override
-    public int compareTo(Key other) {
-      if (first < other.first)
-        return -1;
-      else if (first > other.first)
-        return 1;
-      else if (second < other.second)
-        return -1;
-      else if (second > other.second)
-        return 1;
-      else
-        return 0;
-    }
-  }
+  private static final double SPARSE_FILL = 0.25;
+  /** Size tag in the serialized form that marks a factor model. */
+  private static final long FACTOR_TAG = -1;
+  /** Size tag in the serialized form that marks the bulk encoding. */
+  private static final long BULK_TAG = -2;
 
   /** The non-zeros in the covariance matrix. */
-  private final Map<Key, Double> map = new TreeMap<Key, Double>();
+  private CovarianceStorage storage = new SparseStorage();
+  /** Whether this instance is an immutable snapshot. */
+  private final boolean frozen;
+
+  public Covariance() { frozen = false; }
+  private Covariance(CovarianceStorage storage, boolean frozen) {
+    this.storage = storage;
+    this.frozen = frozen;
+  }
+
+  /** Create a covariance matrix that uses <code>storage</code>.
+   * The storage may be replaced right away if a different representation fits better.
+   */
+  static Covariance wrap(CovarianceStorage storage) {
+    final Covariance covariance = new Covariance(storage, false);
+    covariance.adapt();
+    return covariance;
+  }
+
+  /** Create a covariance matrix that is backed by a memory-mapped file.
+   * The matrix is not loaded onto the heap, the OS page cache holds it instead.
+   * Several processes can map the same file read-only.
+   * A mapped matrix has a fixed set of investments: setting a covariance for an
+   * unknown investment throws {@link IllegalArgumentException}. Modifying a
+   * read-only matrix throws {@link UnsupportedOperationException}. Calling
+   * {@link #clear()} detaches the matrix from the file.
+   * @param file     The file created by {@link #createMapped(File, long[])}.
+   * @param writable Whether changes to the matrix should be written to the file.
+   * @return The mapped covariance matrix.
+   * @throws IOException if the file cannot be mapped.
+   */
+  public static Covariance map(File file, boolean writable) throws IOException {
+    return new Covariance(MappedStorage.map(file, writable), false);
+  }
+
+  /** Create a new memory-mapped covariance matrix.
+   * The matrix initially has no covariance values for any pair.
+   * @param file The file to create. An existing file is overwritten.
+   * @param ids  The investments in the matrix.
+   * @return The newly created covariance matrix, mapped writable.
+   * @throws IOException if the file cannot be created.
+   */
+  public static Covariance createMapped(File file, long[] ids) throws IOException {
+    MappedStorage.create(file, ids);
+    return map(file, true);
+  }
+
+  /** Get the storage that currently holds the data of this matrix. */
+  CovarianceStorage storage() { return storage; }
+
+  /** Replace the data of this matrix by <code>storage</code>.
+   * The storage must not be referenced by any other instance.
+   */
+  void assign(CovarianceStorage storage) {
+    if (frozen)
+      throw new UnsupportedOperationException("Cannot modify a covariance snapshot");
+    this.storage = storage;
+    adapt();
+  }
+
+  /** Create a covariance matrix from a factor model.
+   * The matrix is <code>B F B<sup>T</sup> + D</code> with exposures <code>B</code>,
+   * factor covariance <code>F</code>, and diagonal specific variances <code>D</code>.
+   * Only the factor model is stored and serialized, which takes O(n*k) instead of
+   * O(n<sup>2</sup>) space for n investments and k factors. Covariances are
+   * computed when queried. The first modification of the matrix materializes all
+   * n<sup>2</sup> values.
+   * @param ids       The investment ids.
+   * @param exposures The factor exposures, <code>exposures[i]</code> holds the k exposures of <code>ids[i]</code>.
+   * @param factors   The symmetric k&times;k factor covariance matrix.
+   * @param specific  The specific variances, <code>specific[i]</code> is the variance of <code>ids[i]</code>.
+   * @return The new covariance matrix.
+   */
+  public static Covariance factorModel(long[] ids, double[][] exposures, double[][] factors, double[] specific) {
+    return new Covariance(FactorStorage.create(ids, exposures, factors, specific), false);
+  }
+
+  /** Approximate this covariance matrix by a factor model.
+   * The factors are the eigenvectors for the <code>k</code> largest eigenvalues
+   * of this matrix, the remaining variance of each investment becomes its specific
+   * variance. Missing values are treated as zero.
+   * @param k The number of factors.
+   * @return A new covariance matrix that holds the factor model.
+   */
+  public Covariance fitFactorModel(int k) {
+    return new Covariance(FactorStorage.fit(storage, k), false);
+  }
+
+  /** Test whether this matrix is represented by a factor model. */
+  public boolean isFactorModel() { return storage instanceof FactorStorage; }
+
+  /** Create an immutable snapshot of this covariance matrix.
+   * The snapshot shares the data with this instance. The data is copied only
+   * when this instance is modified later on, so that the snapshot never changes.
+   * Any attempt to modify the snapshot throws {@link UnsupportedOperationException}.
+   * The snapshot of a read-only mapped matrix shares the mapping. The snapshot of
+   * a writable mapped matrix copies the data onto the heap, since the mapping
+   * changes with the file.
+   * @return The snapshot. If this instance is a snapshot itself then this instance is returned.
+   */
+  public Covariance snapshot() {
+    if (frozen)
+      return this;
+    return new Covariance(storage.share(), true);
+  }
+  /** Test whether this instance was created by {@link #snapshot()}. */
+  public boolean isFrozen() { return frozen; }
+
+  /** Prepare this instance for a modification.
+   * Copies the storage if it is shared with another instance and materializes
+   * immutable storages.
+   */
+  private void modify() {
+    if (frozen)
+      throw new UnsupportedOperationException("Cannot modify a covariance snapshot");
+    if (storage.isImmutable())
+      materialize();
+    else if (storage.isShared())
+      storage = storage.copy();
+  }
+
+  /** Copy the data onto the heap if the storage is an immutable view, for example of a mapped file. */
+  void materialize() {
+    if (!storage.isImmutable())
+      return;
+    if (storage.dimension() <= DenseStorage.MAX_DIMENSION)
+      storage = new DenseStorage(storage);
+    else
+      storage = new SparseStorage(storage);
+  }
+
   /** Delete all non-zeros from the covariance matrix. */
-  public void clear() { map.clear(); }
+  public void clear() {
+    if (frozen)
+      throw new UnsupportedOperationException("Cannot modify a covariance snapshot");
+    storage = new SparseStorage();
+  }
+
+  /** Get the fraction of the upper triangle that is filled with non-zeros.
+   * The fraction is relative to the investments that appear in this matrix.
+   */
+  public double getFillRatio() {
+    final int n = storage.dimension();
+    return (n == 0) ? 0.0 : storage.size() / (0.5 * n * (n + 1.0));
+  }
+
+  /** Pick the storage that fits the current fill ratio best. */
+  private void adapt() {
+    if (!storage.isAdaptive())
+      return;
+    final double fill = getFillRatio();
+    if (storage.isDense()) {
+      if (fill < SPARSE_FILL)
+        storage = new SparseStorage(storage);
+    }
+    else if (fill >= DENSE_FILL && storage.dimension() >= DENSE_MIN_DIMENSION &&
+             storage.dimension() <= DenseStorage.MAX_DIMENSION)
+      storage = new DenseStorage(storage);
+  }
   
   /** Remove all covariance values for the investment identified by <code>id</code>. */
   public void remove(long id) {
-    for (Iterator<Map.Entry<Key, Double>> it = map.entrySet().iterator(); it.hasNext(); /* nothing */) {
-      final Key k = it.next().getKey();
-      if (k.first == id || k.second == id)
-        it.remove();
-    }
+    modify();
+    storage.remove(id);
+    adapt();
+  }
+
+  /** Remove all covariance values for the investments identified by <code>ids</code>.
+   * This is much faster than calling {@link #remove(long)} for each id.
+   */
+  public void removeAll(long[] ids) {
+    modify();
+    storage.removeAll(ids);
+    adapt();
   }
   
   // Set/get covariance for a pair of investments.
   // The investments to query are given by their id. The order does not
   // matter since a covariance matrix is symmetric.
   // If no covariance is stored for the specified pair the get-function
-  // returns NaN.
+  // returns NaN. Setting a covariance of NaN removes the entry for the pair.
   public void setCovariance(long i1, long i2, double covariance) {
-    map.put(new Key(i1, i2), covariance);
+    if (i1 > i2) {
+      final long t = i1;
+      i1 = i2;
+      i2 = t;
+    }
+    modify();
+    if (Double.isNaN(covariance)) {
+      if (storage.remove(i1, i2))
+        adapt();
+      return;
+    }
+    if (storage.isFull())
+      storage = new SparseStorage(storage);
+    if (storage.put(i1, i2, covariance))
+      adapt();
   }
   public double getCovariance(long i1, long i2) {
-    final Double d = map.get(new Key(i1, i2));
-    return (d != null) ? d.doubleValue() : Double.NaN;
+    return (i1 <= i2) ? storage.get(i1, i2) : storage.get(i2, i1);
   }
   
-  /** Copy the non-zeros from this covariance matrix into <code>other</code>. */
+  /** Copy the non-zeros from <code>other</code> into this covariance matrix.
+   * The data is shared between the two instances until one of them is modified.
+   * If <code>other</code> is mapped read-only then this matrix shares the mapping
+   * and materializes the data on the heap only when it is modified. If
+   * <code>other</code> is mapped writable then the data is copied onto the heap
+   * right away, so that changes to the file do not show up in this matrix.
+   */
   public void copy(Covariance other) {
-    map.clear();
-    for (final Map.Entry<Key, Double> entry : other.map.entrySet())
-      setCovariance(entry.getKey().first, entry.getKey().second, entry.getValue());
+    if (frozen)
+      throw new UnsupportedOperationException("Cannot modify a covariance snapshot");
+    storage = other.storage.share();
   }
   
   /** Load this covariance matrix from a Symphony input stream.
@@ -94,6 +267,10 @@ public final class Covariance {
     boolean doReset = true;
     try {
       final long size = stream.readLong();
+      if (size == FACTOR_TAG)
+        storage = FactorStorage.read(stream);
+      else if (size == BULK_TAG)
+        readBulk(stream);
       for (long i = 0; i < size; ++i) {
         final long first = stream.readLong();
         final long second = stream.readLong();
@@ -108,16 +285,66 @@ public final class Covariance {
     }
   }
 
+  /** Read the triples that follow the {@link #BULK_TAG} in a stream. */
+  private void readBulk(InputStream stream) throws SoamException {
+    final long count = stream.readLong();
+    final byte[] bytes = stream.readByteArray();
+    if (count < 0 || bytes == null || bytes.length != 24 * count)
+      throw new SoamException("Invalid bulk covariance data for " + count + " values");
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    final int n = (int)count;
+    for (int k = 0; k < n; ++k)
+      setCovariance(buffer.getLong(8 * k), buffer.getLong(8 * (n + k)), buffer.getDouble(8 * (2 * n + k)));
+  }
+
   /** Write this covariance matrix to a Symphony stream.
+   * @see #onSerialize(OutputStream, boolean)
+   */
+  public void onSerialize(OutputStream stream) throws SoamException {
+    onSerialize(stream, false);
+  }
+
+  /** Write this covariance matrix to a Symphony stream.
+   * With <code>bulk</code> a factor model is written in its compact form,
+   * which is tagged by a negative size, and the stored values of any other
+   * matrix are written as the tag -2, their count, and one byte array that
+   * holds all first ids, then all second ids, then all values in
+   * little-endian order. This needs one stream call instead of three per
+   * value but can only be read by clients and services that know the bulk
+   * encoding. Without <code>bulk</code>, and for matrices that do not fit
+   * into one byte array, the values are written element by element; a factor
+   * model is then expanded to the values it represents.
    * @param stream The stream to which to write.
+   * @param bulk   Whether to use the bulk encoding.
    * @throws SoamException on output error.
    */
-  public void onSerialize(OutputStream stream) throws SoamException {
-    stream.writeLong(map.size());
-    for (final Map.Entry<Key, Double> e : map.entrySet()) {
-      stream.writeLong(e.getKey().first);
-      stream.writeLong(e.getKey().second);
-      stream.writeDouble(e.getValue());
+  public void onSerialize(OutputStream stream, boolean bulk) throws SoamException {
+    if (bulk && storage instanceof FactorStorage) {
+      stream.writeLong(FACTOR_TAG);
+      ((FactorStorage)storage).write(stream);
+      return;
+    }
+    final int n = storage.size();
+    if (bulk && 24L * n <= Integer.MAX_VALUE) {
+      final ByteBuffer buffer = ByteBuffer.allocate(24 * n).order(ByteOrder.LITTLE_ENDIAN);
+      int k = 0;
+      for (final CovarianceStorage.Cursor c = storage.cursor(); c.next(); ++k) {
+        buffer.putLong(8 * k, c.first());
+        buffer.putLong(8 * (n + k), c.second());
+        buffer.putDouble(8 * (2 * n + k), c.value());
+      }
+      stream.writeLong(BULK_TAG);
+      stream.writeLong(n);
+      stream.writeByteArray(buffer.array());
+      return;
+    }
+    // The size of a factor model is capped, it represents all pairs of its investments.
+    final long d = storage.dimension();
+    stream.writeLong((storage instanceof FactorStorage) ? d * (d + 1) / 2 : n);
+    for (final CovarianceStorage.Cursor c = storage.cursor(); c.next(); /* nothing */) {
+      stream.writeLong(c.first());
+      stream.writeLong(c.second());
+      stream.writeDouble(c.value());
     }
   }
 }
@@ -0,0 +1,319 @@
+package cpx.portfolio.data;
+
+import java.util.Arrays;
+
+/** Improve the conditioning of sample covariance matrices.
+ * Sample covariance matrices from short histories are noisy and often close to
+ * singular. This class applies two standard remedies:
+ * <ul>
+ *   <li>Shrinkage towards the scaled identity <code>m*I</code> where <code>m</code>
+ *       is the average variance (Ledoit and Wolf, "A well-conditioned estimator for
+ *       large-dimensional covariance matrices", 2004). The intensity can be set
+ *       explicitly or estimated from the returns with {@link #estimateShrinkage(double[][])}.</li>
+ *   <li>Thresholding of off-diagonal entries whose correlation is below a cutoff.
+ *       Hard thresholding sets such entries to zero, soft thresholding in addition
+ *       moves all other entries towards zero by the cutoff.</li>
+ * </ul>
+ * A dense matrix is conditioned in place in packed form by passes that run in
+ * parallel over blocks of rows. Its thresholded entries are stored as zero
+ * and not removed, since a missing pair means that the covariance is unknown
+ * and the matrix would no longer be complete, see {@link Result#getNonZeroRatio()}.
+ * A sparse matrix lacks most pairs anyway. It is conditioned entry by entry
+ * into sparse storage, and thresholded entries are left out of the result.
+ */
+public class CovarianceConditioner {
+  /** Minimum number of matrix elements per parallel block. */
+  private static final long GRAIN = 1 << 14;
+  /** Matrices with a lower fill ratio are conditioned in sparse storage. */
+  private static final double SPARSE_FILL = 0.5;
+
+  /** Thresholding modes. */
+  public enum Threshold {
+    /** Do not threshold. */
+    NONE,
+    /** Set entries with small correlation to zero. */
+    HARD,
+    /** Shrink the correlation of all entries towards zero by the cutoff. */
+    SOFT
+  }
+
+  /** The result of conditioning a matrix. */
+  public static final class Result {
+    private final Covariance covariance;
+    private final double shrinkage;
+    private final long zeros;
+    private final double nonZeroRatio;
+    private Result(Covariance covariance, double shrinkage, long zeros, double nonZeroRatio) {
+      this.covariance = covariance;
+      this.shrinkage = shrinkage;
+      this.zeros = zeros;
+      this.nonZeroRatio = nonZeroRatio;
+    }
+    /** Get the conditioned covariance matrix. */
+    public Covariance getCovariance() { return covariance; }
+    /** Get the shrinkage intensity that was applied. */
+    public double getShrinkage() { return shrinkage; }
+    /** Get the number of entries that were set to zero (or, for a sparse matrix, removed) by thresholding. */
+    public long getZeros() { return zeros; }
+    /** Get the fraction of the upper triangle that holds values, including zeros.
+     * This is {@link Covariance#getFillRatio()} of the conditioned matrix.
+     */
+    public double getFillRatio() { return covariance.getFillRatio(); }
+    /** Get the fraction of the upper triangle that holds non-zero values. */
+    public double getNonZeroRatio() { return nonZeroRatio; }
+  }
+
+  private double shrinkage = 0.0;
+  private Threshold threshold = Threshold.NONE;
+  private double cutoff = 0.0;
+
+  public CovarianceConditioner() {}
+
+  /** Get the shrinkage intensity. */
+  public double getShrinkage() { return shrinkage; }
+  /** Set the shrinkage intensity.
+   * @param shrinkage The weight of the target in <code>[0,1]</code>. Zero disables shrinkage.
+   */
+  public void setShrinkage(double shrinkage) {
+    if (!(shrinkage >= 0.0 && shrinkage <= 1.0))
+      throw new IllegalArgumentException("Shrinkage intensity must be in [0,1]");
+    this.shrinkage = shrinkage;
+  }
+
+  public Threshold getThreshold() { return threshold; }
+  public double getCutoff() { return cutoff; }
+  /** Set the thresholding mode.
+   * @param threshold The thresholding mode.
+   * @param cutoff    The correlation (in absolute value) below which entries are
+   *                  thresholded.
+   */
+  public void setThreshold(Threshold threshold, double cutoff) {
+    if (!(cutoff >= 0.0 && cutoff <= 1.0))
+      throw new IllegalArgumentException("Correlation cutoff must be in [0,1]");
+    this.threshold = threshold;
+    this.cutoff = cutoff;
+  }
+
+  /** Estimate the optimal shrinkage intensity from a history of returns.
+   * This is the estimator from Ledoit and Wolf (2004) for the scaled identity target.
+   * @param returns The observations, <code>returns[t][i]</code> is the return of
+   *                investment <code>i</code> at time <code>t</code>. At least two
+   *                observations are required.
+   * @return The estimated intensity in <code>[0,1]</code>.
+   */
+  public static double estimateShrinkage(final double[][] returns) {
+    final int t = returns.length;
+    if (t < 2)
+      throw new IllegalArgumentException("At least two observations are required to estimate shrinkage");
+    final int n = returns[0].length;
+    final double[] mean = new double[n];
+    for (final double[] x : returns) {
+      if (x.length != n)
+        throw new IllegalArgumentException("All observations must have the same number of returns");
+      for (int i = 0; i < n; ++i)
+        mean[i] += x[i] / t;
+    }
+    final double[][] centered = new double[t][n];
+    for (int s = 0; s < t; ++s) {
+      for (int i = 0; i < n; ++i)
+        centered[s][i] = returns[s][i] - mean[i];
+    }
+
+    // Per row sums of squares, combined after the parallel loop.
+    final double[] trace = new double[n];
+    final double[] deviation = new double[n];
+    final double[] sample = new double[n];
+    Parallel.triangle(n, GRAIN / Math.max(t, 1), new Parallel.Body() {
+      @Override
+      public void run(int from, int to) {
+        for (int b = from; b < to; ++b) {
+          for (int a = 0; a <= b; ++a) {
+            double s = 0.0;
+            for (int u = 0; u < t; ++u)
+              s += centered[u][a] * centered[u][b];
+            s /= t;
+            double dev = 0.0;
+            for (int u = 0; u < t; ++u) {
+              final double d = centered[u][a] * centered[u][b] - s;
+              dev += d * d;
+            }
+            final double weight = (a == b) ? 1.0 : 2.0;
+            sample[b] += weight * s * s;
+            deviation[b] += weight * dev;
+            if (a == b)
+              trace[b] = s;
+          }
+        }
+      }
+    });
+    double m = 0.0;
+    for (final double d : trace)
+      m += d;
+    m /= n;
+    double d2 = 0.0;
+    double b2 = 0.0;
+    for (int i = 0; i < n; ++i) {
+      // ||S - mI||^2 = ||S||^2 - 2 m tr(S) + n m^2
+      d2 += sample[i] - 2.0 * m * trace[i] + m * m;
+      b2 += deviation[i];
+    }
+    d2 /= n;
+    b2 /= (double)t * t * n;
+    if (d2 <= 0.0)
+      return 1.0;
+    return Math.min(b2, d2) / d2;
+  }
+
+  /** Threshold an off-diagonal entry.
+   * @param v     The entry, after shrinkage.
+   * @param scale The product of the standard deviations of the two investments.
+   *              Entries for which this is NaN (a missing variance) are kept.
+   * @return The thresholded entry.
+   */
+  private static double threshold(double v, double scale, Threshold mode, double limit) {
+    if (mode == Threshold.NONE || v == 0.0 || Double.isNaN(scale))
+      return v;
+    final double magnitude = Math.abs(v);
+    if (magnitude < limit * scale)
+      return 0.0;
+    return (mode == Threshold.SOFT) ? Math.signum(v) * (magnitude - limit * scale) : v;
+  }
+
+  /** Condition a covariance matrix.
+   * A sparse matrix (less than half of the pairs have a value) yields a sparse result.
+   * @param covariance The matrix to condition. It is not modified.
+   * @return The conditioned matrix along with statistics.
+   */
+  public Result condition(Covariance covariance) {
+    if (covariance.getFillRatio() < SPARSE_FILL)
+      return conditionSparse(covariance);
+    final CovarianceStorage source = covariance.storage();
+    final long[] ids = source.ids();
+    Arrays.sort(ids);
+    final int n = ids.length;
+    if (n > DenseStorage.MAX_DIMENSION)
+      throw new IllegalArgumentException("Too many investments to condition the covariance matrix");
+    final LongIndex index = new LongIndex(n);
+    for (int i = 0; i < n; ++i)
+      index.put(ids[i], i);
+    final double[] packed = new double[DenseStorage.cells(n)];
+    Arrays.fill(packed, Double.NaN);
+    for (final CovarianceStorage.Cursor c = source.cursor(); c.next(); /* nothing */)
+      packed[DenseStorage.position(index.get(c.first()), index.get(c.second()))] = c.value();
+
+    // Shrink the diagonal first, the thresholds depend on the final variances.
+    final double delta = shrinkage;
+    double sum = 0.0;
+    int count = 0;
+    for (int i = 0; i < n; ++i) {
+      final double v = packed[DenseStorage.position(i, i)];
+      if (!Double.isNaN(v)) {
+        sum += v;
+        ++count;
+      }
+    }
+    final double target = (count > 0) ? sum / count : 0.0;
+    final double[] stddev = new double[n];
+    for (int i = 0; i < n; ++i) {
+      final int p = DenseStorage.position(i, i);
+      if (!Double.isNaN(packed[p]))
+        packed[p] = (1.0 - delta) * packed[p] + delta * target;
+      stddev[i] = Math.sqrt(Math.max(packed[p], 0.0));
+    }
+
+    final Threshold mode = threshold;
+    final double limit = cutoff;
+    final long[] zeros = new long[n];
+    final long[] nonZeros = new long[n];
+    Parallel.triangle(n, GRAIN, new Parallel.Body() {
+      @Override
+      public void run(int from, int to) {
+        for (int b = from; b < to; ++b) {
+          final int base = DenseStorage.position(0, b);
+          for (int a = 0; a < b; ++a) {
+            if (Double.isNaN(packed[base + a]))
+              continue;
+            final double shrunk = packed[base + a] * (1.0 - delta);
+            final double v = threshold(shrunk, stddev[a] * stddev[b], mode, limit);
+            if (v == 0.0 && shrunk != 0.0)
+              ++zeros[b];
+            packed[base + a] = v;
+            if (v != 0.0)
+              ++nonZeros[b];
+          }
+          if (packed[base + b] != 0.0 && !Double.isNaN(packed[base + b]))
+            ++nonZeros[b];
+        }
+      }
+    });
+
+    long zeroed = 0;
+    long filled = 0;
+    for (int i = 0; i < n; ++i) {
+      zeroed += zeros[i];
+      filled += nonZeros[i];
+    }
+    final Covariance result = Covariance.wrap(new DenseStorage(ids, packed));
+    final double fill = (n == 0) ? 0.0 : filled / (0.5 * n * (n + 1.0));
+    return new Result(result, delta, zeroed, fill);
+  }
+
+  /** Condition a sparse matrix entry by entry, see {@link #condition(Covariance)}. */
+  private Result conditionSparse(Covariance covariance) {
+    final CovarianceStorage source = covariance.storage();
+    final int n = source.dimension();
+    final LongIndex index = new LongIndex(n);
+    final double[] variance = new double[n];
+    Arrays.fill(variance, Double.NaN);
+    {
+      final long[] ids = source.ids();
+      for (int i = 0; i < n; ++i)
+        index.put(ids[i], i);
+    }
+    for (final CovarianceStorage.Cursor c = source.cursor(); c.next(); /* nothing */) {
+      if (c.first() == c.second())
+        variance[index.get(c.first())] = c.value();
+    }
+
+    final double delta = shrinkage;
+    double sum = 0.0;
+    int count = 0;
+    for (final double v : variance) {
+      if (!Double.isNaN(v)) {
+        sum += v;
+        ++count;
+      }
+    }
+    final double target = (count > 0) ? sum / count : 0.0;
+    final double[] stddev = new double[n];
+    for (int i = 0; i < n; ++i) {
+      if (!Double.isNaN(variance[i]))
+        variance[i] = (1.0 - delta) * variance[i] + delta * target;
+      stddev[i] = Math.sqrt(Math.max(variance[i], 0.0));
+    }
+
+    final SparseStorage storage = new SparseStorage();
+    long zeroed = 0;
+    long filled = 0;
+    for (final CovarianceStorage.Cursor c = source.cursor(); c.next(); /* nothing */) {
+      final int a = index.get(c.first());
+      final int b = index.get(c.second());
+      double v;
+      if (a == b)
+        v = variance[a];
+      else {
+        final double shrunk = c.value() * (1.0 - delta);
+        v = threshold(shrunk, stddev[a] * stddev[b], threshold, cutoff);
+        if (v == 0.0 && shrunk != 0.0) {
+          ++zeroed;
+          continue;
+        }
+      }
+      storage.put(c.first(), c.second(), v);
+      if (v != 0.0 && !Double.isNaN(v))
+        ++filled;
+    }
+    final double fill = (n == 0) ? 0.0 : filled / (0.5 * n * (n + 1.0));
+    return new Result(Covariance.wrap(storage), delta, zeroed, fill);
+  }
+}
@@ -0,0 +1,172 @@
+package cpx.portfolio.data;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/** Estimate expected returns and covariance from a history of returns.
+ * Observations (the returns of all investments on one date) are added one by one
+ * with {@link #add(double[])} or {@link #add(long[], double[])}. Means and
+ * co-moments are updated incrementally (Welford's algorithm), so the memory used
+ * by an estimator only depends on the number of investments and not on the length
+ * of the history. The O(n<sup>2</sup>) update of the co-moments runs in parallel
+ * over blocks of rows.
+ * Instances of this class are not thread-safe.
+ */
+public class CovarianceEstimator {
+  /** Minimum number of matrix elements per parallel block. */
+  private static final long GRAIN = 1 << 14;
+
+  /** The investments for which we estimate. */
+  private final long[] ids;
+  /** Map from investment id to position in {@link #ids}. */
+  private final LongIndex index;
+  /** Number of observations added so far. */
+  private long count = 0;
+  /** Running mean of the returns of each investment. */
+  private final double[] mean;
+  /** Sum of products of deviations from the mean.
+   * This is a packed upper triangle with the same layout as {@link DenseStorage}.
+   */
+  private final double[] comoment;
+  /** Deviation of the current observation from the previous mean. */
+  private final double[] delta;
+  /** Scratch space to reorder keyed observations. */
+  private final double[] ordered;
+
+  /** Create a new estimator.
+   * @param ids The investments for which to estimate. Each observation must
+   *            specify a return for each of these.
+   */
+  public CovarianceEstimator(long[] ids) {
+    if (ids.length > DenseStorage.MAX_DIMENSION)
+      throw new IllegalArgumentException("Too many investments");
+    this.ids = ids.clone();
+    index = new LongIndex(ids.length);
+    for (int i = 0; i < ids.length; ++i) {
+      if (index.put(ids[i], i) >= 0)
+        throw new IllegalArgumentException("Duplicate investment id " + ids[i]);
+    }
+    mean = new double[ids.length];
+    comoment = new double[DenseStorage.cells(ids.length)];
+    delta = new double[ids.length];
+    ordered = new double[ids.length];
+  }
+
+  /** Get the investments for which this instance estimates. */
+  public long[] getIds() { return ids.clone(); }
+  /** Get the number of observations added so far. */
+  public long getCount() { return count; }
+
+  /** Forget all observations. */
+  public void clear() {
+    count = 0;
+    Arrays.fill(mean, 0.0);
+    Arrays.fill(comoment, 0.0);
+  }
+
+  /** Add an observation.
+   * @param returns The returns of all investments, in the order of the ids passed
+   *                to the constructor.
+   */
+  public void add(double[] returns) {
+    if (returns.length != ids.length)
+      throw new IllegalArgumentException("Expected " + ids.length + " returns but got " + returns.length);
+    update(returns, 1);
+  }
+
+  /** Add an observation that is keyed by investment id.
+   * @param keys    The investment ids. Must contain each investment exactly once.
+   * @param returns The returns for the investments in <code>keys</code>.
+   */
+  public void add(long[] keys, double[] returns) {
+    if (keys.length != ids.length || returns.length != ids.length)
+      throw new IllegalArgumentException("Expected " + ids.length + " returns but got " + keys.length);
+    Arrays.fill(ordered, Double.NaN);
+    for (int k = 0; k < keys.length; ++k) {
+      final int i = index.get(keys[k]);
+      if (i < 0)
+        throw new IllegalArgumentException("Unknown investment id " + keys[k]);
+      ordered[i] = returns[k];
+    }
+    for (int i = 0; i < ordered.length; ++i) {
+      if (Double.isNaN(ordered[i]))
+        throw new IllegalArgumentException("No return for investment " + ids[i]);
+    }
+    update(ordered, 1);
+  }
+
+  /** Add (<code>sign = 1</code>) or remove (<code>sign = -1</code>) an observation.
+   * With m the mean before and m' the mean after the update the co-moment
+   * matrix changes by sign * (x - m)(x - m')<sup>T</sup>, which is
+   * sign * (n'-sign)/n' * (x - m)(x - m)<sup>T</sup> where n' is the new count.
+   */
+  void update(double[] x, int sign) {
+    for (final double d : x) {
+      if (Double.isNaN(d) || Double.isInfinite(d))
+        throw new IllegalArgumentException("Returns must be finite");
+    }
+    final long n = count + sign;
+    if (n == 0) {
+      clear();
+      return;
+    }
+    for (int i = 0; i < x.length; ++i) {
+      delta[i] = x[i] - mean[i];
+      mean[i] += sign * delta[i] / n;
+    }
+    final double scale = sign * (double)(n - sign) / n;
+    count = n;
+    Parallel.triangle(ids.length, GRAIN, new Parallel.Body() {
+      @Override
+      public void run(int from, int to) {
+        for (int b = from; b < to; ++b) {
+          final double db = scale * delta[b];
+          final int base = DenseStorage.position(0, b);
+          for (int a = 0; a <= b; ++a)
+            comoment[base + a] += delta[a] * db;
+        }
+      }
+    });
+  }
+
+  /** Get the estimated expected return (the mean) for an investment. */
+  public double getMean(long id) {
+    final int i = index.get(id);
+    return (i < 0 || count == 0) ? Double.NaN : mean[i];
+  }
+
+  /** Set the expected return of each investment in <code>investments</code> to its estimated mean.
+   * Investments that are not known to this estimator are not changed.
+   */
+  public void updateReturns(Collection<Investment> investments) {
+    if (investments instanceof InvestmentTable) {
+      // The iterator of a table returns copies, so update the rows directly.
+      final InvestmentTable table = (InvestmentTable)investments;
+      for (int row = 0; row < table.size(); ++row) {
+        final int k = index.get(table.getId(row));
+        if (k >= 0 && count > 0)
+          table.setReturn(row, mean[k]);
+      }
+      return;
+    }
+    for (final Investment i : investments) {
+      final int k = index.get(i.getId());
+      if (k >= 0 && count > 0)
+        i.setReturn(mean[k]);
+    }
+  }
+
+  /** Get the estimated (sample) covariance matrix.
+   * @return A new covariance matrix that is independent of this estimator.
+   * @throws IllegalStateException if fewer than two observations were added.
+   */
+  public Covariance getCovariance() {
+    if (count < 2)
+      throw new IllegalStateException("At least two observations are required to estimate covariance");
+    final double[] packed = new double[comoment.length];
+    final double scale = 1.0 / (count - 1);
+    for (int p = 0; p < packed.length; ++p)
+      packed[p] = comoment[p] * scale;
+    return Covariance.wrap(new DenseStorage(ids, packed));
+  }
+}
@@ -0,0 +1,80 @@
+package cpx.portfolio.data;
+
+/** Storage engine for the non-zeros of a {@link Covariance} matrix.
+ * All functions that take a pair of ids expect the pair to be ordered, that is,
+ * <code>first &lt;= second</code>. {@link Covariance} takes care of this ordering.
+ * A value of {@link Double#NaN} is never stored, it always denotes a missing entry.
+ */
+abstract class CovarianceStorage {
+  /** Whether this storage is referenced by more than one {@link Covariance}. */
+  private volatile boolean shared = false;
+
+  /** Iterator over the entries in a storage.
+   * Entries are reported ordered by (first, second). Using a cursor instead of
+   * an iterator avoids allocating an object per entry.
+   */
+  public static abstract class Cursor {
+    /** Advance to the next entry.
+     * @return <code>true</code> if there is a next entry, <code>false</code> if the cursor is exhausted.
+     */
+    public abstract boolean next();
+    public abstract long first();
+    public abstract long second();
+    public abstract double value();
+  }
+
+  /** Get the number of stored entries. */
+  public abstract int size();
+  /** Get the number of distinct investment ids known to this storage. */
+  public abstract int dimension();
+  /** Get the distinct investment ids known to this storage in unspecified order. */
+  public abstract long[] ids();
+
+  /** Get the value for a pair of ids or {@link Double#NaN} if there is none. */
+  public abstract double get(long first, long second);
+  /** Set the value for a pair of ids.
+   * @return <code>true</code> if a new entry was created.
+   */
+  public abstract boolean put(long first, long second, double value);
+  /** Remove the entry for a pair of ids.
+   * @return <code>true</code> if there was such an entry.
+   */
+  public abstract boolean remove(long first, long second);
+  /** Remove all entries that involve <code>id</code>. */
+  public abstract void remove(long id);
+  /** Remove all entries that involve any of the ids in <code>ids</code>. */
+  public void removeAll(long[] ids) {
+    for (final long id : ids)
+      remove(id);
+  }
+
+  /** Create a cursor over all entries in this storage. */
+  public abstract Cursor cursor();
+  /** Create a deep copy of this storage. */
+  public abstract CovarianceStorage copy();
+
+  /** Get an instance of this storage that can be handed to another {@link Covariance}.
+   * By default this marks the storage as shared and returns it, so that any
+   * {@link Covariance} that references it copies it before modifying it.
+   */
+  public CovarianceStorage share() {
+    shared = true;
+    return this;
+  }
+  /** Test whether this storage must be copied before it is modified. */
+  public boolean isShared() { return shared; }
+
+  /** Test whether {@link Covariance} may replace this storage by a different one
+   * if the fill ratio changes.
+   */
+  public boolean isAdaptive() { return true; }
+  /** Test whether this storage is an immutable view.
+   * Such a storage cannot be modified, {@link Covariance} materializes it into a
+   * regular storage before the first modification.
+   */
+  public boolean isImmutable() { return false; }
+  /** Test whether this is a dense storage. */
+  public boolean isDense() { return false; }
+  /** Test whether this storage cannot accept any new investment ids. */
+  public boolean isFull() { return false; }
+}
@@ -0,0 +1,331 @@
+package cpx.portfolio.data;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/** Check that a covariance matrix is usable for a set of investments.
+ * A matrix is usable if it has a value for every pair of investments and if
+ * it is positive semidefinite (PSD). The PSD test is a blocked LDL<sup>T</sup>
+ * factorization whose panel and trailing updates run in parallel. A pivot that
+ * is smaller than <code>-tolerance</code> times the largest variance marks the
+ * corresponding investment as offending. The factorization then continues with a
+ * zero pivot, so all offending investments are reported in one pass.
+ * A matrix that is not PSD can be repaired by {@link #repair(Collection, Covariance)}.
+ */
+public class CovarianceValidator {
+  /** Number of columns in a block of the factorization. */
+  private static final int BLOCK = 64;
+  /** Minimum number of matrix elements per parallel block. */
+  private static final long GRAIN = 1 << 14;
+
+  /** Result of a validation. */
+  public static final class Report {
+    private final long[] missing;
+    private final long[] offending;
+    private final double minPivot;
+    private Report(long[] missing, long[] offending, double minPivot) {
+      this.missing = missing;
+      this.offending = offending;
+      this.minPivot = minPivot;
+    }
+    /** Test whether the matrix passed validation. */
+    public boolean isValid() { return missing.length == 0 && offending.length == 0; }
+    /** Test whether the matrix has a value for every pair of investments. */
+    public boolean isComplete() { return missing.length == 0; }
+    /** Test whether the matrix is positive semidefinite.
+     * This is only meaningful if {@link #isComplete()} returns <code>true</code>.
+     */
+    public boolean isPSD() { return offending.length == 0; }
+    /** Get the investments that are responsible for the pairs without value.
+     * Every pair without value involves at least one of these investments. They
+     * are the investments without a variance plus, for the remaining pairs, a small
+     * set of investments chosen greedily by the number of pairs they cover.
+     */
+    public long[] getMissing() { return missing.clone(); }
+    /** Get the investments at which the factorization found a negative pivot. */
+    public long[] getOffending() { return offending.clone(); }
+    /** Get the smallest pivot of the factorization (NaN if the matrix is incomplete). */
+    public double getMinPivot() { return minPivot; }
+  }
+
+  private double tolerance = 1e-10;
+
+  public CovarianceValidator() {}
+
+  public double getTolerance() { return tolerance; }
+  /** Set the relative tolerance for negative pivots. */
+  public void setTolerance(double tolerance) {
+    if (!(tolerance >= 0.0))
+      throw new IllegalArgumentException("Tolerance must not be negative");
+    this.tolerance = tolerance;
+  }
+
+  /** Get the ids of <code>investments</code>, failing on duplicates. */
+  private static long[] idsOf(Collection<Investment> investments) {
+    final long[] ids = new long[investments.size()];
+    int k = 0;
+    for (final Investment i : investments)
+      ids[k++] = i.getId();
+    final long[] sorted = ids.clone();
+    Arrays.sort(sorted);
+    for (int i = 1; i < sorted.length; ++i) {
+      if (sorted[i] == sorted[i - 1])
+        throw new IllegalArgumentException("Duplicate investment id " + sorted[i]);
+    }
+    return ids;
+  }
+
+  /** Gather the lower triangle of the matrix for <code>ids</code>.
+   * Row <code>i</code> of the result holds the values for columns <code>0..i</code>.
+   */
+  private static double[][] gather(final long[] ids, final Covariance covariance) {
+    final double[][] a = new double[ids.length][];
+    Parallel.rows(ids.length, 16, new Parallel.Body() {
+      @Override
+      public void run(int from, int to) {
+        for (int i = from; i < to; ++i) {
+          final double[] row = new double[i + 1];
+          for (int j = 0; j <= i; ++j)
+            row[j] = covariance.getCovariance(ids[i], ids[j]);
+          a[i] = row;
+        }
+      }
+    });
+    return a;
+  }
+
+  /** Validate a covariance matrix.
+   * @param investments The investments for which the matrix must be usable.
+   * @param covariance  The matrix to validate.
+   * @return The validation report.
+   */
+  public Report validate(Collection<Investment> investments, Covariance covariance) {
+    final long[] ids = idsOf(investments);
+    final int n = ids.length;
+    final double[][] a = gather(ids, covariance);
+
+    // Completeness: every pair needs a value.
+    final boolean[] missing = missingCover(a);
+    int missingCount = 0;
+    for (final boolean m : missing) {
+      if (m)
+        ++missingCount;
+    }
+    if (missingCount > 0)
+      return new Report(select(ids, missing, missingCount), new long[0], Double.NaN);
+
+    // Positive semidefiniteness.
+    double scale = 0.0;
+    for (int i = 0; i < n; ++i)
+      scale = Math.max(scale, Math.abs(a[i][i]));
+    final boolean[] offending = new boolean[n];
+    final double minPivot = factor(a, tolerance * scale, scale * Math.sqrt(tolerance), offending);
+    int offendingCount = 0;
+    for (final boolean o : offending) {
+      if (o)
+        ++offendingCount;
+    }
+    return new Report(new long[0], select(ids, offending, offendingCount), minPivot);
+  }
+
+  private static boolean isMissing(double value) {
+    return Double.isNaN(value) || Double.isInfinite(value);
+  }
+
+  /** Find the investments that are responsible for the pairs without value.
+   * An investment without a variance covers all of its pairs. The remaining
+   * pairs are covered greedily: the investment with most uncovered pairs is
+   * flagged until no pair is left. That way removing the covariances of a single
+   * investment reports this investment only, and not all of its partners.
+   * @param a The lower triangle as returned by {@link #gather(long[], Covariance)}.
+   * @return The flags of the responsible investments.
+   */
+  private static boolean[] missingCover(double[][] a) {
+    final int n = a.length;
+    final boolean[] flagged = new boolean[n];
+    for (int i = 0; i < n; ++i)
+      flagged[i] = isMissing(a[i][i]);
+    // Number of uncovered pairs of each investment.
+    final int[] degree = new int[n];
+    int pairs = 0;
+    for (int i = 0; i < n; ++i) {
+      if (flagged[i])
+        continue;
+      for (int j = 0; j < i; ++j) {
+        if (!flagged[j] && isMissing(a[i][j])) {
+          ++degree[i];
+          ++degree[j];
+          ++pairs;
+        }
+      }
+    }
+    if (pairs == 0)
+      return flagged;
+    final int[][] partners = new int[n][];
+    for (int i = 0; i < n; ++i)
+      partners[i] = new int[degree[i]];
+    final int[] fill = new int[n];
+    for (int i = 0; i < n; ++i) {
+      if (flagged[i])
+        continue;
+      for (int j = 0; j < i; ++j) {
+        if (!flagged[j] && isMissing(a[i][j])) {
+          partners[i][fill[i]++] = j;
+          partners[j][fill[j]++] = i;
+        }
+      }
+    }
+    while (pairs > 0) {
+      int best = 0;
+      for (int i = 1; i < n; ++i) {
+        if (degree[i] > degree[best])
+          best = i;
+      }
+      flagged[best] = true;
+      for (final int j : partners[best]) {
+        if (!flagged[j])
+          --degree[j];
+      }
+      pairs -= degree[best];
+      degree[best] = 0;
+    }
+    return flagged;
+  }
+
+  private static long[] select(long[] ids, boolean[] flags, int count) {
+    final long[] result = new long[count];
+    int k = 0;
+    for (int i = 0; i < ids.length; ++i) {
+      if (flags[i])
+        result[k++] = ids[i];
+    }
+    return result;
+  }
+
+  /** Compute an LDL<sup>T</sup> factorization in place.
+   * On return <code>a[i][j]</code> for <code>j &lt; i</code> holds L and
+   * <code>a[i][i]</code> holds D. Pivots that are not larger than <code>threshold</code>
+   * are replaced by zero. If a pivot is smaller than <code>-threshold</code>, or
+   * if it was replaced by zero but its column has an entry larger than
+   * <code>limit</code>, then the corresponding row is flagged in <code>offending</code>.
+   * @return The smallest pivot that was encountered.
+   */
+  private static double factor(final double[][] a, final double threshold, final double limit, final boolean[] offending) {
+    final int n = a.length;
+    double minPivot = Double.POSITIVE_INFINITY;
+    for (int k0 = 0; k0 < n; k0 += BLOCK) {
+      final int start = k0;
+      final int end = Math.min(n, k0 + BLOCK);
+
+      // Factor the diagonal block.
+      for (int j = start; j < end; ++j) {
+        double d = a[j][j];
+        for (int p = start; p < j; ++p)
+          d -= a[j][p] * a[j][p] * a[p][p];
+        minPivot = Math.min(minPivot, d);
+        if (d < -threshold)
+          offending[j] = true;
+        if (d <= threshold)
+          d = 0.0;
+        a[j][j] = d;
+        for (int i = j + 1; i < end; ++i)
+          a[i][j] = solve(a, i, j, start, d, limit, offending);
+      }
+      if (end == n)
+        break;
+
+      // Compute the panel below the diagonal block.
+      Parallel.rows(n - end, (int)Math.max(1, GRAIN / ((long)BLOCK * BLOCK)), new Parallel.Body() {
+        @Override
+        public void run(int from, int to) {
+          for (int i = end + from; i < end + to; ++i) {
+            for (int j = start; j < end; ++j)
+              a[i][j] = solve(a, i, j, start, a[j][j], limit, offending);
+          }
+        }
+      });
+
+      // Update the trailing matrix.
+      Parallel.triangle(n - end, GRAIN / BLOCK, new Parallel.Body() {
+        @Override
+        public void run(int from, int to) {
+          final double[] w = new double[end - start];
+          for (int i = end + from; i < end + to; ++i) {
+            final double[] ri = a[i];
+            for (int p = start; p < end; ++p)
+              w[p - start] = ri[p] * a[p][p];
+            for (int j = end; j <= i; ++j) {
+              final double[] rj = a[j];
+              double sum = 0.0;
+              for (int p = start; p < end; ++p)
+                sum += w[p - start] * rj[p];
+              ri[j] -= sum;
+            }
+          }
+        }
+      });
+    }
+    return (n == 0) ? 0.0 : minPivot;
+  }
+
+  /** Compute L[i][j] from the updated value in <code>a[i][j]</code> and the columns <code>start..j-1</code>.
+   * For a zero pivot <code>d</code> the column of a PSD matrix must be zero, so
+   * a remainder larger than <code>limit</code> flags <code>j</code> as offending.
+   */
+  private static double solve(double[][] a, int i, int j, int start, double d, double limit, boolean[] offending) {
+    double v = a[i][j];
+    for (int p = start; p < j; ++p)
+      v -= a[i][p] * a[p][p] * a[j][p];
+    if (d == 0.0) {
+      if (Math.abs(v) > limit)
+        offending[j] = true;
+      return 0.0;
+    }
+    return v / d;
+  }
+
+  /** Project a covariance matrix to the nearest positive semidefinite matrix.
+   * The projection (in Frobenius norm) is computed by clipping negative
+   * eigenvalues to zero. The eigen decomposition costs O(n<sup>3</sup>) per
+   * sweep of the Jacobi method, so this is meant for a few hundred investments.
+   * @param investments The investments for which to repair. The matrix must have
+   *                    a value for every pair of these.
+   * @param covariance  The matrix to repair. It is not modified.
+   * @return A new matrix for <code>investments</code> that is positive semidefinite.
+   */
+  public Covariance repair(Collection<Investment> investments, Covariance covariance) {
+    final long[] ids = idsOf(investments);
+    final int n = ids.length;
+    final double[][] lower = gather(ids, covariance);
+    final double[][] full = new double[n][n];
+    for (int i = 0; i < n; ++i) {
+      for (int j = 0; j <= i; ++j) {
+        if (Double.isNaN(lower[i][j]))
+          throw new IllegalArgumentException("No covariance for investments " + ids[i] + " and " + ids[j]);
+        full[i][j] = full[j][i] = lower[i][j];
+      }
+    }
+    final double[] values = new double[n];
+    final double[][] vectors = new double[n][n];
+    Jacobi.decompose(full, values, vectors);
+    for (int k = 0; k < n; ++k)
+      values[k] = Math.max(values[k], 0.0);
+
+    // Reassemble V max(L,0) V^T in the packed layout of DenseStorage.
+    final double[] packed = new double[DenseStorage.cells(n)];
+    Parallel.triangle(n, GRAIN / Math.max(n, 1), new Parallel.Body() {
+      @Override
+      public void run(int from, int to) {
+        for (int b = from; b < to; ++b) {
+          for (int a = 0; a <= b; ++a) {
+            double sum = 0.0;
+            for (int k = 0; k < n; ++k)
+              sum += vectors[a][k] * values[k] * vectors[b][k];
+            packed[DenseStorage.position(a, b)] = sum;
+          }
+        }
+      }
+    });
+    return Covariance.wrap(new DenseStorage(ids, packed));
+  }
+}
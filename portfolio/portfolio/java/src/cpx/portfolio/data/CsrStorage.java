@@ -0,0 +1,256 @@
+package cpx.portfolio.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/** Read-only view of a sparse covariance matrix in compressed sparse row (CSR) form.
+ * The matrix is stored in a file with the following layout (all numbers little endian):
+ * <pre>
+ *   long   magic          {@link #MAGIC}
+ *   int    version        {@link #VERSION}
+ *   int    n              number of investments
+ *   long   count          number of stored values
+ *   long[n] ids           investment ids in strictly ascending order
+ *   long[n+1] rows        start of each row in the arrays below
+ *   double[count] values  the values, row by row
+ *   int[count] columns    the column of each value
+ * </pre>
+ * Only the upper triangle is stored, that is, each row <code>a</code> only holds
+ * columns <code>b &gt;= a</code>, in ascending order. Rows and columns are
+ * positions in the id list. The data is mapped and not copied to the heap,
+ * unless the whole file was read into memory (see {@link FileSections}).
+ * The storage is immutable, {@link Covariance} materializes it before modification.
+ */
+final class CsrStorage extends CovarianceStorage {
+  /** Magic number at the start of a CSR covariance matrix ("CPXCSR01"). */
+  public static final long MAGIC = 0x3130525343585043L;
+  public static final int VERSION = 1;
+  /** Size of the header in bytes. */
+  private static final int HEADER = 24;
+
+  private final long[] ids;
+  private final LongIndex index;
+  private final LongBuffer rows;
+  private final DoubleBuffer values;
+  private final IntBuffer columns;
+  private final int count;
+
+  private CsrStorage(long[] ids, LongBuffer rows, DoubleBuffer values, IntBuffer columns, int count) {
+    this.ids = ids;
+    this.rows = rows;
+    this.values = values;
+    this.columns = columns;
+    this.count = count;
+    index = new LongIndex(ids.length);
+    for (int i = 0; i < ids.length; ++i)
+      index.put(ids[i], i);
+  }
+
+  /** Get the number of bytes of a matrix for <code>n</code> investments and <code>count</code> values. */
+  static long size(int n, long count) {
+    return HEADER + 8L * n + 8L * (n + 1) + 8L * count + ((4L * count + 7) & ~7L);
+  }
+
+  /** Map a CSR matrix that is stored at <code>offset</code> in a file.
+   * @param sections The file.
+   * @param offset   The offset of the matrix in the file.
+   * @param name     The name of the file for error messages.
+   * @throws IOException if the data cannot be mapped or is invalid.
+   */
+  static CsrStorage map(FileSections sections, long offset, String name) throws IOException {
+    if (sections.size() < offset + HEADER)
+      throw new IOException(name + " is truncated");
+    final ByteBuffer header = sections.get(offset, HEADER);
+    if (header.getLong(0) != MAGIC)
+      throw new IOException(name + ": invalid sparse covariance section");
+    if (header.getInt(8) != VERSION)
+      throw new IOException(name + ": unsupported sparse covariance version " + header.getInt(8));
+    final int n = header.getInt(12);
+    final long count = header.getLong(16);
+    if (n < 0 || count < 0 || count > Integer.MAX_VALUE / 8)
+      throw new IOException(name + ": invalid sparse covariance dimensions");
+    if (sections.size() < offset + size(n, count))
+      throw new IOException(name + " is truncated");
+
+    long position = offset + HEADER;
+    final long[] ids = new long[n];
+    sections.get(position, 8L * n).asLongBuffer().get(ids);
+    for (int i = 1; i < n; ++i) {
+      if (ids[i] <= ids[i - 1])
+        throw new IOException(name + ": investment ids are not in ascending order");
+    }
+    position += 8L * n;
+    final LongBuffer rows = sections.get(position, 8L * (n + 1)).asLongBuffer();
+    position += 8L * (n + 1);
+    final DoubleBuffer values = sections.get(position, 8L * count).asDoubleBuffer();
+    position += 8L * count;
+    final IntBuffer columns = sections.get(position, 4L * count).asIntBuffer();
+    if (rows.get(0) != 0 || rows.get(n) != count)
+      throw new IOException(name + ": invalid sparse covariance rows");
+    // Lookups and cursors index ids by column and rely on the order within rows.
+    for (int a = 0; a < n; ++a) {
+      final long from = rows.get(a);
+      final long to = rows.get(a + 1);
+      if (to < from || to > count)
+        throw new IOException(name + ": invalid sparse covariance rows");
+      int previous = a - 1;
+      for (int k = (int)from; k < to; ++k) {
+        final int b = columns.get(k);
+        if (b <= previous || b >= n)
+          throw new IOException(name + ": invalid column in sparse covariance row " + a);
+        previous = b;
+      }
+    }
+    return new CsrStorage(ids, rows, values, columns, (int)count);
+  }
+
+  /** Write a matrix in CSR layout at the current position of <code>channel</code>.
+   * @param channel The file to which to write.
+   * @param ids     The investments in strictly ascending order.
+   * @param source  The storage from which to take the values. Values for
+   *                investments that are not in <code>ids</code> are skipped.
+   * @throws IOException on output error or if there are too many values.
+   */
+  static void write(FileChannel channel, long[] ids, CovarianceStorage source) throws IOException {
+    final int n = ids.length;
+    final LongIndex index = new LongIndex(n);
+    for (int i = 0; i < n; ++i)
+      index.put(ids[i], i);
+    // Count the values per row, then scatter them into their rows. Cursors
+    // report entries ordered by (first, second), so each row is filled in
+    // ascending column order.
+    final long[] rows = new long[n + 1];
+    for (final CovarianceStorage.Cursor c = source.cursor(); c.next(); /* nothing */) {
+      final int a = index.get(c.first());
+      if (a >= 0 && index.containsKey(c.second()))
+        ++rows[a + 1];
+    }
+    for (int i = 0; i < n; ++i)
+      rows[i + 1] += rows[i];
+    if (rows[n] > Integer.MAX_VALUE / 8)
+      throw new IOException("Too many covariance values for sparse layout");
+    final int count = (int)rows[n];
+    final int[] columns = new int[count];
+    final double[] values = new double[count];
+    final int[] fill = new int[n];
+    for (final CovarianceStorage.Cursor c = source.cursor(); c.next(); /* nothing */) {
+      final int a = index.get(c.first());
+      final int b = index.get(c.second());
+      if (a >= 0 && b >= 0) {
+        final int k = (int)rows[a] + fill[a]++;
+        columns[k] = b;
+        values[k] = c.value();
+      }
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putLong(MAGIC).putInt(VERSION).putInt(n).putLong(count);
+    for (final long id : ids) {
+      flush(channel, buffer, 8);
+      buffer.putLong(id);
+    }
+    for (final long r : rows) {
+      flush(channel, buffer, 8);
+      buffer.putLong(r);
+    }
+    for (final double v : values) {
+      flush(channel, buffer, 8);
+      buffer.putDouble(v);
+    }
+    for (final int b : columns) {
+      flush(channel, buffer, 8);
+      buffer.putInt(b);
+    }
+    while (buffer.position() % 8 != 0)
+      buffer.put((byte)0);
+    flush(channel, buffer, buffer.capacity());
+  }
+
+  /** Write the content of <code>buffer</code> if it has less than <code>needed</code> bytes left. */
+  private static void flush(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+    if (buffer.remaining() >= needed)
+      return;
+    buffer.flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+
+  @Override
+  public int size() { return count; }
+  @Override
+  public int dimension() { return ids.length; }
+  @Override
+  public long[] ids() { return ids.clone(); }
+  @Override
+  public boolean isAdaptive() { return false; }
+  @Override
+  public boolean isImmutable() { return true; }
+
+  @Override
+  public double get(long first, long second) {
+    final int a = index.get(first);
+    if (a < 0)
+      return Double.NaN;
+    final int b = index.get(second);
+    if (b < 0)
+      return Double.NaN;
+    // Binary search for column b in row a.
+    int lo = (int)rows.get(a);
+    int hi = (int)rows.get(a + 1) - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int c = columns.get(mid);
+      if (c < b)
+        lo = mid + 1;
+      else if (c > b)
+        hi = mid - 1;
+      else
+        return values.get(mid);
+    }
+    return Double.NaN;
+  }
+
+  @Override
+  public boolean put(long first, long second, double value) {
+    throw new UnsupportedOperationException("Sparse covariance view cannot be modified");
+  }
+  @Override
+  public boolean remove(long first, long second) {
+    throw new UnsupportedOperationException("Sparse covariance view cannot be modified");
+  }
+  @Override
+  public void remove(long id) {
+    throw new UnsupportedOperationException("Sparse covariance view cannot be modified");
+  }
+
+  @Override
+  public Cursor cursor() {
+    return new Cursor() {
+      private int row = 0;
+      private int k = -1;
+      @Override
+      public boolean next() {
+        if (++k >= count)
+          return false;
+        while (rows.get(row + 1) <= k)
+          ++row;
+        return true;
+      }
+      @Override
+      public long first() { return ids[row]; }
+      @Override
+      public long second() { return ids[columns.get(k)]; }
+      @Override
+      public double value() { return values.get(k); }
+    };
+  }
+
+  /** The storage is immutable, so a copy is the storage itself. */
+  @Override
+  public CovarianceStorage copy() { return this; }
+}
@@ -0,0 +1,212 @@
+package cpx.portfolio.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Watch a directory for new or modified data files and load them in the background.
+ * Each file that is created in or written to the directory is loaded with
+ * {@link IO#load(File, java.util.Collection, Covariance)} on a background thread, and
+ * the result is passed to a {@link Listener}. The result never references the
+ * watched file, binary files are read into memory instead of being mapped. Files are only loaded once they
+ * are quiet, that is, once there was no event for them and neither their size
+ * nor their modification time changed for a certain time. This avoids loading
+ * files that are still being written. Files whose names start with a dot or
+ * end with <code>~</code>, <code>.tmp</code> or <code>.part</code> are
+ * ignored, so writers can create a temporary file and rename it when done.
+ */
+public class DataWatcher {
+  /** Receives the data loaded by a {@link DataWatcher}.
+   * The functions are called on the thread of the watcher.
+   */
+  public interface Listener {
+    /** Called when a file was loaded successfully.
+     * @param file        The file that was loaded.
+     * @param investments The investments in the file.
+     * @param covariance  The covariance matrix in the file.
+     */
+    public void loaded(File file, List<Investment> investments, Covariance covariance);
+    /** Called when a file could not be loaded. */
+    public void failed(File file, IOException error);
+  }
+
+  /** A file that waits to become quiet. */
+  private static final class Pending {
+    public long deadline;
+    public long size;
+    public long modified;
+  }
+
+  private final File directory;
+  private final long quiet;
+  private final Listener listener;
+  private final WatchService service;
+  private final Map<Path, Pending> pending = new HashMap<Path, Pending>();
+  private Thread thread = null;
+
+  /** Create a watcher.
+   * @param directory The directory to watch.
+   * @param quiet     The time in milliseconds for which a file must not change before it is loaded.
+   * @param listener  Receives the loaded data.
+   * @throws IOException if the directory cannot be watched.
+   */
+  public DataWatcher(File directory, long quiet, Listener listener) throws IOException {
+    if (quiet < 0)
+      throw new IllegalArgumentException("Quiet time must not be negative");
+    this.directory = directory;
+    this.quiet = quiet;
+    this.listener = listener;
+    service = FileSystems.getDefault().newWatchService();
+    try {
+      directory.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+    catch (IOException e) {
+      service.close();
+      throw e;
+    }
+  }
+
+  public File getDirectory() { return directory; }
+
+  /** Start watching.
+   * @param loadNewest Whether to load the most recently modified file that is
+   *                   already in the directory.
+   */
+  public synchronized void start(boolean loadNewest) {
+    if (thread != null)
+      throw new IllegalStateException("Watcher is already started");
+    if (loadNewest) {
+      File newest = null;
+      final File[] files = directory.listFiles();
+      if (files != null) {
+        for (final File f : files) {
+          if (f.isFile() && !isIgnored(f.getName()) && (newest == null || f.lastModified() > newest.lastModified()))
+            newest = f;
+        }
+      }
+      if (newest != null)
+        touch(newest.toPath(), System.currentTimeMillis());
+    }
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() { watch(); }
+    }, "DataWatcher " + directory);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Stop watching.
+   * A file that is being loaded is still passed to the listener.
+   */
+  public void close() throws IOException {
+    service.close();
+  }
+
+  /** Test whether a file name denotes a file that is still being written. */
+  private static boolean isIgnored(String name) {
+    return name.startsWith(".") || name.endsWith("~") || name.endsWith(".tmp") || name.endsWith(".part");
+  }
+
+  /** Record an event for <code>path</code>, which restarts its quiet time. */
+  private void touch(Path path, long now) {
+    Pending p = pending.get(path);
+    if (p == null) {
+      p = new Pending();
+      pending.put(path, p);
+    }
+    final File file = path.toFile();
+    p.deadline = now + quiet;
+    p.size = file.length();
+    p.modified = file.lastModified();
+  }
+
+  /** The loop of the watcher thread. */
+  private void watch() {
+    try {
+      while (true) {
+        // Wait for the next event or for the earliest deadline.
+        long now = System.currentTimeMillis();
+        long wait = Long.MAX_VALUE;
+        for (final Pending p : pending.values())
+          wait = Math.min(wait, Math.max(0, p.deadline - now));
+        final WatchKey key = (wait == Long.MAX_VALUE) ? service.take() : service.poll(wait, TimeUnit.MILLISECONDS);
+        now = System.currentTimeMillis();
+        if (key != null) {
+          for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+              continue;
+            final Path path = directory.toPath().resolve((Path)event.context());
+            if (isIgnored(path.getFileName().toString()))
+              continue;
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+              pending.remove(path);
+            else
+              touch(path, now);
+          }
+          key.reset();
+        }
+
+        // Load files that became quiet. A file that changed without an event
+        // (some systems report only the first write) gets another quiet time.
+        final List<File> ready = new ArrayList<File>();
+        for (final Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext(); /* nothing */) {
+          final Map.Entry<Path, Pending> e = it.next();
+          final Pending p = e.getValue();
+          if (p.deadline > now)
+            continue;
+          final File file = e.getKey().toFile();
+          if (!file.isFile())
+            it.remove();
+          else if (file.length() != p.size || file.lastModified() != p.modified)
+            touch(e.getKey(), now);
+          else {
+            it.remove();
+            ready.add(file);
+          }
+        }
+        for (final File file : ready)
+          load(file);
+      }
+    }
+    catch (ClosedWatchServiceException e) {
+      // The watcher was closed.
+    }
+    catch (InterruptedException e) {
+      // Stop watching.
+    }
+  }
+
+  /** Load <code>file</code> and pass the result to the listener.
+   * Binary files are read into memory rather than mapped, so that writers can
+   * rewrite or replace the watched file at any time.
+   */
+  private void load(File file) {
+    final List<Investment> investments = new ArrayList<Investment>();
+    final Covariance covariance = new Covariance();
+    try {
+      IO.load(file, investments, covariance, false, null);
+    }
+    catch (IOException e) {
+      listener.failed(file, e);
+      return;
+    }
+    catch (RuntimeException e) {
+      // Report it, an uncaught exception would silently stop the watcher.
+      listener.failed(file, new IOException(e.toString(), e));
+      return;
+    }
+    listener.loaded(file, investments, covariance);
+  }
+}
@@ -0,0 +1,225 @@
+package cpx.portfolio.data;
+
+import java.util.Arrays;
+
+/** Dense storage for covariance matrices.
+ * Each investment id is mapped to a dense index. The upper triangle of the
+ * matrix is kept in a single packed array in column order, that is, the entry
+ * for indices <code>a &lt;= b</code> is at position <code>b*(b+1)/2 + a</code>.
+ * With this layout adding a new investment only appends to the array.
+ * Missing entries are stored as {@link Double#NaN}.
+ */
+final class DenseStorage extends CovarianceStorage {
+  /** Maximum number of indices so that the packed array can be indexed by an <code>int</code>. */
+  public static final int MAX_DIMENSION = 65535;
+
+  /** Map from investment id to dense index. */
+  private final LongIndex index;
+  /** Map from dense index to investment id. */
+  private long[] ids;
+  /** Indices that were released by {@link #remove(long)} and can be reused. */
+  private int[] free;
+  private int freeCount;
+  /** Number of indices handed out so far (including released ones). */
+  private int used;
+  /** The packed upper triangle. */
+  private double[] packed;
+  /** Number of non-NaN values in {@link #packed}. */
+  private int count;
+
+  public DenseStorage(int capacity) {
+    index = new LongIndex(capacity);
+    ids = new long[capacity];
+    free = new int[4];
+    freeCount = 0;
+    used = 0;
+    packed = new double[cells(capacity)];
+    Arrays.fill(packed, Double.NaN);
+    count = 0;
+  }
+
+  /** Create a dense storage that holds the same entries as <code>other</code>.
+   * Dense indices are assigned in ascending order of investment ids.
+   */
+  public DenseStorage(CovarianceStorage other) {
+    this(Math.max(other.dimension(), 1));
+    final long[] sorted = other.ids();
+    Arrays.sort(sorted);
+    for (final long id : sorted)
+      indexOf(id);
+    for (final CovarianceStorage.Cursor c = other.cursor(); c.next(); /* nothing */)
+      put(c.first(), c.second(), c.value());
+  }
+
+  /** Create a dense storage that wraps an existing packed triangle.
+   * The storage takes ownership of <code>packed</code>.
+   * @param ids    The investment ids, the id at position <code>i</code> gets dense index <code>i</code>.
+   * @param packed The packed triangle for <code>ids</code>, missing values must be NaN.
+   */
+  public DenseStorage(long[] ids, double[] packed) {
+    if (ids.length > MAX_DIMENSION)
+      throw new IllegalArgumentException("Too many investments for dense covariance storage");
+    if (packed.length != cells(ids.length))
+      throw new IllegalArgumentException("Invalid size for packed covariance matrix");
+    index = new LongIndex(ids.length);
+    for (int i = 0; i < ids.length; ++i) {
+      if (index.put(ids[i], i) >= 0)
+        throw new IllegalArgumentException("Duplicate investment id " + ids[i]);
+    }
+    this.ids = Arrays.copyOf(ids, Math.max(ids.length, 1));
+    free = new int[4];
+    freeCount = 0;
+    used = ids.length;
+    if (ids.length == 0)
+      packed = new double[] { Double.NaN };
+    this.packed = packed;
+    int nonNaN = 0;
+    for (final double d : packed) {
+      if (!Double.isNaN(d))
+        ++nonNaN;
+    }
+    count = nonNaN;
+  }
+
+  private DenseStorage(DenseStorage other) {
+    index = new LongIndex(other.index);
+    ids = other.ids.clone();
+    free = other.free.clone();
+    freeCount = other.freeCount;
+    used = other.used;
+    packed = other.packed.clone();
+    count = other.count;
+  }
+
+  /** Number of packed cells required for <code>n</code> indices. */
+  static int cells(int n) { return (int)((long)n * (n + 1) / 2); }
+  /** Position of indices <code>a</code> and <code>b</code> in {@link #packed}. */
+  static int position(int a, int b) {
+    return (a <= b) ? (int)((long)b * (b + 1) / 2 + a) : (int)((long)a * (a + 1) / 2 + b);
+  }
+
+  /** Get the dense index for <code>id</code>, creating a new one if required. */
+  private int indexOf(long id) {
+    int i = index.get(id);
+    if (i >= 0)
+      return i;
+    if (freeCount > 0)
+      i = free[--freeCount];
+    else {
+      if (used == ids.length) {
+        if (used >= MAX_DIMENSION)
+          throw new IllegalStateException("Too many investments for dense covariance storage");
+        final int capacity = (int)Math.min(MAX_DIMENSION, 2L * used);
+        final int oldCells = packed.length;
+        ids = Arrays.copyOf(ids, capacity);
+        packed = Arrays.copyOf(packed, cells(capacity));
+        Arrays.fill(packed, oldCells, packed.length, Double.NaN);
+      }
+      i = used++;
+    }
+    ids[i] = id;
+    index.put(id, i);
+    return i;
+  }
+
+  @Override
+  public int size() { return count; }
+  @Override
+  public int dimension() { return index.size(); }
+  @Override
+  public long[] ids() { return index.keys(); }
+  @Override
+  public boolean isDense() { return true; }
+  @Override
+  public boolean isFull() { return freeCount == 0 && used >= MAX_DIMENSION; }
+
+  @Override
+  public double get(long first, long second) {
+    final int a = index.get(first);
+    if (a < 0)
+      return Double.NaN;
+    final int b = index.get(second);
+    if (b < 0)
+      return Double.NaN;
+    return packed[position(a, b)];
+  }
+
+  @Override
+  public boolean put(long first, long second, double value) {
+    final int p = position(indexOf(first), indexOf(second));
+    final boolean created = Double.isNaN(packed[p]);
+    packed[p] = value;
+    if (created)
+      ++count;
+    return created;
+  }
+
+  @Override
+  public boolean remove(long first, long second) {
+    final int a = index.get(first);
+    final int b = index.get(second);
+    if (a < 0 || b < 0)
+      return false;
+    final int p = position(a, b);
+    if (Double.isNaN(packed[p]))
+      return false;
+    packed[p] = Double.NaN;
+    --count;
+    return true;
+  }
+
+  @Override
+  public void remove(long id) {
+    final int a = index.remove(id);
+    if (a < 0)
+      return;
+    for (int b = 0; b < used; ++b) {
+      final int p = position(a, b);
+      if (!Double.isNaN(packed[p])) {
+        packed[p] = Double.NaN;
+        --count;
+      }
+    }
+    if (freeCount == free.length)
+      free = Arrays.copyOf(free, 2 * free.length);
+    free[freeCount++] = a;
+  }
+
+  @Override
+  public Cursor cursor() {
+    // Visit indices in ascending order of their investment ids.
+    final long[] sorted = ids();
+    Arrays.sort(sorted);
+    final int[] order = new int[sorted.length];
+    for (int k = 0; k < sorted.length; ++k)
+      order[k] = index.get(sorted[k]);
+    return new Cursor() {
+      private int row = 0;
+      private int col = -1;
+      private double value = Double.NaN;
+      @Override
+      public boolean next() {
+        while (row < order.length) {
+          if (++col >= order.length) {
+            ++row;
+            col = row - 1;
+            continue;
+          }
+          value = packed[position(order[row], order[col])];
+          if (!Double.isNaN(value))
+            return true;
+        }
+        return false;
+      }
+      @Override
+      public long first() { return sorted[row]; }
+      @Override
+      public long second() { return sorted[col]; }
+      @Override
+      public double value() { return value; }
+    };
+  }
+
+  @Override
+  public CovarianceStorage copy() { return new DenseStorage(this); }
+}
@@ -0,0 +1,358 @@
+package cpx.portfolio.data;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import com.platform.symphony.soam.InputStream;
+import com.platform.symphony.soam.OutputStream;
+import com.platform.symphony.soam.SoamException;
+
+/** Covariance storage that represents the matrix by a factor model.
+ * The matrix is <code>B F B<sup>T</sup> + D</code> where <code>B</code> is the
+ * n&times;k matrix of factor exposures, <code>F</code> is the k&times;k factor
+ * covariance matrix and <code>D</code> is the diagonal matrix of specific
+ * variances. This takes O(n*k) memory instead of O(n<sup>2</sup>). Values are
+ * computed on the fly in O(k).
+ * The storage cannot be modified. {@link Covariance} materializes it into a
+ * regular storage before the first modification.
+ */
+final class FactorStorage extends CovarianceStorage {
+  /** Maximum number of subspace iterations in {@link #fit(CovarianceStorage, int)}. */
+  private static final int MAX_ITERATIONS = 200;
+  /** Relative change of eigenvalues below which subspace iteration stops. */
+  private static final double TOLERANCE = 1e-10;
+
+  /** The investment ids in ascending order. */
+  private final long[] ids;
+  /** Map from investment id to position in {@link #ids}. */
+  private final LongIndex index;
+  /** Number of factors. */
+  private final int k;
+  /** Factor exposures B, row-major n&times;k. */
+  private final double[] exposures;
+  /** Factor covariance F, row-major k&times;k. */
+  private final double[] factors;
+  /** Specific variances, the diagonal of D. */
+  private final double[] specific;
+  /** The product B F, row-major n&times;k. */
+  private final double[] loadings;
+
+  /** Create a new factor storage.
+   * @param ids       The investment ids in strictly ascending order.
+   * @param k         The number of factors.
+   * @param exposures Row-major n&times;k factor exposures.
+   * @param factors   Row-major k&times;k symmetric factor covariance.
+   * @param specific  The n specific variances.
+   */
+  private FactorStorage(long[] ids, int k, double[] exposures, double[] factors, double[] specific) {
+    this.ids = ids;
+    this.k = k;
+    this.exposures = exposures;
+    this.factors = factors;
+    this.specific = specific;
+    index = new LongIndex(ids.length);
+    for (int i = 0; i < ids.length; ++i)
+      index.put(ids[i], i);
+    loadings = new double[ids.length * k];
+    for (int i = 0; i < ids.length; ++i) {
+      for (int q = 0; q < k; ++q) {
+        double sum = 0.0;
+        for (int p = 0; p < k; ++p)
+          sum += exposures[i * k + p] * factors[p * k + q];
+        loadings[i * k + q] = sum;
+      }
+    }
+  }
+
+  /** Create a new factor storage.
+   * @param ids       The investment ids.
+   * @param exposures The factor exposures, <code>exposures[i]</code> are the exposures of <code>ids[i]</code>.
+   * @param factors   The factor covariance matrix.
+   * @param specific  The specific variances, <code>specific[i]</code> is the variance of <code>ids[i]</code>.
+   */
+  public static FactorStorage create(final long[] ids, double[][] exposures, double[][] factors, double[] specific) {
+    final int n = ids.length;
+    final int k = factors.length;
+    if (exposures.length != n || specific.length != n)
+      throw new IllegalArgumentException("Expected exposures and specific variances for " + n + " investments");
+    // Sort by id so that cursors report entries in order.
+    final Integer[] order = new Integer[n];
+    for (int i = 0; i < n; ++i)
+      order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return (ids[a] < ids[b]) ? -1 : ((ids[a] == ids[b]) ? 0 : 1);
+      }
+    });
+    final long[] sorted = new long[n];
+    final double[] b = new double[n * k];
+    final double[] d = new double[n];
+    for (int i = 0; i < n; ++i) {
+      final int from = order[i];
+      sorted[i] = ids[from];
+      if (i > 0 && sorted[i] == sorted[i - 1])
+        throw new IllegalArgumentException("Duplicate investment id " + sorted[i]);
+      if (exposures[from].length != k)
+        throw new IllegalArgumentException("Expected " + k + " exposures for investment " + ids[from]);
+      System.arraycopy(exposures[from], 0, b, i * k, k);
+      d[i] = specific[from];
+    }
+    final double[] f = new double[k * k];
+    for (int p = 0; p < k; ++p) {
+      if (factors[p].length != k)
+        throw new IllegalArgumentException("Factor covariance must be a square matrix");
+      for (int q = 0; q < k; ++q) {
+        if (factors[p][q] != factors[q][p])
+          throw new IllegalArgumentException("Factor covariance must be symmetric");
+        f[p * k + q] = factors[p][q];
+      }
+    }
+    return new FactorStorage(sorted, k, b, f, d);
+  }
+
+  /** Fit a factor model to a covariance matrix.
+   * The exposures are the eigenvectors for the <code>k</code> largest eigenvalues,
+   * the factor covariance is the diagonal matrix of these eigenvalues, and the
+   * specific variances are what remains on the diagonal. Negative variances are
+   * clipped at zero.
+   * The eigenvectors are computed by subspace iteration, which costs
+   * O(n<sup>2</sup>k) per iteration. Missing entries are treated as zero.
+   * @param other The covariance matrix to approximate.
+   * @param k     The number of factors.
+   */
+  public static FactorStorage fit(CovarianceStorage other, int k) {
+    final long[] ids = other.ids();
+    Arrays.sort(ids);
+    final int n = ids.length;
+    if (k < 1 || k > n)
+      throw new IllegalArgumentException("Number of factors must be between 1 and " + n);
+    if (n > DenseStorage.MAX_DIMENSION)
+      throw new IllegalArgumentException("Too many investments to fit a factor model");
+    final LongIndex index = new LongIndex(n);
+    for (int i = 0; i < n; ++i)
+      index.put(ids[i], i);
+    final double[] packed = new double[DenseStorage.cells(n)];
+    for (final CovarianceStorage.Cursor c = other.cursor(); c.next(); /* nothing */)
+      packed[DenseStorage.position(index.get(c.first()), index.get(c.second()))] = c.value();
+
+    // Subspace iteration with Rayleigh-Ritz projection. Column j of the basis
+    // is q[j], stored column-wise so that products parallelize over columns.
+    final double[][] q = new double[k][n];
+    final double[][] z = new double[k][n];
+    final Random random = new Random(n);
+    for (int j = 0; j < k; ++j) {
+      for (int i = 0; i < n; ++i)
+        q[j][i] = random.nextGaussian();
+    }
+    orthonormalize(q);
+    final double[] values = new double[k];
+    final double[] previous = new double[k];
+    final double[][] vectors = new double[k][k];
+    final double[][] projected = new double[k][k];
+    for (int iteration = 0; iteration < MAX_ITERATIONS; ++iteration) {
+      multiply(packed, n, q, z);
+      // Projected matrix Q^T A Q and its eigen decomposition.
+      for (int a = 0; a < k; ++a) {
+        for (int b = a; b < k; ++b)
+          projected[a][b] = dot(q[a], z[b]);
+      }
+      Jacobi.decompose(projected, values, vectors);
+      // Rotate A Q by the Ritz vectors and use that as the next basis.
+      for (int i = 0; i < n; ++i) {
+        for (int j = 0; j < k; ++j) {
+          double sum = 0.0;
+          for (int l = 0; l < k; ++l)
+            sum += z[l][i] * vectors[l][j];
+          q[j][i] = sum;
+        }
+      }
+      orthonormalize(q);
+      boolean converged = iteration > 0;
+      for (int j = 0; j < k && converged; ++j)
+        converged = Math.abs(values[j] - previous[j]) <= TOLERANCE * Math.abs(values[0]);
+      if (converged)
+        break;
+      System.arraycopy(values, 0, previous, 0, k);
+    }
+
+    // Rayleigh quotients of the final basis are the factor variances.
+    multiply(packed, n, q, z);
+    final double[] b = new double[n * k];
+    final double[] f = new double[k * k];
+    for (int j = 0; j < k; ++j) {
+      f[j * k + j] = Math.max(0.0, dot(q[j], z[j]));
+      for (int i = 0; i < n; ++i)
+        b[i * k + j] = q[j][i];
+    }
+    final double[] d = new double[n];
+    for (int i = 0; i < n; ++i) {
+      double common = 0.0;
+      for (int j = 0; j < k; ++j)
+        common += b[i * k + j] * b[i * k + j] * f[j * k + j];
+      d[i] = Math.max(0.0, packed[DenseStorage.position(i, i)] - common);
+    }
+    return new FactorStorage(ids, k, b, f, d);
+  }
+
+  /** Compute <code>z[j] = A q[j]</code> for each column, where <code>A</code> is a packed symmetric matrix. */
+  private static void multiply(final double[] packed, final int n, final double[][] q, final double[][] z) {
+    Parallel.rows(q.length, 1, new Parallel.Body() {
+      @Override
+      public void run(int from, int to) {
+        for (int j = from; j < to; ++j) {
+          final double[] x = q[j];
+          final double[] y = z[j];
+          Arrays.fill(y, 0.0);
+          for (int c = 0; c < n; ++c) {
+            final int base = DenseStorage.position(0, c);
+            double sum = 0.0;
+            for (int r = 0; r < c; ++r) {
+              final double v = packed[base + r];
+              sum += v * x[r];
+              y[r] += v * x[c];
+            }
+            y[c] += sum + packed[base + c] * x[c];
+          }
+        }
+      }
+    });
+  }
+
+  private static double dot(double[] x, double[] y) {
+    double sum = 0.0;
+    for (int i = 0; i < x.length; ++i)
+      sum += x[i] * y[i];
+    return sum;
+  }
+
+  /** Orthonormalize the columns <code>q[j]</code> by modified Gram-Schmidt. */
+  private static void orthonormalize(double[][] q) {
+    for (int j = 0; j < q.length; ++j) {
+      for (int l = 0; l < j; ++l) {
+        final double r = dot(q[l], q[j]);
+        for (int i = 0; i < q[j].length; ++i)
+          q[j][i] -= r * q[l][i];
+      }
+      final double norm = Math.sqrt(dot(q[j], q[j]));
+      for (int i = 0; i < q[j].length; ++i)
+        q[j][i] = (norm > 0.0) ? q[j][i] / norm : 0.0;
+    }
+  }
+
+  /** Get the number of factors. */
+  public int factors() { return k; }
+
+  @Override
+  public int size() { return (int)Math.min(Integer.MAX_VALUE, (long)ids.length * (ids.length + 1) / 2); }
+  @Override
+  public int dimension() { return ids.length; }
+  @Override
+  public long[] ids() { return ids.clone(); }
+  @Override
+  public boolean isAdaptive() { return false; }
+  @Override
+  public boolean isImmutable() { return true; }
+
+  /** Get the value for positions <code>a</code> and <code>b</code> in {@link #ids}. */
+  private double value(int a, int b) {
+    double sum = (a == b) ? specific[a] : 0.0;
+    final int ra = a * k;
+    final int rb = b * k;
+    for (int p = 0; p < k; ++p)
+      sum += loadings[ra + p] * exposures[rb + p];
+    return sum;
+  }
+
+  @Override
+  public double get(long first, long second) {
+    final int a = index.get(first);
+    if (a < 0)
+      return Double.NaN;
+    final int b = index.get(second);
+    if (b < 0)
+      return Double.NaN;
+    return value(a, b);
+  }
+
+  @Override
+  public boolean put(long first, long second, double value) {
+    throw new UnsupportedOperationException("Factor covariance storage cannot be modified");
+  }
+  @Override
+  public boolean remove(long first, long second) {
+    throw new UnsupportedOperationException("Factor covariance storage cannot be modified");
+  }
+  @Override
+  public void remove(long id) {
+    throw new UnsupportedOperationException("Factor covariance storage cannot be modified");
+  }
+
+  @Override
+  public Cursor cursor() {
+    return new Cursor() {
+      private int row = 0;
+      private int col = -1;
+      @Override
+      public boolean next() {
+        if (++col >= ids.length) {
+          ++row;
+          col = row;
+        }
+        return row < ids.length;
+      }
+      @Override
+      public long first() { return ids[row]; }
+      @Override
+      public long second() { return ids[col]; }
+      @Override
+      public double value() { return FactorStorage.this.value(row, col); }
+    };
+  }
+
+  /** The storage is immutable, so a copy is the storage itself. */
+  @Override
+  public CovarianceStorage copy() { return this; }
+
+  /** Write the factor model to a Symphony stream.
+   * The layout is: number of investments n, number of factors k, n pairs
+   * of (id, specific variance), n*k exposures (row-major) and k*k factor
+   * covariances (row-major).
+   */
+  public void write(OutputStream stream) throws SoamException {
+    stream.writeLong(ids.length);
+    stream.writeLong(k);
+    for (int i = 0; i < ids.length; ++i) {
+      stream.writeLong(ids[i]);
+      stream.writeDouble(specific[i]);
+    }
+    for (final double d : exposures)
+      stream.writeDouble(d);
+    for (final double d : factors)
+      stream.writeDouble(d);
+  }
+
+  /** Read a factor model that was written by {@link #write(OutputStream)}. */
+  public static FactorStorage read(InputStream stream) throws SoamException {
+    final long n = stream.readLong();
+    final long k = stream.readLong();
+    if (n < 0 || k < 0 || n * k > Integer.MAX_VALUE || k * k > Integer.MAX_VALUE)
+      throw new SoamException("Invalid factor model dimensions " + n + "x" + k);
+    final long[] ids = new long[(int)n];
+    final double[] specific = new double[(int)n];
+    for (int i = 0; i < n; ++i) {
+      ids[i] = stream.readLong();
+      specific[i] = stream.readDouble();
+      if (i > 0 && ids[i] <= ids[i - 1])
+        throw new SoamException("Investment ids of factor model are not in ascending order");
+    }
+    final double[] exposures = new double[(int)(n * k)];
+    for (int i = 0; i < exposures.length; ++i)
+      exposures[i] = stream.readDouble();
+    final double[] factors = new double[(int)(k * k)];
+    for (int i = 0; i < factors.length; ++i)
+      factors[i] = stream.readDouble();
+    return new FactorStorage(ids, (int)k, exposures, factors, specific);
+  }
+}
@@ -0,0 +1,75 @@
+package cpx.portfolio.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/** Access to sections of a binary file.
+ * The sections are either mapped from the file or taken from a copy of the
+ * whole file on the heap. Mapped sections avoid copying large files, but the
+ * file stays mapped until the sections are garbage collected and on some
+ * platforms cannot be replaced or deleted until then. Sections on the heap do
+ * not reference the file at all once they were read.
+ * All sections are little endian.
+ */
+abstract class FileSections {
+  /** Get the size of the file. */
+  public abstract long size();
+
+  /** Get <code>length</code> bytes that start at <code>offset</code>.
+   * @throws IOException if the section cannot be mapped.
+   */
+  public abstract ByteBuffer get(long offset, long length) throws IOException;
+
+  /** Whether sections can be modified and write through to the file. */
+  public abstract boolean isWritable();
+
+  /** Map sections of a file.
+   * The mappings stay valid after <code>channel</code> is closed.
+   */
+  public static FileSections map(final FileChannel channel, final boolean writable) throws IOException {
+    final long size = channel.size();
+    final FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+    return new FileSections() {
+      @Override
+      public long size() { return size; }
+      @Override
+      public ByteBuffer get(long offset, long length) throws IOException {
+        return channel.map(mode, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      @Override
+      public boolean isWritable() { return writable; }
+    };
+  }
+
+  /** Read a whole file into memory.
+   * The file must be smaller than 2GB.
+   * @param channel The file, which is read from its start.
+   * @param name    The name of the file for error messages.
+   * @throws IOException if the file cannot be read or is too large.
+   */
+  public static FileSections read(FileChannel channel, String name) throws IOException {
+    final long size = channel.size();
+    if (size > Integer.MAX_VALUE)
+      throw new IOException(name + " is too large to be read into memory");
+    final ByteBuffer data = ByteBuffer.allocate((int)size);
+    channel.position(0);
+    while (data.hasRemaining()) {
+      if (channel.read(data) < 0)
+        throw new IOException(name + " is truncated");
+    }
+    return new FileSections() {
+      @Override
+      public long size() { return data.capacity(); }
+      @Override
+      public ByteBuffer get(long offset, long length) {
+        final ByteBuffer section = data.duplicate();
+        section.limit((int)(offset + length)).position((int)offset);
+        return section.slice().order(ByteOrder.LITTLE_ENDIAN);
+      }
+      @Override
+      public boolean isWritable() { return false; }
+    };
+  }
+}
@@ -1,15 +1,26 @@
 package cpx.portfolio.data;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.Vector;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /** Utility functions for input/output of data.
  * The files that are written and read by the functions have the following format:
@@ -20,84 +31,896 @@ import java.util.Vector;
  *     Investment specification: I <id> <return> <name>
  *     Covariance specification: C <id1> <id2> <covariance>
  *   The ordering of these lines is arbitrary.
+ * Delta files for {@link #apply(InputStream, Collection, Covariance)} may in
+ * addition contain the following lines:
+ *     Investment deletion: -I <id>
+ *     Covariance deletion: -C <id1> <id2>
+ *   In delta files the lines are processed in order.
+ * Alternatively data can be stored in a binary columnar format that is mapped
+ * into memory on load, see {@link #saveBinary(File, Collection, Covariance)}.
+ * {@link #load(File, Collection, Covariance)} detects the format automatically.
  */
 public class IO {
-  /** Load data from a file.
+  /** Parse error on a specific line.
+   * The message is assembled from the parts before and after the line number,
+   * so that the line number can be adjusted if the line was parsed as part of
+   * a chunk of a file.
+   */
+  private static final class LineException extends IOException {
+    private static final long serialVersionUID = 1;
+    public final String before;
+    public final int line;
+    public final String after;
+    public LineException(String before, int line, String after) {
+      super(before + line + after);
+      this.before = before;
+      this.line = line;
+      this.after = after;
+    }
+  }
+
+  /** Files at least this large are loaded in parallel by {@link #load(File, Collection, Covariance)}. */
+  private static final long PARALLEL_SIZE = 8L << 20;
+  /** Minimum size of a chunk for parallel loading. */
+  private static final long MIN_CHUNK = 1L << 20;
+  /** Maximum size of a chunk for parallel loading (a single mapping cannot exceed 2GB). */
+  private static final long MAX_CHUNK = 1L << 30;
+  /** Progress of saving is reported every <code>PROGRESS_MASK+1</code> values. */
+  private static final long PROGRESS_MASK = (1 << 16) - 1;
+
+  /** Orders investments by id. */
+  private static final Comparator<Investment> BY_ID = new Comparator<Investment>() {
+    @Override
+    public int compare(Investment a, Investment b) {
+      return (a.getId() < b.getId()) ? -1 : ((a.getId() == b.getId()) ? 0 : 1);
+    }
+  };
+
+  /** Receiver for progress reports of long-running operations.
+   * Reports may come from several threads, but never concurrently.
+   */
+  public interface Progress {
+    /** Report progress.
+     * @param done  The amount of work done so far (bytes or values).
+     * @param total The total amount of work.
+     * @throws InterruptedIOException to cancel the operation.
+     */
+    public void update(long done, long total) throws InterruptedIOException;
+  }
+
+  /** Channel that reports the number of bytes read to a {@link Progress}. */
+  private static final class ProgressChannel implements ReadableByteChannel {
+    private final ReadableByteChannel channel;
+    private final long total;
+    private final Progress progress;
+    private long done = 0;
+    public ProgressChannel(ReadableByteChannel channel, long total, Progress progress) {
+      this.channel = channel;
+      this.total = total;
+      this.progress = progress;
+    }
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      final int read = channel.read(dst);
+      if (read > 0) {
+        done += read;
+        progress.update(done, total);
+      }
+      return read;
+    }
+    @Override
+    public boolean isOpen() { return channel.isOpen(); }
+    @Override
+    public void close() throws IOException { channel.close(); }
+  }
+
+  /** Receiver for the records parsed from a file. */
+  private interface Sink {
+    public void investment(long id, double ret, String name, int line) throws IOException;
+    public void covariance(long id1, long id2, double value, int line) throws IOException;
+  }
+
+  /** Receiver for the records parsed from a delta file. */
+  private interface DeltaSink extends Sink {
+    public void removeInvestment(long id, int line) throws IOException;
+    public void removeCovariance(long id1, long id2, int line) throws IOException;
+  }
+
+  /** Parse all lines from <code>scanner</code> and pass the records to <code>sink</code>.
+   * Deletion records are only accepted if <code>sink</code> is a {@link DeltaSink}.
+   */
+  private static void parse(LineScanner scanner, Sink sink) throws IOException {
+    while (scanner.nextLine()) {
+      // Ignore empty and comment lines
+      if (scanner.atEnd() || scanner.peek() == '#')
+        continue;
+      int type = scanner.next();
+      final boolean delete = type == '-' && sink instanceof DeltaSink && !scanner.atEnd();
+      if (delete)
+        type = scanner.next();
+      if (type != 'I' && type != 'C')
+        throw new LineException("Cannot parse line ", scanner.lineNumber(), ": " + scanner.line());
+      try {
+        if (!scanner.skipSpace() || scanner.atEnd())
+          throw new LineException("Invalid line ", scanner.lineNumber(), ": " + scanner.line());
+        final long id = scanner.parseLong();
+        if (delete) {
+          if (type == 'I') {
+            if (!scanner.atEnd())
+              throw new LineException("Invalid line ", scanner.lineNumber(), ": " + scanner.line());
+            ((DeltaSink)sink).removeInvestment(id, scanner.lineNumber());
+          }
+          else {
+            if (!scanner.skipSpace() || scanner.atEnd())
+              throw new LineException("Invalid line ", scanner.lineNumber(), ": " + scanner.line());
+            final long id2 = scanner.parseLong();
+            if (!scanner.atEnd())
+              throw new LineException("Invalid line ", scanner.lineNumber(), ": " + scanner.line());
+            ((DeltaSink)sink).removeCovariance(id, id2, scanner.lineNumber());
+          }
+          continue;
+        }
+        if (!scanner.skipSpace() || scanner.atEnd())
+          throw new LineException("Invalid line ", scanner.lineNumber(), ": " + scanner.line());
+        if (type == 'I') {
+          final double ret = scanner.parseDouble();
+          if (!scanner.skipSpace() || scanner.atEnd())
+            throw new LineException("Invalid line ", scanner.lineNumber(), ": " + scanner.line());
+          sink.investment(id, ret, scanner.rest(), scanner.lineNumber());
+        }
+        else {
+          final long id2 = scanner.parseLong();
+          if (!scanner.skipSpace() || scanner.atEnd())
+            throw new LineException("Invalid line ", scanner.lineNumber(), ": " + scanner.line());
+          // Anything after the covariance value is ignored.
+          sink.covariance(id, id2, scanner.parseDouble(), scanner.lineNumber());
+        }
+      }
+      catch (NumberFormatException e) {
+        throw new LineException("Invalid number on line ", scanner.lineNumber(), ": " + scanner.line());
+      }
+    }
+  }
+
+  /** Load data from a channel.
+   * Covariance values are stored in <code>covariance</code> right away. Values
+   * for investments that are not defined in the file are removed at the end.
+   * In case of an error <code>investments</code> and <code>covariance</code> are cleared.
+   */
+  private static void load(ReadableByteChannel channel, final Collection<Investment> investments, final Covariance covariance) throws IOException {
+    investments.clear();
+    covariance.clear();
+
+    final LongIndex index = new LongIndex(16);
+    final List<Investment> defined = new ArrayList<Investment>();
+    boolean doReset = true;
+    try {
+      parse(new LineScanner(channel), new Sink() {
+        @Override
+        public void investment(long id, double ret, String name, int line) throws IOException {
+          if (index.containsKey(id))
+            throw new LineException("Line ", line, ": investment id " + id + " already defined");
+          index.put(id, defined.size());
+          final Investment i = new Investment();
+          i.setId(id);
+          i.setReturn(ret);
+          i.setName(name);
+          defined.add(i);
+        }
+        @Override
+        public void covariance(long id1, long id2, double value, int line) {
+          covariance.setCovariance(id1, id2, value);
+        }
+      });
+
+      // Setup the return values. We ignore covariance values for non-existent investements.
+      Collections.sort(defined, BY_ID);
+      investments.addAll(defined);
+      removeUnknown(covariance, index);
+      doReset = false;
+    }
+    finally {
+      if (doReset) {
+        investments.clear();
+        covariance.clear();
+      }
+    }
+  }
+
+  /** Remove all covariance values that involve ids that are not in <code>known</code>. */
+  private static void removeUnknown(Covariance covariance, LongIndex known) {
+    final long[] ids = covariance.storage().ids();
+    int unknown = 0;
+    for (final long id : ids) {
+      if (!known.containsKey(id))
+        ids[unknown++] = id;
+    }
+    if (unknown > 0)
+      covariance.removeAll(Arrays.copyOf(ids, unknown));
+  }
+
+  /** Test whether data starts with the gzip magic number. */
+  private static boolean isCompressed(int b0, int b1) {
+    return b0 == (GZIPInputStream.GZIP_MAGIC & 0xff) && b1 == (GZIPInputStream.GZIP_MAGIC >>> 8);
+  }
+
+  /** Create a channel that reads from <code>input</code>.
+   * Data that is compressed with gzip is decompressed on the fly.
+   */
+  private static ReadableByteChannel open(InputStream input) throws IOException {
+    final PushbackInputStream pushback = new PushbackInputStream(input, 2);
+    final int b0 = pushback.read();
+    final int b1 = (b0 < 0) ? -1 : pushback.read();
+    if (b1 >= 0)
+      pushback.unread(b1);
+    if (b0 >= 0)
+      pushback.unread(b0);
+    if (isCompressed(b0, b1))
+      return Channels.newChannel(new GZIPInputStream(pushback, 1 << 16));
+    return Channels.newChannel(pushback);
+  }
+
+  /** Load data from a stream.
+   * Data that is compressed with gzip is decompressed on the fly.
    */
   public static void load(InputStream input, Collection<Investment> investments, Covariance covariance) throws IOException {
+    load(open(input), investments, covariance);
+  }
+
+  /** Load data from a file.
+   * Binary files (see {@link #saveBinary(File, Collection, Covariance)}) are
+   * mapped into memory. Text files are read in large blocks and parsed without
+   * creating intermediate objects for their lines. Large text files are loaded
+   * in parallel, see {@link #loadParallel(File, Collection, Covariance)}.
+   * Text files that are compressed with gzip are decompressed on the fly.
+   */
+  public static void load(File file, Collection<Investment> investments, Covariance covariance) throws IOException {
+    load(file, investments, covariance, null);
+  }
+
+  /** Load data from a file and report progress.
+   * Progress is reported in bytes of the file. If <code>progress</code>
+   * cancels the operation then <code>investments</code> and <code>covariance</code>
+   * are cleared and the {@link InterruptedIOException} is thrown.
+   * @see #load(File, Collection, Covariance)
+   */
+  public static void load(File file, Collection<Investment> investments, Covariance covariance, Progress progress) throws IOException {
+    load(file, investments, covariance, true, progress);
+  }
+
+  /** Load data from a file and report progress.
+   * If <code>map</code> is <code>false</code> then binary files are read into
+   * memory instead of being mapped. The result then does not reference the
+   * file, so that the file can be replaced or deleted while the data is in use.
+   * This matters on platforms that do not allow to replace mapped files.
+   * @see #load(File, Collection, Covariance, Progress)
+   */
+  public static void load(File file, Collection<Investment> investments, Covariance covariance, boolean map, Progress progress) throws IOException {
+    if (BinaryFormat.detect(file)) {
+      BinaryFormat.load(file, investments, covariance, map);
+      if (progress != null)
+        progress.update(file.length(), file.length());
+      return;
+    }
+    final FileInputStream input = new FileInputStream(file);
+    try {
+      final int b0 = input.read();
+      final int b1 = input.read();
+      input.getChannel().position(0);
+      ReadableByteChannel channel = input.getChannel();
+      if (progress != null)
+        channel = new ProgressChannel(channel, file.length(), progress);
+      if (isCompressed(b0, b1))
+        load(Channels.newInputStream(channel), investments, covariance);
+      else if (file.length() >= PARALLEL_SIZE)
+        loadParallel(file, investments, covariance, progress);
+      else
+        load(channel, investments, covariance);
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  /** Records parsed from one chunk of a file. */
+  private static final class Chunk implements Sink {
+    /** Byte range of the chunk in the file. */
+    public final long start;
+    public final long end;
+    /** Number of lines in the chunk. */
+    public int lines = 0;
+    /** Error on a line of the chunk, line numbers are relative to the chunk. */
+    public LineException error = null;
+
+    public int investmentCount = 0;
+    public long[] ids = new long[16];
+    public double[] returns = new double[16];
+    public String[] names = new String[16];
+    public int[] investmentLines = new int[16];
+
+    public int count = 0;
+    public long[] firsts = new long[1024];
+    public long[] seconds = new long[1024];
+    public double[] values = new double[1024];
+    /** Positions of the values in a packed triangle, -1 for unknown investments. */
+    public int[] positions = null;
+
+    public Chunk(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public void investment(long id, double ret, String name, int line) {
+      if (investmentCount == ids.length) {
+        final int capacity = 2 * investmentCount;
+        ids = Arrays.copyOf(ids, capacity);
+        returns = Arrays.copyOf(returns, capacity);
+        names = Arrays.copyOf(names, capacity);
+        investmentLines = Arrays.copyOf(investmentLines, capacity);
+      }
+      ids[investmentCount] = id;
+      returns[investmentCount] = ret;
+      names[investmentCount] = name;
+      investmentLines[investmentCount] = line;
+      ++investmentCount;
+    }
+
+    @Override
+    public void covariance(long id1, long id2, double value, int line) {
+      if (count == firsts.length) {
+        final int capacity = 2 * count;
+        firsts = Arrays.copyOf(firsts, capacity);
+        seconds = Arrays.copyOf(seconds, capacity);
+        values = Arrays.copyOf(values, capacity);
+      }
+      firsts[count] = id1;
+      seconds[count] = id2;
+      values[count] = value;
+      ++count;
+    }
+  }
+
+  /** Find the first position after a line break at or after <code>position</code>. */
+  static long lineBoundary(FileChannel channel, long position) throws IOException {
+    final long size = channel.size();
+    final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    while (position < size) {
+      buffer.clear();
+      final int read = channel.read(buffer, position);
+      if (read <= 0)
+        break;
+      for (int i = 0; i < read; ++i) {
+        if (buffer.get(i) == '\n')
+          return position + i + 1;
+      }
+      position += read;
+    }
+    return size;
+  }
+
+  /** Split a file into chunks for parallel parsing.
+   * The file from <code>start</code> to its end is split at line boundaries
+   * into a few chunks per thread, each chunk can be mapped into memory.
+   * @return The boundaries of the chunks, chunk <code>c</code> spans bytes
+   *         <code>[bounds[c],bounds[c+1])</code>.
+   */
+  static long[] split(FileChannel channel, long start) throws IOException {
+    final long size = channel.size();
+    final long length = size - start;
+    final long parts = Math.max(Math.max(1, length / MAX_CHUNK), Math.min(4L * Parallel.threads(), length / MIN_CHUNK));
+    final List<Long> bounds = new ArrayList<Long>();
+    bounds.add(start);
+    for (long k = 1; k <= parts && start < size; ++k) {
+      final long end = (k == parts) ? size : lineBoundary(channel, start + length / parts * k);
+      if (end > bounds.get(bounds.size() - 1))
+        bounds.add(end);
+    }
+    final long[] result = new long[bounds.size()];
+    for (int i = 0; i < result.length; ++i)
+      result[i] = bounds.get(i);
+    return result;
+  }
+
+  /** Load data from a file in parallel.
+   * The file is split into chunks at line boundaries. The chunks are mapped
+   * into memory and parsed in parallel into primitive buffers, which are then
+   * merged in file order. Thus the result (including error messages) is the
+   * same as for sequential loading.
+   */
+  public static void loadParallel(File file, Collection<Investment> investments, Covariance covariance) throws IOException {
+    loadParallel(file, investments, covariance, null);
+  }
+
+  /** Load data from a file in parallel and report progress in bytes of parsed chunks. */
+  private static void loadParallel(File file, Collection<Investment> investments, Covariance covariance, final Progress progress) throws IOException {
     investments.clear();
     covariance.clear();
-    
-    class Triple {
-      public final long id1;
-      public final long id2;
-      public final double cov;
-      public Triple(long id1, long id2, double cov) { this.id1 = id1; this.id2 = id2; this.cov = cov; }
-    } 
-    final Collection<Triple> triples = new Vector<Triple>();
-    final Map<Long, Investment> is = new TreeMap<Long, Investment>();
-    
-    final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-    int lineno = 0;
-    for (String rawLine = reader.readLine(); rawLine != null; rawLine = reader.readLine()) {
-      String line = rawLine.trim();
-      ++lineno;
-      // Ignore empty and comment lines
-      if (line.length() == 0 || line.startsWith("#"))
-        continue;
-      if (line.startsWith("I")) {
-        final String[] fields = line.split("\\s+", 4);
-        if (fields.length != 4)
-          throw new IOException("Invalid line " + lineno + ": " + rawLine);
-        try {
+
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = raf.getChannel();
+      final long[] bounds = split(channel, 0);
+      final Chunk[] chunks = new Chunk[bounds.length - 1];
+      for (int c = 0; c < chunks.length; ++c)
+        chunks[c] = new Chunk(bounds[c], bounds[c + 1]);
+
+      // Parse the chunks.
+      final IOException[] failure = new IOException[1];
+      final long[] parsed = new long[1];
+      final long size = bounds[bounds.length - 1];
+      Parallel.rows(chunks.length, 1, new Parallel.Body() {
+        @Override
+        public void run(int from, int to) {
+          for (int c = from; c < to; ++c) {
+            final Chunk chunk = chunks[c];
+            synchronized (failure) {
+              // Do not bother with the remaining chunks after a failure or cancellation.
+              if (failure[0] != null)
+                return;
+            }
+            try {
+              final LineScanner scanner = new LineScanner(channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start));
+              try { parse(scanner, chunk); }
+              catch (LineException e) { chunk.error = e; }
+              chunk.lines = scanner.lineNumber();
+              if (progress != null) {
+                synchronized (parsed) {
+                  parsed[0] += chunk.end - chunk.start;
+                  progress.update(parsed[0], size);
+                }
+              }
+            }
+            catch (IOException e) {
+              synchronized (failure) { failure[0] = e; }
+            }
+          }
+        }
+      });
+      synchronized (failure) {
+        if (failure[0] != null)
+          throw failure[0];
+      }
+
+      // Merge investments in file order, so that errors are reported for the
+      // first offending line. Line numbers are made absolute by a prefix sum.
+      final LongIndex index = new LongIndex(16);
+      final List<Investment> defined = new ArrayList<Investment>();
+      int offset = 0;
+      for (final Chunk chunk : chunks) {
+        for (int k = 0; k < chunk.investmentCount; ++k) {
+          if (index.containsKey(chunk.ids[k]))
+            throw new LineException("Line ", offset + chunk.investmentLines[k], ": investment id " + chunk.ids[k] + " already defined");
+          index.put(chunk.ids[k], defined.size());
           final Investment i = new Investment();
-          i.setId(Long.parseLong(fields[1]));
-          i.setReturn(Double.parseDouble(fields[2]));
-          i.setName(fields[3]);
-          if (is.containsKey(i.getId()))
-            throw new IOException("Line " + lineno + ": investment id " + i.getId() + " already defined");
-          is.put(i.getId(), i);
+          i.setId(chunk.ids[k]);
+          i.setReturn(chunk.returns[k]);
+          i.setName(chunk.names[k]);
+          defined.add(i);
+        }
+        if (chunk.error != null)
+          throw new LineException(chunk.error.before, offset + chunk.error.line, chunk.error.after);
+        offset += chunk.lines;
+      }
+      Collections.sort(defined, BY_ID);
+
+      // Merge covariances. Values for undefined investments are ignored.
+      long total = 0;
+      for (final Chunk chunk : chunks)
+        total += chunk.count;
+      final int n = defined.size();
+      if (n <= DenseStorage.MAX_DIMENSION && DenseStorage.cells(n) <= 4 * total) {
+        // Many values: compute positions in a packed triangle in parallel and
+        // then store the values in file order, so that the last value wins.
+        final long[] ids = new long[n];
+        final LongIndex dense = new LongIndex(n);
+        for (int i = 0; i < n; ++i) {
+          ids[i] = defined.get(i).getId();
+          dense.put(ids[i], i);
+        }
+        Parallel.rows(chunks.length, 1, new Parallel.Body() {
+          @Override
+          public void run(int from, int to) {
+            for (int c = from; c < to; ++c) {
+              final Chunk chunk = chunks[c];
+              chunk.positions = new int[chunk.count];
+              for (int k = 0; k < chunk.count; ++k) {
+                final int a = dense.get(chunk.firsts[k]);
+                final int b = dense.get(chunk.seconds[k]);
+                chunk.positions[k] = (a < 0 || b < 0) ? -1 : DenseStorage.position(a, b);
+              }
+            }
+          }
+        });
+        final double[] packed = new double[DenseStorage.cells(n)];
+        Arrays.fill(packed, Double.NaN);
+        for (final Chunk chunk : chunks) {
+          for (int k = 0; k < chunk.count; ++k) {
+            if (chunk.positions[k] >= 0)
+              packed[chunk.positions[k]] = chunk.values[k];
+          }
+        }
+        covariance.assign(new DenseStorage(ids, packed));
+      }
+      else {
+        for (final Chunk chunk : chunks) {
+          for (int k = 0; k < chunk.count; ++k) {
+            if (index.containsKey(chunk.firsts[k]) && index.containsKey(chunk.seconds[k]))
+              covariance.setCovariance(chunk.firsts[k], chunk.seconds[k], chunk.values[k]);
+          }
+        }
+      }
+      investments.addAll(defined);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /** Records parsed from a delta file, in file order. */
+  private static final class Delta implements DeltaSink {
+    public static final byte INVESTMENT = 0;
+    public static final byte COVARIANCE = 1;
+    public static final byte REMOVE_INVESTMENT = 2;
+    public static final byte REMOVE_COVARIANCE = 3;
+
+    public int count = 0;
+    public byte[] types = new byte[64];
+    public long[] firsts = new long[64];
+    public long[] seconds = new long[64];
+    public double[] values = new double[64];
+    public String[] names = new String[64];
+    public int[] lines = new int[64];
+
+    private void add(byte type, long first, long second, double value, String name, int line) {
+      if (count == types.length) {
+        final int capacity = 2 * count;
+        types = Arrays.copyOf(types, capacity);
+        firsts = Arrays.copyOf(firsts, capacity);
+        seconds = Arrays.copyOf(seconds, capacity);
+        values = Arrays.copyOf(values, capacity);
+        names = Arrays.copyOf(names, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+      }
+      types[count] = type;
+      firsts[count] = first;
+      seconds[count] = second;
+      values[count] = value;
+      names[count] = name;
+      lines[count] = line;
+      ++count;
+    }
+
+    @Override
+    public void investment(long id, double ret, String name, int line) { add(INVESTMENT, id, id, ret, name, line); }
+    @Override
+    public void covariance(long id1, long id2, double value, int line) { add(COVARIANCE, id1, id2, value, null, line); }
+    @Override
+    public void removeInvestment(long id, int line) { add(REMOVE_INVESTMENT, id, id, Double.NaN, null, line); }
+    @Override
+    public void removeCovariance(long id1, long id2, int line) { add(REMOVE_COVARIANCE, id1, id2, Double.NaN, null, line); }
+  }
+
+  /** Test whether two doubles have the same representation. */
+  private static boolean same(double a, double b) {
+    return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+  }
+
+  /** Apply a delta file to data in memory.
+   * Investment and covariance records replace existing data or add new data,
+   * deletion records remove data (see the class documentation for the format).
+   * Deleting an investment also deletes all its covariance values. The records
+   * are applied in file order. Covariance records and investment deletions must
+   * refer to investments that are defined at that point.
+   * The whole file is parsed and checked before anything is modified, so in
+   * case of an error neither <code>investments</code> nor <code>covariance</code>
+   * are changed.
+   * @param input       The delta data. Data compressed with gzip is detected.
+   * @param investments The investments to update. New investments are appended.
+   * @param covariance  The covariance matrix to update.
+   * @return The ids of all investments whose return, name or covariance values
+   *         changed, or which were added or deleted, in ascending order.
+   *         Records that do not change a value are not reported.
+   * @throws IOException if the input cannot be read or is invalid.
+   */
+  public static long[] apply(InputStream input, Collection<Investment> investments, Covariance covariance) throws IOException {
+    final Delta delta = new Delta();
+    parse(new LineScanner(open(input)), delta);
+
+    // Check the records against the investments that are defined at each point.
+    final Investment[] array = investments.toArray(new Investment[investments.size()]);
+    final LongIndex known = new LongIndex(array.length);
+    for (int i = 0; i < array.length; ++i)
+      known.put(array[i].getId(), i);
+    final LongIndex defined = new LongIndex(known);
+    for (int k = 0; k < delta.count; ++k) {
+      switch (delta.types[k]) {
+      case Delta.INVESTMENT:
+        defined.put(delta.firsts[k], 0);
+        break;
+      case Delta.REMOVE_INVESTMENT:
+        if (defined.remove(delta.firsts[k]) < 0)
+          throw new LineException("Line ", delta.lines[k], ": investment id " + delta.firsts[k] + " not defined");
+        break;
+      default:
+        if (!defined.containsKey(delta.firsts[k]))
+          throw new LineException("Line ", delta.lines[k], ": investment id " + delta.firsts[k] + " not defined");
+        if (!defined.containsKey(delta.seconds[k]))
+          throw new LineException("Line ", delta.lines[k], ": investment id " + delta.seconds[k] + " not defined");
+      }
+    }
+
+    // Apply the records. Investments are looked up by id in a list that
+    // mirrors the collection, deleted entries are set to null.
+    final List<Investment> list = new ArrayList<Investment>(Arrays.asList(array));
+    final LongIndex changed = new LongIndex(16);
+    for (int k = 0; k < delta.count; ++k) {
+      final long first = delta.firsts[k];
+      final long second = delta.seconds[k];
+      switch (delta.types[k]) {
+      case Delta.INVESTMENT: {
+        final int i = known.get(first);
+        if (i >= 0) {
+          final Investment investment = list.get(i);
+          if (!same(investment.getReturn(), delta.values[k]) || !investment.getName().equals(delta.names[k])) {
+            investment.setReturn(delta.values[k]);
+            investment.setName(delta.names[k]);
+            if (investments instanceof InvestmentTable) {
+              // A table holds copies of the investments, so update its row as well.
+              final InvestmentTable table = (InvestmentTable)investments;
+              final int row = table.indexOf(first);
+              table.setReturn(row, delta.values[k]);
+              table.setName(row, delta.names[k]);
+            }
+            changed.put(first, 0);
+          }
         }
-        catch (NumberFormatException e) {
-          throw new IOException("Invalid number on line " + lineno + ": " + rawLine);
+        else {
+          final Investment investment = new Investment();
+          investment.setId(first);
+          investment.setReturn(delta.values[k]);
+          investment.setName(delta.names[k]);
+          known.put(first, list.size());
+          list.add(investment);
+          investments.add(investment);
+          changed.put(first, 0);
         }
+        break;
+      }
+      case Delta.REMOVE_INVESTMENT: {
+        final int i = known.remove(first);
+        investments.remove(list.get(i));
+        list.set(i, null);
+        covariance.remove(first);
+        changed.put(first, 0);
+        break;
       }
-      else if (line.startsWith("C")) {
-        final String[] fields = line.split("\\s+");
-        if (fields.length < 4)
-          throw new IOException("Invalid line " + lineno + ": " + rawLine);
-        try {
-          final long id1 = Long.parseLong(fields[1]);
-          final long id2 = Long.parseLong(fields[2]);
-          final double cov = Double.parseDouble(fields[3]);
-          triples.add(new Triple(id1, id2, cov));
+      case Delta.COVARIANCE:
+        if (!same(covariance.getCovariance(first, second), delta.values[k])) {
+          covariance.setCovariance(first, second, delta.values[k]);
+          changed.put(first, 0);
+          changed.put(second, 0);
         }
-        catch (NumberFormatException e) {
-          throw new IOException("Invalid number on line " + lineno + ": " + rawLine);
+        break;
+      default:
+        if (!Double.isNaN(covariance.getCovariance(first, second))) {
+          covariance.setCovariance(first, second, Double.NaN);
+          changed.put(first, 0);
+          changed.put(second, 0);
         }
       }
+    }
+    final long[] result = changed.keys();
+    Arrays.sort(result);
+    return result;
+  }
+
+  /** Apply a delta file to data in memory.
+   * @see #apply(InputStream, Collection, Covariance)
+   */
+  public static long[] apply(File file, Collection<Investment> investments, Covariance covariance) throws IOException {
+    return apply(file, investments, covariance, null);
+  }
+
+  /** Apply a delta file to data in memory and report progress.
+   * Progress is reported in bytes of the file. If <code>progress</code> cancels
+   * the operation then the {@link InterruptedIOException} is thrown and neither
+   * <code>investments</code> nor <code>covariance</code> are changed.
+   * @see #apply(InputStream, Collection, Covariance)
+   */
+  public static long[] apply(File file, Collection<Investment> investments, Covariance covariance, Progress progress) throws IOException {
+    final FileInputStream input = new FileInputStream(file);
+    try {
+      if (progress == null)
+        return apply(input, investments, covariance);
+      return apply(Channels.newInputStream(new ProgressChannel(input.getChannel(), file.length(), progress)), investments, covariance);
+    }
+    finally { input.close(); }
+  }
+
+  /** Compare two data sets.
+   * The covariance matrices are compared by walking the stored values of both
+   * in order, so this takes time linear in the number of stored values.
+   * @return The ids of all investments that are in only one of the two sets,
+   *         that differ in return or name, or that have a different covariance
+   *         value with any other investment, in ascending order.
+   */
+  public static long[] diff(Collection<Investment> oldInvestments, Covariance oldCovariance,
+                            Collection<Investment> newInvestments, Covariance newCovariance) {
+    final LongIndex changed = new LongIndex(16);
+    final Investment[] array = oldInvestments.toArray(new Investment[oldInvestments.size()]);
+    final LongIndex index = new LongIndex(array.length);
+    for (int i = 0; i < array.length; ++i)
+      index.put(array[i].getId(), i);
+    final LongIndex seen = new LongIndex(newInvestments.size());
+    for (final Investment i : newInvestments) {
+      final int k = index.get(i.getId());
+      if (k < 0 || !same(array[k].getReturn(), i.getReturn()) || !array[k].getName().equals(i.getName()))
+        changed.put(i.getId(), 0);
+      seen.put(i.getId(), 0);
+    }
+    for (final Investment i : array) {
+      if (!seen.containsKey(i.getId()))
+        changed.put(i.getId(), 0);
+    }
+
+    // Both cursors report values ordered by (first, second).
+    final CovarianceStorage.Cursor a = oldCovariance.storage().cursor();
+    final CovarianceStorage.Cursor b = newCovariance.storage().cursor();
+    boolean hasA = a.next();
+    boolean hasB = b.next();
+    while (hasA || hasB) {
+      int order;
+      if (!hasA)
+        order = 1;
+      else if (!hasB)
+        order = -1;
+      else if (a.first() != b.first())
+        order = (a.first() < b.first()) ? -1 : 1;
+      else if (a.second() != b.second())
+        order = (a.second() < b.second()) ? -1 : 1;
       else
-        throw new IOException("Cannot parse line " + lineno + ": " + rawLine);
+        order = 0;
+      if (order < 0) {
+        changed.put(a.first(), 0);
+        changed.put(a.second(), 0);
+        hasA = a.next();
+      }
+      else if (order > 0) {
+        changed.put(b.first(), 0);
+        changed.put(b.second(), 0);
+        hasB = b.next();
+      }
+      else {
+        if (!same(a.value(), b.value())) {
+          changed.put(a.first(), 0);
+          changed.put(a.second(), 0);
+        }
+        hasA = a.next();
+        hasB = b.next();
+      }
     }
-    
-    // Setup the return values. We ignore covariance values for non-existent investements.
-    investments.addAll(is.values());
-    for (final Triple t : triples) {
-      if (is.containsKey(t.id1) && is.containsKey(t.id2))
-        covariance.setCovariance(t.id1, t.id2, t.cov);
+    final long[] result = changed.keys();
+    Arrays.sort(result);
+    return result;
+  }
+
+  /** Save data to a stream in text format.
+   * Covariance values are written in ascending order of investment ids. Only
+   * stored values are written, pairs without value are left out (they are
+   * missing after loading the file, as they were before saving). Values that
+   * involve ids that are not in <code>investments</code> are not written.
+   * Numbers are formatted into a buffer without creating intermediate strings.
+   * @param output      The stream to write to. The stream is flushed but not closed.
+   * @param investments The investments to write.
+   * @param covariance  The covariance matrix to write.
+   * @param skipZeros   Whether to leave out covariance values that are zero.
+   *                    Note that such pairs are missing, not zero, after loading.
+   */
+  public static void save(OutputStream output, Collection<Investment> investments, Covariance covariance, boolean skipZeros) throws IOException {
+    save(output, investments, covariance, skipZeros, null);
+  }
+
+  /** Save data to a stream in text format and report progress in covariance values.
+   * @see #save(OutputStream, Collection, Covariance, boolean)
+   */
+  private static void save(OutputStream output, Collection<Investment> investments, Covariance covariance, boolean skipZeros, Progress progress) throws IOException {
+    final Investment[] array = investments.toArray(new Investment[investments.size()]);
+    final LineWriter writer = new LineWriter(output);
+    final LongIndex index = new LongIndex(array.length);
+    for (int i = 0; i < array.length; ++i) {
+      writer.put('I').put(' ').put(array[i].getId()).put(' ').put(array[i].getReturn()).put(' ').put(array[i].getName()).newLine();
+      index.put(array[i].getId(), i);
     }
+    final CovarianceStorage storage = covariance.storage();
+    final long total = storage.size();
+    long done = 0;
+    for (final CovarianceStorage.Cursor c = storage.cursor(); c.next(); /* nothing */) {
+      if (progress != null && (++done & PROGRESS_MASK) == 0)
+        progress.update(done, total);
+      final double value = c.value();
+      if (skipZeros && value == 0.0)
+        continue;
+      if (index.containsKey(c.first()) && index.containsKey(c.second()))
+        writer.put('C').put(' ').put(c.first()).put(' ').put(c.second()).put(' ').put(value).newLine();
+    }
+    writer.flush();
+    if (progress != null)
+      progress.update(total, total);
   }
 
-  /** Save data to a file.
+  /** Save data to a stream in text format.
+   * This is the same as {@link #save(OutputStream, Collection, Covariance, boolean)}
+   * with all values written.
    */
   public static void save(OutputStream output, Collection<Investment> investments, Covariance covariance) throws IOException {
-    final Investment[] array = investments.toArray(new Investment[investments.size()]);
-    final PrintStream ps = new PrintStream(output);
-    for (final Investment i : array) {
-      ps.println("I " + i.getId() + " " + i.getReturn() + " " + i.getName());
+    save(output, investments, covariance, false);
+  }
+
+  /** Save data to a file in text format.
+   * @param file        The file to write. An existing file is overwritten.
+   * @param investments The investments to write.
+   * @param covariance  The covariance matrix to write.
+   * @param skipZeros   Whether to leave out covariance values that are zero.
+   * @param compress    Whether to compress the file with gzip.
+   *                    {@link #load(File, Collection, Covariance)} detects compressed files.
+   * @see #save(OutputStream, Collection, Covariance, boolean)
+   */
+  public static void save(File file, Collection<Investment> investments, Covariance covariance, boolean skipZeros, boolean compress) throws IOException {
+    save(file, investments, covariance, skipZeros, compress, null);
+  }
+
+  /** Save data to a file in text format and report progress.
+   * Progress is reported in covariance values. If <code>progress</code>
+   * cancels the operation then the {@link InterruptedIOException} is thrown
+   * and the file is incomplete.
+   * @see #save(File, Collection, Covariance, boolean, boolean)
+   */
+  public static void save(File file, Collection<Investment> investments, Covariance covariance, boolean skipZeros, boolean compress, Progress progress) throws IOException {
+    final FileOutputStream fos = new FileOutputStream(file);
+    try {
+      if (compress) {
+        final GZIPOutputStream gzip = new GZIPOutputStream(fos, 1 << 16);
+        save(gzip, investments, covariance, skipZeros, progress);
+        gzip.finish();
+      }
+      else
+        save(fos, investments, covariance, skipZeros, progress);
     }
-    for (int i = 0; i < array.length; ++i)
-      for (int j = i; j < array.length; ++j)
-        ps.println("C " + array[i].getId() + " " + array[j].getId() + " " + covariance.getCovariance(array[i].getId(), array[j].getId()));
+    finally {
+      fos.close();
+    }
+  }
+
+  /** Save data to a file in binary format.
+   * The file holds the investment data in columns and the covariance matrix
+   * either as packed triangle or in compressed sparse row format, whichever
+   * is smaller. Loading such a file maps it into memory without parsing, the
+   * loaded covariance matrix is copied to the heap only when it is modified.
+   */
+  public static void saveBinary(File file, Collection<Investment> investments, Covariance covariance) throws IOException {
+    BinaryFormat.save(file, investments, covariance);
+  }
+
+  /** Convert a data file between text and binary format.
+   * Usage: <code>IO &lt;input&gt; &lt;output&gt;</code>. A text input is
+   * written in binary format and vice versa. Text output is compressed if the
+   * name of the output file ends with <code>.gz</code>.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: " + IO.class.getName() + " <input> <output>");
+      System.exit(1);
+    }
+    final File input = new File(args[0]);
+    final File output = new File(args[1]);
+    final boolean binary = BinaryFormat.detect(input);
+    final List<Investment> investments = new ArrayList<Investment>();
+    final Covariance covariance = new Covariance();
+    load(input, investments, covariance);
+    if (binary)
+      save(output, investments, covariance, false, output.getName().endsWith(".gz"));
+    else
+      saveBinary(output, investments, covariance);
   }
 }
@@ -0,0 +1,425 @@
+package cpx.portfolio.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.platform.symphony.soam.InputStream;
+import com.platform.symphony.soam.OutputStream;
+import com.platform.symphony.soam.SoamException;
+
+/** Columnar table of investments.
+ * The table stores the fields of its investments in parallel arrays (one
+ * array per field) instead of one {@link Investment} object per investment.
+ * Names are interned in a pool, so investments with equal names share one
+ * string. A name leaves the pool when no row uses it any more. An index maps
+ * ids to rows, so ids must be unique within a table; adding an investment
+ * whose id is already in the table does not change the table.
+ * Rows are numbered from 0 in insertion order.
+ * <p>
+ * The table is also a collection of {@link Investment}s, so it can be passed
+ * to all functions that take a collection of investments. The investments
+ * returned by its iterator are read-only snapshots of the rows: changes to
+ * them are not written back to the table. Code that modifies investments
+ * must use the setters of the table instead.
+ * <p>
+ * Instances of this class are not thread-safe.
+ */
+public final class InvestmentTable extends AbstractCollection<Investment> {
+  /** Size tag in the serialized form that marks the bulk encoding. */
+  private static final long BULK_TAG = -2;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private long[] ids;
+  private double[] returns;
+  private double[] allocations;
+  /** Index of the name of each row in {@link #pool}. */
+  private int[] names;
+  private int size = 0;
+  /** Maps the id of each investment to its row. */
+  private final LongIndex rows;
+  /** The distinct names in this table, <code>null</code> for unused entries. */
+  private String[] pool;
+  /** Number of rows that use each entry of {@link #pool}. */
+  private int[] references;
+  /** Number of entries in {@link #pool} that were ever used. */
+  private int poolSize = 0;
+  /** Unused entries below {@link #poolSize}, used as a stack. */
+  private int[] free;
+  private int freeCount = 0;
+  /** Maps each name in {@link #pool} to its index. */
+  private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+  /** Incremented for each structural change, to detect concurrent modification in iterators. */
+  private int modifications = 0;
+
+  public InvestmentTable() { this(8); }
+  /** Create an empty table with room for <code>capacity</code> investments. */
+  public InvestmentTable(int capacity) {
+    ids = new long[capacity];
+    returns = new double[capacity];
+    allocations = new double[capacity];
+    names = new int[capacity];
+    pool = new String[Math.max(capacity, 1)];
+    references = new int[pool.length];
+    free = new int[pool.length];
+    rows = new LongIndex(capacity);
+  }
+  /** Create a table that holds copies of the investments in <code>investments</code>. */
+  public InvestmentTable(Collection<Investment> investments) {
+    this(investments.size());
+    addAll(investments);
+  }
+
+  /** Make sure that the table has room for <code>capacity</code> rows. */
+  private void reserve(int capacity) {
+    if (capacity > ids.length) {
+      final int n = Math.max(capacity, 2 * ids.length);
+      ids = Arrays.copyOf(ids, n);
+      returns = Arrays.copyOf(returns, n);
+      allocations = Arrays.copyOf(allocations, n);
+      names = Arrays.copyOf(names, n);
+    }
+  }
+
+  /** Get the pool index of <code>name</code> for one more row, adding it to the pool if necessary. */
+  private int intern(String name) {
+    final Integer index = poolIndex.get(name);
+    if (index != null) {
+      ++references[index];
+      return index;
+    }
+    final int slot;
+    if (freeCount > 0)
+      slot = free[--freeCount];
+    else {
+      if (poolSize == pool.length) {
+        pool = Arrays.copyOf(pool, 2 * pool.length);
+        references = Arrays.copyOf(references, pool.length);
+        free = Arrays.copyOf(free, pool.length);
+      }
+      slot = poolSize++;
+    }
+    pool[slot] = name;
+    references[slot] = 1;
+    poolIndex.put(name, slot);
+    return slot;
+  }
+
+  /** Release the pool entry <code>index</code> for one row, removing the name if no row uses it any more. */
+  private void release(int index) {
+    if (--references[index] == 0) {
+      poolIndex.remove(pool[index]);
+      pool[index] = null;
+      free[freeCount++] = index;
+    }
+  }
+
+  private void check(int row) {
+    if (row < 0 || row >= size)
+      throw new IndexOutOfBoundsException("Row " + row + " not in [0, " + size + ")");
+  }
+
+  @Override
+  public int size() { return size; }
+
+  /** Get the row of the investment with id <code>id</code>.
+   * @return The row or -1 if there is no such investment.
+   */
+  public int indexOf(long id) { return rows.get(id); }
+
+  public long getId(int row) { check(row); return ids[row]; }
+
+  public double getReturn(int row) { check(row); return returns[row]; }
+  public void setReturn(int row, double ret) { check(row); returns[row] = ret; }
+
+  public String getName(int row) { check(row); return pool[names[row]]; }
+  public void setName(int row, String name) {
+    check(row);
+    final int old = names[row];
+    names[row] = intern(name);
+    release(old);
+  }
+
+  public double getAllocation(int row) { check(row); return allocations[row]; }
+  public void setAllocation(int row, double allocation) { check(row); allocations[row] = allocation; }
+
+  /** Create an {@link Investment} from the data in row <code>row</code>. */
+  public Investment get(int row) {
+    check(row);
+    final Investment investment = new Investment();
+    investment.setId(ids[row]);
+    investment.setReturn(returns[row]);
+    investment.setName(pool[names[row]]);
+    investment.setAllocation(allocations[row]);
+    return investment;
+  }
+
+  /** Append an investment.
+   * @return The row of the new investment or -1 if the table already has
+   *         an investment with id <code>id</code>, in which case the table
+   *         is not changed.
+   */
+  public int add(long id, double ret, String name, double allocation) {
+    if (rows.containsKey(id))
+      return -1;
+    reserve(size + 1);
+    ids[size] = id;
+    returns[size] = ret;
+    names[size] = intern(name);
+    allocations[size] = allocation;
+    rows.put(id, size);
+    ++modifications;
+    return size++;
+  }
+
+  /** Append a copy of <code>investment</code>.
+   * @return <code>false</code> if the table already has an investment with
+   *         the same id, in which case the table is not changed.
+   */
+  @Override
+  public boolean add(Investment investment) {
+    return add(investment.getId(), investment.getReturn(), investment.getName(), investment.getAllocation()) >= 0;
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends Investment> investments) {
+    if (!(investments instanceof InvestmentTable))
+      return super.addAll(investments);
+    final InvestmentTable other = (InvestmentTable)investments;
+    final int n = other.size;
+    reserve(size + n);
+    boolean changed = false;
+    for (int i = 0; i < n; ++i) {
+      if (add(other.ids[i], other.returns[i], other.pool[other.names[i]], other.allocations[i]) >= 0)
+        changed = true;
+    }
+    return changed;
+  }
+
+  /** Remove the investment in row <code>row</code>.
+   * The rows of all following investments decrease by one.
+   */
+  public void remove(int row) {
+    check(row);
+    rows.remove(ids[row]);
+    release(names[row]);
+    final int tail = size - row - 1;
+    System.arraycopy(ids, row + 1, ids, row, tail);
+    System.arraycopy(returns, row + 1, returns, row, tail);
+    System.arraycopy(allocations, row + 1, allocations, row, tail);
+    System.arraycopy(names, row + 1, names, row, tail);
+    --size;
+    for (int i = row; i < size; ++i)
+      rows.put(ids[i], i);
+    ++modifications;
+  }
+
+  /** Remove the investment with id <code>id</code>.
+   * @return <code>true</code> if there was such an investment.
+   */
+  public boolean removeId(long id) {
+    final int row = rows.get(id);
+    if (row < 0)
+      return false;
+    remove(row);
+    return true;
+  }
+
+  /** Test whether this table has an investment with the same id as <code>o</code>.
+   * The other fields are not compared.
+   */
+  @Override
+  public boolean contains(Object o) {
+    return (o instanceof Investment) && rows.containsKey(((Investment)o).getId());
+  }
+
+  /** Remove the investment with the same id as <code>o</code>.
+   * The other fields are not compared.
+   */
+  @Override
+  public boolean remove(Object o) {
+    return (o instanceof Investment) && removeId(((Investment)o).getId());
+  }
+
+  @Override
+  public void clear() {
+    size = 0;
+    rows.clear();
+    poolSize = 0;
+    freeCount = 0;
+    poolIndex.clear();
+    Arrays.fill(pool, null);
+    Arrays.fill(references, 0);
+    ++modifications;
+  }
+
+  /** Get the ids of all investments in row order. */
+  public long[] getIds() { return Arrays.copyOf(ids, size); }
+
+  @Override
+  public Iterator<Investment> iterator() {
+    return new Iterator<Investment>() {
+      private int next = 0;
+      private int last = -1;
+      private int expected = modifications;
+      @Override
+      public boolean hasNext() { return next < size; }
+      @Override
+      public Investment next() {
+        if (expected != modifications)
+          throw new ConcurrentModificationException();
+        if (next >= size)
+          throw new NoSuchElementException();
+        last = next++;
+        return get(last);
+      }
+      @Override
+      public void remove() {
+        if (last < 0)
+          throw new IllegalStateException();
+        if (expected != modifications)
+          throw new ConcurrentModificationException();
+        InvestmentTable.this.remove(last);
+        expected = modifications;
+        next = last;
+        last = -1;
+      }
+    };
+  }
+
+  /** Read a table from <code>stream</code>.
+   * The format is the same as for a sequence of {@link Investment}s preceded
+   * by their count, or the bulk encoding (see {@link #onSerialize(OutputStream, boolean)}).
+   * In case of an exception this table is empty.
+   * @param stream The stream from which to initialize.
+   * @throws SoamException if initialization fails.
+   */
+  public void onDeserialize(InputStream stream) throws SoamException {
+    clear();
+    onDeserialize(stream, stream.readLong());
+  }
+
+  /** Read a table from <code>stream</code> after its count (or the tag of the bulk encoding) was already read.
+   * @param stream The stream from which to initialize.
+   * @param count  The count that was read.
+   * @throws SoamException if initialization fails.
+   * @see #onDeserialize(InputStream)
+   */
+  public void onDeserialize(InputStream stream, long count) throws SoamException {
+    clear();
+    boolean doReset = true;
+    try {
+      if (count == BULK_TAG) {
+        readBulk(stream);
+        doReset = false;
+        return;
+      }
+      if (count < 0 || count > Integer.MAX_VALUE)
+        throw new SoamException("Invalid number of investments " + count);
+      reserve((int)count);
+      for (long i = 0; i < count; ++i) {
+        final long id = stream.readLong();
+        final String name = stream.readString();
+        final double ret = stream.readDouble();
+        final double allocation = stream.readDouble();
+        if (add(id, ret, name, allocation) < 0)
+          throw new SoamException("Duplicate investment id " + id);
+      }
+      doReset = false;
+    }
+    finally {
+      if (doReset)
+        clear();
+    }
+  }
+
+  /** Read the investments that follow the {@link #BULK_TAG} in a stream. */
+  private void readBulk(InputStream stream) throws SoamException {
+    final long count = stream.readLong();
+    final byte[] bytes = stream.readByteArray();
+    if (count < 0 || bytes == null || bytes.length < 28 * count)
+      throw new SoamException("Invalid bulk investment data for " + count + " investments");
+    final int n = (int)count;
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    reserve(n);
+    int offset = 28 * n;
+    for (int i = 0; i < n; ++i) {
+      final long id = buffer.getLong(8 * i);
+      final int length = buffer.getInt(24 * n + 4 * i);
+      if (length < 0 || length > bytes.length - offset)
+        throw new SoamException("Invalid bulk investment data for " + count + " investments");
+      if (add(id, buffer.getDouble(8 * (n + i)), new String(bytes, offset, length, UTF8), buffer.getDouble(8 * (2 * n + i))) < 0)
+        throw new SoamException("Duplicate investment id " + id);
+      offset += length;
+    }
+    if (offset != bytes.length)
+      throw new SoamException("Invalid bulk investment data for " + count + " investments");
+  }
+
+  /** Write this table to <code>stream</code>.
+   * @see #onSerialize(OutputStream, boolean)
+   */
+  public void onSerialize(OutputStream stream) throws SoamException {
+    onSerialize(stream, false);
+  }
+
+  /** Write this table to <code>stream</code>.
+   * Without <code>bulk</code> the table is written as its size followed by
+   * each investment as in {@link Investment#onSerialize(OutputStream)}. With
+   * <code>bulk</code> the table is written as the tag -2, its size, and one
+   * byte array that holds all ids, then all returns, then all allocations,
+   * then the lengths of all names (as <code>int</code>), then all names
+   * in UTF-8. Numbers are in little-endian order. This needs one stream call
+   * instead of four per investment but can only be read by clients and
+   * services that know the bulk encoding. Tables that do not fit into one
+   * byte array are written investment by investment.
+   * @param stream The output stream.
+   * @param bulk   Whether to use the bulk encoding.
+   * @throws SoamException if serialization or output fails.
+   */
+  public void onSerialize(OutputStream stream, boolean bulk) throws SoamException {
+    if (bulk) {
+      // Each name in the pool is encoded only once.
+      final byte[][] encoded = new byte[poolSize][];
+      long length = 28L * size;
+      for (int i = 0; i < size; ++i) {
+        if (encoded[names[i]] == null)
+          encoded[names[i]] = pool[names[i]].getBytes(UTF8);
+        length += encoded[names[i]].length;
+      }
+      if (length <= Integer.MAX_VALUE) {
+        final byte[] bytes = new byte[(int)length];
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = 28 * size;
+        for (int i = 0; i < size; ++i) {
+          final byte[] name = encoded[names[i]];
+          buffer.putLong(8 * i, ids[i]);
+          buffer.putDouble(8 * (size + i), returns[i]);
+          buffer.putDouble(8 * (2 * size + i), allocations[i]);
+          buffer.putInt(24 * size + 4 * i, name.length);
+          System.arraycopy(name, 0, bytes, offset, name.length);
+          offset += name.length;
+        }
+        stream.writeLong(BULK_TAG);
+        stream.writeLong(size);
+        stream.writeByteArray(bytes);
+        return;
+      }
+    }
+    stream.writeLong(size);
+    for (int i = 0; i < size; ++i) {
+      stream.writeLong(ids[i]);
+      stream.writeString(pool[names[i]]);
+      stream.writeDouble(returns[i]);
+      stream.writeDouble(allocations[i]);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package cpx.portfolio.data;
+
+/** Eigen decomposition of small dense symmetric matrices.
+ * This uses the cyclic Jacobi method, which is simple and accurate but costs
+ * O(n<sup>3</sup>) per sweep, so it is only meant for matrices with at most a few
+ * hundred rows.
+ */
+final class Jacobi {
+  private Jacobi() {}
+
+  /** Maximum number of sweeps before we give up on convergence. */
+  private static final int MAX_SWEEPS = 100;
+
+  /** Compute eigenvalues and eigenvectors of a symmetric matrix.
+   * @param a       The matrix. Only the upper triangle is used and the matrix is
+   *                destroyed by this function.
+   * @param values  Receives the eigenvalues in descending order.
+   * @param vectors Receives the eigenvectors: column <code>j</code> is the
+   *                eigenvector for <code>values[j]</code>.
+   */
+  public static void decompose(double[][] a, double[] values, double[][] vectors) {
+    final int n = values.length;
+    for (int i = 0; i < n; ++i) {
+      for (int j = 0; j < n; ++j)
+        vectors[i][j] = (i == j) ? 1.0 : 0.0;
+      for (int j = 0; j < i; ++j)
+        a[i][j] = a[j][i];
+    }
+
+    for (int sweep = 0; sweep < MAX_SWEEPS; ++sweep) {
+      double off = 0.0;
+      double diag = 0.0;
+      for (int i = 0; i < n; ++i) {
+        diag += a[i][i] * a[i][i];
+        for (int j = i + 1; j < n; ++j)
+          off += a[i][j] * a[i][j];
+      }
+      if (off <= 1e-30 * diag || off == 0.0)
+        break;
+
+      for (int p = 0; p < n; ++p) {
+        for (int q = p + 1; q < n; ++q) {
+          final double apq = a[p][q];
+          if (apq == 0.0)
+            continue;
+          // Rotation that annihilates a[p][q], see Golub/Van Loan, Algorithm 8.4.1.
+          final double theta = (a[q][q] - a[p][p]) / (2.0 * apq);
+          final double t = Math.signum(theta == 0.0 ? 1.0 : theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1.0));
+          final double c = 1.0 / Math.sqrt(t * t + 1.0);
+          final double s = t * c;
+          for (int k = 0; k < n; ++k) {
+            final double akp = a[k][p];
+            final double akq = a[k][q];
+            a[k][p] = c * akp - s * akq;
+            a[k][q] = s * akp + c * akq;
+          }
+          for (int k = 0; k < n; ++k) {
+            final double apk = a[p][k];
+            final double aqk = a[q][k];
+            a[p][k] = c * apk - s * aqk;
+            a[q][k] = s * apk + c * aqk;
+          }
+          for (int k = 0; k < n; ++k) {
+            final double vkp = vectors[k][p];
+            final double vkq = vectors[k][q];
+            vectors[k][p] = c * vkp - s * vkq;
+            vectors[k][q] = s * vkp + c * vkq;
+          }
+        }
+      }
+    }
+
+    // Sort by descending eigenvalue.
+    for (int i = 0; i < n; ++i)
+      values[i] = a[i][i];
+    for (int i = 0; i < n; ++i) {
+      int max = i;
+      for (int j = i + 1; j < n; ++j) {
+        if (values[j] > values[max])
+          max = j;
+      }
+      if (max != i) {
+        final double v = values[i];
+        values[i] = values[max];
+        values[max] = v;
+        for (int k = 0; k < n; ++k) {
+          final double x = vectors[k][i];
+          vectors[k][i] = vectors[k][max];
+          vectors[k][max] = x;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,337 @@
+package cpx.portfolio.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/** Scanner for line-oriented text files that works directly on bytes.
+ * The scanner reads bytes either from a channel (through a buffer that is
+ * refilled as needed) or from a buffer that holds all the data. Numbers are
+ * parsed in place, so that scanning a line does not allocate any objects
+ * except for strings that are explicitly requested.
+ * Lines may be terminated by <code>"\n"</code>, <code>"\r\n"</code> or <code>"\r"</code>.
+ * The text is assumed to be in the platform default encoding, which must be
+ * compatible with ASCII.
+ */
+final class LineScanner {
+  /** Initial size of the buffer used to read from a channel. */
+  private static final int BUFFER_SIZE = 1 << 20;
+  /** Powers of ten that are exactly representable as double. */
+  private static final double[] POWERS = new double[23];
+  static {
+    POWERS[0] = 1.0;
+    for (int i = 1; i < POWERS.length; ++i)
+      POWERS[i] = POWERS[i - 1] * 10.0;
+  }
+
+  private final ReadableByteChannel channel;
+  private final Charset charset = Charset.defaultCharset();
+  private ByteBuffer buffer;
+  /** Whether all data is in {@link #buffer}. */
+  private boolean eof;
+  /** Start of the next line in {@link #buffer}. */
+  private int next;
+  /** Start of the current line. */
+  private int lineStart;
+  /** End of the current line without trailing whitespace. */
+  private int lineEnd;
+  /** End of the current line including trailing whitespace. */
+  private int rawEnd;
+  /** Current position in the line. */
+  private int pos;
+  /** The number of the current line, starting at 1. */
+  private int lineno = 0;
+  /** Scratch space to decode strings. */
+  private byte[] scratch = new byte[256];
+  /** Character that separates fields in addition to whitespace, -1 for none. */
+  private int separator = -1;
+
+  /** Create a scanner that reads from <code>channel</code>. */
+  public LineScanner(ReadableByteChannel channel) {
+    this.channel = channel;
+    buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    buffer.limit(0);
+    eof = false;
+    next = 0;
+  }
+
+  /** Create a scanner for the bytes between position and limit of <code>data</code>. */
+  public LineScanner(ByteBuffer data) {
+    channel = null;
+    buffer = data;
+    eof = true;
+    next = data.position();
+  }
+
+  /** Set a character that ends tokens in addition to whitespace (for example <code>','</code>).
+   * @param separator The character or -1 for none.
+   */
+  public void setSeparator(int separator) { this.separator = separator; }
+
+  /** Test whether <code>b</code> is whitespace (as matched by <code>\s</code>). */
+  static boolean isSpace(int b) { return b == ' ' || (b >= '\t' && b <= '\r'); }
+
+  /** Read more data into {@link #buffer}.
+   * Data before {@link #next} is discarded, the buffer is grown if it is full.
+   * @return <code>false</code> if there was no more data.
+   */
+  private boolean fill() throws IOException {
+    if (eof)
+      return false;
+    final int keep = buffer.limit() - next;
+    if (next > 0) {
+      buffer.position(next);
+      buffer.compact();
+    }
+    else {
+      if (keep == buffer.capacity()) {
+        final ByteBuffer bigger = ByteBuffer.allocate(2 * buffer.capacity());
+        buffer.position(0);
+        bigger.put(buffer);
+        buffer = bigger;
+      }
+      else {
+        buffer.position(keep);
+        buffer.limit(buffer.capacity());
+      }
+    }
+    next = 0;
+    int read = 0;
+    while (buffer.hasRemaining() && (read = channel.read(buffer)) > 0) {
+      // Keep reading until the buffer is full or there is no more data.
+    }
+    if (read < 0)
+      eof = true;
+    buffer.flip();
+    return buffer.limit() > keep || keep > 0;
+  }
+
+  /** Advance to the next line.
+   * @return <code>false</code> if there are no more lines.
+   */
+  public boolean nextLine() throws IOException {
+    int end = next;
+    while (true) {
+      final int limit = buffer.limit();
+      while (end < limit) {
+        final byte b = buffer.get(end);
+        if (b == '\n' || b == '\r')
+          break;
+        ++end;
+      }
+      if (end < limit) {
+        // A '\r' at the end of the buffer may be followed by '\n'.
+        if (buffer.get(end) == '\r' && end + 1 == limit && !eof) {
+          final int offset = end - next;
+          fill();
+          end = next + offset;
+          continue;
+        }
+        break;
+      }
+      if (eof)
+        break;
+      final int offset = end - next;
+      fill();
+      end = next + offset;
+      if (eof && end == buffer.limit())
+        break;
+    }
+    if (end == next && end == buffer.limit())
+      return false;
+
+    lineStart = next;
+    rawEnd = end;
+    if (end < buffer.limit()) {
+      next = end + 1;
+      if (buffer.get(end) == '\r' && next < buffer.limit() && buffer.get(next) == '\n')
+        ++next;
+    }
+    else
+      next = end;
+    lineEnd = rawEnd;
+    while (lineEnd > lineStart && (buffer.get(lineEnd - 1) & 0xff) <= ' ')
+      --lineEnd;
+    pos = lineStart;
+    while (pos < lineEnd && (buffer.get(pos) & 0xff) <= ' ')
+      ++pos;
+    ++lineno;
+    return true;
+  }
+
+  /** Get the number of the current line (starting at 1). */
+  public int lineNumber() { return lineno; }
+
+  /** Test whether the rest of the current line is empty. */
+  public boolean atEnd() { return pos >= lineEnd; }
+  /** Get the next byte of the current line without consuming it. */
+  public int peek() { return buffer.get(pos) & 0xff; }
+  /** Consume the next byte of the current line. */
+  public int next() { return buffer.get(pos++) & 0xff; }
+
+  /** Skip whitespace other than the separator (see {@link #setSeparator(int)}).
+   * @return <code>true</code> if at least one whitespace character was skipped.
+   */
+  public boolean skipSpace() {
+    final int start = pos;
+    while (pos < lineEnd && isSpace(buffer.get(pos)) && (buffer.get(pos) & 0xff) != separator)
+      ++pos;
+    return pos > start;
+  }
+
+  /** Skip whitespace, a separator (see {@link #setSeparator(int)}) and whitespace.
+   * @return <code>true</code> if a separator was skipped.
+   */
+  public boolean skipSeparator() {
+    skipSpace();
+    if (pos < lineEnd && (buffer.get(pos) & 0xff) == separator) {
+      ++pos;
+      skipSpace();
+      return true;
+    }
+    return false;
+  }
+
+  /** Test whether the current position is at a separator (see {@link #setSeparator(int)}). */
+  public boolean atSeparator() { return pos < lineEnd && (buffer.get(pos) & 0xff) == separator; }
+
+  /** Skip the token at the current position. */
+  public void skipToken() { pos = tokenEnd(); }
+
+  /** Find the end of the token that starts at the current position. */
+  private int tokenEnd() {
+    int end = pos;
+    while (end < lineEnd) {
+      final byte b = buffer.get(end);
+      if (isSpace(b) || (b & 0xff) == separator)
+        break;
+      ++end;
+    }
+    return end;
+  }
+
+  /** Decode the bytes from <code>from</code> to <code>to</code>. */
+  private String decode(int from, int to) {
+    final int length = to - from;
+    if (scratch.length < length)
+      scratch = new byte[Math.max(length, 2 * scratch.length)];
+    for (int i = 0; i < length; ++i)
+      scratch[i] = buffer.get(from + i);
+    return new String(scratch, 0, length, charset);
+  }
+
+  /** Parse a long integer at the current position.
+   * @throws NumberFormatException if there is no valid number at the current position.
+   */
+  public long parseLong() {
+    final int start = pos;
+    final int end = tokenEnd();
+    int p = start;
+    boolean negative = false;
+    if (p < end && (buffer.get(p) == '-' || buffer.get(p) == '+'))
+      negative = buffer.get(p++) == '-';
+    if (p == end || end - p > 18) {
+      // Empty or possibly overflowing: let the library decide.
+      pos = end;
+      return Long.parseLong(decode(start, end));
+    }
+    long value = 0;
+    for (; p < end; ++p) {
+      final int d = buffer.get(p) - '0';
+      if (d < 0 || d > 9)
+        throw new NumberFormatException("For input string: \"" + decode(start, end) + "\"");
+      value = 10 * value + d;
+    }
+    pos = end;
+    return negative ? -value : value;
+  }
+
+  /** Parse a double at the current position.
+   * Plain decimal numbers with at most 15 significant digits and a small
+   * exponent are converted exactly with a single multiplication or division
+   * (Clinger's fast path). Everything else is handed to {@link Double#parseDouble(String)}.
+   * @throws NumberFormatException if there is no valid number at the current position.
+   */
+  public double parseDouble() {
+    final int start = pos;
+    final int end = tokenEnd();
+    pos = end;
+    int p = start;
+    boolean negative = false;
+    if (p < end && (buffer.get(p) == '-' || buffer.get(p) == '+'))
+      negative = buffer.get(p++) == '-';
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean any = false;
+    for (; p < end; ++p) {
+      final int d = buffer.get(p) - '0';
+      if (d < 0 || d > 9)
+        break;
+      any = true;
+      if (mantissa != 0 || d != 0) {
+        mantissa = 10 * mantissa + d;
+        ++digits;
+      }
+      if (digits > 15)
+        return Double.parseDouble(decode(start, end));
+    }
+    if (p < end && buffer.get(p) == '.') {
+      for (++p; p < end; ++p) {
+        final int d = buffer.get(p) - '0';
+        if (d < 0 || d > 9)
+          break;
+        any = true;
+        if (mantissa != 0 || d != 0) {
+          mantissa = 10 * mantissa + d;
+          ++digits;
+        }
+        --exponent;
+        if (digits > 15)
+          return Double.parseDouble(decode(start, end));
+      }
+    }
+    if (!any)
+      return Double.parseDouble(decode(start, end));
+    if (p < end && (buffer.get(p) == 'e' || buffer.get(p) == 'E')) {
+      ++p;
+      boolean negativeExponent = false;
+      if (p < end && (buffer.get(p) == '-' || buffer.get(p) == '+'))
+        negativeExponent = buffer.get(p++) == '-';
+      int e = 0;
+      final int first = p;
+      for (; p < end && e < 10000; ++p) {
+        final int d = buffer.get(p) - '0';
+        if (d < 0 || d > 9)
+          break;
+        e = 10 * e + d;
+      }
+      if (p == first)
+        return Double.parseDouble(decode(start, end));
+      exponent += negativeExponent ? -e : e;
+    }
+    if (p != end)
+      return Double.parseDouble(decode(start, end));
+    double value;
+    if (mantissa == 0)
+      value = 0.0;
+    else if (exponent >= 0 && exponent < POWERS.length)
+      value = mantissa * POWERS[exponent];
+    else if (exponent < 0 && -exponent < POWERS.length)
+      value = mantissa / POWERS[-exponent];
+    else
+      return Double.parseDouble(decode(start, end));
+    return negative ? -value : value;
+  }
+
+  /** Get the rest of the current line (without trailing whitespace) as string. */
+  public String rest() {
+    final String s = decode(pos, lineEnd);
+    pos = lineEnd;
+    return s;
+  }
+
+  /** Get the current line as it appears in the input, without line terminator. */
+  public String line() { return decode(lineStart, rawEnd); }
+}
@@ -0,0 +1,139 @@
+package cpx.portfolio.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/** Writer for line-oriented text files that works directly on bytes.
+ * This is the counterpart of {@link LineScanner}: numbers are formatted into
+ * a reusable buffer, so that writing a line does not allocate any objects.
+ * Doubles are written with the fewest decimal places that {@link LineScanner}
+ * parses back to the same value on its fast path. Values that need more than
+ * 15 significant digits are written with {@link Double#toString(double)}.
+ * Text is written in the platform default encoding.
+ */
+final class LineWriter {
+  private static final int BUFFER_SIZE = 1 << 16;
+  /** Powers of ten that are exactly representable as double. */
+  private static final double[] POWERS = new double[16];
+  static {
+    POWERS[0] = 1.0;
+    for (int i = 1; i < POWERS.length; ++i)
+      POWERS[i] = POWERS[i - 1] * 10.0;
+  }
+  /** Largest mantissa that {@link LineScanner} parses on its fast path. */
+  private static final double MAX_MANTISSA = 1e15;
+
+  private final OutputStream output;
+  private final Charset charset = Charset.defaultCharset();
+  private final byte[] newLine = System.getProperty("line.separator", "\n").getBytes(charset);
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int length = 0;
+  /** Scratch space for digits. */
+  private final byte[] digits = new byte[32];
+
+  /** Create a writer that writes to <code>output</code>. */
+  public LineWriter(OutputStream output) {
+    this.output = output;
+  }
+
+  /** Make sure that there is room for <code>needed</code> bytes in the buffer. */
+  private void reserve(int needed) throws IOException {
+    if (length + needed > buffer.length) {
+      output.write(buffer, 0, length);
+      length = 0;
+    }
+  }
+
+  /** Write an ASCII character. */
+  public LineWriter put(char c) throws IOException {
+    reserve(1);
+    buffer[length++] = (byte)c;
+    return this;
+  }
+
+  /** Write a string. */
+  public LineWriter put(String s) throws IOException {
+    final byte[] bytes = s.getBytes(charset);
+    if (bytes.length > buffer.length) {
+      reserve(buffer.length);
+      output.write(bytes);
+    }
+    else {
+      reserve(bytes.length);
+      System.arraycopy(bytes, 0, buffer, length, bytes.length);
+      length += bytes.length;
+    }
+    return this;
+  }
+
+  /** Write a long integer. */
+  public LineWriter put(long value) throws IOException {
+    if (value == Long.MIN_VALUE)
+      return put(Long.toString(value));
+    reserve(20);
+    if (value < 0) {
+      buffer[length++] = '-';
+      value = -value;
+    }
+    int k = digits.length;
+    do {
+      digits[--k] = (byte)('0' + value % 10);
+      value /= 10;
+    } while (value != 0);
+    System.arraycopy(digits, k, buffer, length, digits.length - k);
+    length += digits.length - k;
+    return this;
+  }
+
+  /** Write a double.
+   * The value is written as <code>m / 10<sup>p</sup></code> with the smallest
+   * <code>p &gt;= 1</code> for which this division gives back the value exactly.
+   */
+  public LineWriter put(double value) throws IOException {
+    if (Double.isNaN(value) || Double.isInfinite(value))
+      return put(Double.toString(value));
+    final boolean negative = value < 0.0 || (value == 0.0 && 1.0 / value < 0.0);
+    final double magnitude = Math.abs(value);
+    for (int p = 1; p < POWERS.length; ++p) {
+      final double m = Math.rint(magnitude * POWERS[p]);
+      if (m >= MAX_MANTISSA)
+        break;
+      if (m / POWERS[p] == magnitude) {
+        reserve(24);
+        if (negative)
+          buffer[length++] = '-';
+        long mantissa = (long)m;
+        int k = digits.length;
+        for (int i = 0; i < p; ++i) {
+          digits[--k] = (byte)('0' + mantissa % 10);
+          mantissa /= 10;
+        }
+        digits[--k] = '.';
+        do {
+          digits[--k] = (byte)('0' + mantissa % 10);
+          mantissa /= 10;
+        } while (mantissa != 0);
+        System.arraycopy(digits, k, buffer, length, digits.length - k);
+        length += digits.length - k;
+        return this;
+      }
+    }
+    return put(Double.toString(value));
+  }
+
+  /** Terminate the current line. */
+  public LineWriter newLine() throws IOException {
+    reserve(newLine.length);
+    System.arraycopy(newLine, 0, buffer, length, newLine.length);
+    length += newLine.length;
+    return this;
+  }
+
+  /** Write all buffered data to the underlying stream and flush it. */
+  public void flush() throws IOException {
+    output.write(buffer, 0, length);
+    length = 0;
+    output.flush();
+  }
+}
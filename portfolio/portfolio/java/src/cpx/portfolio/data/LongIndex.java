@@ -0,0 +1,138 @@
+package cpx.portfolio.data;
+
+import java.util.Arrays;
+
+/** Map from <code>long</code> keys to non-negative <code>int</code> values.
+ * This is used to map investment ids to dense indices. The map uses open
+ * addressing with linear probing on primitive arrays, so lookups and updates
+ * do not allocate any objects.
+ */
+final class LongIndex {
+  /** Value stored in {@link #values} for slots that are not in use. */
+  private static final int FREE = -1;
+
+  private long[] keys;
+  private int[] values;
+  private int mask;
+  private int size = 0;
+
+  public LongIndex() { this(8); }
+  public LongIndex(int expected) { allocate(capacityFor(expected)); }
+  public LongIndex(LongIndex other) {
+    keys = other.keys.clone();
+    values = other.values.clone();
+    mask = other.mask;
+    size = other.size;
+  }
+
+  /** Compute a table size that holds <code>expected</code> keys with a load factor of at most 1/2. */
+  private static int capacityFor(int expected) {
+    int capacity = 16;
+    while (capacity < 2L * expected)
+      capacity <<= 1;
+    return capacity;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(values, FREE);
+    mask = capacity - 1;
+  }
+
+  /** Spread the bits of <code>key</code> so that consecutive ids do not cluster. */
+  static int hash(long key) {
+    final long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  /** Find the slot for <code>key</code>.
+   * @return The slot that holds <code>key</code> or the free slot at which
+   *         <code>key</code> would be inserted.
+   */
+  private int slot(long key) {
+    int i = hash(key) & mask;
+    while (values[i] != FREE && keys[i] != key)
+      i = (i + 1) & mask;
+    return i;
+  }
+
+  public int size() { return size; }
+
+  /** Get the value for <code>key</code>.
+   * @return The value for <code>key</code> or -1 if there is no such key.
+   */
+  public int get(long key) { return values[slot(key)]; }
+
+  public boolean containsKey(long key) { return get(key) != FREE; }
+
+  /** Associate <code>value</code> (which must be non-negative) with <code>key</code>.
+   * @return The previous value for <code>key</code> or -1 if there was none.
+   */
+  public int put(long key, int value) {
+    int i = slot(key);
+    final int old = values[i];
+    if (old == FREE) {
+      if (2 * (size + 1) > keys.length) {
+        rehash(keys.length << 1);
+        i = slot(key);
+      }
+      keys[i] = key;
+      ++size;
+    }
+    values[i] = value;
+    return old;
+  }
+
+  /** Remove <code>key</code> from this map.
+   * @return The value that was associated with <code>key</code> or -1 if there was none.
+   */
+  public int remove(long key) {
+    int gap = slot(key);
+    final int old = values[gap];
+    if (old == FREE)
+      return FREE;
+    // Shift back entries in the probe sequence after the removed slot so
+    // that lookups never have to skip over deleted slots.
+    for (int j = (gap + 1) & mask; values[j] != FREE; j = (j + 1) & mask) {
+      final int home = hash(keys[j]) & mask;
+      if ((j > gap) ? (home <= gap || home > j) : (home <= gap && home > j)) {
+        keys[gap] = keys[j];
+        values[gap] = values[j];
+        gap = j;
+      }
+    }
+    values[gap] = FREE;
+    --size;
+    return old;
+  }
+
+  public void clear() {
+    Arrays.fill(values, FREE);
+    size = 0;
+  }
+
+  /** Get all keys in this map in unspecified order. */
+  public long[] keys() {
+    final long[] result = new long[size];
+    int k = 0;
+    for (int i = 0; i < keys.length; ++i) {
+      if (values[i] != FREE)
+        result[k++] = keys[i];
+    }
+    return result;
+  }
+
+  private void rehash(int capacity) {
+    final long[] oldKeys = keys;
+    final int[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldValues[i] != FREE) {
+        final int j = slot(oldKeys[i]);
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,376 @@
+package cpx.portfolio.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/** Covariance storage that is backed by a memory-mapped file.
+ * The file has the following layout (all numbers little endian):
+ * <pre>
+ *   long   magic          {@link #MAGIC}
+ *   int    version        {@link #VERSION}
+ *   int    n              number of investments
+ *   long   count          number of non-NaN values
+ *   long[n] ids           investment ids in strictly ascending order
+ *   double[n*(n+1)/2]     packed upper triangle in column order
+ * </pre>
+ * The packed triangle uses the same layout as {@link DenseStorage}: the value
+ * for the investments at positions <code>a &lt;= b</code> in the id list is at
+ * position <code>b*(b+1)/2 + a</code>. Missing values are stored as NaN.
+ * Since the matrix lives in the OS page cache it is not materialized on the
+ * heap, and several processes can share the same file read-only.
+ * The set of investments is fixed when the file is created.
+ * An embedded matrix can also be taken from a binary file that was read into
+ * memory, see {@link FileSections#read(FileChannel, String)}.
+ */
+final class MappedStorage extends CovarianceStorage {
+  /** Magic number at the start of a mapped covariance file ("CPXCOV01"). */
+  public static final long MAGIC = 0x3130564f43585043L;
+  public static final int VERSION = 1;
+  /** Size of the file header in bytes. */
+  private static final int HEADER = 24;
+  /** Offset of the count field in the header. */
+  private static final int COUNT_OFFSET = 16;
+  /** Number of doubles per mapped chunk (a mapping cannot exceed 2GB). */
+  private static final int CHUNK_SHIFT = 27;
+  private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+  /** The investment ids in ascending order. */
+  private final long[] ids;
+  /** Map from investment id to position in {@link #ids}. */
+  private final LongIndex index;
+  /** The mapped chunks of the packed triangle. */
+  private final DoubleBuffer[] chunks;
+  /** The mapped header.
+   * It holds the number of non-NaN values, which views read from here so that
+   * they see changes made through a writable mapping. Since the number of
+   * investments is limited to {@link DenseStorage#MAX_DIMENSION} the count
+   * always fits into an <code>int</code>.
+   */
+  private final ByteBuffer header;
+  /** Whether this storage can be modified. */
+  private final boolean writable;
+  /** Whether this is an immutable view, see {@link CovarianceStorage#isImmutable()}. */
+  private final boolean immutable;
+
+  private MappedStorage(long[] ids, LongIndex index, DoubleBuffer[] chunks, ByteBuffer header, boolean writable, boolean immutable) {
+    this.ids = ids;
+    this.index = index;
+    this.chunks = chunks;
+    this.header = header;
+    this.writable = writable;
+    this.immutable = immutable;
+  }
+
+  /** Map a covariance file.
+   * @param file     The file to map.
+   * @param writable Whether the mapping allows modifications.
+   * @return The storage that is backed by <code>file</code>.
+   * @throws IOException if the file cannot be mapped or is not a covariance file.
+   */
+  public static MappedStorage map(File file, boolean writable) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+    try {
+      // The mappings stay valid after the channel is closed.
+      return map(FileSections.map(raf.getChannel(), writable), 0, false, file.toString());
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /** Map a covariance matrix that is stored at <code>offset</code> in a file.
+   * This is used for files that embed a covariance matrix in the layout of a
+   * covariance file. The storage is writable if the sections are.
+   * @param sections  The file.
+   * @param offset    The offset of the covariance matrix in the file.
+   * @param immutable Whether the storage is an immutable view that {@link Covariance}
+   *                  materializes before modification (only for read-only sections).
+   * @param name      The name of the file for error messages.
+   * @return The storage that is backed by the file.
+   * @throws IOException if the data cannot be mapped or is not a covariance matrix.
+   */
+  static MappedStorage map(FileSections sections, long offset, boolean immutable, String name) throws IOException {
+    final boolean writable = sections.isWritable();
+    if (sections.size() < offset + HEADER)
+      throw new IOException(name + " is truncated");
+    final ByteBuffer header = sections.get(offset, HEADER);
+    if (header.getLong(0) != MAGIC)
+      throw new IOException(name + " is not a covariance file");
+    if (header.getInt(8) != VERSION)
+      throw new IOException(name + ": unsupported covariance file version " + header.getInt(8));
+    final int n = header.getInt(12);
+    final long cells = (long)n * (n + 1) / 2;
+    if (n < 0 || n > DenseStorage.MAX_DIMENSION)
+      throw new IOException(name + ": invalid number of investments " + n);
+    if (sections.size() < offset + size(n))
+      throw new IOException(name + " is truncated");
+
+    final long[] ids = new long[n];
+    sections.get(offset + HEADER, 8L * n).asLongBuffer().get(ids);
+    final LongIndex index = new LongIndex(n);
+    for (int i = 0; i < n; ++i) {
+      if (i > 0 && ids[i] <= ids[i - 1])
+        throw new IOException(name + ": investment ids are not in ascending order");
+      index.put(ids[i], i);
+    }
+
+    final long start = offset + HEADER + 8L * n;
+    final DoubleBuffer[] chunks = new DoubleBuffer[(int)((cells + CHUNK_MASK) >>> CHUNK_SHIFT)];
+    for (int c = 0; c < chunks.length; ++c) {
+      final long first = (long)c << CHUNK_SHIFT;
+      final long length = Math.min(cells - first, 1L << CHUNK_SHIFT);
+      chunks[c] = sections.get(start + 8L * first, 8L * length).asDoubleBuffer();
+    }
+    return new MappedStorage(ids, index, chunks, header, writable, immutable && !writable);
+  }
+
+  /** Get the number of bytes of a covariance matrix for <code>n</code> investments in file layout. */
+  static long size(int n) { return HEADER + 8L * n + 8L * ((long)n * (n + 1) / 2); }
+
+  /** Write a covariance matrix in file layout at the current position of <code>channel</code>.
+   * @param channel The file to which to write.
+   * @param ids     The investments in strictly ascending order.
+   * @param source  The storage from which to take the values.
+   * @throws IOException on output error.
+   */
+  static void write(FileChannel channel, long[] ids, CovarianceStorage source) throws IOException {
+    final long start = channel.position();
+    final ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putLong(MAGIC).putInt(VERSION).putInt(ids.length).putLong(0);
+    for (final long id : ids) {
+      flush(channel, buffer, 8);
+      buffer.putLong(id);
+    }
+    long count = 0;
+    for (int b = 0; b < ids.length; ++b) {
+      for (int a = 0; a <= b; ++a) {
+        final double value = source.get(ids[a], ids[b]);
+        if (!Double.isNaN(value))
+          ++count;
+        flush(channel, buffer, 8);
+        buffer.putDouble(value);
+      }
+    }
+    flush(channel, buffer, buffer.capacity());
+    // The count is only known now, patch it into the header.
+    final ByteBuffer patch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    patch.putLong(0, count);
+    while (patch.hasRemaining())
+      channel.write(patch, start + COUNT_OFFSET + patch.position());
+  }
+
+  /** Write the content of <code>buffer</code> if it has less than <code>needed</code> bytes left. */
+  private static void flush(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+    if (buffer.remaining() >= needed)
+      return;
+    buffer.flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+
+  /** Create a new covariance file in which all values are missing.
+   * @param file The file to create. An existing file is overwritten.
+   * @param ids  The investments in the new file.
+   * @throws IOException on output error.
+   */
+  public static void create(File file, long[] ids) throws IOException {
+    final long[] sorted = ids.clone();
+    Arrays.sort(sorted);
+    for (int i = 1; i < sorted.length; ++i) {
+      if (sorted[i] == sorted[i - 1])
+        throw new IllegalArgumentException("Duplicate investment id " + sorted[i]);
+    }
+    final int n = sorted.length;
+    if (n > DenseStorage.MAX_DIMENSION)
+      throw new IllegalArgumentException("Too many investments for a mapped covariance matrix");
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      final FileChannel channel = raf.getChannel();
+      channel.truncate(0);
+      final ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putLong(MAGIC).putInt(VERSION).putInt(n).putLong(0);
+      for (final long id : sorted) {
+        if (!buffer.hasRemaining()) {
+          buffer.flip();
+          while (buffer.hasRemaining())
+            channel.write(buffer);
+          buffer.clear();
+        }
+        buffer.putLong(id);
+      }
+      buffer.flip();
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+
+      // Fill the triangle with NaN. Clearing the buffer keeps its content.
+      buffer.clear();
+      while (buffer.hasRemaining())
+        buffer.putDouble(Double.NaN);
+      for (long remaining = 8L * ((long)n * (n + 1) / 2); remaining > 0; /* nothing */) {
+        buffer.clear();
+        if (remaining < buffer.capacity())
+          buffer.limit((int)remaining);
+        remaining -= buffer.remaining();
+        while (buffer.hasRemaining())
+          channel.write(buffer);
+      }
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /** Position of indices <code>a</code> and <code>b</code> in the packed triangle. */
+  private static long position(int a, int b) {
+    return (a <= b) ? (long)b * (b + 1) / 2 + a : (long)a * (a + 1) / 2 + b;
+  }
+  private double load(long p) { return chunks[(int)(p >>> CHUNK_SHIFT)].get((int)(p & CHUNK_MASK)); }
+  private void store(long p, double value) { chunks[(int)(p >>> CHUNK_SHIFT)].put((int)(p & CHUNK_MASK), value); }
+
+  private long count() { return header.getLong(COUNT_OFFSET); }
+  private void setCount(long count) { header.putLong(COUNT_OFFSET, count); }
+
+  /** Make sure this storage can be modified. */
+  private void checkWritable() {
+    if (!writable)
+      throw new UnsupportedOperationException("Covariance matrix is mapped read-only");
+  }
+
+  /** Get the position of <code>id</code>, failing if there is no such investment. */
+  private int indexOf(long id) {
+    final int i = index.get(id);
+    if (i < 0)
+      throw new IllegalArgumentException("Investment " + id + " is not part of the mapped covariance matrix");
+    return i;
+  }
+
+  @Override
+  public int size() { return (int)count(); }
+  @Override
+  public int dimension() { return ids.length; }
+  @Override
+  public long[] ids() { return ids.clone(); }
+  @Override
+  public boolean isAdaptive() { return false; }
+  @Override
+  public boolean isImmutable() { return immutable; }
+
+  @Override
+  public double get(long first, long second) {
+    final int a = index.get(first);
+    if (a < 0)
+      return Double.NaN;
+    final int b = index.get(second);
+    if (b < 0)
+      return Double.NaN;
+    return load(position(a, b));
+  }
+
+  @Override
+  public boolean put(long first, long second, double value) {
+    checkWritable();
+    final long p = position(indexOf(first), indexOf(second));
+    final boolean created = Double.isNaN(load(p));
+    store(p, value);
+    if (created)
+      setCount(count() + 1);
+    return created;
+  }
+
+  @Override
+  public boolean remove(long first, long second) {
+    checkWritable();
+    final int a = index.get(first);
+    final int b = index.get(second);
+    if (a < 0 || b < 0)
+      return false;
+    final long p = position(a, b);
+    if (Double.isNaN(load(p)))
+      return false;
+    store(p, Double.NaN);
+    setCount(count() - 1);
+    return true;
+  }
+
+  @Override
+  public void remove(long id) {
+    checkWritable();
+    final int a = index.get(id);
+    if (a < 0)
+      return;
+    long removed = 0;
+    for (int b = 0; b < ids.length; ++b) {
+      final long p = position(a, b);
+      if (!Double.isNaN(load(p))) {
+        store(p, Double.NaN);
+        ++removed;
+      }
+    }
+    setCount(count() - removed);
+  }
+
+  @Override
+  public Cursor cursor() {
+    return new Cursor() {
+      private int row = 0;
+      private int col = -1;
+      private double value = Double.NaN;
+      @Override
+      public boolean next() {
+        while (row < ids.length) {
+          if (++col >= ids.length) {
+            ++row;
+            col = row - 1;
+            continue;
+          }
+          value = load(position(row, col));
+          if (!Double.isNaN(value))
+            return true;
+        }
+        return false;
+      }
+      @Override
+      public long first() { return ids[row]; }
+      @Override
+      public long second() { return ids[col]; }
+      @Override
+      public double value() { return value; }
+    };
+  }
+
+  /** Create an immutable view of this storage.
+   * The view shares the mapping with this storage, so no data is copied. Changes
+   * made through a writable mapping are visible in the view, including the number
+   * of values, which the view reads from the shared header.
+   * {@link Covariance} materializes the view before it modifies it.
+   */
+  @Override
+  public CovarianceStorage copy() {
+    final DoubleBuffer[] views = new DoubleBuffer[chunks.length];
+    for (int c = 0; c < chunks.length; ++c)
+      views[c] = chunks[c].asReadOnlyBuffer();
+    // A read-only duplicate does not inherit the byte order.
+    final ByteBuffer headerView = header.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    return new MappedStorage(ids, index, views, headerView, false, true);
+  }
+
+  /** Share this storage.
+   * Copying a read-only mapping to the heap would defeat its purpose, so unlike
+   * heap storages the mapping itself is shared by means of an immutable view.
+   * A view of a writable mapping would change with the file, so in that case
+   * the data is copied to the heap instead.
+   */
+  @Override
+  public CovarianceStorage share() {
+    if (writable)
+      return new DenseStorage(this);
+    return copy();
+  }
+}
@@ -0,0 +1,406 @@
+package cpx.portfolio.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/** Import of covariance matrices in dense CSV or TSV layout.
+ * The covariance file has a header line with the investment ids followed by
+ * one line per investment with the values of the corresponding row of the
+ * matrix. Each line may start with the id of its investment, in which case the
+ * header may start with an arbitrary label (or an empty field) for that column:
+ * <pre>
+ *   id,101,102,103
+ *   101,0.04,0.01,0.002
+ *   102,0.01,0.09,0.003
+ *   103,0.002,0.003,0.16
+ * </pre>
+ * Fields are separated by commas or tabs, the separator is detected from the
+ * header. An empty field denotes a missing value. Blank lines are ignored.
+ * The returns file has a line <code>id,return[,name]</code> for each investment
+ * in the matrix and may start with a header line. Investments without name get
+ * their id as name.
+ * Only the upper triangle of the matrix is stored. The lower triangle is used
+ * to check that the matrix is symmetric (unless the tolerance is negative).
+ * Rows are parsed in parallel directly from the mapped file.
+ */
+public class MatrixImporter {
+  /** Minimum number of matrix elements per parallel block. */
+  private static final long GRAIN = 1 << 14;
+
+  private double tolerance = 1e-8;
+
+  public MatrixImporter() {}
+
+  public double getTolerance() { return tolerance; }
+  /** Set the relative tolerance for the symmetry check.
+   * Values <code>a</code> and <code>b</code> at mirrored positions are accepted
+   * if <code>|a-b| &lt;= tolerance * max(|a|,|b|)</code>. A negative tolerance
+   * disables the check, the lower triangle is then skipped without parsing.
+   */
+  public void setTolerance(double tolerance) { this.tolerance = tolerance; }
+
+  /** Rows of the matrix in a chunk of the covariance file. */
+  private static final class Chunk {
+    public final long start;
+    public final long end;
+    /** Index of the first row in the chunk. */
+    public int first = 0;
+    public int rows = 0;
+    /** Number of lines before the chunk and in the chunk, including blank lines. */
+    public int firstLine = 0;
+    public int lines = 0;
+    /** Error on a line of the chunk, line numbers are relative to the chunk. */
+    public IOException error = null;
+    public int errorLine = 0;
+    public Chunk(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  /** Parse error in a row, the line number is added by the caller. */
+  private static final class RowException extends IOException {
+    private static final long serialVersionUID = 1;
+    public RowException(String message) { super(message); }
+  }
+
+  /** Import a dense covariance matrix and the corresponding returns.
+   * In case of an error <code>investments</code> and <code>covariance</code> are cleared.
+   * @param covarianceFile The file with the dense covariance matrix.
+   * @param returnsFile    The file with the expected returns.
+   * @param investments    Receives the investments in the order of the matrix.
+   * @param covariance     Receives the covariance matrix.
+   * @throws IOException if a file cannot be read, is malformed, or the matrix is not symmetric.
+   */
+  public void importData(File covarianceFile, File returnsFile, Collection<Investment> investments, Covariance covariance) throws IOException {
+    investments.clear();
+    covariance.clear();
+    boolean doReset = true;
+    try {
+      final long[] ids = readHeaderAndMatrix(covarianceFile, covariance);
+      investments.addAll(readReturns(returnsFile, ids));
+      doReset = false;
+    }
+    finally {
+      if (doReset) {
+        investments.clear();
+        covariance.clear();
+      }
+    }
+  }
+
+  /** Test whether the current line of <code>scanner</code> is blank. Blank lines are skipped, as in {@link IO}. */
+  private static boolean isBlank(LineScanner scanner) {
+    scanner.skipSpace();
+    return scanner.atEnd();
+  }
+
+  /** Count the fields on the current line of <code>scanner</code>. */
+  private static int countFields(LineScanner scanner) {
+    int fields = 1;
+    scanner.skipSpace();
+    while (!scanner.atEnd()) {
+      if (scanner.skipSeparator())
+        ++fields;
+      else
+        scanner.skipToken();
+      scanner.skipSpace();
+    }
+    return fields;
+  }
+
+  /** Parse a double field, an empty field is NaN. */
+  private static double parseValue(LineScanner scanner) {
+    scanner.skipSpace();
+    if (scanner.atEnd() || scanner.atSeparator())
+      return Double.NaN;
+    return scanner.parseDouble();
+  }
+
+  /** Read the covariance file into <code>covariance</code>.
+   * @return The investment ids in the order of the matrix.
+   */
+  private long[] readHeaderAndMatrix(File file, Covariance covariance) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = raf.getChannel();
+      // The header is parsed sequentially, it also determines the separator.
+      final LineScanner header = new LineScanner(channel);
+      do {
+        if (!header.nextLine())
+          throw new IOException(file + " is empty");
+      } while (isBlank(header));
+      final int headerLine = header.lineNumber();
+      final String line = header.line();
+      final int separator = (line.indexOf('\t') >= 0) ? '\t' : ',';
+      header.setSeparator(separator);
+      final List<Long> list = new ArrayList<Long>();
+      boolean label = false;
+      while (true) {
+        header.skipSpace();
+        if (header.atEnd() || header.atSeparator()) {
+          if (!list.isEmpty() || label)
+            throw new IOException(file + ": empty investment id in header");
+          label = true;
+        }
+        else {
+          try { list.add(header.parseLong()); }
+          catch (NumberFormatException e) {
+            if (!list.isEmpty() || label)
+              throw new IOException(file + ": invalid investment id in header: " + line);
+            header.skipToken();
+            label = true;
+          }
+        }
+        if (!header.skipSeparator())
+          break;
+      }
+      if (!header.atEnd())
+        throw new IOException(file + ": invalid header: " + line);
+      final int n = list.size();
+      if (n > DenseStorage.MAX_DIMENSION)
+        throw new IOException(file + ": too many investments");
+      final long[] ids = new long[n];
+      final LongIndex index = new LongIndex(n);
+      for (int i = 0; i < n; ++i) {
+        ids[i] = list.get(i);
+        if (index.put(ids[i], i) >= 0)
+          throw new IOException(file + ": duplicate investment id " + ids[i]);
+      }
+      // Leading tabs are removed as whitespace, so for an empty label field
+      // the first row tells whether rows start with an id.
+      boolean labels = label;
+      while (header.nextLine()) {
+        if (!isBlank(header)) {
+          labels = countFields(header) == n + 1;
+          break;
+        }
+      }
+      final boolean hasLabels = labels;
+
+      // The rows start after the header and any blank lines before it.
+      long start = 0;
+      for (int i = 0; i < headerLine; ++i)
+        start = IO.lineBoundary(channel, start);
+      final long[] bounds = IO.split(channel, start);
+      final Chunk[] chunks = new Chunk[bounds.length - 1];
+      for (int c = 0; c < chunks.length; ++c)
+        chunks[c] = new Chunk(bounds[c], bounds[c + 1]);
+
+      // Count the rows per chunk to find the index of the first row in each.
+      final IOException[] failure = new IOException[1];
+      Parallel.rows(chunks.length, 1, new Parallel.Body() {
+        @Override
+        public void run(int from, int to) {
+          for (int c = from; c < to; ++c) {
+            try {
+              final LineScanner scanner = new LineScanner(channel.map(FileChannel.MapMode.READ_ONLY, chunks[c].start, chunks[c].end - chunks[c].start));
+              scanner.setSeparator(separator);
+              while (scanner.nextLine()) {
+                ++chunks[c].lines;
+                if (!isBlank(scanner))
+                  ++chunks[c].rows;
+              }
+            }
+            catch (IOException e) {
+              synchronized (failure) { failure[0] = e; }
+            }
+          }
+        }
+      });
+      synchronized (failure) {
+        if (failure[0] != null)
+          throw failure[0];
+      }
+      int rows = 0;
+      int lines = 0;
+      for (final Chunk chunk : chunks) {
+        chunk.first = rows;
+        chunk.firstLine = lines;
+        rows += chunk.rows;
+        lines += chunk.lines;
+      }
+      if (rows != n)
+        throw new IOException(file + ": expected " + n + " rows but found " + rows);
+
+      // Parse the rows.
+      final boolean check = tolerance >= 0.0;
+      final double[] packed = new double[DenseStorage.cells(n)];
+      final double[] lower = check ? new double[packed.length] : null;
+      Parallel.rows(chunks.length, 1, new Parallel.Body() {
+        @Override
+        public void run(int from, int to) {
+          for (int c = from; c < to; ++c) {
+            final Chunk chunk = chunks[c];
+            LineScanner scanner = null;
+            try {
+              scanner = new LineScanner(channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start));
+              scanner.setSeparator(separator);
+              int row = chunk.first;
+              while (scanner.nextLine()) {
+                if (!isBlank(scanner))
+                  parseRow(scanner, row++, ids, hasLabels, packed, lower);
+              }
+            }
+            catch (RowException e) {
+              chunk.error = e;
+              chunk.errorLine = scanner.lineNumber();
+            }
+            catch (NumberFormatException e) {
+              chunk.error = new RowException("invalid number: " + scanner.line());
+              chunk.errorLine = scanner.lineNumber();
+            }
+            catch (IOException e) {
+              synchronized (failure) { failure[0] = e; }
+            }
+          }
+        }
+      });
+      synchronized (failure) {
+        if (failure[0] != null)
+          throw failure[0];
+      }
+      for (final Chunk chunk : chunks) {
+        if (chunk.error != null)
+          throw new IOException(file + ": line " + (headerLine + chunk.firstLine + chunk.errorLine) + ": " + chunk.error.getMessage());
+      }
+      if (check)
+        checkSymmetry(file, ids, packed, lower, tolerance);
+      covariance.assign(new DenseStorage(ids, packed));
+      return ids;
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /** Parse row <code>row</code> of the matrix into the upper (and optionally the lower) triangle. */
+  private static void parseRow(LineScanner scanner, int row, long[] ids, boolean hasLabels, double[] packed, double[] lower) throws RowException {
+    final int n = ids.length;
+    if (hasLabels) {
+      scanner.skipSpace();
+      if (scanner.parseLong() != ids[row])
+        throw new RowException("expected row of investment " + ids[row]);
+      if (!scanner.skipSeparator())
+        throw new RowException("missing values");
+    }
+    for (int j = 0; j < n; ++j) {
+      if (j < row) {
+        if (lower != null)
+          lower[DenseStorage.position(j, row)] = parseValue(scanner);
+        else {
+          scanner.skipSpace();
+          scanner.skipToken();
+        }
+      }
+      else
+        packed[DenseStorage.position(row, j)] = parseValue(scanner);
+      if (j + 1 < n && !scanner.skipSeparator())
+        throw new RowException("expected " + n + " values");
+    }
+    scanner.skipSpace();
+    if (!scanner.atEnd())
+      throw new RowException("expected " + n + " values");
+  }
+
+  /** Check that the upper and lower triangle agree within <code>tolerance</code>. */
+  private static void checkSymmetry(File file, final long[] ids, final double[] packed, final double[] lower, final double tolerance) throws IOException {
+    final int n = ids.length;
+    // First offending row per column, so that the first error in row order is reported.
+    final int[] offending = new int[n];
+    Arrays.fill(offending, -1);
+    Parallel.triangle(n, GRAIN, new Parallel.Body() {
+      @Override
+      public void run(int from, int to) {
+        for (int b = from; b < to; ++b) {
+          final int base = DenseStorage.position(0, b);
+          for (int a = 0; a < b; ++a) {
+            final double u = packed[base + a];
+            final double l = lower[base + a];
+            if (Double.isNaN(u) && Double.isNaN(l))
+              continue;
+            if (Double.isNaN(u) || Double.isNaN(l) || Math.abs(u - l) > tolerance * Math.max(Math.abs(u), Math.abs(l))) {
+              offending[b] = a;
+              break;
+            }
+          }
+        }
+      }
+    });
+    int row = -1;
+    int column = -1;
+    for (int b = 0; b < n; ++b) {
+      if (offending[b] >= 0 && (row < 0 || offending[b] < row)) {
+        row = offending[b];
+        column = b;
+      }
+    }
+    if (row >= 0) {
+      final int p = DenseStorage.position(row, column);
+      throw new IOException(file + ": covariance matrix is not symmetric for investments " + ids[row] + " and " + ids[column] +
+                            " (" + packed[p] + " and " + lower[p] + ")");
+    }
+  }
+
+  /** Read the returns file.
+   * @return Investments for <code>ids</code>, in that order.
+   */
+  private static List<Investment> readReturns(File file, long[] ids) throws IOException {
+    final LongIndex index = new LongIndex(ids.length);
+    for (int i = 0; i < ids.length; ++i)
+      index.put(ids[i], i);
+    final Investment[] result = new Investment[ids.length];
+    final FileInputStream input = new FileInputStream(file);
+    try {
+      final LineScanner scanner = new LineScanner(input.getChannel());
+      int separator = -1;
+      while (scanner.nextLine()) {
+        if (scanner.atEnd() || scanner.peek() == '#')
+          continue;
+        if (separator < 0) {
+          separator = (scanner.line().indexOf('\t') >= 0) ? '\t' : ',';
+          scanner.setSeparator(separator);
+        }
+        final long id;
+        try { id = scanner.parseLong(); }
+        catch (NumberFormatException e) {
+          // A header line.
+          if (scanner.lineNumber() == 1)
+            continue;
+          throw new IOException(file + ": invalid line " + scanner.lineNumber() + ": " + scanner.line());
+        }
+        final int i = index.get(id);
+        if (i < 0)
+          throw new IOException(file + ": line " + scanner.lineNumber() + ": investment " + id + " is not in the covariance matrix");
+        if (result[i] != null)
+          throw new IOException(file + ": line " + scanner.lineNumber() + ": investment id " + id + " already defined");
+        if (!scanner.skipSeparator())
+          throw new IOException(file + ": invalid line " + scanner.lineNumber() + ": " + scanner.line());
+        final Investment investment = new Investment();
+        investment.setId(id);
+        try { investment.setReturn(scanner.parseDouble()); }
+        catch (NumberFormatException e) {
+          throw new IOException(file + ": invalid number on line " + scanner.lineNumber() + ": " + scanner.line());
+        }
+        final String name = scanner.skipSeparator() ? scanner.rest() : "";
+        investment.setName(name.isEmpty() ? Long.toString(id) : name);
+        result[i] = investment;
+      }
+    }
+    finally {
+      input.close();
+    }
+    for (int i = 0; i < ids.length; ++i) {
+      if (result[i] == null)
+        throw new IOException(file + ": no return for investment " + ids[i]);
+    }
+    return Arrays.asList(result);
+  }
+}
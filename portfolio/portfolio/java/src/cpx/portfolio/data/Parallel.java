@@ -0,0 +1,87 @@
+package cpx.portfolio.data;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/** Helpers to run loops over rows of a matrix in parallel.
+ * All loops run on a single shared {@link ForkJoinPool}. The pool's worker
+ * threads are daemon threads, so the pool does not need to be shut down.
+ */
+final class Parallel {
+  private Parallel() {}
+
+  /** The pool on which all parallel loops run. */
+  private static final ForkJoinPool POOL = new ForkJoinPool();
+
+  /** Body of a parallel loop. */
+  public static abstract class Body {
+    /** Process rows <code>from</code> (inclusive) to <code>to</code> (exclusive). */
+    public abstract void run(int from, int to);
+  }
+
+  /** Task that splits a range of rows until the estimated work is small enough. */
+  private static final class Split extends RecursiveAction {
+    private static final long serialVersionUID = 1;
+    private final Body body;
+    private final int from;
+    private final int to;
+    private final boolean triangular;
+    private final long grain;
+    public Split(Body body, int from, int to, boolean triangular, long grain) {
+      this.body = body;
+      this.from = from;
+      this.to = to;
+      this.triangular = triangular;
+      this.grain = grain;
+    }
+    /** Estimated work for rows <code>[from,to)</code>. */
+    private long work(int from, int to) {
+      return triangular ? ((long)to * (to + 1) - (long)from * (from + 1)) / 2 : to - from;
+    }
+    @Override
+    protected void compute() {
+      if (to - from < 2 || work(from, to) <= grain) {
+        body.run(from, to);
+        return;
+      }
+      // In a triangle row j has j+1 elements, so split where the area halves.
+      int mid = triangular ? (int)Math.sqrt(((double)from * from + (double)to * to) / 2) : (from + to) >>> 1;
+      mid = Math.max(from + 1, Math.min(to - 1, mid));
+      invokeAll(new Split(body, from, mid, triangular, grain),
+                new Split(body, mid, to, triangular, grain));
+    }
+  }
+
+  /** Get the number of threads that run parallel loops. */
+  public static int threads() { return POOL.getParallelism(); }
+
+  /** Run <code>body</code> for rows <code>0</code> to <code>n-1</code>.
+   * Each row is assumed to cost the same.
+   * @param n     Number of rows.
+   * @param grain Number of rows below which a block is no longer split.
+   * @param body  The loop body.
+   */
+  public static void rows(int n, int grain, Body body) {
+    run(new Split(body, 0, n, false, Math.max(grain, 1)));
+  }
+
+  /** Run <code>body</code> for rows <code>0</code> to <code>n-1</code> of a triangular matrix.
+   * Row <code>j</code> is assumed to cost <code>j+1</code> units.
+   * @param n     Number of rows.
+   * @param grain Number of elements below which a block is no longer split.
+   * @param body  The loop body.
+   */
+  public static void triangle(int n, long grain, Body body) {
+    run(new Split(body, 0, n, true, Math.max(grain, 1)));
+  }
+
+  private static void run(Split task) {
+    if (task.to <= task.from)
+      return;
+    if (ForkJoinTask.getPool() == POOL)
+      task.invoke();
+    else
+      POOL.invoke(task);
+  }
+}
@@ -0,0 +1,136 @@
+package cpx.portfolio.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Return history in CSV or TSV layout.
+ * The file has a header line with the investment ids followed by one line per
+ * date with the returns of the investments on that date, oldest first. Each line
+ * may start with a label (such as the date), in which case the header starts
+ * with an arbitrary non-numeric label for that column:
+ * <pre>
+ *   date,101,102,103
+ *   2024-01-02,0.0012,-0.0040,0.0021
+ *   2024-01-03,-0.0007,0.0013,0.0002
+ * </pre>
+ * Fields are separated by commas or tabs, the separator is detected from the
+ * header. Empty lines and lines that start with <code>#</code> are skipped.
+ */
+public final class ReturnHistory {
+  private final File file;
+  /** The investment ids in the order of the columns. */
+  private final long[] ids;
+  /** Whether each line starts with a label. */
+  private final boolean hasLabels;
+  private final int separator;
+
+  /** Open a return history and read its header.
+   * @param file The file with the return history.
+   * @throws IOException if the file cannot be read or has an invalid header.
+   */
+  public ReturnHistory(File file) throws IOException {
+    this.file = file;
+    final FileInputStream input = new FileInputStream(file);
+    try {
+      final LineScanner header = new LineScanner(input.getChannel());
+      if (!nextLine(header))
+        throw new IOException(file + " is empty");
+      final String line = header.line();
+      separator = (line.indexOf('\t') >= 0) ? '\t' : ',';
+      header.setSeparator(separator);
+      final List<Long> list = new ArrayList<Long>();
+      boolean label = false;
+      do {
+        header.skipSpace();
+        try { list.add(header.parseLong()); }
+        catch (NumberFormatException e) {
+          if (!list.isEmpty() || label)
+            throw new IOException(file + ": invalid investment id in header: " + line);
+          header.skipToken();
+          label = true;
+        }
+      } while (header.skipSeparator());
+      if (!header.atEnd())
+        throw new IOException(file + ": invalid header: " + line);
+      if (list.size() > DenseStorage.MAX_DIMENSION)
+        throw new IOException(file + ": too many investments");
+      if (list.isEmpty())
+        throw new IOException(file + ": no investment ids in header: " + line);
+      hasLabels = label;
+      ids = new long[list.size()];
+      final LongIndex index = new LongIndex(ids.length);
+      for (int i = 0; i < ids.length; ++i) {
+        ids[i] = list.get(i);
+        if (index.put(ids[i], i) >= 0)
+          throw new IOException(file + ": duplicate investment id " + ids[i]);
+      }
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  /** Get the investment ids in the order of the columns. */
+  public long[] getIds() { return ids.clone(); }
+
+  /** Advance to the next line that is neither empty nor a comment. */
+  private static boolean nextLine(LineScanner scanner) throws IOException {
+    while (scanner.nextLine()) {
+      scanner.skipSpace();
+      if (!scanner.atEnd() && scanner.peek() != '#')
+        return true;
+    }
+    return false;
+  }
+
+  /** Add all observations in the file to a rolling window, oldest first.
+   * @param window   The window. It must have been created for {@link #getIds()}.
+   * @param progress Receives the progress, may be <code>null</code>.
+   * @throws IOException if the file cannot be read or is malformed.
+   */
+  public void feed(RollingCovariance window, IO.Progress progress) throws IOException {
+    final double[] returns = new double[ids.length];
+    final FileInputStream input = new FileInputStream(file);
+    try {
+      final FileChannel channel = input.getChannel();
+      final long total = channel.size();
+      final LineScanner scanner = new LineScanner(channel);
+      scanner.setSeparator(separator);
+      nextLine(scanner); // The header.
+      while (nextLine(scanner)) {
+        try {
+          if (hasLabels) {
+            scanner.skipToken();
+            if (!scanner.skipSeparator())
+              throw new IOException("missing values");
+          }
+          for (int i = 0; i < returns.length; ++i) {
+            scanner.skipSpace();
+            returns[i] = scanner.parseDouble();
+            if (i + 1 < returns.length && !scanner.skipSeparator())
+              throw new IOException("expected " + returns.length + " values");
+          }
+          scanner.skipSpace();
+          if (!scanner.atEnd())
+            throw new IOException("expected " + returns.length + " values");
+        }
+        catch (NumberFormatException e) {
+          throw new IOException(file + ": invalid number on line " + scanner.lineNumber() + ": " + scanner.line());
+        }
+        catch (IOException e) {
+          throw new IOException(file + ": line " + scanner.lineNumber() + ": " + e.getMessage());
+        }
+        window.add(returns);
+        if (progress != null)
+          progress.update(channel.position(), total);
+      }
+    }
+    finally {
+      input.close();
+    }
+  }
+}
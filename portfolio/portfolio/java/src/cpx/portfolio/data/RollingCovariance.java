@@ -0,0 +1,113 @@
+package cpx.portfolio.data;
+
+import java.util.Collection;
+import java.util.Vector;
+
+/** Covariance estimate over a sliding window of observations.
+ * Each call to {@link #add(double[])} adds the newest observation and, once the
+ * window is full, removes the oldest one. Both updates cost O(n<sup>2</sup>), so a
+ * step does not depend on the window length. To keep rounding errors from
+ * accumulating, the estimate is recomputed from the observations in the window
+ * once every window length steps, which is O(n<sup>2</sup>) per step on average.
+ * After each step at which the window is full, all registered {@link Listener}s
+ * are invoked with a snapshot of the current estimate.
+ * Instances of this class are not thread-safe.
+ */
+public class RollingCovariance {
+  /** Listener that is notified of each new estimate. */
+  public interface Listener {
+    /** Invoked after each step at which the window is full.
+     * @param window     The window that produced the estimate. Use
+     *                   {@link RollingCovariance#getMean(long)} to get expected returns.
+     * @param covariance Snapshot of the estimated covariance matrix.
+     */
+    public void step(RollingCovariance window, Covariance covariance);
+  }
+
+  private final CovarianceEstimator estimator;
+  /** Number of investments. */
+  private final int dimension;
+  /** Ring buffer of the observations in the window. */
+  private final double[][] window;
+  /** Position in {@link #window} of the next observation. */
+  private int next = 0;
+  /** Number of observations in {@link #window}. */
+  private int size = 0;
+  /** Number of steps since the estimate was last recomputed from scratch. */
+  private int sinceRecompute = 0;
+  /** Number of steps taken so far. */
+  private long steps = 0;
+  private final Collection<Listener> listeners = new Vector<Listener>();
+
+  /** Create a new rolling window.
+   * @param ids    The investments for which to estimate.
+   * @param length The number of observations in a full window.
+   */
+  public RollingCovariance(long[] ids, int length) {
+    if (length < 2)
+      throw new IllegalArgumentException("Window must hold at least two observations");
+    estimator = new CovarianceEstimator(ids);
+    dimension = ids.length;
+    window = new double[length][];
+  }
+
+  public void addListener(Listener listener) { listeners.add(listener); }
+  public void removeListener(Listener listener) { listeners.remove(listener); }
+
+  /** Get the investments for which this instance estimates. */
+  public long[] getIds() { return estimator.getIds(); }
+  /** Get the number of observations in a full window. */
+  public int getLength() { return window.length; }
+  /** Test whether the window is full. */
+  public boolean isFull() { return size == window.length; }
+  /** Get the number of steps taken so far. */
+  public long getSteps() { return steps; }
+  /** Get the mean return of an investment over the current window. */
+  public double getMean(long id) { return estimator.getMean(id); }
+  /** Set the expected returns in <code>investments</code> to the means over the current window. */
+  public void updateReturns(Collection<Investment> investments) { estimator.updateReturns(investments); }
+
+  /** Add the newest observation to the window.
+   * If the window is full then the oldest observation is dropped.
+   * @param returns The returns of all investments, in the order of the ids
+   *                passed to the constructor.
+   */
+  public void add(double[] returns) {
+    if (returns.length != dimension)
+      throw new IllegalArgumentException("Expected " + dimension + " returns but got " + returns.length);
+    final double[] x = returns.clone();
+    if (size == window.length) {
+      if (++sinceRecompute >= window.length) {
+        // Recompute from scratch to get rid of accumulated rounding errors.
+        window[next] = x;
+        estimator.clear();
+        for (int k = 1; k <= window.length; ++k)
+          estimator.add(window[(next + k) % window.length]);
+        sinceRecompute = 0;
+      }
+      else {
+        estimator.update(window[next], -1);
+        estimator.add(x);
+        window[next] = x;
+      }
+    }
+    else {
+      estimator.add(x);
+      window[next] = x;
+      ++size;
+    }
+    next = (next + 1) % window.length;
+    ++steps;
+
+    if (size == window.length && !listeners.isEmpty()) {
+      final Covariance snapshot = estimator.getCovariance().snapshot();
+      for (final Listener l : listeners)
+        l.step(this, snapshot);
+    }
+  }
+
+  /** Get a snapshot of the current estimate.
+   * @throws IllegalStateException if the window holds fewer than two observations.
+   */
+  public Covariance getCovariance() { return estimator.getCovariance().snapshot(); }
+}
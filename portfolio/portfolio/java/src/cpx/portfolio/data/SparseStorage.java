@@ -0,0 +1,395 @@
+package cpx.portfolio.data;
+
+import java.util.Arrays;
+
+/** Sparse storage for covariance matrices.
+ * The matrix is stored as a list of triples (row, column, value) in a hash table
+ * with open addressing. Rows, columns and values are kept in separate primitive
+ * arrays so that neither lookups nor updates allocate any objects.
+ * The triples are sorted by (row,column) on demand whenever a cursor is requested.
+ * For each investment id we also keep the list of ids it is paired with, so that
+ * {@link #remove(long)} only needs to visit the entries that involve that id.
+ */
+final class SparseStorage extends CovarianceStorage {
+  /** Row ids of the entries. */
+  private long[] firsts;
+  /** Column ids of the entries. */
+  private long[] seconds;
+  /** Values of the entries. */
+  private double[] values;
+  /** Flags that indicate which slots of the table are occupied. */
+  private boolean[] used;
+  private int mask;
+  private int size = 0;
+  /** Map from investment id to its row in the adjacency arrays below. */
+  private final LongIndex rows;
+  /** For each row the ids paired with the row's investment.
+   * Entries are appended when a pair is created but not eagerly removed when a
+   * pair is deleted. So a list may contain ids that are no longer paired with
+   * the row's investment, or ids that appear more than once. Such stale entries
+   * are dropped whenever a list needs to grow.
+   */
+  private long[][] adjacent;
+  /** Number of ids in each list in {@link #adjacent}. */
+  private int[] adjacentCount;
+  /** Number of entries in which the investment of each row appears. */
+  private int[] degree;
+  /** Rows that are no longer in use and can be reused. */
+  private int[] freeRows;
+  private int freeRowCount;
+  /** Number of rows handed out so far (including free ones). */
+  private int usedRows;
+  /** Occupied slots sorted by (row,column).
+   * This is <code>null</code> if the table was modified since the last sort.
+   * A shared instance is read by several threads, each of which may sort the
+   * slots, so the field is volatile to publish the complete array.
+   */
+  private volatile int[] order = null;
+
+  public SparseStorage() { this(8); }
+  private SparseStorage(int expected) {
+    allocate(capacityFor(expected));
+    rows = new LongIndex();
+    allocateRows(8);
+  }
+  /** Create a sparse storage that holds the same entries as <code>other</code>. */
+  public SparseStorage(CovarianceStorage other) {
+    allocate(capacityFor(other.size()));
+    rows = new LongIndex(other.dimension());
+    allocateRows(Math.max(other.dimension(), 8));
+    for (final Cursor c = other.cursor(); c.next(); /* nothing */)
+      put(c.first(), c.second(), c.value());
+  }
+  private SparseStorage(SparseStorage other) {
+    firsts = other.firsts.clone();
+    seconds = other.seconds.clone();
+    values = other.values.clone();
+    used = other.used.clone();
+    mask = other.mask;
+    size = other.size;
+    rows = new LongIndex(other.rows);
+    adjacent = new long[other.adjacent.length][];
+    for (int r = 0; r < other.usedRows; ++r) {
+      if (other.adjacent[r] != null)
+        adjacent[r] = Arrays.copyOf(other.adjacent[r], other.adjacentCount[r]);
+    }
+    adjacentCount = other.adjacentCount.clone();
+    degree = other.degree.clone();
+    freeRows = other.freeRows.clone();
+    freeRowCount = other.freeRowCount;
+    usedRows = other.usedRows;
+    final int[] sorted = other.order;
+    order = (sorted != null) ? sorted.clone() : null;
+  }
+
+  /** Compute a table size that holds <code>expected</code> entries with a load factor of at most 1/2. */
+  private static int capacityFor(int expected) {
+    int capacity = 16;
+    while (capacity < 2L * expected)
+      capacity <<= 1;
+    return capacity;
+  }
+
+  private void allocate(int capacity) {
+    firsts = new long[capacity];
+    seconds = new long[capacity];
+    values = new double[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+  }
+
+  private void allocateRows(int capacity) {
+    adjacent = new long[capacity][];
+    adjacentCount = new int[capacity];
+    degree = new int[capacity];
+    freeRows = new int[4];
+    freeRowCount = 0;
+    usedRows = 0;
+  }
+
+  private static int hash(long first, long second) {
+    return LongIndex.hash(first * 0x9E3779B97F4A7C15L + second);
+  }
+
+  /** Find the slot for a pair.
+   * @return The slot that holds the pair or the free slot at which the pair
+   *         would be inserted.
+   */
+  private int slot(long first, long second) {
+    int i = hash(first, second) & mask;
+    while (used[i] && (firsts[i] != first || seconds[i] != second))
+      i = (i + 1) & mask;
+    return i;
+  }
+
+  /** Record that <code>id</code> is paired with <code>partner</code>. */
+  private void link(long id, long partner) {
+    int r = rows.get(id);
+    if (r < 0) {
+      if (freeRowCount > 0)
+        r = freeRows[--freeRowCount];
+      else {
+        if (usedRows == degree.length) {
+          final int capacity = 2 * usedRows;
+          adjacent = Arrays.copyOf(adjacent, capacity);
+          adjacentCount = Arrays.copyOf(adjacentCount, capacity);
+          degree = Arrays.copyOf(degree, capacity);
+        }
+        r = usedRows++;
+      }
+      rows.put(id, r);
+      adjacent[r] = new long[4];
+      adjacentCount[r] = 0;
+      degree[r] = 0;
+    }
+    if (adjacentCount[r] == adjacent[r].length)
+      compact(r, id);
+    adjacent[r][adjacentCount[r]++] = partner;
+    ++degree[r];
+  }
+
+  /** Make room in the adjacency list of row <code>r</code> that belongs to <code>id</code>.
+   * If more than half of the list is stale then stale entries are dropped,
+   * otherwise the list is grown.
+   */
+  private void compact(int r, long id) {
+    final long[] list = adjacent[r];
+    final int n = adjacentCount[r];
+    if (n > 2 * degree[r]) {
+      Arrays.sort(list, 0, n);
+      int k = 0;
+      for (int i = 0; i < n; ++i) {
+        final long p = list[i];
+        if (i > 0 && p == list[i - 1])
+          continue;
+        if (used[(id <= p) ? slot(id, p) : slot(p, id)])
+          list[k++] = p;
+      }
+      adjacentCount[r] = k;
+    }
+    if (adjacentCount[r] == list.length)
+      adjacent[r] = Arrays.copyOf(list, 2 * list.length);
+  }
+
+  /** Record that one of the pairs involving <code>id</code> was deleted. */
+  private void unlink(long id) {
+    final int r = rows.get(id);
+    if (--degree[r] == 0) {
+      rows.remove(id);
+      adjacent[r] = null;
+      if (freeRowCount == freeRows.length)
+        freeRows = Arrays.copyOf(freeRows, 2 * freeRowCount);
+      freeRows[freeRowCount++] = r;
+    }
+  }
+
+  @Override
+  public int size() { return size; }
+  @Override
+  public int dimension() { return rows.size(); }
+  @Override
+  public long[] ids() { return rows.keys(); }
+
+  @Override
+  public double get(long first, long second) {
+    final int i = slot(first, second);
+    return used[i] ? values[i] : Double.NaN;
+  }
+
+  @Override
+  public boolean put(long first, long second, double value) {
+    int i = slot(first, second);
+    if (used[i]) {
+      values[i] = value;
+      return false;
+    }
+    if (2 * (size + 1) > used.length) {
+      rehash(used.length << 1);
+      i = slot(first, second);
+    }
+    firsts[i] = first;
+    seconds[i] = second;
+    values[i] = value;
+    used[i] = true;
+    ++size;
+    order = null;
+    link(first, second);
+    if (second != first)
+      link(second, first);
+    return true;
+  }
+
+  @Override
+  public boolean remove(long first, long second) {
+    final int i = slot(first, second);
+    if (!used[i])
+      return false;
+    delete(i);
+    return true;
+  }
+
+  /** Delete the entry in slot <code>i</code>. */
+  private void delete(int i) {
+    unlink(firsts[i]);
+    if (seconds[i] != firsts[i])
+      unlink(seconds[i]);
+    // Shift back entries in the probe sequence after the removed slot so
+    // that lookups never have to skip over deleted slots.
+    int gap = i;
+    for (int j = (gap + 1) & mask; used[j]; j = (j + 1) & mask) {
+      final int home = hash(firsts[j], seconds[j]) & mask;
+      if ((j > gap) ? (home <= gap || home > j) : (home <= gap && home > j)) {
+        firsts[gap] = firsts[j];
+        seconds[gap] = seconds[j];
+        values[gap] = values[j];
+        gap = j;
+      }
+    }
+    used[gap] = false;
+    --size;
+    order = null;
+  }
+
+  @Override
+  public void remove(long id) {
+    final int r = rows.get(id);
+    if (r < 0)
+      return;
+    // Deleting the last pair releases the row, so hold on to the list.
+    final long[] list = adjacent[r];
+    final int n = adjacentCount[r];
+    for (int k = 0; k < n; ++k) {
+      final long p = list[k];
+      final int i = (id <= p) ? slot(id, p) : slot(p, id);
+      if (used[i])
+        delete(i);
+    }
+  }
+
+  @Override
+  public void removeAll(long[] ids) {
+    long touched = 0;
+    for (final long id : ids) {
+      final int r = rows.get(id);
+      if (r >= 0)
+        touched += degree[r];
+    }
+    if (touched < size / 2) {
+      for (final long id : ids)
+        remove(id);
+      return;
+    }
+    // Most of the table is affected, so a single sweep is cheaper than
+    // following the adjacency lists.
+    final LongIndex doomed = new LongIndex(ids.length);
+    for (final long id : ids)
+      doomed.put(id, 0);
+    // Deleting shifts entries back, so we must revisit a slot after a deletion.
+    for (int i = 0; i < used.length; /* nothing */) {
+      if (used[i] && (doomed.containsKey(firsts[i]) || doomed.containsKey(seconds[i])))
+        delete(i);
+      else
+        ++i;
+    }
+  }
+
+  private void rehash(int capacity) {
+    final long[] oldFirsts = firsts;
+    final long[] oldSeconds = seconds;
+    final double[] oldValues = values;
+    final boolean[] oldUsed = used;
+    allocate(capacity);
+    for (int i = 0; i < oldUsed.length; ++i) {
+      if (oldUsed[i]) {
+        final int j = slot(oldFirsts[i], oldSeconds[i]);
+        firsts[j] = oldFirsts[i];
+        seconds[j] = oldSeconds[i];
+        values[j] = oldValues[i];
+        used[j] = true;
+      }
+    }
+    order = null;
+  }
+
+  /** Compare the entries in slots <code>a</code> and <code>b</code> by (row,column). */
+  private int compare(int a, int b) {
+    if (firsts[a] != firsts[b])
+      return (firsts[a] < firsts[b]) ? -1 : 1;
+    if (seconds[a] != seconds[b])
+      return (seconds[a] < seconds[b]) ? -1 : 1;
+    return 0;
+  }
+
+  /** Sort the slots in <code>a[lo..hi]</code> by (row,column). */
+  private void sort(int[] a, int lo, int hi) {
+    while (hi - lo > 16) {
+      // Median of three as pivot.
+      final int mid = (lo + hi) >>> 1;
+      if (compare(a[mid], a[lo]) < 0) swap(a, mid, lo);
+      if (compare(a[hi], a[lo]) < 0) swap(a, hi, lo);
+      if (compare(a[hi], a[mid]) < 0) swap(a, hi, mid);
+      final int pivot = a[mid];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (compare(a[i], pivot) < 0) ++i;
+        while (compare(a[j], pivot) > 0) --j;
+        if (i <= j)
+          swap(a, i++, j--);
+      }
+      // Recurse into the smaller part, loop on the larger one.
+      if (j - lo < hi - i) {
+        sort(a, lo, j);
+        lo = i;
+      }
+      else {
+        sort(a, i, hi);
+        hi = j;
+      }
+    }
+    for (int i = lo + 1; i <= hi; ++i) {
+      final int v = a[i];
+      int j = i - 1;
+      while (j >= lo && compare(a[j], v) > 0) {
+        a[j + 1] = a[j];
+        --j;
+      }
+      a[j + 1] = v;
+    }
+  }
+  private static void swap(int[] a, int i, int j) {
+    final int t = a[i];
+    a[i] = a[j];
+    a[j] = t;
+  }
+
+  @Override
+  public Cursor cursor() {
+    int[] sorted = order;
+    if (sorted == null) {
+      sorted = new int[size];
+      int k = 0;
+      for (int i = 0; i < used.length; ++i) {
+        if (used[i])
+          sorted[k++] = i;
+      }
+      sort(sorted, 0, sorted.length - 1);
+      order = sorted;
+    }
+    final int[] slots = sorted;
+    return new Cursor() {
+      private int k = -1;
+      @Override
+      public boolean next() { return ++k < slots.length; }
+      @Override
+      public long first() { return firsts[slots[k]]; }
+      @Override
+      public long second() { return seconds[slots[k]]; }
+      @Override
+      public double value() { return values[slots[k]]; }
+    };
+  }
+
+  @Override
+  public CovarianceStorage copy() { return new SparseStorage(this); }
+}
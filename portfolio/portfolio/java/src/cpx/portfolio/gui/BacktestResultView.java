@@ -0,0 +1,159 @@
+package cpx.portfolio.gui;
+
+import java.awt.BorderLayout;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.event.ActionEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Vector;
+
+import javax.swing.AbstractAction;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+
+import com.platform.symphony.soam.SoamException;
+
+/** Widget to view the results of a rolling backtest.
+ * The widget shows one row per step of the backtest and wealth/rho combination,
+ * rows are added as steps are submitted and filled as results come in.
+ */
+public class BacktestResultView extends JPanel implements ResultView {
+  private static final long serialVersionUID = 1;
+
+  /** A single row of the view. */
+  private static final class Row {
+    public final long step;
+    public final double wealth;
+    public final double rho;
+    public double totalReturn = Double.NaN;
+    public double totalVariance = Double.NaN;
+    public double solveTime = Double.NaN;
+    public String status = "submitted";
+    public Row(long step, double wealth, double rho) {
+      this.step = step;
+      this.wealth = wealth;
+      this.rho = rho;
+    }
+  }
+
+  private static final String[] COLUMNS = new String[]{ "Step", "Wealth", "Rho", "Total return", "Total variance", "Solve time", "Status" };
+
+  /** When the backtest was started. */
+  private final Date start;
+  private final List<Row> rows = new ArrayList<Row>();
+  private final AbstractTableModel model = new AbstractTableModel() {
+    private static final long serialVersionUID = 1;
+    @Override
+    public int getRowCount() { return rows.size(); }
+    @Override
+    public int getColumnCount() { return COLUMNS.length; }
+    @Override
+    public String getColumnName(int column) { return COLUMNS[column]; }
+    @Override
+    public Object getValueAt(int row, int column) {
+      final Row r = rows.get(row);
+      switch (column) {
+      case 0: return r.step;
+      case 1: return r.wealth;
+      case 2: return r.rho;
+      case 3: return Double.isNaN(r.totalReturn) ? "" : String.format("%.6f", r.totalReturn);
+      case 4: return Double.isNaN(r.totalVariance) ? "" : String.format("%.6f", r.totalVariance);
+      case 5: return Double.isNaN(r.solveTime) ? "" : String.format("%.3f s", r.solveTime);
+      case 6: return r.status;
+      default: return null;
+      }
+    }
+  };
+  private final JLabel pollLabel = new JLabel();
+  /** Number of rows that received a result or failed. */
+  private int completed = 0;
+  private Collection<CloseListener> closeListeners = new Vector<CloseListener>();
+
+  public BacktestResultView(Date start, String history, int window) {
+    this.start = start;
+    setLayout(new BorderLayout(5, 5));
+
+    final JPanel top = new JPanel();
+    top.setLayout(new GridBagLayout());
+    final Insets inset = new Insets(2, 2, 2, 2);
+    top.add(new JLabel("History"), new GridBagConstraints(0, 0, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, inset, 0, 0));
+    top.add(new JLabel(history), new GridBagConstraints(1, 0, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, inset, 0, 0));
+    top.add(new JLabel("Window"), new GridBagConstraints(0, 1, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, inset, 0, 0));
+    top.add(new JLabel("" + window), new GridBagConstraints(1, 1, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, inset, 0, 0));
+    top.add(new JButton(new AbstractAction("Close") {
+      private static final long serialVersionUID = 1;
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        for (final CloseListener closeListener : closeListeners)
+          closeListener.resultViewClosed(BacktestResultView.this);
+      }
+    }), new GridBagConstraints(2, 0, 1, 2, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.BOTH, inset, 0, 0));
+    add(top, BorderLayout.NORTH);
+
+    add(new JScrollPane(new JTable(model)), BorderLayout.CENTER);
+    add(pollLabel, BorderLayout.SOUTH);
+    updateLabel(null);
+  }
+
+  @Override
+  public void addCloseListener(CloseListener closeListener) { closeListeners.add(closeListener); }
+  @Override
+  public void removeCloseListener(CloseListener closeListener) { closeListeners.remove(closeListener); }
+
+  private void updateLabel(Date pollDate) {
+    pollLabel.setText("Started at " + start + ", " + completed + " of " + rows.size() + " results" +
+                      ((pollDate != null) ? ", last polled at " + pollDate : ""));
+  }
+
+  /** Add a row for a point of a backtest step.
+   * @return The index of the new row.
+   */
+  public int addPoint(long step, double wealth, double rho) {
+    rows.add(new Row(step, wealth, rho));
+    model.fireTableRowsInserted(rows.size() - 1, rows.size() - 1);
+    updateLabel(null);
+    return rows.size() - 1;
+  }
+
+  /** Set the results of the point in row <code>row</code>.
+   * @param solveTime Time in seconds that CPLEX spent to solve the problem.
+   */
+  public void setResults(int row, boolean optimal, double totalReturn, double totalVariance, double solveTime) {
+    final Row r = rows.get(row);
+    r.totalReturn = totalReturn;
+    r.totalVariance = totalVariance;
+    r.solveTime = solveTime;
+    r.status = optimal ? "optimal" : "not optimal";
+    ++completed;
+    model.fireTableRowsUpdated(row, row);
+    updateLabel(null);
+  }
+
+  /** Mark the point in row <code>row</code> as failed. */
+  public void setFailed(int row, String message) {
+    rows.get(row).status = "failed: " + message;
+    ++completed;
+    model.fireTableRowsUpdated(row, row);
+    updateLabel(null);
+  }
+
+  @Override
+  public void setLastPoll(Date date) { updateLabel(date); }
+
+  @Override
+  public void taskFailed(SoamException exception) { setException(exception); }
+
+  /** Display an exception that is not associated with a particular row. */
+  @Override
+  public void setException(Exception exception) {
+    pollLabel.setText("Started at " + start + ", " + completed + " of " + rows.size() + " results, error: " + exception.getMessage());
+  }
+}
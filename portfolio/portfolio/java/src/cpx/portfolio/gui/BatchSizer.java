@@ -0,0 +1,100 @@
+package cpx.portfolio.gui;
+
+/** Chooses how many wealth/rho points go into one task.
+ * Scheduling and messaging overhead per task often exceeds the time to solve
+ * a single point for small universes, so the points of a sweep are packed into
+ * batches (see {@link cpx.portfolio.messages.BatchInput}) that should each run
+ * for about a target duration. The time per point is assumed to grow with the
+ * square of the number of investments (the number of covariance terms) and the
+ * factor is learned from the times that the service reports for completed batches.
+ * Until the first batch completed the factor is {@link #DEFAULT_FACTOR} (or the
+ * value of {@link #FACTOR_PROPERTY}), so that the first sweep is batched as well.
+ * Batches are never so large that a sweep has fewer tasks than there are slots
+ * to run them (see {@link #SLOTS_PROPERTY}), so a sweep always uses all slots.
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+final class BatchSizer {
+  /** System property with the target task duration in milliseconds. */
+  public static final String TARGET_PROPERTY = "cpx.portfolio.batch.millis";
+  /** Default target task duration in milliseconds. */
+  public static final long DEFAULT_TARGET = 2000;
+  /** System property with the initial estimate of milliseconds per point and squared number of investments. */
+  public static final String FACTOR_PROPERTY = "cpx.portfolio.batch.factor";
+  /** Default initial estimate of milliseconds per point and squared number of investments.
+   * This is on the slow side, so that the first sweep rather gets too many than too few tasks.
+   */
+  public static final double DEFAULT_FACTOR = 1e-4;
+  /** System property with the number of slots that run tasks in parallel.
+   * The Symphony client API does not report the slots of the application,
+   * so the default is the number of processors of this host.
+   */
+  public static final String SLOTS_PROPERTY = "cpx.portfolio.batch.slots";
+
+  private final long target;
+  private final int slots;
+  /** Estimated milliseconds per point and squared number of investments. */
+  private double factor;
+  /** Whether {@link #factor} was learned from a completed batch. */
+  private boolean learned = false;
+
+  public BatchSizer() {
+    this(Long.getLong(TARGET_PROPERTY, DEFAULT_TARGET), initialFactor(),
+         Integer.getInteger(SLOTS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+  }
+  /** Create a new instance.
+   * @param target The target task duration in milliseconds.
+   * @param factor The initial estimate of milliseconds per point and squared number of investments.
+   * @param slots  The number of slots that run tasks in parallel.
+   */
+  public BatchSizer(long target, double factor, int slots) {
+    this.target = target;
+    this.factor = factor;
+    this.slots = Math.max(1, slots);
+  }
+
+  /** Get the initial estimate from {@link #FACTOR_PROPERTY}. */
+  private static double initialFactor() {
+    final String value = System.getProperty(FACTOR_PROPERTY);
+    if (value == null)
+      return DEFAULT_FACTOR;
+    try { return Double.parseDouble(value); }
+    catch (NumberFormatException e) { return DEFAULT_FACTOR; }
+  }
+
+  private static double weight(int investments) {
+    final double n = Math.max(1, investments);
+    return n * n;
+  }
+
+  /** Get the number of points per task for a sweep.
+   * @param investments Number of investments in the data set.
+   * @param points      Number of points in the sweep.
+   * @return The batch size, between 1 and <code>points</code> (1 if the sweep is empty).
+   */
+  public synchronized int batchSize(int investments, int points) {
+    if (points <= 1 || Double.isNaN(factor))
+      return 1;
+    // The largest size that still gives each slot a task.
+    final int spread = Math.max(1, points / slots);
+    if (factor <= 0.0)
+      return spread;
+    final double size = Math.floor(target / (factor * weight(investments)));
+    return (int)Math.max(1, Math.min(spread, size));
+  }
+
+  /** Record the time the service spent on a completed batch.
+   * @param investments Number of investments in the data set.
+   * @param points      Number of points in the batch.
+   * @param millis      The time spent on the batch.
+   */
+  public synchronized void record(int investments, int points, long millis) {
+    if (points <= 0 || millis < 0)
+      return;
+    final double observed = millis / (points * weight(investments));
+    // Smooth the estimate so that a single slow or fast batch does not dominate.
+    // The initial estimate is only a guess, so the first observation replaces it.
+    factor = learned ? 0.5 * (factor + observed) : observed;
+    learned = true;
+  }
+}
@@ -2,17 +2,22 @@ package cpx.portfolio.gui;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -26,15 +31,25 @@ import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.AbstractTableModel;
 
 import cpx.portfolio.data.Covariance;
+import cpx.portfolio.data.CovarianceConditioner;
+import cpx.portfolio.data.DataWatcher;
 import cpx.portfolio.data.IO;
 import cpx.portfolio.data.Investment;
+import cpx.portfolio.data.InvestmentTable;
+import cpx.portfolio.data.MatrixImporter;
+import cpx.portfolio.data.ReturnHistory;
+import cpx.portfolio.data.RollingCovariance;
 
 /** Editor for covariance matrix and investments.
  * The editor displays the covariance matrix in a table. It allows editing the covariance
@@ -78,6 +93,27 @@ public class CovarianceEditor extends JPanel {
      */
     public void sample(Collection<Investment> investments, Covariance covariance, double wealth, double minRho, double maxRho, double step);
   }
+  
+  /** Listener to trigger a rolling backtest.
+   * Register an instance of this via {@link CovarianceEditor#addBacktestListener(BacktestListener)} to
+   * get notified whenever the user clicks "Backtest" in a {@link CovarianceEditor}.
+   */
+  public interface BacktestListener {
+    /** Start a rolling backtest.
+     * This function is invoked before the return history is fed into <code>window</code>,
+     * in the background. The function should register with <code>window</code> and start
+     * a run for each combination of wealth and rho at each step.
+     * @param investments The investments in the return history.
+     * @param window      The rolling window that estimates the covariance matrix.
+     * @param name        The name of the return history.
+     * @param wealths     The list of initial wealth values.
+     * @param rhos        The list of rho values.
+     * @param feed        The task that feeds the return history into <code>window</code>.
+     *                    Cancel it to stop the backtest. It is done once the history
+     *                    was fed completely, or the feed failed or was cancelled.
+     */
+    public void backtest(Collection<Investment> investments, RollingCovariance window, String name, Double[] wealths, Double[] rhos, SwingWorker<?, ?> feed);
+  }
 
   /** Table model for displaying investments and covariance.
    * The first row in the table lists the expected return for each investment.
@@ -92,51 +128,57 @@ public class CovarianceEditor extends JPanel {
     /** Row offset for display of covariance values. */
     private static final int COVARIANCE_OFFSET = 2;
     
-    /** Array representation of the current set of investments.
-     * Since we need to look up investments by index into the collection we keep
-     * an array representation of that set.
-     */
-    private Investment[] investments;
-    
-    public TableModel(Collection<Investment> is) {
-      investments = is.toArray(new Investment[is.size()]);
-    }
-    
-    /** Set the investments currently viewed by this model.
+    /** Reload the table after investments were added, removed or reordered.
      * This will also reload the covariance matrix and adapt the table structure as needed.
-     * @param is The set of investments to display.
+     * The model reads the investments of the editor directly by row.
      */
-    public void setInvestments(Collection<Investment> is) {
-      investments = is.toArray(new Investment[is.size()]);
+    public void reload() {
       fireTableStructureChanged();
       fireTableDataChanged();
     }
     
+    /** Refresh the cells that display data for some investments.
+     * This must only be used if the ids and the order of the investments
+     * did not change since the last {@link #reload()}.
+     * @param ids The ids of the investments whose data changed.
+     */
+    public void refresh(long[] ids) {
+      for (final long id : ids) {
+        final int i = investments.indexOf(id);
+        if (i < 0)
+          continue;
+        // Return, row of the investment, and its column above the diagonal.
+        fireTableCellUpdated(RETURN_ROW, i + 1);
+        fireTableRowsUpdated(COVARIANCE_OFFSET + i, COVARIANCE_OFFSET + i);
+        fireTableChanged(new TableModelEvent(this, COVARIANCE_OFFSET, COVARIANCE_OFFSET + i, i + 1));
+      }
+    }
+    
     @Override
-    public int getColumnCount() { return investments.length + 1; }
+    public int getColumnCount() { return investments.size() + 1; }
     @Override
-    public int getRowCount() { return COVARIANCE_OFFSET + investments.length; }
+    public int getRowCount() { return COVARIANCE_OFFSET + investments.size(); }
     @Override
     public Object getValueAt(int row, int col) {
       if (col == 0) {
         if (row == RETURN_ROW)
           return "Return";
         else if (row >= COVARIANCE_OFFSET)
-          return investments[row - COVARIANCE_OFFSET].getName();
+          return investments.getName(row - COVARIANCE_OFFSET);
         else
           return "";
       }
       else {
         --col;
         if (row == RETURN_ROW)
-          return new Double(investments[col].getReturn());
+          return new Double(investments.getReturn(col));
         else if (row < COVARIANCE_OFFSET)
           return "";
         row -= COVARIANCE_OFFSET;
         if (row > col)
           return "";
         else
-          return new Double(covariance.getCovariance(investments[row].getId(), investments[col].getId()));
+          return new Double(covariance.getCovariance(investments.getId(row), investments.getId(col)));
       }
     }
     @Override
@@ -156,11 +198,11 @@ public class CovarianceEditor extends JPanel {
       try {
         final double d = Double.parseDouble(value.toString().trim());
         if (row == RETURN_ROW)
-          investments[col - 1].setReturn(d);
+          investments.setReturn(col - 1, d);
         else {
           --col;
           row -= COVARIANCE_OFFSET;
-          covariance.setCovariance(investments[row].getId(), investments[col].getId(), d);
+          covariance.setCovariance(investments.getId(row), investments.getId(col), d);
         }
       }
       catch (NumberFormatException e) {
@@ -172,11 +214,11 @@ public class CovarianceEditor extends JPanel {
       if (col == 0)
         return "";
       else
-        return investments[col - 1].getName();
+        return investments.getName(col - 1);
     }
   }
   
-  private final Collection<Investment> investments;
+  private final InvestmentTable investments;
   private final Covariance covariance;
   private final TableModel tableModel;
   private final JTable covarianceTable;
@@ -233,6 +275,74 @@ public class CovarianceEditor extends JPanel {
     }
   };
   
+  /** Default number of observations in a backtest window. */
+  private static final int DEFAULT_WINDOW = 250;
+  /** Action to start a rolling backtest.
+   * Pops up a modal dialog that prompts for a return history (see {@link ReturnHistory})
+   * and asks for the window length. The history is then fed into a {@link RollingCovariance}
+   * in a {@link FileTask}, the registered {@link BacktestListener}s start a run for each
+   * wealth/rho combination in {@link #runWealth} and {@link #runRho} at each step.
+   * Investments that are in the editor keep their names.
+   */
+  private final Action BACKTEST = new AbstractAction("Backtest ...") {
+    private static final long serialVersionUID = 1;
+    @Override
+    public void actionPerformed(ActionEvent event) {
+      final Double[] wealths;
+      final Double[] rhos;
+      try {
+        wealths = text2doubles(runWealth, "wealth");
+        rhos = text2doubles(runRho, "rho");
+      }
+      catch (IllegalStateException e) {
+        JOptionPane.showMessageDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this), e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        return;
+      }
+      initChooser();
+      chooser.setDialogTitle("Return history (CSV/TSV)");
+      final boolean selected = chooser.showOpenDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this)) == JFileChooser.APPROVE_OPTION;
+      chooser.setDialogTitle(null);
+      if (!selected)
+        return;
+      final File file = chooser.getSelectedFile();
+      final String length = JOptionPane.showInputDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this),
+                                                        "Window length (observations)", DEFAULT_WINDOW);
+      if (length == null)
+        return;
+      final ReturnHistory history;
+      final RollingCovariance window;
+      try {
+        history = new ReturnHistory(file);
+        window = new RollingCovariance(history.getIds(), Integer.parseInt(length.trim()));
+      }
+      catch (IOException e) {
+        JOptionPane.showMessageDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this), e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        return;
+      }
+      catch (IllegalArgumentException e) {
+        JOptionPane.showMessageDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this), "Invalid window length: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        return;
+      }
+      final InvestmentTable windowInvestments = new InvestmentTable();
+      for (final long id : history.getIds()) {
+        final int row = investments.indexOf(id);
+        windowInvestments.add(id, 0.0, (row >= 0) ? investments.getName(row) : Long.toString(id), 0.0);
+      }
+      final FileTask feed = new FileTask("Backtest " + file.getName()) {
+        @Override
+        protected Void doInBackground() throws IOException {
+          history.feed(window, this);
+          return null;
+        }
+        @Override
+        protected void finish() {}
+      };
+      for (final BacktestListener b : backtestListeners)
+        b.backtest(windowInvestments, window, file.getName(), wealths, rhos, feed);
+      feed.start();
+    }
+  };
+  
   /** Create a new investments.
    * Pops up a modal dialog that allows input of a new investment.
    */
@@ -241,8 +351,8 @@ public class CovarianceEditor extends JPanel {
     @Override
     public void actionPerformed(ActionEvent e) {
       long maxId = 0;
-      for (final Investment i : investments)
-        maxId = Math.max(maxId, i.getId());
+      for (int row = 0; row < investments.size(); ++row)
+        maxId = Math.max(maxId, investments.getId(row));
       final long newId = maxId + 1;
       
       final JDialog dialog = new JDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this), true);
@@ -263,7 +373,7 @@ public class CovarianceEditor extends JPanel {
       panel.add(returnInput, new GridBagConstraints(1, 1, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.HORIZONTAL, inset, 0, 0));
       panel.add(new JLabel("Covariance"), new GridBagConstraints(0, 2, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.VERTICAL, inset, 0, 0));
       final Double[] newCovariance = new Double[investments.size() + 1];
-      final Investment[] currentInvestments = investments.toArray(new Investment[investments.size()]);
+      final long[] currentIds = investments.getIds();
       Arrays.fill(newCovariance, new Double(0.0));
       final JTable covarianceInput = new JTable(new AbstractTableModel() {
         private static final long serialVersionUID = 1;
@@ -277,7 +387,7 @@ public class CovarianceEditor extends JPanel {
             if (row == 0)
               return "";
             else
-              return currentInvestments[row - 1].getName();
+              return investments.getName(row - 1);
           }
           else
             return newCovariance[row];
@@ -313,15 +423,11 @@ public class CovarianceEditor extends JPanel {
             JOptionPane.showMessageDialog(JOptionPane.getFrameForComponent(dialog), "Not a number: " + returnInput.getText().trim(), "Error", JOptionPane.ERROR_MESSAGE);
             return;
           }
-          final Investment i = new Investment();
-          i.setId(newId);
-          i.setName(name);
-          i.setReturn(ret);
-          investments.add(i);
-          covariance.setCovariance(i.getId(), i.getId(), newCovariance[0]);
-          for (int c = 0; c < currentInvestments.length; ++c)
-            covariance.setCovariance(currentInvestments[c].getId(), i.getId(), newCovariance[c + 1]);
-          tableModel.setInvestments(investments);
+          investments.add(newId, ret, name, Double.NaN);
+          covariance.setCovariance(newId, newId, newCovariance[0]);
+          for (int c = 0; c < currentIds.length; ++c)
+            covariance.setCovariance(currentIds[c], newId, newCovariance[c + 1]);
+          tableModel.reload();
           dialog.setVisible(false);
         }
       }));
@@ -351,14 +457,14 @@ public class CovarianceEditor extends JPanel {
       if (selectedRow < TableModel.COVARIANCE_OFFSET)
         return;
       final int row = selectedRow - TableModel.COVARIANCE_OFFSET;
-      final Investment investment = tableModel.investments[row];
-      investments.remove(investment);
-      covariance.remove(investment.getId());
-      tableModel.setInvestments(investments);
+      final long id = investments.getId(row);
+      investments.remove(row);
+      covariance.remove(id);
+      tableModel.reload();
     }
   };
   
-  /** File chooser used in {@link #SAVE} and {@link #LOAD}.
+  /** File chooser used in {@link #SAVE}, {@link #LOAD}, {@link #APPLY} and {@link #IMPORT}.
    * The actions share a static file chooser so that loads and saves always
    * take off where the previous load/save left.
    */
@@ -368,9 +474,86 @@ public class CovarianceEditor extends JPanel {
       chooser = new JFileChooser();
     }
   }
+  /** Load or save of a file in the background.
+   * Progress is shown in {@link #progressBar}, the task can be cancelled with
+   * {@link #CANCEL}. While a task runs, the actions that read or replace the
+   * editor content are disabled.
+   */
+  private abstract class FileTask extends SwingWorker<Void, Void> implements IO.Progress {
+    private final String what;
+    public FileTask(String what) { this.what = what; }
+    /** Called on the event dispatch thread if the task completed successfully. */
+    protected abstract void finish();
+    @Override
+    public void update(long done, long total) throws InterruptedIOException {
+      if (isCancelled())
+        throw new InterruptedIOException(what + " cancelled");
+      setProgress((total > 0) ? (int)Math.min(100, 100 * done / total) : 0);
+    }
+    @Override
+    protected void done() {
+      task = null;
+      setBusy(false);
+      if (isCancelled())
+        return;
+      try {
+        get();
+        finish();
+      }
+      catch (InterruptedException e) {
+        // Cannot happen, the task is done.
+      }
+      catch (ExecutionException e) {
+        JOptionPane.showMessageDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this), e.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+      }
+    }
+    /** Start this task. */
+    public void start() {
+      task = this;
+      setBusy(true);
+      progressBar.setValue(0);
+      progressBar.setString(what);
+      addPropertyChangeListener(new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+          if ("progress".equals(evt.getPropertyName()))
+            progressBar.setValue((Integer)evt.getNewValue());
+        }
+      });
+      execute();
+    }
+  }
+  /** The currently running file task or <code>null</code>. */
+  private FileTask task = null;
+  /** Shows the progress of {@link #task}. */
+  private final JProgressBar progressBar = new JProgressBar(0, 100);
+  /** Enable or disable the actions that conflict with a running {@link FileTask}. */
+  private void setBusy(boolean busy) {
+    SAVE.setEnabled(!busy);
+    LOAD.setEnabled(!busy);
+    APPLY.setEnabled(!busy);
+    IMPORT.setEnabled(!busy);
+    BACKTEST.setEnabled(!busy);
+    CONDITION.setEnabled(!busy);
+    FACTOR_MODEL.setEnabled(!busy);
+    CANCEL.setEnabled(busy);
+    progressBar.setVisible(busy);
+  }
+  /** Cancel the running {@link FileTask}. The editor content is not changed. */
+  private final Action CANCEL = new AbstractAction("Cancel") {
+    private static final long serialVersionUID = 1;
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      if (task != null)
+        task.cancel(true);
+    }
+  };
   /** Save the current editor state to a file.
    * Pops up a modal dialog that prompts for a save file name and saves the editor
-   * content to that file.
+   * content to that file in the background. The content is saved as it was when
+   * saving started. The data is written to a temporary file that replaces the
+   * selected file when saving completed, so a failed or cancelled save does not
+   * destroy an existing file.
    */
   private final Action SAVE = new AbstractAction("Save ...") {
     private static final long serialVersionUID = 1;
@@ -379,20 +562,37 @@ public class CovarianceEditor extends JPanel {
       initChooser();
       if (chooser.showSaveDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this)) == JFileChooser.APPROVE_OPTION) {
         final File file = chooser.getSelectedFile();
-        try {
-          final FileOutputStream fos = new FileOutputStream(file);
-          try { IO.save(fos, investments, covariance); }
-          finally { fos.close(); }
-        }
-        catch (IOException exception) {
-          JOptionPane.showMessageDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this), exception.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-        }
+        final InvestmentTable savedInvestments = new InvestmentTable(investments);
+        final Covariance savedCovariance = covariance.snapshot();
+        new FileTask("Saving " + file.getName()) {
+          @Override
+          protected Void doInBackground() throws IOException {
+            final File parent = file.getAbsoluteFile().getParentFile();
+            final File temp = File.createTempFile("." + file.getName() + ".", ".tmp", parent);
+            try {
+              // Files named *.gz are compressed.
+              IO.save(temp, savedInvestments, savedCovariance, false, file.getName().endsWith(".gz"), this);
+              if (!isCancelled() && !temp.renameTo(file)) {
+                if (!file.delete() || !temp.renameTo(file))
+                  throw new IOException("Cannot replace " + file);
+              }
+            }
+            finally {
+              if (temp.exists())
+                temp.delete();
+            }
+            return null;
+          }
+          @Override
+          protected void finish() {}
+        }.start();
       }
     }
   };
   /** Load editor from a file.
    * Pops up a modal dialog that prompts for an input file name and loads the data
-   * specified in that file.
+   * specified in that file in the background. The editor content is replaced
+   * when loading completed. A failed or cancelled load does not change it.
    */
   private final Action LOAD = new AbstractAction("Load ...") {
     private static final long serialVersionUID = 1;
@@ -401,22 +601,263 @@ public class CovarianceEditor extends JPanel {
       initChooser();
       if (chooser.showOpenDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this)) == JFileChooser.APPROVE_OPTION) {
         final File file = chooser.getSelectedFile();
-        try {
-          final FileInputStream fos = new FileInputStream(file);
-          try { IO.load(fos, investments, covariance); }
-          finally {
-            fos.close();
-            tableModel.setInvestments(investments);
+        final InvestmentTable newInvestments = new InvestmentTable();
+        final Covariance newCovariance = new Covariance();
+        new FileTask("Loading " + file.getName()) {
+          @Override
+          protected Void doInBackground() throws IOException {
+            // The editor keeps the data, do not map the file so that it can be saved over.
+            IO.load(file, newInvestments, newCovariance, false, this);
+            return null;
+          }
+          @Override
+          protected void finish() {
+            investments.clear();
+            investments.addAll(newInvestments);
+            covariance.copy(newCovariance);
+            tableModel.reload();
+          }
+        }.start();
+      }
+    }
+  };
+  /** Apply a delta file to the editor content.
+   * Pops up a modal dialog that prompts for a delta file and applies the
+   * changes in that file (see {@link IO#apply(File, Collection, Covariance)})
+   * to a copy of the editor content in the background. The editor content is
+   * replaced when applying completed, and only the table cells of investments
+   * that changed are refreshed. A failed or cancelled apply does not change it.
+   */
+  private final Action APPLY = new AbstractAction("Apply ...") {
+    private static final long serialVersionUID = 1;
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      initChooser();
+      if (chooser.showOpenDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this)) == JFileChooser.APPROVE_OPTION) {
+        final File file = chooser.getSelectedFile();
+        final InvestmentTable newInvestments = new InvestmentTable(investments);
+        final Covariance newCovariance = new Covariance();
+        newCovariance.copy(covariance);
+        new FileTask("Applying " + file.getName()) {
+          private long[] changed = null;
+          @Override
+          protected Void doInBackground() throws IOException {
+            changed = IO.apply(file, newInvestments, newCovariance, this);
+            return null;
+          }
+          @Override
+          protected void finish() {
+            final long[] before = investments.getIds();
+            investments.clear();
+            investments.addAll(newInvestments);
+            covariance.copy(newCovariance);
+            if (Arrays.equals(before, investments.getIds()))
+              tableModel.refresh(changed);
+            else
+              tableModel.reload();
+            // Column headers show names, which may have changed.
+            covarianceTable.getTableHeader().repaint();
           }
+        }.start();
+      }
+    }
+  };
+  /** Import the editor content from a dense covariance matrix.
+   * Pops up two modal dialogs that prompt for the covariance file and the
+   * returns file (see {@link MatrixImporter}) and imports these files in the
+   * background. The editor content is replaced when importing completed. A
+   * failed or cancelled import does not change it.
+   */
+  private final Action IMPORT = new AbstractAction("Import ...") {
+    private static final long serialVersionUID = 1;
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      initChooser();
+      chooser.setDialogTitle("Covariance matrix (CSV/TSV)");
+      final boolean selected = chooser.showOpenDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this)) == JFileChooser.APPROVE_OPTION;
+      chooser.setDialogTitle(null);
+      if (!selected)
+        return;
+      final File matrix = chooser.getSelectedFile();
+      chooser.setDialogTitle("Returns (CSV/TSV)");
+      final boolean selectedReturns = chooser.showOpenDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this)) == JFileChooser.APPROVE_OPTION;
+      chooser.setDialogTitle(null);
+      if (!selectedReturns)
+        return;
+      final File returns = chooser.getSelectedFile();
+      final InvestmentTable newInvestments = new InvestmentTable();
+      final Covariance newCovariance = new Covariance();
+      new FileTask("Importing " + matrix.getName()) {
+        @Override
+        protected Void doInBackground() throws IOException {
+          new MatrixImporter().importData(matrix, returns, newInvestments, newCovariance);
+          return null;
         }
-        catch (IOException exception) {
-          JOptionPane.showMessageDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this), exception.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        @Override
+        protected void finish() { replace(newInvestments, newCovariance); }
+      }.start();
+    }
+  };
+  /** Default shrinkage intensity in {@link #CONDITION}. */
+  private static final double DEFAULT_SHRINKAGE = 0.1;
+  /** Default correlation cutoff in {@link #CONDITION}. */
+  private static final double DEFAULT_CUTOFF = 0.05;
+  /** Improve the conditioning of the covariance matrix.
+   * Pops up modal dialogs that prompt for the shrinkage intensity and the
+   * thresholding mode (see {@link CovarianceConditioner}) and conditions the
+   * matrix in the background. The matrix is replaced when conditioning
+   * completed, and a summary of the changes is shown.
+   */
+  private final Action CONDITION = new AbstractAction("Condition ...") {
+    private static final long serialVersionUID = 1;
+    @Override
+    public void actionPerformed(ActionEvent event) {
+      final Component parent = JOptionPane.getFrameForComponent(CovarianceEditor.this);
+      final CovarianceConditioner conditioner = new CovarianceConditioner();
+      try {
+        final String shrinkage = JOptionPane.showInputDialog(parent, "Shrinkage intensity (0 to 1)", DEFAULT_SHRINKAGE);
+        if (shrinkage == null)
+          return;
+        conditioner.setShrinkage(Double.parseDouble(shrinkage.trim()));
+        final Object mode = JOptionPane.showInputDialog(parent, "Thresholding of small correlations", "Condition",
+                                                        JOptionPane.QUESTION_MESSAGE, null,
+                                                        CovarianceConditioner.Threshold.values(),
+                                                        CovarianceConditioner.Threshold.NONE);
+        if (mode == null)
+          return;
+        if (mode != CovarianceConditioner.Threshold.NONE) {
+          final String cutoff = JOptionPane.showInputDialog(parent, "Correlation cutoff (0 to 1)", DEFAULT_CUTOFF);
+          if (cutoff == null)
+            return;
+          conditioner.setThreshold((CovarianceConditioner.Threshold)mode, Double.parseDouble(cutoff.trim()));
         }
       }
+      catch (IllegalArgumentException e) {
+        // Also catches NumberFormatException.
+        JOptionPane.showMessageDialog(parent, "Invalid value: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        return;
+      }
+      final InvestmentTable current = new InvestmentTable(investments);
+      final Covariance snapshot = covariance.snapshot();
+      new FileTask("Conditioning covariance") {
+        private CovarianceConditioner.Result result = null;
+        @Override
+        protected Void doInBackground() {
+          result = conditioner.condition(snapshot);
+          return null;
+        }
+        @Override
+        protected void finish() {
+          replace(current, result.getCovariance());
+          JOptionPane.showMessageDialog(parent,
+                                        String.format("Shrinkage %.3f, %d entries thresholded, %.1f%% of the pairs non-zero",
+                                                      result.getShrinkage(), result.getZeros(), 100.0 * result.getNonZeroRatio()),
+                                        "Condition", JOptionPane.INFORMATION_MESSAGE);
+        }
+      }.start();
     }
   };
+  /** Default number of factors in {@link #FACTOR_MODEL}. */
+  private static final int DEFAULT_FACTORS = 5;
+  /** Replace the covariance matrix by a factor model.
+   * Pops up a modal dialog that prompts for the number of factors and fits a
+   * factor model (see {@link Covariance#fitFactorModel(int)}) in the background.
+   * The matrix is replaced when fitting completed. Data sent to the service
+   * then only holds the factor model.
+   */
+  private final Action FACTOR_MODEL = new AbstractAction("Factor Model ...") {
+    private static final long serialVersionUID = 1;
+    @Override
+    public void actionPerformed(ActionEvent event) {
+      final Component parent = JOptionPane.getFrameForComponent(CovarianceEditor.this);
+      final String factors = JOptionPane.showInputDialog(parent, "Number of factors", Math.min(DEFAULT_FACTORS, investments.size()));
+      if (factors == null)
+        return;
+      final int k;
+      try {
+        k = Integer.parseInt(factors.trim());
+      }
+      catch (NumberFormatException e) {
+        JOptionPane.showMessageDialog(parent, "Not a number: " + factors.trim(), "Error", JOptionPane.ERROR_MESSAGE);
+        return;
+      }
+      final InvestmentTable current = new InvestmentTable(investments);
+      final Covariance snapshot = covariance.snapshot();
+      new FileTask("Fitting factor model") {
+        private Covariance model = null;
+        @Override
+        protected Void doInBackground() {
+          model = snapshot.fitFactorModel(k);
+          return null;
+        }
+        @Override
+        protected void finish() { replace(current, model); }
+      }.start();
+    }
+  };
+  /** Watcher that reloads the editor content, if any. */
+  private DataWatcher watcher = null;
+  
+  /** Replace the editor content.
+   * The data is replaced in one step, and only the table cells of investments
+   * whose data differs are refreshed. Must be called on the event dispatch thread.
+   * @param newInvestments The new investments.
+   * @param newCovariance  The new covariance matrix. Its data is shared, not copied.
+   */
+  public void replace(Collection<Investment> newInvestments, Covariance newCovariance) {
+    final long[] changed = IO.diff(investments, covariance, newInvestments, newCovariance);
+    boolean same = newInvestments.size() == investments.size();
+    int row = 0;
+    for (final Iterator<Investment> it = newInvestments.iterator(); same && it.hasNext(); ++row)
+      same = it.next().getId() == investments.getId(row);
+    investments.clear();
+    investments.addAll(newInvestments);
+    covariance.copy(newCovariance);
+    if (same)
+      tableModel.refresh(changed);
+    else
+      tableModel.reload();
+    covarianceTable.getTableHeader().repaint();
+  }
+  
+  /** Reload the editor content whenever a data file in <code>directory</code> is created or modified.
+   * Files are loaded in the background (see {@link DataWatcher}), the editor
+   * content is replaced when loading finished. Any previous watcher is stopped.
+   * @param directory The directory to watch or <code>null</code> to stop watching.
+   * @param quiet     The time in milliseconds for which a file must not change before it is loaded.
+   * @throws IOException if the directory cannot be watched.
+   */
+  public void watch(File directory, long quiet) throws IOException {
+    if (watcher != null) {
+      watcher.close();
+      watcher = null;
+    }
+    if (directory == null)
+      return;
+    watcher = new DataWatcher(directory, quiet, new DataWatcher.Listener() {
+      @Override
+      public void loaded(File file, final List<Investment> newInvestments, final Covariance newCovariance) {
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() { replace(newInvestments, newCovariance); }
+        });
+      }
+      @Override
+      public void failed(final File file, final IOException error) {
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            JOptionPane.showMessageDialog(JOptionPane.getFrameForComponent(CovarianceEditor.this), file + ": " + error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+          }
+        });
+      }
+    });
+    watcher.start(true);
+  }
+  
   private Collection<RunListener> runListeners = new Vector<CovarianceEditor.RunListener>();
   private Collection<SampleListener> sampleListeners = new Vector<CovarianceEditor.SampleListener>();
+  private Collection<BacktestListener> backtestListeners = new Vector<CovarianceEditor.BacktestListener>();
   
   /** Convert a string specifying a list of double values to an array of doubles. */
   private Double[] text2doubles(JTextField field, String what) throws IllegalStateException {
@@ -431,7 +872,7 @@ public class CovarianceEditor extends JPanel {
     return ret;
   }
   
-  public CovarianceEditor(Collection<Investment> initialInvestments, Covariance InitialCovariance, double defaultWealth, double defaultRho) {
+  public CovarianceEditor(InvestmentTable initialInvestments, Covariance InitialCovariance, double defaultWealth, double defaultRho) {
     investments = initialInvestments;
     covariance = InitialCovariance;
     
@@ -439,12 +880,12 @@ public class CovarianceEditor extends JPanel {
     setLayout(new BorderLayout(5, 5));
     
     // Create the central component: the table that shows covariances and investments.
-    tableModel = new TableModel(investments);
+    tableModel = new TableModel();
     covarianceTable = new JTable(tableModel);
     covarianceTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
     add(new JScrollPane(covarianceTable), BorderLayout.CENTER);
    
-    // In the top row of the layout create "New Investment", "Delete Investment", "Load", "Save" buttons.
+    // In the top row of the layout create "New Investment", "Delete Investment", "Load", "Save", "Apply", "Import", "Condition", "Factor Model" buttons.
     final JPanel buttons = new JPanel();
     buttons.setBorder(BorderFactory.createEmptyBorder(2, 2, 2, 2));
     buttons.setLayout(new BoxLayout(buttons, BoxLayout.X_AXIS));
@@ -460,6 +901,25 @@ public class CovarianceEditor extends JPanel {
     buttons.add(Box.createHorizontalStrut(5));
     buttons.add(b = new JButton(LOAD));
     b.setToolTipText("Load investment and covariance settings from a file");
+    buttons.add(Box.createHorizontalStrut(5));
+    buttons.add(b = new JButton(APPLY));
+    b.setToolTipText("Apply changes to investments and covariance from a delta file");
+    buttons.add(Box.createHorizontalStrut(5));
+    buttons.add(b = new JButton(IMPORT));
+    b.setToolTipText("Import a dense covariance matrix and returns from CSV or TSV files");
+    buttons.add(Box.createHorizontalStrut(5));
+    buttons.add(b = new JButton(CONDITION));
+    b.setToolTipText("Shrink and threshold the covariance matrix to improve its conditioning");
+    buttons.add(Box.createHorizontalStrut(5));
+    buttons.add(b = new JButton(FACTOR_MODEL));
+    b.setToolTipText("Approximate the covariance matrix by a factor model");
+    buttons.add(Box.createHorizontalStrut(5));
+    progressBar.setStringPainted(true);
+    buttons.add(progressBar);
+    buttons.add(Box.createHorizontalStrut(5));
+    buttons.add(b = new JButton(CANCEL));
+    b.setToolTipText("Cancel loading or saving");
+    setBusy(false);
     add(buttons, BorderLayout.NORTH);
     
     // Create input controls for "Run".
@@ -474,6 +934,8 @@ public class CovarianceEditor extends JPanel {
     runButtons.add(runRho, new GridBagConstraints(1, 1, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHEAST, GridBagConstraints.NONE, inset, 0, 0));
     runButtons.add(b = new JButton(RUN), new GridBagConstraints(2, 0, 1, 2, 0.0, 0.0, GridBagConstraints.NORTHEAST, GridBagConstraints.BOTH, inset, 0, 0));
     b.setToolTipText("Find optimal allocation for specified wealth and rho");
+    runButtons.add(b = new JButton(BACKTEST), new GridBagConstraints(3, 0, 1, 2, 0.0, 0.0, GridBagConstraints.NORTHEAST, GridBagConstraints.BOTH, inset, 0, 0));
+    b.setToolTipText("Run for specified wealth and rho at each step of a rolling window over a return history");
     
     // Create input controls for "Sample".
     final JPanel sampleButtons = new JPanel();
@@ -512,4 +974,7 @@ public class CovarianceEditor extends JPanel {
   
   public void addSampleListener(SampleListener sampleListener) { sampleListeners.add(sampleListener); }
   public void removeSampleListener(SampleListener sampleListener) { sampleListeners.add(sampleListener); }
+  
+  public void addBacktestListener(BacktestListener backtestListener) { backtestListeners.add(backtestListener); }
+  public void removeBacktestListener(BacktestListener backtestListener) { backtestListeners.remove(backtestListener); }
 }
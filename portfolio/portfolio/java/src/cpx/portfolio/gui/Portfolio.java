@@ -2,24 +2,36 @@ package cpx.portfolio.gui;
 
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.Vector;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JTabbedPane;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 import com.platform.symphony.soam.Connection;
 import com.platform.symphony.soam.DefaultSecurityCallback;
 import com.platform.symphony.soam.EnumItems;
 import com.platform.symphony.soam.Session;
+import com.platform.symphony.soam.SessionCallback;
 import com.platform.symphony.soam.SessionCloseFlags;
 import com.platform.symphony.soam.SessionCreationAttributes;
 import com.platform.symphony.soam.SessionOpenAttributes;
@@ -29,14 +41,20 @@ import com.platform.symphony.soam.TaskOutputHandle;
 import com.platform.symphony.soam.TaskSubmissionAttributes;
 
 import cpx.portfolio.data.Covariance;
+import cpx.portfolio.data.CovarianceValidator;
+import cpx.portfolio.data.IO;
 import cpx.portfolio.data.Investment;
-import cpx.portfolio.messages.Input;
+import cpx.portfolio.data.InvestmentTable;
+import cpx.portfolio.data.RollingCovariance;
+import cpx.portfolio.messages.BatchInput;
+import cpx.portfolio.messages.BatchOutput;
+import cpx.portfolio.messages.CommonData;
 import cpx.portfolio.messages.Output;
 
 /** The main GUI class.
  * This class also implements all interaction with Symphony.
  */
-public class Portfolio extends JFrame implements CovarianceEditor.RunListener, CovarianceEditor.SampleListener, ResultView.CloseListener {
+public class Portfolio extends JFrame implements CovarianceEditor.RunListener, CovarianceEditor.SampleListener, CovarianceEditor.BacktestListener, ResultView.CloseListener {
   private static final long serialVersionUID = 1;
   
   private final JTabbedPane tabs = new JTabbedPane();
@@ -45,139 +63,487 @@ public class Portfolio extends JFrame implements CovarianceEditor.RunListener, C
   private DefaultSecurityCallback securityCallback = null;
   private Connection connection = null;
   
-  /** Class to poll for results from a Symphony task.
-   * Each instance of this class is associated with a Symphony session. Since
-   * we only start one task per session this is the same as being associated with a
-   * single task. Each task corresponds to an optimization problem.
-   * In the {@link #poll()} function an instance of this class checks whether the
-   * optimization problem submitted to PlatformSymphony has already been solved. If
-   * it has then the results are displayed in the GUI. 
-   *
+  /** System property that disables the asynchronous receive of task outputs.
+   * If this property is <code>true</code> then the outputs of all sessions are
+   * polled, as they are for sessions whose asynchronous receive failed.
+   */
+  public static final String POLL_PROPERTY = "cpx.portfolio.poll";
+  
+  /** Class to receive the results from the tasks of a Symphony session.
+   * Each instance of this class is associated with a Symphony session. Each
+   * task is a batch of optimization problems for one or more wealth/rho
+   * combinations. The tasks of a sweep share the investments and covariance
+   * matrix in the common data of the session, while each task of a backtest
+   * has its own (see {@link BacktestPoller}).
+   * The session is created with {@link Session#RECEIVE_ASYNC}, so each output
+   * is posted to the GUI as soon as Symphony delivers it to the session callback.
+   * If the callback reports an exception (or if {@link #POLL_PROPERTY} is set)
+   * then the instance falls back to polling:
+   * In the {@link #poll()} function an instance of this class attaches to the
+   * session again if necessary and checks whether any of the optimization problems
+   * submitted to PlatformSymphony have been solved. If they have then the results
+   * are displayed in the GUI. The session stays open until all outputs were
+   * received, so that polling does not need to open and close the session each time.
    */
   private abstract class Poller {
-    public final String sessionId;
-    public final String sessionName;
-    private final ResultView view;
+    /** Maximum number of outputs to fetch with one call. */
+    private static final int FETCH_BATCH = 64;
+    /** Number of investments in the common data of the session. */
+    private final int investments;
+    private String sessionId;
+    private String sessionName;
+    /** The open session, <code>null</code> if not attached to the session. */
+    private Session session;
+    /** Number of tasks whose output was not yet received. */
+    private int remaining;
+    /** Whether more tasks may be submitted, see {@link #finish()}. */
+    private boolean submitting;
+    /** Whether outputs are polled instead of delivered to {@link #callback}. */
+    private volatile boolean polling;
     
-    protected Poller(String sessionId, String sessionName, ResultView view) {
-      this.sessionId = sessionId;
-      this.sessionName = sessionName;
-      this.view = view;
+    /** Callback for the asynchronous receive of outputs. */
+    private final SessionCallback callback = new SessionCallback() {
+      @Override
+      public void onResponse(TaskOutputHandle outputHandle) throws SoamException {
+        synchronized (Poller.this) {
+          handleOutput(outputHandle);
+          if (remaining == 0 && !submitting)
+            closeLater(SessionCloseFlags.DESTROY_ON_CLOSE, false);
+        }
+      }
+      @Override
+      public void onException(SoamException exception) throws SoamException {
+        handleException(exception);
+        // Detach from the session and poll it, which attaches to it again.
+        closeLater(SessionCloseFlags.DETACH_ON_CLOSE, true);
+      }
+    };
+    
+    protected Poller(int investments) {
+      this.investments = investments;
     }
     
-    protected abstract void taskComplete(Output output);
+    /** Called when a task was submitted, on the thread that submitted it. */
+    protected abstract void taskSubmitted(String taskId, BatchInput input);
+    /** Called on the event dispatch thread when a task completed successfully.
+     * The output has one {@link Output} per point of the task's batch.
+     */
+    protected abstract void taskComplete(String taskId, BatchOutput output);
+    /** Called on the event dispatch thread when a task failed. */
+    protected abstract void taskFailed(String taskId, SoamException exception);
+    /** Called on the event dispatch thread when the session cannot be polled. */
+    protected abstract void setException(SoamException exception);
+    /** Called on the event dispatch thread when no output was available. */
+    protected abstract void setLastPoll(Date pollDate);
+    
+    /** Called on the event dispatch thread to tell the user about an exception. */
+    protected void display(SoamException exception) { displayException(exception); }
     
     protected void handleException(final SoamException exception) {
       SwingUtilities.invokeLater(new Runnable() {
         @Override
         public void run() {
-          view.setException(exception);
-          displayException(exception);
+          setException(exception);
+          display(exception);
         }
       });
     }
     
-    /** Poll the task associated with this instance.
-     * If the task is found complete then {@link #taskComplete(Output)} will be invoked with
-     * the task's output. Do not invoke this function again once it returned <code>true</code>.
-     * @return <code>true</code> if the task is complete, <code>false</code> otherwise.
+    /** Submit a sweep of tasks to Symphony.
+     * The function creates a new session whose common data holds the investments
+     * and the covariance matrix, and submits a task for each of <code>inputs</code>.
+     * The session stays open until all outputs were received. If a task cannot be
+     * submitted then the session is destroyed.
+     * Must be called on the event dispatch thread, after the instance was added
+     * to {@link Portfolio#pollers}.
+     * @param sessionName Name for the newly created session.
+     * @param common      Common data of the new session.
+     * @param inputs      Inputs of the tasks, see {@link BatchInput#BatchInput(double[], double[])}.
+     * @throws SoamException if there is a problem with PlatformSymphony.
+     */
+    public synchronized void start(String sessionName, CommonData common, List<BatchInput> inputs) throws SoamException {
+      // Outputs that arrive before all tasks are submitted wait for the lock.
+      open(sessionName, common);
+      try {
+        for (final BatchInput input : inputs)
+          submit(input);
+      }
+      catch (SoamException e) {
+        try { session.close(SessionCloseFlags.DESTROY_ON_CLOSE); }
+        catch (SoamException ignored) { /* Report the original exception. */ }
+        session = null;
+        throw e;
+      }
+      finish();
+    }
+    
+    /** Create the session.
+     * Tasks are then submitted with {@link #submit(BatchInput)}, until {@link #finish()}
+     * is called. The session stays open until that and until all outputs were received.
+     * The instance must have been added to {@link Portfolio#pollers}.
+     * @param sessionName Name for the newly created session.
+     * @param common      Common data of the new session, <code>null</code> if
+     *                    every task has its own investments and covariance matrix.
+     * @throws SoamException if there is a problem with PlatformSymphony.
+     */
+    public synchronized void open(String sessionName, CommonData common) throws SoamException {
+      final SessionCreationAttributes attributes = new SessionCreationAttributes();
+      attributes.setSessionName(sessionName);
+      attributes.setSessionType("ShortRunningTasks");
+      if (Boolean.getBoolean(POLL_PROPERTY)) {
+        attributes.setSessionFlags(Session.RECEIVE_SYNC);
+        polling = true;
+      }
+      else {
+        attributes.setSessionFlags(Session.RECEIVE_ASYNC);
+        attributes.setSessionCallback(callback);
+      }
+      if (common != null)
+        attributes.setCommonData(common);
+      
+      session = connection.createSession(attributes);
+      this.sessionId = session.getId();
+      this.sessionName = sessionName;
+      submitting = true;
+    }
+    
+    /** Submit a task to the session.
+     * @throws SoamException if there is a problem with PlatformSymphony.
+     */
+    protected synchronized void submit(BatchInput input) throws SoamException {
+      attach();
+      final TaskSubmissionAttributes taskAttributes = new TaskSubmissionAttributes();
+      taskAttributes.setTaskInput(input);
+      taskSubmitted(session.sendTaskInput(taskAttributes).getId(), input);
+      ++remaining;
+    }
+    
+    /** Test whether tasks can still be submitted to the session. */
+    protected synchronized boolean isSubmitting() { return submitting; }
+    
+    /** Declare that no more tasks will be submitted.
+     * The session is destroyed once the outputs of all submitted tasks were received.
+     */
+    public synchronized void finish() {
+      if (!submitting)
+        return;
+      submitting = false;
+      if (remaining == 0)
+        closeLater(SessionCloseFlags.DESTROY_ON_CLOSE, false);
+    }
+    
+    /** Destroy the session without waiting for the outputs of its tasks. */
+    public synchronized void destroy() {
+      submitting = false;
+      closeLater(SessionCloseFlags.DESTROY_ON_CLOSE, false);
+    }
+    
+    /** Test whether this instance must be polled. */
+    public boolean isPolling() { return polling; }
+    
+    /** Close the session.
+     * @param flags {@link SessionCloseFlags#DESTROY_ON_CLOSE} or
+     *              {@link SessionCloseFlags#DETACH_ON_CLOSE}.
+     */
+    public synchronized void close(int flags) {
+      if (session == null)
+        return;
+      try { session.close(flags); }
+      catch (SoamException exception) { handleException(exception); }
+      session = null;
+    }
+    
+    /** Close the session on the polling timer thread.
+     * The session must not be closed from its callback.
+     * @param flags See {@link #close(int)}.
+     * @param poll  If <code>true</code> then this instance is polled afterwards,
+     *              otherwise it is removed from {@link Portfolio#pollers}.
+     */
+    private void closeLater(final int flags, final boolean poll) {
+      try {
+        pollTimer.schedule(new TimerTask() {
+          @Override
+          public void run() {
+            close(flags);
+            polling = poll;
+            if (!poll) {
+              synchronized (pollers) { pollers.remove(Poller.this); }
+            }
+          }
+        }, 0);
+      }
+      catch (IllegalStateException ignored) { /* The timer was cancelled on exit. */ }
+    }
+    
+    /** Attach to the session again if it was detached from. */
+    private void attach() throws SoamException {
+      if (session != null)
+        return;
+      final SessionOpenAttributes sessionAttributes = new SessionOpenAttributes();
+      sessionAttributes.setSessionId(sessionId);
+      sessionAttributes.setSessionName(sessionName);
+      sessionAttributes.setSessionFlags(Session.RECEIVE_SYNC);
+      session = connection.openSession(sessionAttributes);
+    }
+    
+    /** Poll the tasks associated with this instance.
+     * For each task that is found complete {@link #taskComplete(String, BatchOutput)} or
+     * {@link #taskFailed(String, SoamException)} will be invoked. Do not invoke this
+     * function again once it returned <code>true</code>.
+     * @return <code>true</code> if all tasks are complete, <code>false</code> otherwise.
      */
-    public boolean poll() {
-      Session session = null;
+    public synchronized boolean poll() {
       try {
-        // Open the session.
-        final SessionOpenAttributes sessionAttributes = new SessionOpenAttributes();
-        sessionAttributes.setSessionId(sessionId);
-        sessionAttributes.setSessionName(sessionName);
-        sessionAttributes.setSessionFlags(Session.RECEIVE_SYNC);
-        session = connection.openSession(sessionAttributes);
+        attach();
         
-        // Check for output. Specifying a timeout of 0 means that the function will
-        // return immediately.
-        final EnumItems enumItems = session.fetchTaskOutput(1, 0);
-        if (enumItems.getCount() == 0) {
-          // No output available means the task is not finished yet.
+        // Fetch the available outputs in batches. Specifying a timeout of 0
+        // means that the function will return immediately with the outputs
+        // that are available.
+        int fetched = 0;
+        while (remaining > 0) {
+          final int count = Math.min(remaining, FETCH_BATCH);
+          final EnumItems enumItems = session.fetchTaskOutput(count, 0);
+          final int available = enumItems.getCount();
+          for (int i = available; i > 0; --i)
+            handleOutput(enumItems.getNext());
+          fetched += available;
+          if (available < count)
+            break; // No more outputs right now.
+        }
+        if (fetched == 0) {
+          // No output available means no task finished since the last poll.
           final Date now = new Date();
           SwingUtilities.invokeLater(new Runnable() {
-            public void run() { view.setLastPoll(now); }
+            public void run() { setLastPoll(now); }
           });
           return false;
         }
-        
-        // Results are available.
-        final TaskOutputHandle outputHandle = enumItems.getNext();
-        if (!outputHandle.isSuccessful()) {
-          // The task failed. Post the exception message to the result viewer.
-          final SoamException exception = outputHandle.getException();
-          SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-              view.taskFailed(exception);
-              displayException(exception);
-            }
-          });
-        }
-        else {
-          // Task was successful.
-          final Output output = new Output();
-          outputHandle.populateTaskOutput(output);
-          SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-              taskComplete(output);
-            }
-          });
-        }
-        session.close(SessionCloseFlags.DESTROY_ON_CLOSE);
-        session = null;
-        
+        if (remaining > 0 || submitting)
+          return false;
+        close(SessionCloseFlags.DESTROY_ON_CLOSE);
         return true;
       }
       catch (final SoamException e) {
         handleException(e);
-        // There is something wrong with this session/task. So no longer poll for it.
+        // There is something wrong with this session. So no longer poll for it.
+        close(SessionCloseFlags.DETACH_ON_CLOSE);
         return true;
       }
-      finally {
-        if (session != null) {
-          try { session.close(SessionCloseFlags.DETACH_ON_CLOSE); }
-          catch (SoamException exception) { handleException(exception); }
-        }
+    }
+    
+    /** Post the output of a completed task to the GUI. */
+    private void handleOutput(TaskOutputHandle outputHandle) throws SoamException {
+      final String taskId = outputHandle.getId();
+      --remaining;
+      if (!outputHandle.isSuccessful()) {
+        // The task failed. Post the exception message to the result viewer.
+        final SoamException exception = outputHandle.getException();
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            taskFailed(taskId, exception);
+            display(exception);
+          }
+        });
+      }
+      else {
+        // Task was successful.
+        final BatchOutput output = new BatchOutput();
+        outputHandle.populateTaskOutput(output);
+        batchSizer.record(investments, output.getOutputs().size(), output.getElapsed());
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            taskComplete(taskId, output);
+          }
+        });
       }
     }
   }
   
-  /** Implementation of {@link #Poller} for optimization runs. */
+  /** Implementation of {@link #Poller} for optimization runs.
+   * Each point of the session posts its result to its own view.
+   */
   private final class RunPoller extends Poller {
-    /** The view to which results are posted once they become available. */
-    public final RunResultView view;
-    public RunPoller(String sessionId, String sessionName, RunResultView view) {
-      super(sessionId, sessionName, view);
-      this.view = view;
+    /** The views to which results are posted once they become available.
+     * By task id, and for each task in the order of the points in its batch.
+     */
+    private final Map<String, List<RunResultView>> views = new HashMap<String, List<RunResultView>>();
+    /** The views of all points, in the order in which the points are submitted. */
+    private final List<RunResultView> pointViews;
+    /** Number of points submitted so far. */
+    private int submitted = 0;
+    public RunPoller(int investments, List<RunResultView> pointViews) {
+      super(investments);
+      this.pointViews = pointViews;
+    }
+    public void taskSubmitted(String taskId, BatchInput input) {
+      views.put(taskId, pointViews.subList(submitted, submitted + input.size()));
+      submitted += input.size();
     }
-    public void taskComplete(Output output) {
-      view.setResults(output.getInvestments(), output.getTotalReturn(), output.getTotalVariance());
+    public void taskComplete(String taskId, BatchOutput output) {
+      final List<RunResultView> taskViews = views.get(taskId);
+      if (taskViews == null)
+        return;
+      final List<Output> outputs = output.getOutputs();
+      for (int i = 0; i < outputs.size() && i < taskViews.size(); ++i) {
+        final Output o = outputs.get(i);
+        taskViews.get(i).setResults(o.getInvestments(), o.getTotalReturn(), o.getTotalVariance(), o.getSolveTime());
+      }
+    }
+    public void taskFailed(String taskId, SoamException exception) {
+      final List<RunResultView> taskViews = views.get(taskId);
+      if (taskViews != null) {
+        for (final RunResultView view : taskViews)
+          view.taskFailed(exception);
+      }
+    }
+    public void setException(SoamException exception) {
+      for (final List<RunResultView> taskViews : views.values()) {
+        for (final RunResultView view : taskViews)
+          view.setException(exception);
+      }
+    }
+    public void setLastPoll(Date pollDate) {
+      for (final List<RunResultView> taskViews : views.values()) {
+        for (final RunResultView view : taskViews)
+          view.setLastPoll(pollDate);
+      }
     }
   }
   
-  /** Implementation of {@link Poller} for sampling runs. */
+  /** Implementation of {@link Poller} for sampling runs.
+   * All tasks of the session post their results to the same view.
+   */
   private final class SamplePoller extends Poller {
     /** The view to which results are posted once they become available. */
     public final SampleResultView view;
-    public SamplePoller(String sessionId, String sessionName, SampleResultView view) {
-      super(sessionId, sessionName, view);
+    public SamplePoller(int investments, SampleResultView view) {
+      super(investments);
       this.view = view;
     }
-    public void taskComplete(Output output) {
-      view.addResults(output.getInvestments(), output.getRho(), output.getTotalReturn(), output.getTotalVariance());
+    public void taskSubmitted(String taskId, BatchInput input) { /* All results go to the same view. */ }
+    public void taskComplete(String taskId, BatchOutput output) {
+      for (final Output o : output.getOutputs())
+        view.addResults(o.getInvestments(), o.getRho(), o.getTotalReturn(), o.getTotalVariance());
     }
+    public void taskFailed(String taskId, SoamException exception) { view.taskFailed(exception); }
+    public void setException(SoamException exception) { view.setException(exception); }
+    public void setLastPoll(Date pollDate) { view.setLastPoll(pollDate); }
   }
   
-  /** List of active tasks that we still need to poll for. */
+  /** Implementation of {@link Poller} for a rolling backtest.
+   * All steps of the backtest are submitted as tasks to the same session, which
+   * stays open while the return history is fed and until all outputs were received.
+   * The session has no common data, each step is one task with the estimate of
+   * that step and all wealth/rho points.
+   * The results of all points go to rows of the same view. Exceptions are only
+   * shown in the view, a backtest does not pop up dialogs.
+   */
+  private final class BacktestPoller extends Poller {
+    private final BacktestResultView view;
+    /** The task that feeds the window, see {@link CovarianceEditor.BacktestListener}. */
+    private final SwingWorker<?, ?> feed;
+    /** The view rows of each task whose output was not yet received, by task id.
+     * A task has the rows from <code>rows[0]</code> (inclusive) to <code>rows[1]</code> (exclusive).
+     */
+    private final Map<String, int[]> rows = Collections.synchronizedMap(new HashMap<String, int[]>());
+    /** Number of points submitted so far. */
+    private int submitted = 0;
+    
+    public BacktestPoller(int investments, BacktestResultView view, SwingWorker<?, ?> feed) {
+      super(investments);
+      this.view = view;
+      this.feed = feed;
+    }
+    
+    public void taskSubmitted(String taskId, BatchInput input) {
+      rows.put(taskId, new int[] { submitted, submitted + input.size() });
+      submitted += input.size();
+    }
+    public void taskComplete(String taskId, BatchOutput output) {
+      final int[] range = rows.remove(taskId);
+      if (range == null)
+        return;
+      int row = range[0];
+      for (final Output point : output.getOutputs())
+        view.setResults(row++, point.isOptimal(), point.getTotalReturn(), point.getTotalVariance(), point.getSolveTime());
+    }
+    public void taskFailed(String taskId, SoamException exception) {
+      final int[] range = rows.remove(taskId);
+      if (range == null)
+        return;
+      for (int row = range[0]; row < range[1]; ++row)
+        view.setFailed(row, exception.getMessage());
+    }
+    public void setException(SoamException exception) { view.setException(exception); }
+    public void setLastPoll(Date pollDate) { view.setLastPoll(pollDate); }
+    
+    @Override
+    protected void display(SoamException exception) { /* Shown in the view only. */ }
+    
+    /** Submit a task with each combination of wealth and rho for one step of the backtest.
+     * This is called on the thread that feeds the window. If the task cannot be
+     * submitted then the backtest is stopped.
+     */
+    public synchronized void submit(final long step, Collection<Investment> investments, Covariance covariance, Double[] wealths, Double[] rhos) {
+      if (!isSubmitting())
+        return; // The backtest was stopped.
+      final double[] wealthValues = new double[wealths.length * rhos.length];
+      final double[] rhoValues = new double[wealthValues.length];
+      int point = 0;
+      for (final Double wealth : wealths) {
+        for (final Double rho : rhos) {
+          wealthValues[point] = wealth;
+          rhoValues[point] = rho;
+          ++point;
+        }
+      }
+      // The rows are added before the task exists, so they are there when the output arrives.
+      SwingUtilities.invokeLater(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < wealthValues.length; ++i)
+            view.addPoint(step, wealthValues[i], rhoValues[i]);
+        }
+      });
+      try {
+        submit(new BatchInput(investments, covariance, wealthValues, rhoValues));
+      }
+      catch (final SoamException e) {
+        final int first = submitted;
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            for (int i = 0; i < wealthValues.length; ++i)
+              view.setFailed(first + i, e.getMessage());
+          }
+        });
+        handleException(e);
+        // Stop feeding, but still receive the outputs of the submitted tasks.
+        feed.cancel(true);
+        finish();
+      }
+    }
+    
+    /** Stop the backtest.
+     * This stops feeding the window and destroys the session, so tasks that
+     * were not yet computed are discarded.
+     */
+    public void cancel() {
+      feed.cancel(true);
+      destroy();
+    }
+  }
+  
+  /** List of active sessions whose outputs were not all received. */
   private final LinkedList<Poller> pollers = new LinkedList<Poller>();
   /** Timer for polling.
-   * Using this timer we periodically poll all the tasks in {@link #pollers}.
+   * Using this timer we periodically poll the sessions in {@link #pollers} that
+   * do not receive their outputs asynchronously.
    */
   private final Timer pollTimer = new Timer("polling timer");
+  /** Chooses the number of points per task from the times of completed tasks. */
+  private final BatchSizer batchSizer = new BatchSizer();
   
   /** Initialize the credentials to log in to PlatformSymphony.
    * In a real world application this function would prompt the user for the
@@ -209,54 +575,174 @@ public class Portfolio extends JFrame implements CovarianceEditor.RunListener, C
     return "Portfolio" + nextId++;
   }
   
-  /** Submit a task to Symphony.
-   * The function creates a new session with a single task in it. Then it detaches
-   * from the session and returns the id of the newly created session.
-   * @param sessionName Name for the newly created task.
-   * @param input Input to the new task.
-   * @return The session ID of the newly submitted task.
-   * @throws SoamException if there is a problem with PlatformSymphony.
+  /** Submit a sweep of tasks to Symphony.
+   * See {@link Poller#start(String, CommonData, List)}.
    */
-  private String startTask(String sessionName, Input input) throws SoamException {
-    final SessionCreationAttributes attributes = new SessionCreationAttributes();
-    attributes.setSessionName(sessionName);
-    attributes.setSessionType("ShortRunningTasks");
-    attributes.setSessionFlags(Session.RECEIVE_SYNC);
-    
-    final Session session = connection.createSession(attributes);
-    final String sessionId = session.getId();
-    /** FIXME: If any of the below throws then we should close the session? */
-
-    final TaskSubmissionAttributes taskAttributes = new TaskSubmissionAttributes();
-    taskAttributes.setTaskInput(input);
-    session.sendTaskInput(taskAttributes);
-    session.close(SessionCloseFlags.DETACH_ON_CLOSE);
-    
-    return sessionId;
+  private void startSession(Poller poller, CommonData common, List<BatchInput> inputs) throws SoamException {
+    synchronized (pollers) {
+      pollers.add(poller);
+    }
+    try {
+      poller.start(createSessionName(), common, inputs);
+    }
+    catch (SoamException e) {
+      synchronized (pollers) {
+        pollers.remove(poller);
+      }
+      throw e;
+    }
+  }
+  
+  /** Pack the points of a sweep into batches.
+   * Point <code>i</code> of the sweep is <code>wealths[i]</code>/<code>rhos[i]</code>.
+   * The batch size is chosen by {@link #batchSizer}.
+   */
+  private List<BatchInput> createBatches(int investments, double[] wealths, double[] rhos) {
+    final int size = batchSizer.batchSize(investments, wealths.length);
+    final List<BatchInput> batches = new ArrayList<BatchInput>();
+    for (int from = 0; from < wealths.length; from += size) {
+      final int to = Math.min(wealths.length, from + size);
+      batches.add(new BatchInput(Arrays.copyOfRange(wealths, from, to), Arrays.copyOfRange(rhos, from, to)));
+    }
+    return batches;
+  }
+  
+  /** Largest number of investments for which {@link CovarianceValidator#repair} is offered.
+   * Repair takes O(n<sup>3</sup>) time per sweep, for larger matrices it would take minutes.
+   */
+  private static final int MAX_REPAIR = 500;
+  
+  /** Receives the data of a job once it was validated. */
+  private interface Validated {
+    /** Called on the event dispatch thread with the data to submit. */
+    void submit(InvestmentTable investments, Covariance snapshot);
+  }
+  
+  /** Check the covariance matrix before a job is submitted.
+   * The check runs in the background, on a snapshot of the data as it is when
+   * this function is called. A matrix with missing pairs is rejected. If the matrix
+   * is not positive semidefinite then the user can choose to repair it (up to
+   * {@link #MAX_REPAIR} investments), to submit it anyway, or to cancel the job.
+   * Must be called on the event dispatch thread.
+   * @param then Receives the data to submit, it is not called if the job should
+   *             not be submitted.
+   */
+  private void validate(Collection<Investment> investments, Covariance covariance, final Validated then) {
+    final InvestmentTable table = new InvestmentTable(investments);
+    final Covariance snapshot = covariance.snapshot();
+    final CovarianceValidator validator = new CovarianceValidator();
+    new SwingWorker<CovarianceValidator.Report, Void>() {
+      @Override
+      protected CovarianceValidator.Report doInBackground() {
+        return validator.validate(table, snapshot);
+      }
+      @Override
+      protected void done() {
+        final CovarianceValidator.Report report;
+        try { report = get(); }
+        catch (InterruptedException e) { return; /* Cannot happen, the task is done. */ }
+        catch (ExecutionException e) {
+          JOptionPane.showMessageDialog(Portfolio.this, e.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+          return;
+        }
+        if (report.isValid()) {
+          then.submit(table, snapshot);
+          return;
+        }
+        if (!report.isComplete()) {
+          JOptionPane.showMessageDialog(Portfolio.this, "The covariance matrix has no values for some pairs of investments.\n" +
+                                        "Each of these pairs involves one of: " +
+                                        formatIds(report.getMissing()), "Error", JOptionPane.ERROR_MESSAGE);
+          return;
+        }
+        final String message = "The covariance matrix is not positive semidefinite.\n" +
+          "Offending investments: " + formatIds(report.getOffending()) + "\n";
+        if (table.size() > MAX_REPAIR) {
+          final int choice = JOptionPane.showConfirmDialog(Portfolio.this, message + "Submit it anyway?",
+                                                           "Invalid covariance matrix", JOptionPane.YES_NO_OPTION,
+                                                           JOptionPane.WARNING_MESSAGE);
+          if (choice == JOptionPane.YES_OPTION)
+            then.submit(table, snapshot);
+          return;
+        }
+        final Object[] options = new Object[]{ "Repair", "Submit anyway", "Cancel" };
+        final int choice = JOptionPane.showOptionDialog(Portfolio.this, message +
+                                                        "Repair it by projecting it to the nearest positive semidefinite matrix?",
+                                                        "Invalid covariance matrix", JOptionPane.YES_NO_CANCEL_OPTION,
+                                                        JOptionPane.WARNING_MESSAGE, null, options, options[0]);
+        switch (choice) {
+        case JOptionPane.YES_OPTION: repair(validator, table, snapshot, then); break;
+        case JOptionPane.NO_OPTION: then.submit(table, snapshot); break;
+        default: break;
+        }
+      }
+    }.execute();
   }
   
+  /** Repair a covariance matrix in the background and pass the result to <code>then</code>. */
+  private void repair(final CovarianceValidator validator, final InvestmentTable investments, final Covariance covariance, final Validated then) {
+    new SwingWorker<Covariance, Void>() {
+      @Override
+      protected Covariance doInBackground() {
+        return validator.repair(investments, covariance).snapshot();
+      }
+      @Override
+      protected void done() {
+        try { then.submit(investments, get()); }
+        catch (InterruptedException e) { /* Cannot happen, the task is done. */ }
+        catch (ExecutionException e) {
+          JOptionPane.showMessageDialog(Portfolio.this, e.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+      }
+    }.execute();
+  }
+
+  /** Format a list of investment ids for display, abbreviating long lists. */
+  private static String formatIds(long[] ids) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < ids.length && i < 10; ++i)
+      sb.append(i > 0 ? ", " : "").append(ids[i]);
+    if (ids.length > 10)
+      sb.append(" and ").append(ids.length - 10).append(" more");
+    return sb.toString();
+  }
+
   /** Start a sampling job.
    * This function is invoked when the corresponding {@link CovarianceEditor} detects a request to
    * submit a job that samples a range of rho values.
    */
   @Override
-  public void sample(Collection<Investment> investments, Covariance covariance, double wealth, double minRho, double maxRho, double step) {
+  public void sample(Collection<Investment> investments, Covariance covariance, final double wealth, final double minRho, final double maxRho, final double step) {
     initCredentials();
-    
-    // Create a new task for each value of rho we want to sample.
+    validate(investments, covariance, new Validated() {
+      @Override
+      public void submit(InvestmentTable table, Covariance snapshot) {
+        sample(new CommonData(table, snapshot), wealth, minRho, maxRho, step);
+      }
+    });
+  }
+  
+  /** Submit a sampling job for validated data. */
+  private void sample(CommonData common, double wealth, double minRho, double maxRho, double step) {
+    // Create a point for each value of rho we want to sample and pack the
+    // points into tasks. All tasks are in one session and share the snapshot
+    // of the investments and the covariance matrix in its common data.
     try {
       final SampleResultView view = new SampleResultView(new Date(), wealth);
       view.addCloseListener(this);
-      int count = 0;
-      for (double rho = minRho; rho <= maxRho; rho += step) {
-        ++count;
-        final String sessionName = createSessionName();
-        final String sessionId = startTask(sessionName, new Input(investments, covariance, wealth, rho));
-        synchronized (pollers) {
-          pollers.add(new SamplePoller(sessionId, sessionId, view));
-        }
+      final List<Double> points = new ArrayList<Double>();
+      for (double rho = minRho; rho <= maxRho; rho += step)
+        points.add(rho);
+      final double[] wealthValues = new double[points.size()];
+      final double[] rhoValues = new double[points.size()];
+      for (int i = 0; i < rhoValues.length; ++i) {
+        wealthValues[i] = wealth;
+        rhoValues[i] = points.get(i);
       }
-      view.setTotalResults(count);
+      final int size = common.getInvestments().size();
+      final List<BatchInput> inputs = createBatches(size, wealthValues, rhoValues);
+      startSession(new SamplePoller(size, view), common, inputs);
+      view.setTotalResults(rhoValues.length);
       final String tabName = "wealth = " + wealth + ", rho = [" + minRho + ", " + maxRho + "]";
       tabs.addTab(tabName, view);
     }
@@ -272,25 +758,41 @@ public class Portfolio extends JFrame implements CovarianceEditor.RunListener, C
    * optimal portfolio for a wealth/row combination.
    */
   @Override
-  public void run(Collection<Investment> investments, Covariance covariance, Double[] wealths, Double[] rhos) {
+  public void run(Collection<Investment> investments, Covariance covariance, final Double[] wealths, final Double[] rhos) {
     initCredentials();
-    
-    // Create a new solve for each combination of wealth and rho
+    validate(investments, covariance, new Validated() {
+      @Override
+      public void submit(InvestmentTable table, Covariance snapshot) {
+        run(new CommonData(table, snapshot), wealths, rhos);
+      }
+    });
+  }
+  
+  /** Submit an optimization job for validated data. */
+  private void run(CommonData common, Double[] wealths, Double[] rhos) {
+    // Create a point for each combination of wealth and rho and pack the
+    // points into tasks. All tasks are in one session and share the snapshot
+    // of the investments and the covariance matrix in its common data.
     try {
+      final double[] wealthValues = new double[wealths.length * rhos.length];
+      final double[] rhoValues = new double[wealthValues.length];
+      final List<RunResultView> views = new ArrayList<RunResultView>();
+      int point = 0;
       for (final Double wealth : wealths) {
         for (final Double rho : rhos) {
-          final String sessionName = createSessionName();
-          final String sessionId = startTask(sessionName, new Input(investments, covariance, wealth, rho));
-          
-          final String tabName = "wealth = " + wealth + ", rho = " + rho;
+          wealthValues[point] = wealth;
+          rhoValues[point] = rho;
+          ++point;
           final RunResultView view = new RunResultView(new Date(), wealth, rho);
           view.addCloseListener(this);
-          tabs.addTab(tabName, view);
-          synchronized (pollers) {
-            pollers.add(new RunPoller(sessionId, sessionName, view));
-          }
+          views.add(view);
         }
       }
+      final int size = common.getInvestments().size();
+      final List<BatchInput> inputs = createBatches(size, wealthValues, rhoValues);
+      startSession(new RunPoller(size, views), common, inputs);
+      for (int i = 0; i < views.size(); ++i)
+        tabs.addTab("wealth = " + wealthValues[i] + ", rho = " + rhoValues[i], views.get(i));
     }
     catch (SoamException e) {
       System.err.println(e.getMessage());
@@ -299,16 +801,78 @@ public class Portfolio extends JFrame implements CovarianceEditor.RunListener, C
     }
   }
   
+  /** Run an optimization job for each step of a rolling backtest.
+   * This function is invoked when the associated {@link CovarianceEditor} detects a
+   * request to run a backtest. Each time <code>window</code> produces a new estimate,
+   * the expected returns of (copies of) <code>investments</code> are set to the means
+   * over the window, and a job for each combination of wealth and rho is submitted
+   * with the estimated covariance matrix. All jobs are tasks in one session, and the
+   * results of all steps are collected in one {@link BacktestResultView}. Closing the
+   * view cancels <code>feed</code> and discards the jobs that were not yet computed.
+   * Steps are submitted without interaction: the estimates are sample covariances,
+   * which are complete and positive semidefinite by construction, and errors are shown
+   * in the view. The window may be fed from any thread.
+   */
+  @Override
+  public void backtest(final Collection<Investment> investments, RollingCovariance window, String name, final Double[] wealths, final Double[] rhos, SwingWorker<?, ?> feed) {
+    initCredentials();
+    if (connection == null) {
+      feed.cancel(true);
+      return;
+    }
+    final BacktestResultView view = new BacktestResultView(new Date(), name, window.getLength());
+    final BacktestPoller poller = new BacktestPoller(investments.size(), view, feed);
+    synchronized (pollers) {
+      pollers.add(poller);
+    }
+    try {
+      poller.open(createSessionName(), null);
+    }
+    catch (SoamException e) {
+      synchronized (pollers) {
+        pollers.remove(poller);
+      }
+      feed.cancel(true);
+      System.err.println(e.getMessage());
+      e.printStackTrace();
+      JOptionPane.showMessageDialog(Portfolio.this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+      return;
+    }
+    view.addCloseListener(this);
+    view.addCloseListener(new ResultView.CloseListener() {
+      @Override
+      public void resultViewClosed(JComponent view) { poller.cancel(); }
+    });
+    tabs.addTab("backtest " + name, view);
+    window.addListener(new RollingCovariance.Listener() {
+      @Override
+      public void step(RollingCovariance source, Covariance covariance) {
+        final InvestmentTable current = new InvestmentTable(investments);
+        source.updateReturns(current);
+        poller.submit(source.getSteps(), current, covariance, wealths, rhos);
+      }
+    });
+    // No more steps are submitted once the feed is done.
+    feed.addPropertyChangeListener(new PropertyChangeListener() {
+      @Override
+      public void propertyChange(PropertyChangeEvent event) {
+        if ("state".equals(event.getPropertyName()) && event.getNewValue() == SwingWorker.StateValue.DONE)
+          poller.finish();
+      }
+    });
+  }
+
   @Override
   public void resultViewClosed(JComponent view) {
     tabs.remove(view);
   }
   
-  public Portfolio(Collection<Investment> investments, Covariance covariance, double defaultWealth, double defaultRho) {
+  public Portfolio(InvestmentTable investments, Covariance covariance, double defaultWealth, double defaultRho) {
     super("Portfolio");
     covarianceEditor = new CovarianceEditor(investments, covariance, defaultWealth, defaultRho);
     covarianceEditor.addRunListener(this);
     covarianceEditor.addSampleListener(this);
+    covarianceEditor.addBacktestListener(this);
     tabs.addTab("Data", covarianceEditor);
     
     getContentPane().add(tabs);
@@ -318,7 +882,8 @@ public class Portfolio extends JFrame implements CovarianceEditor.RunListener, C
       public void run() {
         synchronized (pollers) {
           for (Iterator<Poller> it = pollers.iterator(); it.hasNext(); /* nothing */) {
-            if (it.next().poll())
+            final Poller poller = it.next();
+            if (poller.isPolling() && poller.poll())
               it.remove();
           }
         }
@@ -333,6 +898,12 @@ public class Portfolio extends JFrame implements CovarianceEditor.RunListener, C
   /** Gracefully exit from the application. */
   public void exit() {
     pollTimer.cancel();
+    // Detach from the sessions whose outputs were not all received.
+    synchronized (pollers) {
+      for (final Poller poller : pollers)
+        poller.close(SessionCloseFlags.DETACH_ON_CLOSE);
+      pollers.clear();
+    }
     if (connection != null) {
       try { connection.close(); }
       catch (SoamException ignored) {
@@ -342,6 +913,9 @@ public class Portfolio extends JFrame implements CovarianceEditor.RunListener, C
     }
   }
   
+  /** Time in milliseconds for which a watched data file must not change before it is loaded. */
+  private static final long WATCH_QUIET = 2000;
+  
   /** Hard-coded example data. */
   private static final class Example {
     private static final double[] returns = new double[]{
@@ -392,12 +966,22 @@ public class Portfolio extends JFrame implements CovarianceEditor.RunListener, C
      }
   }
   
-  public static void main(String[] args) throws SoamException {
+  /** Start the GUI.
+   * If a data file (text or binary, see {@link IO}) is given as argument then
+   * the data is loaded from that file. If a directory is given then the newest
+   * data file in it is loaded, and data is reloaded whenever a file in the
+   * directory is created or modified. Otherwise example data is used.
+   */
+  public static void main(String[] args) throws SoamException, IOException {
     SoamFactory.initialize();
     
-    final Collection<Investment> investments = new Vector<Investment>();
+    final InvestmentTable investments = new InvestmentTable();
     final Covariance covariance = new Covariance();
-    Example.populate(investments, covariance);
+    final File data = (args.length > 0) ? new File(args[0]) : null;
+    if (data == null)
+      Example.populate(investments, covariance);
+    else if (!data.isDirectory())
+      IO.load(data, investments, covariance);
     
     final Portfolio portfolio = new Portfolio(investments, covariance, Example.wealth, Example.rho);
     portfolio.addWindowListener(new WindowAdapter() {
@@ -409,6 +993,8 @@ public class Portfolio extends JFrame implements CovarianceEditor.RunListener, C
         System.exit(0);
       }
     });
+    if (data != null && data.isDirectory())
+      portfolio.covarianceEditor.watch(data, WATCH_QUIET);
     portfolio.pack();
     portfolio.setVisible(true);
   }
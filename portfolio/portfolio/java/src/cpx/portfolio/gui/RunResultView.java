@@ -23,7 +23,7 @@ import javax.swing.table.AbstractTableModel;
 
 import com.platform.symphony.soam.SoamException;
 
-import cpx.portfolio.data.Investment;
+import cpx.portfolio.data.InvestmentTable;
 
 /** Widget to visualize the results from a single optimization run.
  * Before results are available, the widget shows a simple label that displays when
@@ -69,29 +69,28 @@ public class RunResultView extends JPanel implements ResultView {
    * @param investments
    * @param totalReturn
    * @param totalVariance
+   * @param solveTime     Time in seconds that CPLEX spent to solve the problem.
    */
-  public void setResults(Collection<Investment> investments, double totalReturn, double totalVariance) {
+  public void setResults(final InvestmentTable investments, double totalReturn, double totalVariance, double solveTime) {
     // 	pollLabel = null;
     results.setVisible(false);
     remove(results);
     table.setVisible(false);
     remove(table);
     
-    final Investment[] array = investments.toArray(new Investment[investments.size()]);
-    
     table = new JScrollPane(new JTable(new AbstractTableModel() {
       private static final long serialVersionUID = 1;
       @Override
       public Object getValueAt(int row, int column) {
         switch (column) {
-        case 0: return array[row].getName();
-        case 1: return String.format("%.3f", array[row].getAllocation());
+        case 0: return investments.getName(row);
+        case 1: return String.format("%.3f", investments.getAllocation(row));
         default: return null;
         }
       }
       
       @Override
-      public int getRowCount() { return array.length; }
+      public int getRowCount() { return investments.size(); }
       
       @Override
       public int getColumnCount() { return 2; }
@@ -117,6 +116,8 @@ public class RunResultView extends JPanel implements ResultView {
     results.add(new JLabel("" + totalReturn), new GridBagConstraints(1, 0, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, inset, 0, 0));
     results.add(new JLabel("Total variance"), new GridBagConstraints(0, 1, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, inset, 0, 0));
     results.add(new JLabel("" + totalVariance), new GridBagConstraints(1, 1, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, inset, 0, 0));
+    results.add(new JLabel("Solve time"), new GridBagConstraints(0, 2, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, inset, 0, 0));
+    results.add(new JLabel(String.format("%.3f s", solveTime)), new GridBagConstraints(1, 2, 1, 1, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, inset, 0, 0));
     results.add(new JButton(new AbstractAction("Close") {
       private static final long serialVersionUID = 1;      
       @Override
@@ -125,7 +126,7 @@ public class RunResultView extends JPanel implements ResultView {
           closeListener.resultViewClosed(RunResultView.this);
         
       }
-    }), new GridBagConstraints(2, 0, 1, 2, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.BOTH, inset, 0, 0));
+    }), new GridBagConstraints(2, 0, 1, 3, 0.0, 0.0, GridBagConstraints.NORTHWEST, GridBagConstraints.BOTH, inset, 0, 0));
     results.setVisible(true);
     add(results, BorderLayout.SOUTH);
   }
@@ -0,0 +1,122 @@
+package cpx.portfolio.messages;
+
+import java.util.Collection;
+
+import com.platform.symphony.soam.InputStream;
+import com.platform.symphony.soam.Message;
+import com.platform.symphony.soam.OutputStream;
+import com.platform.symphony.soam.SoamException;
+
+import cpx.portfolio.data.Covariance;
+import cpx.portfolio.data.Investment;
+import cpx.portfolio.data.InvestmentTable;
+
+/** Batched input for the portfolio service.
+ * An instance of this message holds one data set and any number of
+ * wealth/rho points. The service solves the points in sequence and replies
+ * with a {@link BatchOutput} that has one {@link Output} per point, in the
+ * same order. As with {@link Input}, a message without investments uses the
+ * investments and covariance matrix in the {@link CommonData} of the session.
+ * <p>
+ * The message starts with {@link #BATCH_TAG}, which cannot start an
+ * {@link Input}, so a service can accept both messages for the same task.
+ */
+public class BatchInput extends Message {
+  /** Tag that starts a batch in a stream. */
+  public static final long BATCH_TAG = -3;
+
+  private InvestmentTable investments = new InvestmentTable();
+  private Covariance covariance = new Covariance();
+  private double[] wealths = new double[0];
+  private double[] rhos = new double[0];
+  private boolean bulk = Boolean.getBoolean(Input.BULK_PROPERTY);
+
+  public BatchInput() {}
+  /** Create a new batch.
+   * The data is shared or copied as described in
+   * {@link Input#Input(Collection, Covariance, double, double)}.
+   * Point <code>i</code> of the batch is <code>wealths[i]</code>/<code>rhos[i]</code>.
+   */
+  public BatchInput(Collection<Investment> investments, Covariance covariance, double[] wealths, double[] rhos) {
+    this(wealths, rhos);
+    setInvestments(investments);
+    this.covariance = covariance.snapshot();
+  }
+
+  /** Create a new batch for a session with {@link CommonData}.
+   * Point <code>i</code> of the batch is <code>wealths[i]</code>/<code>rhos[i]</code>.
+   */
+  public BatchInput(double[] wealths, double[] rhos) {
+    if (wealths.length != rhos.length)
+      throw new IllegalArgumentException("Different number of wealth and rho values");
+    this.wealths = wealths.clone();
+    this.rhos = rhos.clone();
+  }
+
+  private void clear() {
+    investments = new InvestmentTable();
+    covariance = new Covariance();
+    wealths = new double[0];
+    rhos = new double[0];
+  }
+
+  public InvestmentTable getInvestments() { return investments; }
+  /** Set the investments.
+   * An {@link InvestmentTable} is shared, any other collection is copied.
+   */
+  public void setInvestments(Collection<Investment> investments) {
+    this.investments = (investments instanceof InvestmentTable) ? (InvestmentTable)investments : new InvestmentTable(investments);
+  }
+
+  public Covariance getCovariance() { return covariance; }
+  public void setCovariance(Covariance covariance) { this.covariance = covariance; }
+
+  /** Get the number of wealth/rho points in this batch. */
+  public int size() { return wealths.length; }
+  public double getWealth(int point) { return wealths[point]; }
+  public double getRho(int point) { return rhos[point]; }
+
+  /** Test whether this message is written in bulk encoding (see {@link Input#BULK_PROPERTY}). */
+  public boolean isBulk() { return bulk; }
+  public void setBulk(boolean bulk) { this.bulk = bulk; }
+
+  @Override
+  public void onDeserialize(InputStream stream) throws SoamException {
+    clear();
+    boolean doReset = true;
+    try {
+      final long tag = stream.readLong();
+      if (tag != BATCH_TAG)
+        throw new SoamException("Not a batch input");
+      investments.onDeserialize(stream);
+      covariance.onDeserialize(stream);
+      final long count = stream.readLong();
+      if (count < 0 || count > Integer.MAX_VALUE)
+        throw new SoamException("Invalid number of points " + count);
+      wealths = new double[(int)count];
+      rhos = new double[(int)count];
+      for (int i = 0; i < wealths.length; ++i) {
+        wealths[i] = stream.readDouble();
+        rhos[i] = stream.readDouble();
+      }
+      doReset = false;
+    }
+    finally {
+      if (doReset)
+        clear();
+    }
+  }
+
+  @Override
+  public void onSerialize(OutputStream stream) throws SoamException {
+    stream.writeLong(BATCH_TAG);
+    investments.onSerialize(stream, bulk);
+    covariance.onSerialize(stream, bulk);
+    stream.writeLong(wealths.length);
+    for (int i = 0; i < wealths.length; ++i) {
+      stream.writeDouble(wealths[i]);
+      stream.writeDouble(rhos[i]);
+    }
+  }
+
+}
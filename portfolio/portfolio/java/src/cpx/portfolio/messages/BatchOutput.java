@@ -0,0 +1,71 @@
+package cpx.portfolio.messages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.platform.symphony.soam.InputStream;
+import com.platform.symphony.soam.Message;
+import com.platform.symphony.soam.OutputStream;
+import com.platform.symphony.soam.SoamException;
+
+/** Portfolio service output for a {@link BatchInput}.
+ * An instance of this class holds one {@link Output} per point of the batch,
+ * in the order of the points, and the time the service spent on the batch.
+ * The outputs are written with their solve time (see {@link Output#isTimed()}).
+ */
+public class BatchOutput extends Message {
+  private List<Output> outputs = new ArrayList<Output>();
+  private long elapsed = 0;
+  private boolean bulk = Boolean.getBoolean(Input.BULK_PROPERTY);
+
+  /** Get the outputs, one per point of the batch. */
+  public List<Output> getOutputs() { return Collections.unmodifiableList(outputs); }
+  public void addOutput(Output output) { outputs.add(output); }
+
+  /** Get the time in milliseconds that the service spent on the batch. */
+  public long getElapsed() { return elapsed; }
+  public void setElapsed(long elapsed) { this.elapsed = elapsed; }
+
+  /** Test whether this message is written in bulk encoding (see {@link Input#BULK_PROPERTY}). */
+  public boolean isBulk() { return bulk; }
+  public void setBulk(boolean bulk) { this.bulk = bulk; }
+
+  private void clear() {
+    outputs = new ArrayList<Output>();
+    elapsed = 0;
+  }
+
+  @Override
+  public void onDeserialize(InputStream stream) throws SoamException {
+    clear();
+    boolean doReset = true;
+    try {
+      final long count = stream.readLong();
+      if (count < 0 || count > Integer.MAX_VALUE)
+        throw new SoamException("Invalid number of outputs " + count);
+      elapsed = stream.readLong();
+      for (long i = 0; i < count; ++i) {
+        final Output output = new Output();
+        output.onDeserialize(stream);
+        outputs.add(output);
+      }
+      doReset = false;
+    }
+    finally {
+      if (doReset)
+        clear();
+    }
+  }
+
+  @Override
+  public void onSerialize(OutputStream stream) throws SoamException {
+    stream.writeLong(outputs.size());
+    stream.writeLong(elapsed);
+    // Only clients that know batches read batch outputs, so the outputs
+    // always have their solve time.
+    for (final Output output : outputs)
+      output.onSerialize(stream, bulk, true);
+  }
+
+}
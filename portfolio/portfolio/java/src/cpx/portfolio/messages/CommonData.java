@@ -0,0 +1,78 @@
+package cpx.portfolio.messages;
+
+import java.util.Collection;
+
+import com.platform.symphony.soam.InputStream;
+import com.platform.symphony.soam.Message;
+import com.platform.symphony.soam.OutputStream;
+import com.platform.symphony.soam.SoamException;
+
+import cpx.portfolio.data.Covariance;
+import cpx.portfolio.data.Investment;
+import cpx.portfolio.data.InvestmentTable;
+
+/** Session common data for the portfolio service.
+ * A client that submits many tasks for the same investments and covariance
+ * matrix (for example a sweep over rho) sends this data only once, as common
+ * data of the session. The tasks of such a session are {@link BatchInput}s without
+ * investments that only specify wealth/rho points (see
+ * {@link BatchInput#BatchInput(double[], double[])}).
+ */
+public class CommonData extends Message {
+  private InvestmentTable investments = new InvestmentTable();
+  private Covariance covariance = new Covariance();
+  private boolean bulk = Boolean.getBoolean(Input.BULK_PROPERTY);
+
+  public CommonData() {}
+  /** Create new common data.
+   * The message holds a snapshot of <code>covariance</code>. An
+   * {@link InvestmentTable} is shared (and must not be changed while the
+   * message is in use), any other collection is copied into a new table.
+   */
+  public CommonData(Collection<Investment> investments, Covariance covariance) {
+    setInvestments(investments);
+    this.covariance = covariance.snapshot();
+  }
+
+  private void clear() {
+    investments = new InvestmentTable();
+    covariance = new Covariance();
+  }
+
+  public InvestmentTable getInvestments() { return investments; }
+  /** Set the investments.
+   * An {@link InvestmentTable} is shared, any other collection is copied.
+   */
+  public void setInvestments(Collection<Investment> investments) {
+    this.investments = (investments instanceof InvestmentTable) ? (InvestmentTable)investments : new InvestmentTable(investments);
+  }
+
+  public Covariance getCovariance() { return covariance; }
+  public void setCovariance(Covariance covariance) { this.covariance = covariance; }
+
+  /** Test whether this message is written in bulk encoding (see {@link Input#BULK_PROPERTY}). */
+  public boolean isBulk() { return bulk; }
+  public void setBulk(boolean bulk) { this.bulk = bulk; }
+
+  @Override
+  public void onDeserialize(InputStream stream) throws SoamException {
+    clear();
+    boolean doReset = true;
+    try {
+      investments.onDeserialize(stream);
+      covariance.onDeserialize(stream);
+      doReset = false;
+    }
+    finally {
+      if (doReset)
+        clear();
+    }
+  }
+
+  @Override
+  public void onSerialize(OutputStream stream) throws SoamException {
+    investments.onSerialize(stream, bulk);
+    covariance.onSerialize(stream, bulk);
+  }
+
+}
@@ -1,7 +1,6 @@
 package cpx.portfolio.messages;
 
 import java.util.Collection;
-import java.util.Vector;
 
 import com.platform.symphony.soam.InputStream;
 import com.platform.symphony.soam.Message;
@@ -10,34 +9,59 @@ import com.platform.symphony.soam.SoamException;
 
 import cpx.portfolio.data.Covariance;
 import cpx.portfolio.data.Investment;
+import cpx.portfolio.data.InvestmentTable;
 
 /** Input for the portfolio service.
  * An instance of this messages provides all the data the portfolio service
- * needs to compute an optimal portfolio allocation.
+ * needs to compute an optimal portfolio allocation. If the message has no
+ * investments then the service uses the investments and covariance matrix
+ * in the {@link CommonData} of the session.
  */
 public class Input extends Message {
-  private Collection<Investment> investments = new Vector<Investment>();
+  /** System property that enables the bulk encoding of investments and covariance values.
+   * If this property is <code>true</code> then new messages are written with
+   * {@link InvestmentTable#onSerialize(OutputStream, boolean)} and
+   * {@link Covariance#onSerialize(OutputStream, boolean)} in bulk mode, which
+   * includes the compact form of factor models. Only
+   * enable it if all services understand the bulk encoding. Messages in either
+   * encoding are always read.
+   */
+  public static final String BULK_PROPERTY = "cpx.portfolio.bulk";
+
+  private InvestmentTable investments = new InvestmentTable();
   private Covariance covariance = new Covariance();
   private double wealth = Double.NaN;
   private double rho = Double.NaN;
+  private boolean bulk = Boolean.getBoolean(BULK_PROPERTY);
   
   public Input() {}
+  /** Create a new input message.
+   * The message holds a snapshot of <code>covariance</code>, so creating many
+   * messages for the same matrix does not copy the matrix. Likewise an
+   * {@link InvestmentTable} is shared (and must not be changed while the
+   * message is in use), any other collection is copied into a new table.
+   */
   public Input(Collection<Investment> investments, Covariance covariance, double wealth, double rho) {
-    this.investments.addAll(investments);
-    this.covariance.copy(covariance);
+    setInvestments(investments);
+    this.covariance = covariance.snapshot();
     this.wealth = wealth;
     this.rho = rho;
   }
   
   private void clear() {
-    investments = new Vector<Investment>();
+    investments = new InvestmentTable();
     covariance = new Covariance();
     wealth = Double.NaN;
     rho = Double.NaN;
   }
   
-  public Collection<Investment> getInvestments() { return investments; }
-  public void setInvestments(Collection<Investment> investments) { this.investments = investments; }
+  public InvestmentTable getInvestments() { return investments; }
+  /** Set the investments.
+   * An {@link InvestmentTable} is shared, any other collection is copied.
+   */
+  public void setInvestments(Collection<Investment> investments) {
+    this.investments = (investments instanceof InvestmentTable) ? (InvestmentTable)investments : new InvestmentTable(investments);
+  }
 
   public Covariance getCovariance() { return covariance; }
   public void setCovariance(Covariance covariance) { this.covariance = covariance; }
@@ -48,17 +72,16 @@ public class Input extends Message {
   public double getRho() { return rho; }
   public void setRho(double rho) { this.rho = rho; }
 
+  /** Test whether this message is written in bulk encoding (see {@link #BULK_PROPERTY}). */
+  public boolean isBulk() { return bulk; }
+  public void setBulk(boolean bulk) { this.bulk = bulk; }
+
   @Override
   public void onDeserialize(InputStream stream) throws SoamException {
      clear();
      boolean doReset = true;
      try {
-       final long size = stream.readLong();
-       for (long i = 0; i < size; ++i) {
-         final Investment investment = new Investment();
-         investment.onDeserialize(stream);
-         investments.add(investment);
-       }
+       investments.onDeserialize(stream);
        covariance.onDeserialize(stream);
        wealth = stream.readDouble();
        rho = stream.readDouble();
@@ -72,10 +95,8 @@ public class Input extends Message {
 
   @Override
   public void onSerialize(OutputStream stream) throws SoamException {
-    stream.writeLong(investments.size());
-    for (final Investment i : investments)
-      i.onSerialize(stream);
-    covariance.onSerialize(stream);
+    investments.onSerialize(stream, bulk);
+    covariance.onSerialize(stream, bulk);
     stream.writeDouble(wealth);
     stream.writeDouble(rho);
   }
@@ -1,7 +1,6 @@
 package cpx.portfolio.messages;
 
 import java.util.Collection;
-import java.util.Vector;
 
 import com.platform.symphony.soam.InputStream;
 import com.platform.symphony.soam.Message;
@@ -9,6 +8,7 @@ import com.platform.symphony.soam.OutputStream;
 import com.platform.symphony.soam.SoamException;
 
 import cpx.portfolio.data.Investment;
+import cpx.portfolio.data.InvestmentTable;
 
 /** Portfolio service output.
  * An instance of this class represents the output of the portfolio service.
@@ -16,8 +16,14 @@ import cpx.portfolio.data.Investment;
  * feasible allocation was found. In the latter case {@link isOptimal()} will
  * return false and functions {@link #getTotalReturn()} and 
  * {@link #getTotalVariance()} will both return {@link Double#NaN}.
+ * The solve time is only part of the message if {@link #isTimed()}.
  */
 public class Output extends Message {
+  /** Tag that precedes the solve time in a stream.
+   * It cannot start investments, so readers accept outputs with and without
+   * solve time.
+   */
+  public static final long SOLVE_TIME_TAG = -4;
   
   private boolean optimal = false;
   private double wealth = Double.NaN;
@@ -25,7 +31,10 @@ public class Output extends Message {
   private double objValue = Double.NaN;
   private double totalReturn = Double.NaN;
   private double totalVariance = Double.NaN;
-  private Collection<Investment> investments = new Vector<Investment>();
+  private double solveTime = Double.NaN;
+  private InvestmentTable investments = new InvestmentTable();
+  private boolean bulk = Boolean.getBoolean(Input.BULK_PROPERTY);
+  private boolean timed = false;
   
   public boolean isOptimal() { return optimal; }
   public void setOptimal(boolean optimal) { this.optimal = optimal; }
@@ -45,8 +54,28 @@ public class Output extends Message {
   public double getTotalVariance() { return totalVariance; }
   public void setTotalVariance(double totalVariance) { this.totalVariance = totalVariance; }
 
-  public Collection<Investment> getInvestments() { return investments; }
-  public void setInvestments(Collection<Investment> investments) { this.investments = investments; }
+  /** Get the time in seconds that CPLEX spent to solve the problem, NaN if unknown. */
+  public double getSolveTime() { return solveTime; }
+  public void setSolveTime(double solveTime) { this.solveTime = solveTime; }
+
+  public InvestmentTable getInvestments() { return investments; }
+  /** Set the investments.
+   * An {@link InvestmentTable} is shared, any other collection is copied.
+   */
+  public void setInvestments(Collection<Investment> investments) {
+    this.investments = (investments instanceof InvestmentTable) ? (InvestmentTable)investments : new InvestmentTable(investments);
+  }
+
+  /** Test whether this message is written in bulk encoding (see {@link Input#BULK_PROPERTY}). */
+  public boolean isBulk() { return bulk; }
+  public void setBulk(boolean bulk) { this.bulk = bulk; }
+
+  /** Test whether the solve time is written (see {@link #SOLVE_TIME_TAG}).
+   * Old readers do not know the tag, so it is only written when asked.
+   * After {@link #onDeserialize(InputStream)} this tells whether the message had a solve time.
+   */
+  public boolean isTimed() { return timed; }
+  public void setTimed(boolean timed) { this.timed = timed; }
 
   private void clear() {
     optimal = false;
@@ -55,7 +84,9 @@ public class Output extends Message {
     objValue = Double.NaN;
     totalReturn = Double.NaN;
     totalVariance = Double.NaN;
-    investments = new Vector<Investment>();
+    solveTime = Double.NaN;
+    investments = new InvestmentTable();
+    timed = false;
   }
 
   @Override
@@ -69,12 +100,14 @@ public class Output extends Message {
       objValue = stream.readDouble();
       totalReturn = stream.readDouble();
       totalVariance = stream.readDouble();
-      final long size = stream.readLong();
-      for (int i = 0; i < size; ++i) {
-        final Investment investment = new Investment();
-        investment.onDeserialize(stream);
-        investments.add(investment);
+      final long tag = stream.readLong();
+      if (tag == SOLVE_TIME_TAG) {
+        solveTime = stream.readDouble();
+        timed = true;
+        investments.onDeserialize(stream);
       }
+      else
+        investments.onDeserialize(stream, tag);
       doReset = false;
     }
     finally {
@@ -85,15 +118,27 @@ public class Output extends Message {
 
   @Override
   public void onSerialize(OutputStream stream) throws SoamException {
+    onSerialize(stream, bulk, timed);
+  }
+
+  /** Write this output to <code>stream</code>.
+   * @param stream The output stream.
+   * @param bulk   Whether to write the investments in bulk encoding, regardless of {@link #isBulk()}.
+   * @param timed  Whether to write the solve time, regardless of {@link #isTimed()}.
+   * @throws SoamException if serialization or output fails.
+   */
+  public void onSerialize(OutputStream stream, boolean bulk, boolean timed) throws SoamException {
     stream.writeBoolean(optimal);
     stream.writeDouble(wealth);
     stream.writeDouble(rho);
     stream.writeDouble(objValue);
     stream.writeDouble(totalReturn);
     stream.writeDouble(totalVariance);
-    stream.writeLong(investments.size());
-    for (final Investment i : investments)
-      i.onSerialize(stream);
+    if (timed) {
+      stream.writeLong(SOLVE_TIME_TAG);
+      stream.writeDouble(solveTime);
+    }
+    investments.onSerialize(stream, bulk);
   }
 
 }
@@ -0,0 +1,137 @@
+package cpx.portfolio.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Round-trip tests for {@link BinaryFormat}. */
+public class BinaryFormatTest {
+  private static void check(boolean condition, String message) {
+    if (!condition)
+      throw new AssertionError(message);
+  }
+
+  private static List<Investment> investments(int n) {
+    final List<Investment> list = new ArrayList<Investment>();
+    for (int i = 0; i < n; ++i) {
+      final Investment investment = new Investment();
+      investment.setId(1000 - 3 * i);
+      investment.setReturn(0.01 * i);
+      // Non-ASCII and shared names.
+      investment.setName((i % 5 == 0) ? "Fonds \u00e9\u00e8 " + i : "Shared");
+      list.add(investment);
+    }
+    return list;
+  }
+
+  /** A matrix where a fraction <code>fill</code> of the off-diagonal pairs has a value. */
+  private static Covariance covariance(List<Investment> investments, double fill, Random random) {
+    final Covariance covariance = new Covariance();
+    for (int i = 0; i < investments.size(); ++i) {
+      final long a = investments.get(i).getId();
+      covariance.setCovariance(a, a, 1.0 + random.nextDouble());
+      for (int j = 0; j < i; ++j) {
+        if (random.nextDouble() < fill)
+          covariance.setCovariance(a, investments.get(j).getId(), random.nextGaussian());
+      }
+    }
+    return covariance;
+  }
+
+  private static File roundTrip(List<Investment> investments, Covariance covariance, boolean map,
+                                List<Investment> loaded, Covariance result) throws IOException {
+    final File file = File.createTempFile("binary", ".bin");
+    file.deleteOnExit();
+    BinaryFormat.save(file, investments, covariance);
+    check(BinaryFormat.detect(file), "detect");
+    BinaryFormat.load(file, loaded, result, map);
+    return file;
+  }
+
+  private static void checkSame(List<Investment> investments, Covariance covariance, List<Investment> loaded, Covariance result) {
+    check(loaded.size() == investments.size(), "number of investments");
+    for (int i = 0; i < investments.size(); ++i) {
+      final Investment e = investments.get(i);
+      final Investment a = loaded.get(i);
+      check(e.getId() == a.getId(), "id " + a.getId());
+      check(e.getReturn() == a.getReturn(), "return of " + e.getId());
+      check(e.getName().equals(a.getName()), "name " + a.getName());
+    }
+    check(result.storage().size() == covariance.storage().size(), "number of values " + result.storage().size());
+    for (final Investment x : investments) {
+      for (final Investment y : investments) {
+        final double e = covariance.getCovariance(x.getId(), y.getId());
+        final double v = result.getCovariance(x.getId(), y.getId());
+        check(e == v || (Double.isNaN(e) && Double.isNaN(v)), "(" + x.getId() + "," + y.getId() + ") " + v + " instead of " + e);
+      }
+    }
+  }
+
+  /** Dense and sparse covariance sections, mapped and read into memory. */
+  private static void testRoundTrip() throws IOException {
+    final List<Investment> investments = investments(70);
+    for (final double fill : new double[] { 1.0, 0.8, 0.1 }) {
+      final Covariance covariance = covariance(investments, fill, new Random(1));
+      for (final boolean map : new boolean[] { true, false }) {
+        final List<Investment> loaded = new ArrayList<Investment>();
+        final Covariance result = new Covariance();
+        final File file = roundTrip(investments, covariance, map, loaded, result);
+        checkSame(investments, covariance, loaded, result);
+        // A matrix that was read into memory does not hold on to the file.
+        if (!map)
+          check(file.delete(), "delete " + file);
+        // The loaded matrix can be modified.
+        result.setCovariance(investments.get(0).getId(), investments.get(1).getId(), 42.0);
+        check(result.getCovariance(investments.get(1).getId(), investments.get(0).getId()) == 42.0, "modified");
+      }
+    }
+  }
+
+  /** Values of investments that are not in the file are not saved. */
+  private static void testUnknownInvestment() throws IOException {
+    final List<Investment> investments = investments(10);
+    final Covariance covariance = covariance(investments, 1.0, new Random(2));
+    covariance.setCovariance(investments.get(0).getId(), -5, 1.0);
+    final List<Investment> loaded = new ArrayList<Investment>();
+    final Covariance result = new Covariance();
+    roundTrip(investments, covariance, false, loaded, result);
+    check(Double.isNaN(result.getCovariance(investments.get(0).getId(), -5)), "unknown investment");
+    check(result.storage().size() == covariance.storage().size() - 1, "number of values");
+  }
+
+  /** A truncated file is rejected and leaves the output empty. */
+  private static void testTruncated() throws IOException {
+    final List<Investment> investments = investments(10);
+    final File file = File.createTempFile("binary", ".bin");
+    file.deleteOnExit();
+    BinaryFormat.save(file, investments, covariance(investments, 1.0, new Random(3)));
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - 16);
+    }
+    finally {
+      raf.close();
+    }
+    for (final boolean map : new boolean[] { true, false }) {
+      final List<Investment> loaded = new ArrayList<Investment>();
+      final Covariance result = new Covariance();
+      try {
+        BinaryFormat.load(file, loaded, result, map);
+        check(false, "truncated file accepted");
+      }
+      catch (IOException e) {
+        check(loaded.isEmpty() && result.storage().size() == 0, "cleared after error");
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    testRoundTrip();
+    testUnknownInvestment();
+    testTruncated();
+    System.out.println("BinaryFormatTest passed");
+  }
+}
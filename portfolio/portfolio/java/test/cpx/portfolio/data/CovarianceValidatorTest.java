@@ -0,0 +1,106 @@
+package cpx.portfolio.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Tests for {@link CovarianceValidator}. */
+public class CovarianceValidatorTest {
+  private static void check(boolean condition, String message) {
+    if (!condition)
+      throw new AssertionError(message);
+  }
+
+  private static List<Investment> investments(long[] ids) {
+    final List<Investment> list = new ArrayList<Investment>();
+    for (final long id : ids) {
+      final Investment investment = new Investment();
+      investment.setId(id);
+      list.add(investment);
+    }
+    return list;
+  }
+
+  private static long[] ids(int n) {
+    final long[] ids = new long[n];
+    for (int i = 0; i < n; ++i)
+      ids[i] = 100 + i;
+    return ids;
+  }
+
+  /** A diagonally dominant, hence positive definite, matrix. */
+  private static Covariance dominant(long[] ids) {
+    final Covariance covariance = new Covariance();
+    for (int i = 0; i < ids.length; ++i) {
+      covariance.setCovariance(ids[i], ids[i], ids.length);
+      for (int j = 0; j < i; ++j)
+        covariance.setCovariance(ids[i], ids[j], 0.5);
+    }
+    return covariance;
+  }
+
+  private static void testValid() {
+    final long[] ids = ids(150);
+    final CovarianceValidator.Report report = new CovarianceValidator().validate(investments(ids), dominant(ids));
+    check(report.isValid(), "dominant matrix is valid");
+    check(report.getMinPivot() > 0.0, "positive pivots");
+  }
+
+  /** Removing the covariances of one investment reports only that investment. */
+  private static void testMissingPairs() {
+    final long[] ids = ids(150);
+    final Covariance covariance = new Covariance();
+    for (int i = 0; i < ids.length; ++i) {
+      covariance.setCovariance(ids[i], ids[i], ids.length);
+      for (int j = 0; j < i; ++j) {
+        if (i != 42 && j != 42)
+          covariance.setCovariance(ids[i], ids[j], 0.5);
+      }
+    }
+    final CovarianceValidator.Report report = new CovarianceValidator().validate(investments(ids), covariance);
+    check(!report.isComplete(), "incomplete");
+    check(Arrays.equals(report.getMissing(), new long[] { ids[42] }), "missing " + Arrays.toString(report.getMissing()));
+  }
+
+  /** An investment without variance is reported, its partners are not. */
+  private static void testMissingVariance() {
+    final long[] ids = ids(20);
+    final Covariance covariance = new Covariance();
+    for (int i = 0; i < ids.length; ++i) {
+      if (i != 3)
+        covariance.setCovariance(ids[i], ids[i], ids.length);
+    }
+    // A single missing pair of two other investments.
+    for (int i = 0; i < ids.length; ++i) {
+      for (int j = 0; j < i; ++j) {
+        if (!(i == 9 && j == 5))
+          covariance.setCovariance(ids[i], ids[j], 0.5);
+      }
+    }
+    final long[] missing = new CovarianceValidator().validate(investments(ids), covariance).getMissing();
+    check(missing.length == 2, "missing " + Arrays.toString(missing));
+    check(missing[0] == ids[3], "investment without variance");
+    check(missing[1] == ids[5] || missing[1] == ids[9], "one investment of the missing pair");
+  }
+
+  private static void testNotPSD() {
+    final long[] ids = ids(30);
+    final Covariance covariance = dominant(ids);
+    covariance.setCovariance(ids[7], ids[7], -1.0);
+    final CovarianceValidator validator = new CovarianceValidator();
+    final CovarianceValidator.Report report = validator.validate(investments(ids), covariance);
+    check(report.isComplete(), "complete");
+    check(!report.isPSD(), "not PSD");
+    check(Arrays.equals(report.getOffending(), new long[] { ids[7] }), "offending " + Arrays.toString(report.getOffending()));
+    final Covariance repaired = validator.repair(investments(ids), covariance);
+    check(validator.validate(investments(ids), repaired).isPSD(), "repaired matrix is PSD");
+  }
+
+  public static void main(String[] args) {
+    testValid();
+    testMissingPairs();
+    testMissingVariance();
+    testNotPSD();
+    System.out.println("CovarianceValidatorTest passed");
+  }
+}
@@ -0,0 +1,112 @@
+package cpx.portfolio.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/** Round-trip tests for {@link CsrStorage}. */
+public class CsrStorageTest {
+  private static void check(boolean condition, String message) {
+    if (!condition)
+      throw new AssertionError(message);
+  }
+
+  /** A sparse matrix with random values for about a quarter of the pairs. */
+  private static Covariance sparse(long[] ids, Random random) {
+    final Covariance covariance = new Covariance();
+    for (int i = 0; i < ids.length; ++i) {
+      covariance.setCovariance(ids[i], ids[i], 1.0 + random.nextDouble());
+      for (int j = 0; j < i; ++j) {
+        if (random.nextInt(4) == 0)
+          covariance.setCovariance(ids[j], ids[i], random.nextGaussian());
+      }
+    }
+    return covariance;
+  }
+
+  /** Write <code>source</code> restricted to <code>ids</code> and read it back. */
+  private static CsrStorage roundTrip(long[] ids, CovarianceStorage source, boolean map) throws IOException {
+    final File file = File.createTempFile("csr", ".bin");
+    file.deleteOnExit();
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      CsrStorage.write(raf.getChannel(), ids, source);
+      final FileSections sections = map ? FileSections.map(raf.getChannel(), false) : FileSections.read(raf.getChannel(), file.toString());
+      final CsrStorage storage = CsrStorage.map(sections, 0, file.toString());
+      check(sections.size() == CsrStorage.size(ids.length, storage.size()), "file size");
+      return storage;
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  private static void checkSame(long[] ids, CovarianceStorage expected, CovarianceStorage actual) {
+    for (final long a : ids) {
+      for (final long b : ids) {
+        if (a > b)
+          continue;
+        final double e = expected.get(a, b);
+        final double v = actual.get(a, b);
+        check(e == v || (Double.isNaN(e) && Double.isNaN(v)), "(" + a + "," + b + ") " + v + " instead of " + e);
+      }
+    }
+    long first = Long.MIN_VALUE;
+    long second = Long.MIN_VALUE;
+    int count = 0;
+    for (final CovarianceStorage.Cursor c = actual.cursor(); c.next(); ++count) {
+      check(c.first() <= c.second(), "ordered pair");
+      check(c.first() > first || (c.first() == first && c.second() > second), "cursor order");
+      first = c.first();
+      second = c.second();
+      check(c.value() == expected.get(c.first(), c.second()), "cursor value");
+    }
+    check(count == actual.size(), "count");
+  }
+
+  private static void testRoundTrip() throws IOException {
+    final long[] ids = new long[60];
+    for (int i = 0; i < ids.length; ++i)
+      ids[i] = 7 * i - 100;
+    final Covariance covariance = sparse(ids, new Random(1));
+    for (final boolean map : new boolean[] { true, false }) {
+      final CsrStorage storage = roundTrip(ids, covariance.storage(), map);
+      check(storage.size() == covariance.storage().size(), "size " + storage.size());
+      check(storage.dimension() == ids.length, "dimension");
+      checkSame(ids, covariance.storage(), storage);
+    }
+    // The same values from dense storage give the same file content.
+    final Covariance dense = new Covariance();
+    dense.copy(covariance);
+    dense.materialize();
+    checkSame(ids, covariance.storage(), roundTrip(ids, dense.storage(), true));
+  }
+
+  /** Values of investments that are not written are skipped. */
+  private static void testSubset() throws IOException {
+    final long[] ids = new long[20];
+    for (int i = 0; i < ids.length; ++i)
+      ids[i] = i;
+    final Covariance covariance = sparse(ids, new Random(2));
+    final long[] subset = new long[] { 1, 4, 5, 11, 19 };
+    final CsrStorage storage = roundTrip(subset, covariance.storage(), true);
+    check(storage.dimension() == subset.length, "dimension");
+    checkSame(subset, covariance.storage(), storage);
+    check(Double.isNaN(storage.get(0, 1)), "skipped investment");
+  }
+
+  /** An empty matrix round-trips. */
+  private static void testEmpty() throws IOException {
+    final CsrStorage storage = roundTrip(new long[0], new Covariance().storage(), false);
+    check(storage.size() == 0 && storage.dimension() == 0, "empty");
+    check(!storage.cursor().next(), "no entries");
+  }
+
+  public static void main(String[] args) throws IOException {
+    testRoundTrip();
+    testSubset();
+    testEmpty();
+    System.out.println("CsrStorageTest passed");
+  }
+}
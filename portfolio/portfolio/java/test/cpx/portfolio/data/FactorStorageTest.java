@@ -0,0 +1,115 @@
+package cpx.portfolio.data;
+
+import java.util.Random;
+
+/** Tests for {@link FactorStorage#fit(CovarianceStorage, int)}. */
+public class FactorStorageTest {
+  private static final double EPSILON = 1e-8;
+
+  private static void check(boolean condition, String message) {
+    if (!condition)
+      throw new AssertionError(message);
+  }
+
+  private static long[] ids(int n) {
+    final long[] ids = new long[n];
+    for (int i = 0; i < n; ++i)
+      ids[i] = 100 + 3 * i;
+    return ids;
+  }
+
+  /** Create the matrix <code>B F B<sup>T</sup></code> for random exposures and diagonal factor variances. */
+  private static Covariance lowRank(long[] ids, int k, Random random) {
+    final double[][] exposures = new double[ids.length][k];
+    for (final double[] row : exposures) {
+      for (int p = 0; p < k; ++p)
+        row[p] = random.nextGaussian();
+    }
+    final double[][] factors = new double[k][k];
+    for (int p = 0; p < k; ++p)
+      factors[p][p] = 1.0 + p;
+    final Covariance covariance = new Covariance();
+    for (int i = 0; i < ids.length; ++i) {
+      for (int j = 0; j <= i; ++j) {
+        double sum = 0.0;
+        for (int p = 0; p < k; ++p)
+          sum += exposures[i][p] * factors[p][p] * exposures[j][p];
+        covariance.setCovariance(ids[i], ids[j], sum);
+      }
+    }
+    return covariance;
+  }
+
+  private static void checkEqual(long[] ids, Covariance expected, CovarianceStorage actual, String what) {
+    for (int i = 0; i < ids.length; ++i) {
+      for (int j = 0; j <= i; ++j) {
+        final double e = expected.getCovariance(ids[i], ids[j]);
+        final double a = actual.get(ids[i], ids[j]);
+        check(Math.abs(e - a) <= EPSILON * (1.0 + Math.abs(e)), what + ": (" + i + "," + j + ") " + a + " instead of " + e);
+      }
+    }
+  }
+
+  /** A matrix of rank k is reproduced by k factors. */
+  private static void testLowRank() {
+    final long[] ids = ids(40);
+    final Covariance covariance = lowRank(ids, 3, new Random(1));
+    final FactorStorage model = FactorStorage.fit(covariance.storage(), 3);
+    check(model.factors() == 3, "factors");
+    check(model.dimension() == ids.length, "dimension");
+    checkEqual(ids, covariance, model, "rank 3");
+  }
+
+  /** With as many factors as investments the fit is exact. */
+  private static void testFullRank() {
+    final long[] ids = ids(12);
+    final Covariance covariance = lowRank(ids, 12, new Random(2));
+    checkEqual(ids, covariance, FactorStorage.fit(covariance.storage(), 12), "full rank");
+  }
+
+  /** The variances are reproduced, fewer factors leave the rest as specific variance. */
+  private static void testDiagonal() {
+    final long[] ids = ids(30);
+    final Covariance covariance = lowRank(ids, 6, new Random(3));
+    final FactorStorage model = FactorStorage.fit(covariance.storage(), 2);
+    for (final long id : ids) {
+      final double e = covariance.getCovariance(id, id);
+      check(Math.abs(model.get(id, id) - e) <= EPSILON * (1.0 + e), "variance of " + id);
+    }
+    check(Double.isNaN(model.get(ids[0], 1)), "unknown investment");
+  }
+
+  /** Missing entries are treated as zero. */
+  private static void testMissing() {
+    final long[] ids = ids(3);
+    final Covariance covariance = new Covariance();
+    covariance.setCovariance(ids[0], ids[0], 4.0);
+    covariance.setCovariance(ids[1], ids[1], 2.0);
+    covariance.setCovariance(ids[2], ids[2], 1.0);
+    final FactorStorage model = FactorStorage.fit(covariance.storage(), 3);
+    check(Math.abs(model.get(ids[0], ids[1])) <= EPSILON, "missing pair");
+    check(Math.abs(model.get(ids[1], ids[1]) - 2.0) <= EPSILON, "variance");
+  }
+
+  private static void testInvalid() {
+    final Covariance covariance = lowRank(ids(5), 2, new Random(4));
+    for (final int k : new int[] { 0, 6 }) {
+      try {
+        FactorStorage.fit(covariance.storage(), k);
+        check(false, k + " factors accepted");
+      }
+      catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    testLowRank();
+    testFullRank();
+    testDiagonal();
+    testMissing();
+    testInvalid();
+    System.out.println("FactorStorageTest passed");
+  }
+}
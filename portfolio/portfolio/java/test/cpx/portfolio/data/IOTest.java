@@ -0,0 +1,168 @@
+package cpx.portfolio.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/** Round-trip tests for {@link IO}. */
+public class IOTest {
+  private static void check(boolean condition, String message) {
+    if (!condition)
+      throw new AssertionError(message);
+  }
+
+  private static List<Investment> investments(int n, Random random) {
+    final List<Investment> list = new ArrayList<Investment>();
+    for (int i = 0; i < n; ++i) {
+      final Investment investment = new Investment();
+      investment.setId(5 * i + 1);
+      investment.setReturn(random.nextGaussian());
+      investment.setName("Investment " + i);
+      list.add(investment);
+    }
+    return list;
+  }
+
+  /** A matrix where a fraction <code>fill</code> of the off-diagonal pairs has a value. */
+  private static Covariance covariance(List<Investment> investments, double fill, Random random) {
+    final Covariance covariance = new Covariance();
+    for (int i = 0; i < investments.size(); ++i) {
+      final long a = investments.get(i).getId();
+      covariance.setCovariance(a, a, 1.0 + random.nextDouble());
+      for (int j = 0; j < i; ++j) {
+        if (random.nextDouble() < fill)
+          covariance.setCovariance(investments.get(j).getId(), a, random.nextGaussian() * 1e-3);
+      }
+    }
+    return covariance;
+  }
+
+  /** Check that both data sets hold the same investments (in any order) and covariance values. */
+  private static void checkSame(List<Investment> investments, Covariance covariance, List<Investment> loaded, Covariance result) {
+    check(loaded.size() == investments.size(), "number of investments " + loaded.size());
+    final Map<Long, Investment> byId = new HashMap<Long, Investment>();
+    for (final Investment i : loaded)
+      byId.put(i.getId(), i);
+    for (final Investment e : investments) {
+      final Investment a = byId.get(e.getId());
+      check(a != null, "investment " + e.getId());
+      check(e.getReturn() == a.getReturn(), "return of " + e.getId() + ": " + a.getReturn());
+      check(e.getName().equals(a.getName()), "name of " + e.getId() + ": " + a.getName());
+    }
+    for (final Investment x : investments) {
+      for (final Investment y : investments) {
+        final double e = covariance.getCovariance(x.getId(), y.getId());
+        final double v = result.getCovariance(x.getId(), y.getId());
+        check(e == v || (Double.isNaN(e) && Double.isNaN(v)), "(" + x.getId() + "," + y.getId() + ") " + v + " instead of " + e);
+      }
+    }
+    check(IO.diff(investments, covariance, loaded, result).length == 0, "diff");
+  }
+
+  /** Text files, plain and compressed, loaded sequentially and in parallel. */
+  private static void testText() throws IOException {
+    final Random random = new Random(1);
+    final List<Investment> investments = investments(80, random);
+    final Covariance covariance = covariance(investments, 0.3, random);
+    for (final boolean compress : new boolean[] { false, true }) {
+      final File file = File.createTempFile("data", compress ? ".txt.gz" : ".txt");
+      file.deleteOnExit();
+      IO.save(file, investments, covariance, false, compress);
+      final List<Investment> loaded = new ArrayList<Investment>();
+      final Covariance result = new Covariance();
+      IO.load(file, loaded, result);
+      checkSame(investments, covariance, loaded, result);
+      if (!compress) {
+        final List<Investment> parallel = new ArrayList<Investment>();
+        final Covariance parallelResult = new Covariance();
+        IO.loadParallel(file, parallel, parallelResult);
+        checkSame(investments, covariance, parallel, parallelResult);
+      }
+    }
+  }
+
+  /** Streams, and zeros that are skipped on save. */
+  private static void testStream() throws IOException {
+    final Random random = new Random(2);
+    final List<Investment> investments = investments(20, random);
+    final Covariance covariance = covariance(investments, 0.5, random);
+    covariance.setCovariance(investments.get(0).getId(), investments.get(1).getId(), 0.0);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    IO.save(output, investments, covariance);
+    List<Investment> loaded = new ArrayList<Investment>();
+    Covariance result = new Covariance();
+    IO.load(new ByteArrayInputStream(output.toByteArray()), loaded, result);
+    checkSame(investments, covariance, loaded, result);
+
+    output = new ByteArrayOutputStream();
+    IO.save(output, investments, covariance, true);
+    loaded = new ArrayList<Investment>();
+    result = new Covariance();
+    IO.load(new ByteArrayInputStream(output.toByteArray()), loaded, result);
+    check(Double.isNaN(result.getCovariance(investments.get(0).getId(), investments.get(1).getId())), "zero skipped");
+  }
+
+  /** Binary files, mapped and read into memory. */
+  private static void testBinary() throws IOException {
+    final Random random = new Random(3);
+    final List<Investment> investments = investments(50, random);
+    final Covariance covariance = covariance(investments, 0.9, random);
+    final File file = File.createTempFile("data", ".bin");
+    file.deleteOnExit();
+    IO.saveBinary(file, investments, covariance);
+    for (final boolean map : new boolean[] { true, false }) {
+      final List<Investment> loaded = new ArrayList<Investment>();
+      final Covariance result = new Covariance();
+      IO.load(file, loaded, result, map, null);
+      checkSame(investments, covariance, loaded, result);
+    }
+  }
+
+  /** A delta file changes exactly the records it lists. */
+  private static void testApply() throws IOException {
+    final Random random = new Random(4);
+    final List<Investment> investments = investments(6, random);
+    final Covariance covariance = covariance(investments, 1.0, random);
+    final String delta = "# delta\n"
+      + "I 1 0.5 Renamed\n"
+      + "\n"
+      + "I 100 0.25 New\n"
+      + "C 100 100 2.0\n"
+      + "C 6 100 0.125\n"
+      + "-C 11 16\n"
+      + "-I 26\n";
+    final long[] changed = IO.apply(new ByteArrayInputStream(delta.getBytes("UTF-8")), investments, covariance);
+    check(Arrays.equals(changed, new long[] { 1, 6, 11, 16, 26, 100 }), "changed " + Arrays.toString(changed));
+    check(investments.size() == 6, "number of investments");
+    check(investments.get(0).getName().equals("Renamed") && investments.get(0).getReturn() == 0.5, "updated investment");
+    check(covariance.getCovariance(100, 6) == 0.125, "new covariance");
+    check(Double.isNaN(covariance.getCovariance(16, 11)), "removed covariance");
+    check(Double.isNaN(covariance.getCovariance(26, 26)), "removed investment");
+
+    // An invalid delta changes nothing.
+    final List<Investment> before = new ArrayList<Investment>(investments);
+    try {
+      IO.apply(new ByteArrayInputStream("I 200 1.0 X\nC 200 999 1.0\n".getBytes("UTF-8")), investments, covariance);
+      check(false, "covariance of an unknown investment accepted");
+    }
+    catch (IOException e) {
+      check(investments.equals(before), "unchanged investments");
+      check(Double.isNaN(covariance.getCovariance(200, 200)), "unchanged covariance");
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    testText();
+    testStream();
+    testBinary();
+    testApply();
+    System.out.println("IOTest passed");
+  }
+}